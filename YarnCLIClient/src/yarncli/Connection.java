@@ -1,44 +1,45 @@
 
 package yarncli;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.EOFException;
 import java.net.*;
+import yarnprotocol.Frame;
+import yarnprotocol.FrameReader;
+import yarnprotocol.FrameWriter;
+import yarnprotocol.Login;
+import yarnprotocol.LoginResult;
+import yarnprotocol.Protocol;
 
 /**
  * Connection class for connecting to Yarn servers and providing the ability
  * to send and receive textual data once connected.  Provides a thread for the
  * receiving of data and relies on the Main class for displaying the data to a
- * user via a CLI.
+ * user via a CLI.  All data is sent and received as protocol frames (see the
+ * yarnprotocol package).  The CLI client logs in with a single login frame
+ * and responds to the servers connection requests but does not support data
+ * shares, which are rejected.
  * @author Michael Telford
  */
 public class Connection extends Socket implements Runnable {
 
-    private InputStream in = null;
-    private OutputStream out = null;
+    private FrameReader in = null;
+    private FrameWriter out = null;
 
     public Connection() {
         super();
     }
 
     public void run(){
-        // Create a delay on connection to wait for server response.
-        try {
-            Thread.sleep(1500);
-        }
-        catch (InterruptedException ie){
-            // Do nothing after delay, continue to receive loop below.
-        }
         // Continously tries to receive data once connected.
         while (true){
             try {
                 if (this != null && this.isConnected()){
                     String text = this.receive();
-                    if (!text.trim().isEmpty())
+                    if (text != null && !text.trim().isEmpty())
                         Main.setReceivedText(text);
                 }
             }
-            catch (NegativeArraySizeException nase){
+            catch (EOFException eofe){
                 Main.setReceivedText("Server has disconnected this client");
                 System.exit(0);
             }
@@ -73,30 +74,56 @@ public class Connection extends Socket implements Runnable {
 
     }
 
+    // Sends the server password (empty if not known) and username, the server
+    // responds with the login result.
+    public void login(String password, String username) throws Exception {
+
+        Login login = new Login(0, password, username);
+        this.send(new Frame(Protocol.LOGIN, login.encode()));
+
+    }
+
     public int send(String text) throws Exception {
 
-        if (this.out == null)
-            out = this.getOutputStream();
+        Frame frame = new Frame(Protocol.TEXT, text);
+        this.send(frame);
+        return frame.getPayload().length;
 
-        byte[] data = text.getBytes();
-        out.write(data);
-        return data.length;
+    }
+
+    private synchronized void send(Frame frame) throws Exception {
+
+        if (this.out == null)
+            this.out = new FrameWriter(this.getOutputStream(),
+                                       Configuration.maxTextChars);
+        this.out.write(frame);
 
     }
 
+    // Returns the received text or null if the frame has no text to display.
     public String receive() throws Exception {
 
         if (this.in == null)
-            this.in = this.getInputStream();
-
-        byte[] b = new byte[Configuration.maxTextChars];
-        // Blocks until data is received
-        int numRead = in.read(b, 0, b.length);
-
-        byte[] data = new byte[numRead];
-        System.arraycopy(b, 0, data, 0, numRead);
-        String text = new String(data);
-        return text;
+            this.in = new FrameReader(this.getInputStream(),
+                                      Configuration.maxTextChars);
+
+        // Blocks until a whole frame is received
+        Frame frame = this.in.read();
+        switch (frame.getType()){
+            case Protocol.TEXT:
+                return frame.getText();
+            case Protocol.CONNECTION_REQUEST:
+                this.send(new Frame(Protocol.CONNECTION_REQUEST));
+                return null;
+            case Protocol.LOGIN_RESULT:
+                return Main.setLoginResult(LoginResult.decode(frame.getPayload()));
+            case Protocol.DATA_SHARE_REQUEST:
+                this.send(new Frame(Protocol.DATA_SHARE_REJECT));
+                return frame.getText() + "\nData shares are not supported "
+                       + "by the CLI client, the data share has been rejected";
+            default:
+                return null;
+        }
 
     }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStreamReader;
 import java.net.SocketException;
 import java.util.InputMismatchException;
+import yarnprotocol.LoginResult;
 
 /**
  * Main class used for providing the console interface and sending data.
@@ -20,10 +21,21 @@ public class Main {
             + "Type -q to quit and exit once connected\n"
             + "Type -c to see how many clients are connected\n"
             + "Type -n to see the usernames of any connected clients\n"
+            + "Type -history (then -history more) to see earlier messages\n"
+            + "Type -join #name, -leave #name or -channels for channels, "
+            + "#name message to send to one\n"
             + "Type -h for help once connected or use as an argument\n\n";
     
-    private static boolean isLoggedIn = false;
+    private static final String USERNAME_PROMPT =
+            "Enter your username (usernames are case sensitive) :";
+    private static final String PASSWORD_PROMPT =
+            "Enter the yarn server password :";
+
+    private static volatile boolean isLoggedIn = false;
+    private static volatile String loginPrompt = null; // Awaiting a reply.
     private static String address = "";
+    private static String username = "";
+    private static String password = "";
     
     private static final InputStreamReader INPUT = new InputStreamReader(System.in);
     private static BufferedReader in = new BufferedReader(INPUT);
@@ -32,8 +44,33 @@ public class Main {
     // Used to set text in the CLI via other classes e.g. Connection class.
     public static void setReceivedText(String text){
         System.out.println("--> " + text);
-        if (text.contains("Start typing to have a yarn"))
+    }
+
+    // Used by the Connection class when the login result is received.  If
+    // the login was refused the user is asked for the password or another
+    // username, their next line of text is sent as a new login.
+    public static String setLoginResult(LoginResult result){
+        if (result.isAccepted()){
             Main.isLoggedIn = true;
+            return result.getMessage();
+        }
+        if (result.getResult() == LoginResult.INCORRECT_PASSWORD)
+            Main.loginPrompt = Main.PASSWORD_PROMPT;
+        else if (result.getResult() == LoginResult.USERNAME_NOT_ALLOWED)
+            Main.loginPrompt = Main.USERNAME_PROMPT;
+        else
+            return result.getMessage();
+        return result.getMessage() + "\n" + Main.loginPrompt;
+    }
+
+    // Sends the login typed by the user in reply to a login prompt.
+    private static void login(String text) throws Exception {
+        if (Main.loginPrompt.equals(Main.PASSWORD_PROMPT))
+            Main.password = text;
+        else
+            Main.username = text;
+        Main.loginPrompt = null;
+        Main.conn.login(Main.password, Main.username);
     }
 
     // Used to locate and update variables via the config.txt file.
@@ -83,9 +120,12 @@ public class Main {
         }
     }
 
-    // Bind (optional), connect and start receive thread.
+    // Bind (optional), connect, start receive thread and log in.  The
+    // username is asked for first so that logging in takes a single message.
     private static void bindConnectReceive(){
         try {
+            System.out.println(Main.USERNAME_PROMPT);
+            Main.username = in.readLine().trim();
             Main.conn = new Connection();
             //Main.conn.bind(); (Optional) // Port not available on Uni network.
             System.out.println("Attempting to connect to Yarn server " +
@@ -93,6 +133,7 @@ public class Main {
             Main.conn.connect(Main.address);
             Thread t = new Thread(Main.conn);
             t.start();
+            Main.conn.login(Main.password, Main.username);
         }
         catch (Exception e){
             System.out.println(e.getMessage());
@@ -110,9 +151,8 @@ public class Main {
         Main.config();
         // Check user arguments.
         Main.userArgs(args);
-        // Bind (optional), connect and start receive thread.
+        // Bind (optional), connect, start receive thread and log in.
         Main.bindConnectReceive();
-        // Delay for server connection response is in Connection run() method.
 
         // Allows to send text continously once connected.
         while (true){ // Send loop.
@@ -129,6 +169,9 @@ public class Main {
                     break; // exits program.
                 }
                 
+                else if (Main.loginPrompt != null) // Login reply.
+                    Main.login(text.trim());
+
                 else if (text.equalsIgnoreCase("")){ // Nothing Typed.
                     // Nothing happens when no text is entered.
                 }
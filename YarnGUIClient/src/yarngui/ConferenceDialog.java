@@ -4,6 +4,7 @@ package yarngui;
 import java.awt.event.KeyEvent;
 import javax.swing.JComponent;
 import javax.swing.border.EmptyBorder;
+import yarnprotocol.Protocol;
 
 /**
  * This class is responsible for providing a sub class of JFrame which is used 
@@ -11,32 +12,35 @@ import javax.swing.border.EmptyBorder;
  * window when the user clicks the conference button.
  * 
  * This window provides a means of providing the user with a graphical interface 
- * capable of sending and receiving private messages with another user or users. 
- * By using the conference dialog a user cannot send a message to everybody by 
- * mistake.  This dialog therefore acts as a safety measure as well as providing 
- * convenience for private messaging functionality. 
+ * capable of sending and receiving messages in a channel with other users.  
+ * The server keeps the members of each channel and sends a channel message 
+ * only to them, prefixed with the channel name, so neither the sent nor the 
+ * received text carries a list of usernames.  By using the conference dialog 
+ * a user cannot send a message to everybody by mistake.  This dialog 
+ * therefore acts as a safety measure as well as providing convenience for 
+ * group messaging functionality. 
  * @author Michael Telford
  */
 public class ConferenceDialog extends javax.swing.JFrame {
     
     public static final String WELCOME_TEXT =
-              "Enter the client usernames above and begin typing to start a "
-            + "conference with them.  Usernames should be separated by a space.\n\n"
-            + "Any text sent from this window will only go to the above chosen "
-            + "users.\n\n"
-            + "If somebody else adds a new client to the conference the received "
-            + "conference text will appear in the main communicator window "
-            + "until you update this window with the new username in the text "
-            + "field above.  Therefore it is good practice to let the other "
-            + "conference users know before you add another user so that "
-            + "they can update their conference windows also.\n\n";
+              "Enter a channel name above e.g. #friends and begin typing to join "
+            + "the channel and start a conference in it.  The channel is created "
+            + "if nobody is in it yet.\n\n"
+            + "Any text sent from this window will only go to the members of the "
+            + "above channel.\n\n"
+            + "Others join the conference by entering the same channel name in "
+            + "their conference window or by typing -join #friends in the main "
+            + "communicator window.  Text from your other channels appears in "
+            + "the main communicator window prefixed with the channel name.\n\n";
     public static final String HELP_MSG =
-              "Enter the usernames of the clients in the conference using the text "
+              "Enter the name of the conference channel using the text "
             + "field above.\n"
             + "Then write to the conference using the text field and the "
             + "send button below.\n\n";
     
     private String lastSentText = "";
+    private volatile String joinedChannel = null;  // Joined from this dialog.
     private Connection connection;
 
     /**
@@ -95,7 +99,6 @@ public class ConferenceDialog extends javax.swing.JFrame {
      * @param text The received text which is to be displayed to the user. 
      */
     public final synchronized void setReceivedText(String text){
-        Utilities.delay(100);
         // Append the text and scroll to the bottom of the conference window.
         this.conference.append(text + "\n");
         this.scrollConferenceToBottom();
@@ -104,17 +107,6 @@ public class ConferenceDialog extends javax.swing.JFrame {
             GUI.playAlertSound();
     }
     
-    /**
-     * This method disables the send button for when a data share is taking 
-     * place.  This disables the users ability to send text along with the 
-     * data share until the server has received the data. 
-     * @param isEnabled True for enabled functionality, false for disabled 
-     * functionality of the send button within this dialog. 
-     */
-    public void setGUISendAbility(boolean isEnabled){
-        this.send.setEnabled(isEnabled);
-    }
-    
     /**
      * This method scrolls the main text pane of this dialog to the top.  This 
      * is used for when the dialog is launched so that the user can view the 
@@ -134,45 +126,44 @@ public class ConferenceDialog extends javax.swing.JFrame {
     }
     
     /**
-     * This method is used to retrieve the given usernames from the username 
-     * text field.  This information is obviously required when sending text to 
-     * other clients.  This method prepends @ to the username if necessary.
-     * @return An array containing the entered usernames, each prepended with 
-     * @ as is used in the protocol commands.
+     * This method is used to retrieve the channel name from the channel text 
+     * field.  This information is obviously required when sending text to 
+     * the channel.  This method prepends # to the channel name if necessary.
+     * @return The channel name prepended with # as is used in the protocol 
+     * commands, or null if no channel name (or more than one word) has been 
+     * entered.
      */
-    public String[] getUsernames(){
-        String list = this.usernames.getText().trim();
-        if (list.isEmpty())
+    public String getChannelName(){
+        String name = this.channel.getText().trim();
+        if (name.isEmpty() || name.contains(" "))
             return null;
-        String[] unames = list.split(" ");
-        for (int i = 0; i < unames.length; i++){
-            unames[i] = unames[i].trim();
-            if (!unames[i].startsWith("@"))
-                unames[i] = "@" + unames[i];
-        }
-        return unames;
+        if (!name.startsWith(Protocol.CHANNEL_PREFIX))
+            name = Protocol.CHANNEL_PREFIX + name;
+        return name;
     }
     
     /**
-     * This method is responsible for prepending the text being sent to the 
-     * server with the required usernames of the receiving clients.  This method 
-     * is obviously called before the text is sent. 
-     * @param unames A string containing all the desired receiving client 
-     * usernames.
-     * @param message The message being sent to the receiving clients. 
-     * @return A string containing the username(s) and the message being sent. 
+     * This method forgets the channel joined from this dialog, called when 
+     * the client logs in because a new login isn't in any channels. 
      */
-    private String prefixUsernamesToMessage(String[] unames, String message){
-        // Should never return null, just a precaution.
-        if (unames == null || unames.length == 0 || message.isEmpty())
-            return null;
-        String processedMessage = "";
-        // All usernames should already have an '@' at the start.
-        for (String uname : unames){
-            processedMessage += (uname + " ");
-        }
-        processedMessage += message;
-        return processedMessage;
+    public void resetChannel(){
+        this.joinedChannel = null;
+    }
+    
+    /**
+     * This method joins the given channel if it isn't the channel last 
+     * joined from this dialog, leaving that channel first.  The server's 
+     * replies appear in the main communicator window. 
+     * @param name The channel name. 
+     */
+    private void joinChannel(String name){
+        if (name.equals(this.joinedChannel))
+            return;
+        if (this.joinedChannel != null)
+            this.connection.send(Protocol.LEAVE_CMD + " " + this.joinedChannel);
+        this.connection.send(Protocol.JOIN_CMD + " " + name);
+        this.joinedChannel = name;
+        this.setSystemText("Joined " + name);
     }
     
     /**
@@ -186,8 +177,8 @@ public class ConferenceDialog extends javax.swing.JFrame {
          || this.message.hasFocus()
          || this.send.hasFocus()
          || this.clear.hasFocus()
-         || this.usernames.hasFocus()
-         || this.usernamesLabel.hasFocus()
+         || this.channel.hasFocus()
+         || this.channelLabel.hasFocus()
          || this.conferenceLabel.hasFocus()
          || this.jScrollPane1.hasFocus()
          || this.jScrollPane2.hasFocus())
@@ -200,8 +191,8 @@ public class ConferenceDialog extends javax.swing.JFrame {
     // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
     private void initComponents() {
 
-        usernamesLabel = new javax.swing.JLabel();
-        usernames = new javax.swing.JTextField();
+        channelLabel = new javax.swing.JLabel();
+        channel = new javax.swing.JTextField();
         conferenceLabel = new javax.swing.JLabel();
         jScrollPane1 = new javax.swing.JScrollPane();
         conference = new javax.swing.JTextArea();
@@ -214,16 +205,16 @@ public class ConferenceDialog extends javax.swing.JFrame {
         setTitle("Yarn Conference");
         setMinimumSize(new java.awt.Dimension(437, 300));
 
-        usernamesLabel.setText("Usernames");
+        channelLabel.setText("Channel");
 
-        usernames.setFont(new java.awt.Font("Tahoma", 0, 12)); // NOI18N
-        usernames.setToolTipText("Conference users");
-        usernames.addKeyListener(new java.awt.event.KeyAdapter() {
+        channel.setFont(new java.awt.Font("Tahoma", 0, 12)); // NOI18N
+        channel.setToolTipText("Conference channel");
+        channel.addKeyListener(new java.awt.event.KeyAdapter() {
             public void keyReleased(java.awt.event.KeyEvent evt) {
-                usernamesKeyReleased(evt);
+                channelKeyReleased(evt);
             }
             public void keyTyped(java.awt.event.KeyEvent evt) {
-                usernamesKeyTyped(evt);
+                channelKeyTyped(evt);
             }
         });
 
@@ -282,7 +273,7 @@ public class ConferenceDialog extends javax.swing.JFrame {
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
-            .addComponent(usernames)
+            .addComponent(channel)
             .addComponent(jScrollPane1)
             .addGroup(layout.createSequentialGroup()
                 .addContainerGap()
@@ -292,7 +283,7 @@ public class ConferenceDialog extends javax.swing.JFrame {
                 .addContainerGap(308, Short.MAX_VALUE))
             .addGroup(layout.createSequentialGroup()
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
-                    .addComponent(usernamesLabel)
+                    .addComponent(channelLabel)
                     .addComponent(conferenceLabel))
                 .addGap(0, 0, Short.MAX_VALUE))
             .addComponent(jScrollPane2)
@@ -300,9 +291,9 @@ public class ConferenceDialog extends javax.swing.JFrame {
         layout.setVerticalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(layout.createSequentialGroup()
-                .addComponent(usernamesLabel)
+                .addComponent(channelLabel)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
-                .addComponent(usernames, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addComponent(channel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(conferenceLabel)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
@@ -331,8 +322,9 @@ public class ConferenceDialog extends javax.swing.JFrame {
 
     /**
      * Action method for the send button.  This method takes the text from the 
-     * small text pane and the usernames from the username field, combines their 
-     * contents and sends it to the server.  There are some cases where the text 
+     * small text pane and the channel name from the channel field, combines 
+     * their contents and sends it to the server.  The channel is joined first 
+     * if necessary.  There are some cases where the text 
      * isn't sent, -help for example displays the help message rather than 
      * sending text to the server. 
      * @param evt The dialog event.
@@ -349,29 +341,30 @@ public class ConferenceDialog extends javax.swing.JFrame {
         if (messageText.equals("-h") || messageText.equals("-help")){
             this.setSystemText(ConferenceDialog.HELP_MSG);
         }
-        else if ((messageText.startsWith("@") && messageText.contains(ReceiveThread.FILE_SHARE_SEND_CMD)) ||
-                 (messageText.startsWith("@") && messageText.contains(ReceiveThread.VOICE_SHARE_SEND_CMD))){
+        else if ((messageText.startsWith("@") && messageText.contains(Protocol.FILE_SHARE_SEND_CMD)) ||
+                 (messageText.startsWith("@") && messageText.contains(Protocol.VOICE_SHARE_SEND_CMD))){
             this.setSystemText("Cannot perform a data share from this window, "
                              + "use the main communicator window.");
         }
-        else if (messageText.startsWith("@")){
-            this.setSystemText("Usernames should be provided in the text field "
+        else if (messageText.startsWith("@") || 
+                 messageText.startsWith(Protocol.CHANNEL_PREFIX)){
+            this.setSystemText("The channel should be provided in the text field "
                     + "above, not in the message text going to the conference.");
         }
         else {
-            String[] unames = this.getUsernames();
-            // If usernames have been provided.
-            if (unames != null){
+            String name = this.getChannelName();
+            // If a channel name has been provided.
+            if (name != null){
                 this.message.setText("");
+                this.joinChannel(name);
                 this.setSentText(messageText);
-                messageText = this.prefixUsernamesToMessage(unames, messageText);
-                this.connection.send(messageText);
+                this.connection.send(name + " " + messageText);
                 this.message.requestFocus();
             }
-            // If no usernames have been provided.
+            // If no channel name has been provided.
             else {
-                this.setSystemText("You must provide at least one username");
-                this.usernames.requestFocus();
+                this.setSystemText("You must provide a channel name e.g. #friends");
+                this.channel.requestFocus();
             }
         }
     }//GEN-LAST:event_sendActionPerformed
@@ -413,21 +406,21 @@ public class ConferenceDialog extends javax.swing.JFrame {
      * Not used.
      * @param evt 
      */
-    private void usernamesKeyTyped(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_usernamesKeyTyped
+    private void channelKeyTyped(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_channelKeyTyped
         // Not used.
-    }//GEN-LAST:event_usernamesKeyTyped
+    }//GEN-LAST:event_channelKeyTyped
 
     /**
-     * Action method for when the escape key is released whilst the usernames 
-     * text field has focus.  The result is that the username text is removed 
+     * Action method for when the escape key is released whilst the channel 
+     * text field has focus.  The result is that the channel text is removed 
      * clearing the text field completely.
      * @param evt The dialog event.
      */
-    private void usernamesKeyReleased(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_usernamesKeyReleased
+    private void channelKeyReleased(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_channelKeyReleased
         int keyCode = evt.getKeyCode();
         if (keyCode == KeyEvent.VK_ESCAPE)
-            this.usernames.setText("");
-    }//GEN-LAST:event_usernamesKeyReleased
+            this.channel.setText("");
+    }//GEN-LAST:event_channelKeyReleased
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton clear;
@@ -437,7 +430,7 @@ public class ConferenceDialog extends javax.swing.JFrame {
     private javax.swing.JScrollPane jScrollPane2;
     private javax.swing.JTextArea message;
     private javax.swing.JButton send;
-    private javax.swing.JTextField usernames;
-    private javax.swing.JLabel usernamesLabel;
+    private javax.swing.JTextField channel;
+    private javax.swing.JLabel channelLabel;
     // End of variables declaration//GEN-END:variables
 }
\ No newline at end of file
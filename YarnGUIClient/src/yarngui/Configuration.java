@@ -46,9 +46,20 @@ public abstract class Configuration {
             + "\n-s @username1 @username2"
             + "\nE.g. -s @michael @julie\n"
             
+            + "\nType -history to see the latest messages and PMs sent on the "
+            + "server, then -history more to see older messages\n"
+            
             + "\nTo send a private message to a particular user type :"
             + "\n@username message"
-            + "\nE.g. @michael hello michael how are you?\n"
+            + "\nE.g. @michael hello michael how are you?"
+            + "\nPMs to users who aren't connected are delivered when they "
+            + "next log in\n"
+            
+            + "\nType -join #channel to join (or create) a channel, then "
+            + "#channel message to send to its members :"
+            + "\nE.g. -join #friends then #friends hello all"
+            + "\nType -leave #channel to leave it and -channels to see your "
+            + "channels\n"
             
             + "\nAlternatively you can use the conference window to safely "
             + "communicate with other clients, simply click the button below. "
@@ -63,10 +74,7 @@ public abstract class Configuration {
             + "\n"; // This line break should always be the last character.
 
     public static final double  VERSION                 = 1.0;
-    public static final int     PREVIEW_BUFFER_SIZE     = 500;      // in bytes.
     public static final int     DATA_BUFFER_SIZE        = 65535;    // in bytes.
-    public static final int     TRANSMISSION_DELAY      = 10;       // in milli seconds.
-    public static final int     DATA_SHARE_SIZE_LIMIT   = 5242880;  // 5MB.
 
     // Default network configuration details.
     public static boolean       enterSend               = true;
@@ -74,6 +82,7 @@ public abstract class Configuration {
     public static int           localPort               = 19895; // Not currently used.
     public static int           serverListeningPort     = 19896;
     public static int           connectTimeout          = 2500;
+    public static String        username                = ""; // Last login.
     
     // Default proxy configuration details.
     public static boolean       useProxy                = false;
@@ -140,6 +149,11 @@ public abstract class Configuration {
             if (temp != null && !temp.isEmpty())
                 Configuration.connectTimeout = Integer.parseInt(temp);
             
+            // Older config files don't have a username.
+            node = doc.getElementsByTagName("username").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.username = node.getTextContent().trim();
+            
             // Proxy config values.
             node = doc.getElementsByTagName("use_proxy").item(0);
             temp = node.getTextContent();
@@ -220,6 +234,8 @@ public abstract class Configuration {
                     node.setTextContent(String.valueOf(Configuration.serverListeningPort));
                 if ("connect_timeout".equals(node.getNodeName()))
                     node.setTextContent(String.valueOf(Configuration.connectTimeout));
+                if ("username".equals(node.getNodeName()))
+                    node.setTextContent(String.valueOf(Configuration.username));
                 
                 // Proxy config.
                 if ("use_proxy".equals(node.getNodeName()))
@@ -3,16 +3,34 @@ package yarngui;
 
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import yarnprotocol.ContentHash;
+import yarnprotocol.DataShareChunk;
+import yarnprotocol.Frame;
+import yarnprotocol.FrameCompressor;
+import yarnprotocol.FrameReader;
+import yarnprotocol.FrameWriter;
+import yarnprotocol.Login;
+import yarnprotocol.LoginResult;
+import yarnprotocol.PossessionProof;
+import yarnprotocol.Protocol;
+import yarnprotocol.ProtocolUtilities;
 
 /**
  * Connection class for connecting to the server and providing the ability
  * to send data once connected.  Starts a thread for the receiving of data once 
  * successfully connected to a server instance.  All corresponding methods 
  * are coded so that both secure and non secure communications are possible. 
- * Secure communications can be initialised in the configuration.  
+ * Secure communications can be initialised in the configuration.  All data is 
+ * sent as protocol frames (see the yarnprotocol package).  The client logs in 
+ * with a single login frame sent straight after connecting, which also offers 
+ * compression to the server, compression is used if the server agrees.  The 
+ * user is only asked for the server password or another username if the 
+ * server refuses the login.  
  * 
  * NOTE FOR DEVELOPERS : Different exceptions can be thrown with different 
  * network configurations e.g. Testing on 'localhost' might not prove the same
@@ -22,8 +40,22 @@ import javax.net.ssl.SSLSocketFactory;
  */
 public class Connection {
 
+    // The SSL socket factory is kept between connections so that its session
+    // cache lets a reconnect resume the previous session.  It is rebuilt if
+    // the trust store preferences change.
+    private static SSLSocketFactory sslSocketFactory = null;
+    private static String sslTrustStore = null;
+    private static String sslTrustStorePassword = null;
+    
+    // The server password is kept for the session only, it isn't saved.
+    private static String password = "";
+
     private ProxySocket socket = null;
     private SSLSocket sslSocket = null;
+    private volatile FrameWriter writer = null;
+    private volatile FrameCompressor compressor = null;
+    private volatile File dataShareFile = null;
+    private volatile long dataShareFileSize = 0;
     private GUI gui;
 
     /**
@@ -43,56 +75,23 @@ public class Connection {
     }
     
     /**
-     * This method sets the socket timeout value which decides how long the 
-     * receive methods block for before throwing a SocketTimeoutException. 
-     * @param timeoutInMilliSeconds The desired socket timeout value.
+     * This method returns a frame reader initialised using the connected 
+     * socket's input stream.  
+     * @return The frame reader for the connected socket or null if an error 
+     * occurs.
      */
-    public synchronized void setSoTimeout(int timeoutInMilliSeconds){
-        try {
-            if (Configuration.useSecureComms)
-                this.sslSocket.setSoTimeout(timeoutInMilliSeconds);
-            else
-                this.socket.setSoTimeout(timeoutInMilliSeconds);
-        }
-        catch (NullPointerException npe){} // Do nothing.
-        catch (SocketException ex){
-            //Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
-        }
-    }
-    
-    /**
-     * This method returns the current socket timeout value.
-     * @return The current socket timeout value.
-     * @throws SocketException If an underlying socket exception is thrown.
-     */
-    public int getSoTimeout() throws SocketException {
-        int timeout = 0;
-        if (Configuration.useSecureComms)
-            timeout = this.sslSocket.getSoTimeout();
-        else
-            timeout = this.socket.getSoTimeout();
-        return timeout;
-    }
-    
-    /**
-     * This method returns the buffered input stream initialised using the 
-     * connected socket.  
-     * @return The buffered input stream for the connected socket.
-     */
-    public BufferedInputStream getBufferedInputStream(){
-        BufferedInputStream buf;
+    public FrameReader getFrameReader(){
         try {
             if (!Configuration.useSecureComms)
-                buf = new BufferedInputStream(this.socket.getInputStream(), 
+                return new FrameReader(this.socket.getInputStream(), 
                                                 Configuration.DATA_BUFFER_SIZE);
             else
-                buf = new BufferedInputStream(this.sslSocket.getInputStream(), 
+                return new FrameReader(this.sslSocket.getInputStream(), 
                                                 Configuration.DATA_BUFFER_SIZE);
         } catch (IOException ex) {
             //Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
             return null;
         }
-        return buf;
     }
 
     /**
@@ -131,7 +130,16 @@ public class Connection {
     public synchronized void connect(String address){
         
         address = address.trim();
-        SSLSocketFactory sslSocketFactory = null;
+        
+        // The username is needed to log in so ask for one if the user hasn't 
+        // logged in before.
+        if (Configuration.username.isEmpty()){
+            String uname = this.gui.showLoginDialog(
+                    "Enter your username (usernames are case sensitive) :", "");
+            if (uname == null)
+                return;
+            Configuration.username = uname;
+        }
         
         // If NOT using secure comms.
         if (!Configuration.useSecureComms){
@@ -186,21 +194,15 @@ public class Connection {
                     System.setProperty("java.net.socks.password", String.valueOf(Configuration.proxyPword));
                 }
             }
-            
-            // Initialise SSL configuration.
-            System.setProperty("javax.net.ssl.trustStore", Configuration.trustStore);
-            System.setProperty("javax.net.ssl.trustStorePassword", Configuration.trustStorePassword);
-            System.setProperty("sun.security.ssl.allowUnsafeRenegotiation", "true");
-            
-            sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
         }
 
         try {
             
             // If using secure comms.
             if (Configuration.useSecureComms){
-                // Connect to server.
-                this.sslSocket = (SSLSocket) sslSocketFactory.createSocket(
+                // Connect to server, resuming the previous session if the
+                // server still has it.
+                this.sslSocket = (SSLSocket) Connection.getSSLSocketFactory().createSocket(
                                         address, Configuration.serverListeningPort);
             }
             
@@ -215,9 +217,21 @@ public class Connection {
                 this.socket.connect(sockaddr, Configuration.connectTimeout);
             }
 
+            // Init the frame writer used to send data.
+            if (Configuration.useSecureComms)
+                this.writer = new FrameWriter(this.sslSocket.getOutputStream(), 
+                                              Configuration.DATA_BUFFER_SIZE);
+            else
+                this.writer = new FrameWriter(this.socket.getOutputStream(), 
+                                              Configuration.DATA_BUFFER_SIZE);
+
             // Start the receive thread once connected.
             (new ReceiveThread(this)).start();
             
+            // Log in, the server responds with the login result (see 
+            // setLoginResult()).
+            this.login();
+            
         }
         catch (UnknownHostException uhe){
             this.gui.setSystemText(String.format(
@@ -230,6 +244,40 @@ public class Connection {
         }
     }
 
+    /**
+     * Returns the SSL socket factory built from the trust store preferences.  
+     * The same factory (and so session cache) is returned until the trust 
+     * store preferences change.  
+     * @return The SSL socket factory.
+     * @throws Exception If the trust store can't be loaded.
+     */
+    private static synchronized SSLSocketFactory getSSLSocketFactory() 
+                                                            throws Exception {
+        if (Connection.sslSocketFactory != null && 
+            Configuration.trustStore.equals(Connection.sslTrustStore) &&
+            Configuration.trustStorePassword.equals(Connection.sslTrustStorePassword))
+            return Connection.sslSocketFactory;
+        
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        FileInputStream input = new FileInputStream(Configuration.trustStore);
+        try {
+            trustStore.load(input, Configuration.trustStorePassword.toCharArray());
+        }
+        finally {
+            input.close();
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                                    TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        
+        Connection.sslSocketFactory = context.getSocketFactory();
+        Connection.sslTrustStore = Configuration.trustStore;
+        Connection.sslTrustStorePassword = Configuration.trustStorePassword;
+        return Connection.sslSocketFactory;
+    }
+
     /**
      * This method is used to disconnect the client from a server instance.  
      * This method supports non secure disconnects only.  If the 
@@ -237,6 +285,10 @@ public class Connection {
      */
     public synchronized void disconnect(){
         
+        // Any data share request waiting for a response is lost.
+        this.dataShareFile = null;
+        this.endCompression();
+        
         if (Configuration.useSecureComms){
             this.sslDisconnect();
             return;
@@ -254,9 +306,90 @@ public class Connection {
         }
         finally {
             this.socket = null;
+            this.writer = null;
+        }
+    }
+    
+    /**
+     * This method sends the login frame containing the server password (if 
+     * the user has given one), the username and the capabilities this client 
+     * supports i.e. compression.  
+     */
+    private void login(){
+        this.send(new Frame(Protocol.LOGIN, new Login(
+                Protocol.CAPABILITY_COMPRESSION, Connection.password, 
+                Configuration.username).encode()));
+    }
+    
+    /**
+     * This method is called by the receive thread with the server's response 
+     * to the login.  Once logged in the username is saved for next time, the 
+     * agreed capabilities are used and the welcome message is displayed.  If 
+     * the login was refused the user is told why and asked for the server 
+     * password or another username as necessary, then the login is sent 
+     * again.  The client disconnects if the user cancels.  
+     * @param result The login result.
+     * @param reader The receive thread's frame reader.
+     */
+    public void setLoginResult(LoginResult result, FrameReader reader){
+        if (result.isAccepted()){
+            Configuration.username = result.getUsername();
+            Configuration.writeConfigValues();
+            this.setCapabilities(result.getCapabilities(), reader);
+            this.gui.setReceivedText(result.getMessage());
+            return;
         }
+        
+        this.gui.setSystemText(result.getMessage());
+        String value = null;
+        if (result.getResult() == LoginResult.INCORRECT_PASSWORD){
+            value = this.gui.showLoginDialog(
+                    "Enter the yarn server password :", "");
+            if (value != null)
+                Connection.password = value;
+        }
+        else if (result.getResult() == LoginResult.USERNAME_NOT_ALLOWED){
+            value = this.gui.showLoginDialog(
+                    "Enter your username (usernames are case sensitive) :", 
+                    Configuration.username);
+            if (value != null)
+                Configuration.username = value;
+        }
+        if (value == null)
+            this.gui.disconnectDoClick();
+        else
+            this.login();
     }
     
+    /**
+     * This method uses the capabilities the server agreed to.  If compression 
+     * was agreed the frames read and written from then on may be compressed.  
+     * @param capabilities The agreed capabilities (see Protocol).
+     * @param reader The receive thread's frame reader.
+     */
+    private void setCapabilities(int capabilities, FrameReader reader){
+        FrameWriter output = this.writer;
+        if ((capabilities & Protocol.CAPABILITY_COMPRESSION) == 0 || 
+             output == null)
+            return;
+        FrameCompressor frameCompressor = 
+                new FrameCompressor(FrameCompressor.DEFAULT_THRESHOLD);
+        reader.setCompressor(frameCompressor);
+        output.setCompressor(frameCompressor);
+        this.compressor = frameCompressor;
+    }
+    
+    /**
+     * This method frees the compressor of the last connection, if compression 
+     * was agreed.  
+     */
+    private void endCompression(){
+        FrameCompressor frameCompressor = this.compressor;
+        this.compressor = null;
+        if (frameCompressor != null)
+            frameCompressor.end();
+    }
+
     /**
      * This method is used to disconnect the client from a server instance.  
      * This method supports secure disconnects only.  If the 
@@ -276,76 +409,85 @@ public class Connection {
         }
         finally {
             this.sslSocket = null;
+            this.writer = null;
         }
     }
 
     /**
      * This method sends text to the server of which this client is connected. 
-     * This method converts the string to bytes and passes the bytes to the 
-     * send(byte[]) method.  
+     * This method wraps the text in a text frame and passes the frame to the 
+     * send(Frame) method.  
      * @param text The text to send to the server and therefore other clients.
      */
-    public synchronized void send(String text){
-        byte[] data = text.getBytes();
-        this.send(data);
+    public void send(String text){
+        this.send(new Frame(Protocol.TEXT, text));
     }
 
     /**
-     * This method is responsible for sending data from the client to the 
+     * This method is responsible for sending a frame from the client to the 
      * connected server instance.  This method is uniform in that it transmits 
-     * byte data rather than data specific types such as text or a file etc. 
+     * frames rather than data specific types such as text or a file etc. 
      * If a send error occurs then the client is disconnected and the user is 
      * alerted via the main GUI dialog instance.  
-     * @param data The byte data to be sent to the server.  
+     * @param frame The frame to be sent to the server.  
+     */
+    public void send(Frame frame){
+        byte[] payload = frame.getPayload();
+        this.send(frame.getType(), payload, 0, payload.length);
+    }
+
+    /**
+     * This method sends a frame whose payload is part of a larger array e.g. 
+     * a chunk of file data.  The frame writer is synchronized so frames sent 
+     * from different threads (e.g. the receive thread responding to a 
+     * connection request during a data share) are never interleaved.  
+     * @param type The frame type.
+     * @param data The array containing the frame payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The payload length.
+     * @return True if the frame was sent, false if a send error occurred.
      */
-    public synchronized void send(byte[] data){
+    public boolean send(int type, byte[] data, int offset, int length){
         try {
-            BufferedOutputStream output = null;
-            if (!Configuration.useSecureComms)
-                output = new BufferedOutputStream(
-                        this.socket.getOutputStream(), Configuration.DATA_BUFFER_SIZE);
-            else
-                output = new BufferedOutputStream(
-                        this.sslSocket.getOutputStream(), Configuration.DATA_BUFFER_SIZE);
-            
-            int bytesSent = 0;
-            while (bytesSent < data.length){
-                int bytesLeft = (data.length - bytesSent);
-                int numBytesToSend = Configuration.DATA_BUFFER_SIZE;
-                if (bytesLeft < Configuration.DATA_BUFFER_SIZE)
-                    numBytesToSend = bytesLeft;
-                
-                output.write(data, bytesSent, numBytesToSend);
-                output.flush();
-                bytesSent += numBytesToSend;
-                Utilities.delay(Configuration.TRANSMISSION_DELAY);
-            }
+            FrameWriter output = this.writer;
+            if (output == null)
+                throw new IOException("Not connected");
+            output.write(type, data, offset, length);
+            return true;
         }
-
-        // When an exception is thrown during a send the disconnect button is 
-        // clicked automatically, the user is alerted to the fact
-        // that they need to re/connect to a Yarn Server.  This should only be
-        // necessary when the server has disconnected the client or some other
-        // form of exception is thrown.
         catch (IOException ex) {
             //Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
-            this.gui.disconnectDoClick();
-            this.gui.setSystemText("You are not connected to a Yarn "
-                    + "Server, please re/connect");
+            this.sendFailed();
+            return false;
         }
     }
     
     /**
-     * This method is responsible for the sending of a data share request and 
-     * data to the server for further processing.  The request is send along 
-     * with the data which is received by the server, the server then sends the 
-     * data share request to the receiving client(s).  If accepted the share 
-     * data is then sent to the client(s).  Once the this method executes this 
-     * client is no longer involved in the data share process except by 
-     * receiving updates as to whether or not the client(s) have accepted or 
-     * rejected the data share.  Before anything is sent to the server however 
+     * This method is called when a send error occurs.  The disconnect button 
+     * is clicked automatically, the user is alerted to the fact that they 
+     * need to re/connect to a Yarn Server.  This should only be necessary 
+     * when the server has disconnected the client or some other form of 
+     * exception is thrown.  
+     */
+    private void sendFailed(){
+        this.gui.disconnectDoClick();
+        this.gui.setSystemText("You are not connected to a Yarn "
+                + "Server, please re/connect");
+    }
+    
+    /**
+     * This method is responsible for the sending of a data share request to 
+     * the server for further processing.  The request is sent as a data share 
+     * frame, the server then tells this client to send the data (see 
+     * sendDataShareData()) and sends the data share request to the receiving 
+     * client(s).  The server stores the data until the receiving client(s) 
+     * have received it, or cancels the data share if no client accepts it.  
+     * The content hash of the file is offered with the request so that the 
+     * server can skip the upload of a file it already has, the file is hashed 
+     * by a separate thread so that the GUI stays responsive.  
+     * Before anything is sent to the server however 
      * data share validation occurs.  This includes such checks as ensuring that 
-     * the data size is within the legal limit etc.  
+     * the file exists etc.  
      * @param text The protocol command used for the data share.  
      */
     public void sendShareRequestAndData(String text){
@@ -379,31 +521,179 @@ public class Connection {
         // Add the file size to the command.
         text += ("?\"" + file.length() + "\"");
         
-        // Ensure the file isn't too large with the file share send command.
-        if ((file.length() + text.length()) > Configuration.DATA_SHARE_SIZE_LIMIT){
-            this.gui.setSystemText(String.format("File error, the file is too "
-                    + "large. The maximum file size is %s Bytes", 
-                    Configuration.DATA_SHARE_SIZE_LIMIT));
+        // The file size limit is set by the server which refuses larger files.
+        
+        // Only one data share can be sent at a time.
+        if (this.dataShareFile != null){
+            this.gui.setSystemText("A data share is already being sent, try "
+                    + "again later...");
             return;
         }
         
-        // Add the file bytes to the file share send command.
-        byte[] data = new byte[(int)(file.length() + text.length())];
-        byte[] fileBytes;
+        // Send the file share request command to the server with the file's 
+        // content hash, the file data is sent once the server is ready for it.
+        this.dataShareFile = file;
+        this.dataShareFileSize = file.length();
+        final String cmd = text;
+        final File hashFile = file;
+        Thread hashThread = new Thread(new Runnable(){
+            public void run(){
+                String hash;
+                try {
+                    hash = ContentHash.of(hashFile);
+                } catch (IOException ex) {
+                    //Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
+                    if (dataShareFile == hashFile)
+                        dataShareFile = null;
+                    gui.setSystemText("File error, check the file exists and try again...");
+                    return;
+                }
+                send(new Frame(Protocol.DATA_SHARE_SEND, 
+                        cmd + Protocol.CONTENT_HASH_CMD + hash + "\""));
+                
+                String uname = cmd.substring(1, cmd.indexOf(' '));
+                gui.setSystemText(String.format("File share request sent to %s", 
+                        uname));
+            }
+        });
+        hashThread.setName("Data Share Hash Thread");
+        hashThread.start();
+    }
+    
+    /**
+     * This method is called by the receive thread when the server is ready 
+     * for the data of the data share request last sent by this client.  The 
+     * file is streamed from disk to the server in data share chunks by a 
+     * separate thread so that the file is never held in memory and the GUI 
+     * stays responsive.  Each chunk carries its offset and checksum (see 
+     * DataShareChunk) and the upload starts from the offset given by the 
+     * server, which is past the start of the file when an earlier upload of 
+     * the same file was interrupted.  Each write blocks while the server is 
+     * behind so the upload runs as fast as the connection allows.  If 
+     * compression was agreed the chunks are compressed until one doesn't 
+     * compress.  The upload stops if the server cancels the data share.  If the file can no longer 
+     * be read the data share is cancelled.  
+     * @param offset The offset to send the file data from.  
+     */
+    public void sendDataShareData(final long offset){
+        final File file = this.dataShareFile;
+        final long fileSize = this.dataShareFileSize;
+        if (file == null)
+            return;
+        
+        Thread sendThread = new Thread(new Runnable(){
+            public void run(){
+                long startTime = System.currentTimeMillis();
+                byte[] chunk = new byte[DataShareChunk.HEADER_SIZE + 
+                                        Protocol.CHUNK_SIZE];
+                long bytesSent = offset;
+                boolean isCompressible = true;
+                FileInputStream input = null;
+                try {
+                    input = new FileInputStream(file);
+                    input.getChannel().position(offset);
+                    if (offset > 0)
+                        gui.setSystemText(String.format("Resuming the file share "
+                                + "upload from %s bytes", offset));
+                    while (bytesSent < fileSize){
+                        if (dataShareFile != file)
+                            return; // Cancelled by the server.
+                        int length = DataShareChunk.getChunkLength(bytesSent, 
+                                                                   fileSize);
+                        int numRead = 0;
+                        while (numRead < length){
+                            int n = input.read(chunk, DataShareChunk.HEADER_SIZE 
+                                               + numRead, length - numRead);
+                            if (n < 0)
+                                throw new IOException("The file has changed");
+                            numRead += n;
+                        }
+                        DataShareChunk.encodeHeader(bytesSent, 
+                                DataShareChunk.checksum(chunk, 
+                                DataShareChunk.HEADER_SIZE, length), chunk, 0);
+                        
+                        // Stop compressing once a chunk doesn't compress 
+                        // e.g. an image or zip file, to save CPU time.
+                        FrameWriter output = writer;
+                        try {
+                            if (output == null)
+                                throw new IOException("Not connected");
+                            isCompressible = output.write(
+                                    Protocol.DATA_SHARE_CHUNK, chunk, 0, 
+                                    DataShareChunk.HEADER_SIZE + length, 
+                                    isCompressible);
+                        } catch (IOException ex) {
+                            //Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
+                            sendFailed();
+                            return;
+                        }
+                        bytesSent += length;
+                    }
+                } catch (IOException ex) {
+                    //Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
+                    send(new Frame(Protocol.DATA_SHARE_CANCEL));
+                    gui.setSystemText("File error, the data share was cancelled...");
+                    return;
+                } finally {
+                    if (dataShareFile == file)
+                        dataShareFile = null;
+                    try {
+                        if (input != null)
+                            input.close();
+                    } catch (IOException ex) {
+                        //Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                long timeTaken = System.currentTimeMillis() - startTime;
+                gui.setSystemText(String.format("File share data sent "
+                        + "(%s bytes at %s)", fileSize, 
+                        ProtocolUtilities.formatThroughput(fileSize - offset, timeTaken)));
+            }
+        });
+        sendThread.setName("Data Share Send Thread");
+        sendThread.start();
+    }
+    
+    /**
+     * This method is called by the receive thread when the server has the 
+     * content of the data share request last sent by this client (or part of 
+     * it from an interrupted upload) and challenges this client to prove it 
+     * has the file.  The answer is the hash of the challenge's nonce and the 
+     * range of the file it asks for.  If the file can no longer be read the 
+     * data share is cancelled.  
+     * @param proof The challenge sent by the server.  
+     */
+    public void sendDataShareProof(PossessionProof proof){
+        File file = this.dataShareFile;
+        if (file == null)
+            return;
         try {
-            fileBytes = Files.readAllBytes(file.toPath());
+            this.send(new Frame(Protocol.DATA_SHARE_PROOF, proof.answer(file)));
         } catch (IOException ex) {
             //Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
-            return;
+            this.dataShareFile = null;
+            this.send(new Frame(Protocol.DATA_SHARE_CANCEL));
+            this.gui.setSystemText("File error, the data share was cancelled...");
         }
-        
-        System.arraycopy(text.getBytes(), 0, data, 0, text.getBytes().length);
-        System.arraycopy(fileBytes, 0, data, text.getBytes().length, fileBytes.length);
-        
-        // Send the file share request command to the server (with the file data).
-        this.send(data);
-        
-        String uname = text.substring(1, text.indexOf(' '));
-        this.gui.setSystemText("File share request sent to " + uname);
+    }
+    
+    /**
+     * This method is called by the receive thread when the server already has 
+     * the content of the data share request last sent by this client, so the 
+     * file data doesn't need to be sent.  
+     */
+    public void skipDataShareData(){
+        this.dataShareFile = null;
+        this.gui.setSystemText("The server already has this file, no upload "
+                + "was needed");
+    }
+    
+    /**
+     * This method is called by the receive thread when the server has 
+     * cancelled the data share request last sent by this client e.g. because 
+     * no client accepted it.  
+     */
+    public void cancelDataShareData(){
+        this.dataShareFile = null;
     }
 }
\ No newline at end of file
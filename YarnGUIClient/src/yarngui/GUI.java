@@ -12,6 +12,7 @@ import java.net.URL;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import sun.audio.*;
+import yarnprotocol.Protocol;
 
 /**
  * This class is responsible for providing a sub class of JFrame which is used 
@@ -509,8 +510,8 @@ public class GUI extends JFrame {
         else if (text.equals("-h") || text.equals("-help")){
             this.setSystemText(Configuration.HELP_MSG);
         }
-        else if ((text.startsWith("@") && text.contains(ReceiveThread.FILE_SHARE_SEND_CMD)) ||
-                 (text.startsWith("@") && text.contains(ReceiveThread.VOICE_SHARE_SEND_CMD))){
+        else if ((text.startsWith("@") && text.contains(Protocol.FILE_SHARE_SEND_CMD)) ||
+                 (text.startsWith("@") && text.contains(Protocol.VOICE_SHARE_SEND_CMD))){
             this.setSentText(text);
             // Alerts the user if a share is sent. Validation occurs first.
             this.connection.sendShareRequestAndData(text);
@@ -852,7 +853,6 @@ public class GUI extends JFrame {
      * @param text The received text which is to be displayed to the user. 
      */
     public final synchronized void setReceivedText(String text){
-        Utilities.delay(100);
         // Append the text and scroll to the bottom of the conference window.
         this.conference.append(text + "\n");
         this.scrollConferenceToBottom();
@@ -1008,6 +1008,22 @@ public class GUI extends JFrame {
                 "About Yarn Messenger", JOptionPane.INFORMATION_MESSAGE);
     }
     
+    /**
+     * This method uses the Java JOptionPane static method to ask the user for 
+     * their username or the server password when logging in to a server.  
+     * @param text The request displayed to the user.
+     * @param value The initial value e.g. the last username used.
+     * @return The trimmed value entered or null if the user cancelled.  
+     */
+    public String showLoginDialog(String text, String value){
+        Object result = JOptionPane.showInputDialog(this, text, 
+                "Log In To Yarn Server", JOptionPane.QUESTION_MESSAGE, 
+                null, null, value);
+        if (result == null)
+            return null;
+        return result.toString().trim();
+    }
+    
     /**
      * This method uses the Java JOptionPane static method to display a yes or 
      * no choice to the user about whether or not to disconnect from a server 
@@ -1178,18 +1194,16 @@ public class GUI extends JFrame {
     }
     
     /**
-     * This method disables certain dialog components for when a data share 
-     * is taking place.  This disables the users ability to send text along 
-     * with the data share until the server has received the data. 
+     * This method disables the data share components for when a data share 
+     * is being received, as a client can't send a data share while receiving 
+     * one.  Text can still be sent during the data share as the server sends 
+     * it ahead of the data share chunks. 
      * @param isEnabled True for enabled functionality, false for disabled 
-     * functionality of certain components within this dialog. 
+     * functionality of the data share components within this dialog. 
      */
-    public void setGUISendAbility(boolean isEnabled){
-        this.send.setEnabled(isEnabled);
-        this.sendMenuItem.setEnabled(isEnabled);
+    public void setGUIDataShareAbility(boolean isEnabled){
         this.dataShare.setEnabled(isEnabled);
         this.dataShareMenuItem.setEnabled(isEnabled);
-        this.conferenceDialog.setGUISendAbility(isEnabled);
     }
     
     /**
@@ -1,45 +1,51 @@
 
 package yarngui;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import yarnprotocol.ContentHash;
+import yarnprotocol.DataShareChunk;
+import yarnprotocol.DataShareHeader;
+import yarnprotocol.Frame;
+import yarnprotocol.FrameReader;
+import yarnprotocol.LoginResult;
+import yarnprotocol.PossessionProof;
+import yarnprotocol.Protocol;
 
 /**
  * Receive thread created on a successful connection to a server instance. 
  * This class is a sub class of Thread and overrides the run() method which 
  * creates a continuous receive loop (whilst the client remains connected).  
  * Supports both secure and non secure SSL socket connections by only 
- * interacting with the buffered input stream of either type of connection.  
+ * interacting with the frame reader of either type of connection.  
  * A new receive thread is initialised and started when a successful connection 
  * has been established to a server.  The receive thread is stopped when a 
  * disconnect occurs.  
  * 
- * This class also contains the protocol commands used in the transference of 
- * data between clients and server applications.  
+ * The protocol frame types used in the transference of data between clients 
+ * and server applications are contained in the yarnprotocol.Protocol class.  
  * @author Michael Telford
  */
 public class ReceiveThread extends Thread {
-    
-    // Protocol variables.
-    public static final String CONNECTION_REQUEST      = "{###}";
-    public static final String VOICE_SHARE_SEND_CMD    = " *\"";   //  *"
-    public static final String FILE_SHARE_SEND_CMD     = " ^\"";   //  ^"
-    public static final String DATA_SHARE_RECEIVE_CMD  = "^\"\"^"; // ^""^
-    public static final String DATA_SHARE_ACCEPT_CMD   = "^-accept";
-    public static final String DATA_SHARE_DECLINE_CMD  = "^-reject";
-    public static final String VOICE_SHARE_IMMINENT_DATA_CMD = 
-                    String.format("%s-*", ReceiveThread.DATA_SHARE_RECEIVE_CMD);
-    public static final String FILE_SHARE_IMMINENT_DATA_CMD = 
-                    String.format("%s-^", ReceiveThread.DATA_SHARE_RECEIVE_CMD);
 
-    private BufferedInputStream input;
+    private FrameReader input;
     private GUI gui;
-    private Connection conn;
     private String fileName;
     private String senderUname;
+    private DataShareHeader dataShareHeader = null;
+    private File dataShareFile;
+    private File dataSharePartFile;
+    private OutputStream dataShareOutput;
+    private MessageDigest dataShareDigest;
+    private long dataShareBytesReceived;
     
     /**
      * Constructor which initialises the instance variables used in other 
@@ -49,22 +55,19 @@ public class ReceiveThread extends Thread {
      * reference to the main GUI dialog instance.  
      */
     public ReceiveThread(Connection connection){
-        conn = connection;
-        input = connection.getBufferedInputStream();
+        input = connection.getFrameReader();
         gui = connection.getYarnGUI();
     }
 
     /**
      * Overridden method from the Thread class.  Used to create a continuous 
      * receive loop for as long as the client remains connected to the server 
-     * and a receive error doesn't occur.  This method receives data from the 
+     * and a receive error doesn't occur.  This method receives frames from the 
      * server and alerts the user.  The type of data being received can be text, 
-     * file or a voice recording.  The receive mechanism works by first 
-     * receiving a preview of the protocol command.  This preview is used to 
-     * determine the type of incoming data and therefore how to process the data 
-     * once received.  The user is alerted as to the content of the received 
-     * data e.g. received text is printed to the conference text are of the main 
-     * GUI dialog instance.  
+     * file or a voice recording.  Each frame's type determines how to process 
+     * the frame's payload.  The user is alerted as to the content of the 
+     * received data e.g. received text is printed to the conference text are 
+     * of the main GUI dialog instance.  
      */
     @Override
     public void run(){
@@ -76,103 +79,78 @@ public class ReceiveThread extends Thread {
         // If a disconnect occurs (InputStream closes etc.) the thread stops.
         while (true){
             try {
-                // Receive a preview of the incoming data and decide what to do with it.
-                String text = this.receivePreview();
-                
-                // Do nothing for empty data.
-                if (text.trim().isEmpty()){
-                    this.skipAvailableData();
-                    continue;
-                }
-                
-                // Receive the connection request from the server.
-                else if (text.equals(ReceiveThread.CONNECTION_REQUEST)){
-                    this.skipAvailableData();
-                    Connection conn = this.gui.getConnection();
-                    conn.send(ReceiveThread.CONNECTION_REQUEST);
-                }
-                
-                // Check for an incoming file share.
-                else if (text.trim().startsWith(ReceiveThread.FILE_SHARE_IMMINENT_DATA_CMD)){
-                    this.gui.setGUISendAbility(false);
-                    this.gui.setSystemText(
-                            String.format("Receiving file from %s... "
-                            + "This may take a while if the file is large", 
-                            this.senderUname));
+                Frame frame = this.input.read(); // Blocks.
+                switch (frame.getType()){
                     
-                    // Receive the file data.
-                    int[] fileDetails = Utilities.getDataAndCmdLength(text);
-                    byte[] fileData = this.receiveDataShare(fileDetails[0], fileDetails[1]);
+                    // Receive text and display it via the GUI.
+                    case Protocol.TEXT:
+                        this.receiveText(frame.getText().trim());
+                        break;
                     
-                    // Let the server know the file has been received.
-                    Utilities.delay(Configuration.TRANSMISSION_DELAY);
-                    this.gui.getConnection().send(ReceiveThread.CONNECTION_REQUEST);
+                    // Receive the connection request from the server.
+                    case Protocol.CONNECTION_REQUEST:
+                        this.gui.getConnection().send(
+                                new Frame(Protocol.CONNECTION_REQUEST));
+                        break;
                     
-                    // Save the file and alert the user.
-                    this.saveFile(fileData); // Also alerts the user.
-                    this.gui.setGUISendAbility(true);
-                }
-                
-                // Check for an incoming voice share.
-                else if (text.trim().startsWith(ReceiveThread.VOICE_SHARE_IMMINENT_DATA_CMD)){
-                    this.gui.setGUISendAbility(false);
-                    this.gui.setSystemText(
-                            String.format("Receiving voice recording from %s... "
-                            + "This may take a while if the recording is large", 
-                            this.senderUname));
+                    // Receive a data share request and alert the user.
+                    case Protocol.DATA_SHARE_REQUEST:
+                        String text = frame.getText();
+                        this.setDataShareDetails(text);
+                        boolean accepted = this.gui.showDataShareRequestDialog(text);
+                        Connection conn = this.gui.getConnection();
+                        if (accepted)
+                            conn.send(new Frame(Protocol.DATA_SHARE_ACCEPT));
+                        else
+                            conn.send(new Frame(Protocol.DATA_SHARE_REJECT));
+                        break;
                     
-                    // Receive the voice file data.
-                    int[] fileDetails = Utilities.getDataAndCmdLength(text);
-                    byte[] fileData = this.receiveDataShare(fileDetails[0], fileDetails[1]);
+                    // Check for an incoming file or voice share.
+                    case Protocol.DATA_SHARE_START:
+                        this.startDataShare(DataShareHeader.decode(frame.getPayload()));
+                        break;
                     
-                    // Let the server know the file has been received.
-                    Utilities.delay(Configuration.TRANSMISSION_DELAY);
-                    this.gui.getConnection().send(ReceiveThread.CONNECTION_REQUEST);
+                    // Receive the file or voice data.
+                    case Protocol.DATA_SHARE_CHUNK:
+                        this.receiveDataShareChunk(frame.getPayload());
+                        break;
                     
-                    // Save the file and alert the user.
-                    File recording = this.saveVoiceRecording(fileData); // Also alerts the user.
-                    this.gui.setGUISendAbility(true);
+                    // The server is ready for the data of this client's 
+                    // data share.
+                    case Protocol.DATA_SHARE_READY:
+                        this.gui.getConnection().sendDataShareData(
+                                DataShareChunk.decodeOffset(frame.getPayload()));
+                        break;
                     
-                    // Play recording.
-                    new VoiceRecorderDialog(this.gui, recording);
-                }
-                
-                // Check for a data share receive request and alert the user.
-                else if (text.trim().startsWith(ReceiveThread.DATA_SHARE_RECEIVE_CMD)){
-                    text = this.receive().replace(ReceiveThread.DATA_SHARE_RECEIVE_CMD, "");
-                    this.setDataShareDetails(text);
-                    boolean accepted = this.gui.showDataShareRequestDialog(text);
-                    Connection conn = this.gui.getConnection();
-                    if (accepted)
-                        conn.send(ReceiveThread.DATA_SHARE_ACCEPT_CMD);
-                    else
-                        conn.send(ReceiveThread.DATA_SHARE_DECLINE_CMD);
-                }
-                
-                // Else receive the full text data and display it via the GUI.
-                else {
-                    text = this.receive().trim();
-                    // Send response and remove conn. request if necessary.
-                    if (text.contains(ReceiveThread.CONNECTION_REQUEST)){
-                        Connection conn = this.gui.getConnection();
-                        conn.send(ReceiveThread.CONNECTION_REQUEST);
-                        text = text.replace(ReceiveThread.CONNECTION_REQUEST, "");
-                    }
-                    // Conference code.
-                    if (this.gui.getConferenceDialog().isVisible() 
-                                                    && Utilities.isAPrivateMessage(text)){
-                        String[] textUnames = Utilities.getUsernamesFromText(text);
-                        String[] confUnames = this.gui.getConferenceDialog().getUsernames();
-                        if (Utilities.doUserNamesMatch(textUnames, confUnames)){
-                            text = Utilities.removeUserNames(text, confUnames.length);
-                            this.gui.getConferenceDialog().setReceivedText(text);
-                        }
-                        else
-                            this.gui.setReceivedText(text);
-                    }
-                    // Default GUI code for a text data receive.
-                    else
-                        this.gui.setReceivedText(text);
+                    // The server already has the content of this client's 
+                    // data share.
+                    case Protocol.DATA_SHARE_CACHED:
+                        this.gui.getConnection().skipDataShareData();
+                        break;
+                    
+                    // The server has the content of this client's data 
+                    // share and wants proof that this client has it too.
+                    case Protocol.DATA_SHARE_PROOF:
+                        this.gui.getConnection().sendDataShareProof(
+                                PossessionProof.decode(frame.getPayload()));
+                        break;
+                    
+                    // A data share being sent or received has been cancelled.
+                    case Protocol.DATA_SHARE_CANCEL:
+                        this.cancelDataShare();
+                        break;
+                    
+                    // The result of this client's login, including the 
+                    // capabilities the server agreed to use e.g. compression.
+                    // A new login isn't in any channels.
+                    case Protocol.LOGIN_RESULT:
+                        this.gui.getConnection().setLoginResult(
+                                LoginResult.decode(frame.getPayload()), this.input);
+                        this.gui.getConferenceDialog().resetChannel();
+                        break;
+                    
+                    default:
+                        break;
                 }
             }
             
@@ -192,13 +170,37 @@ public class ReceiveThread extends Thread {
                 break; // Thread stops.
             }
         }
+        
+        // Keep the data received so far so the data share can be resumed.
+        this.closeDataShareFile();
+    }
+    
+    /**
+     * This method displays received text via the GUI.  If the conference 
+     * dialog is open and the text is from the conference channel (it starts 
+     * with the channel name) then the text is displayed in the conference 
+     * dialog instead, without the channel name.  
+     * @param text The received text.  
+     */
+    private void receiveText(String text){
+        // Conference code.
+        ConferenceDialog conference = this.gui.getConferenceDialog();
+        if (conference.isVisible() && text.startsWith(Protocol.CHANNEL_PREFIX)){
+            String name = conference.getChannelName();
+            if (name != null && text.startsWith(name + " ")){
+                conference.setReceivedText(text.substring(name.length() + 1));
+                return;
+            }
+        }
+        // Default GUI code for a text data receive.
+        this.gui.setReceivedText(text);
     }
     
     /**
      * This method gets the sending clients username and the file name of the 
      * data share and assigns the values of which to the corresponding instance 
      * variables.  
-     * @param text The protocol command containing the senders username and 
+     * @param text The data share request containing the senders username and 
      * file name of the data share.  
      */
     private void setDataShareDetails(String text){
@@ -207,266 +209,297 @@ public class ReceiveThread extends Thread {
     }
     
     /**
-     * This method is used to skip all incoming data to this client from the 
-     * server.  When there is no incoming data left the method returns allowing 
-     * the next receive to be processed as normal.  
+     * This method is called when the server starts sending an accepted data 
+     * share.  The user is alerted and the file the data share chunks are 
+     * written to is opened.  Received data is written straight to disk so 
+     * data shares of any size can be received.  The server is then told 
+     * which offset to send the data from, which is past the start of the 
+     * file if part of it was received by an earlier data share.  
+     * @param header The data share header describing the data share.  
      */
-    public void skipAvailableData(){
-        int cycles = 2;
-        try {
-            this.conn.setSoTimeout(Configuration.TRANSMISSION_DELAY);
-            for (int i = 0; i < cycles; i++){
-                try {
-                    this.input.skip(Configuration.DATA_BUFFER_SIZE);
-                    i = 0;
-                }
-                catch (Exception ex){}
-                Utilities.delay((int)(Configuration.TRANSMISSION_DELAY * 1.5));
-            }
-        } catch (Exception ex){
-            //Logger.getLogger(ReceiveThread.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        finally {
-            this.conn.setSoTimeout(0);
+    private void startDataShare(DataShareHeader header){
+        this.gui.setGUIDataShareAbility(false);
+        if (header.isAFileShare())
+            this.gui.setSystemText(
+                    String.format("Receiving file from %s... "
+                    + "This may take a while if the file is large", 
+                    this.senderUname));
+        else
+            this.gui.setSystemText(
+                    String.format("Receiving voice recording from %s... "
+                    + "This may take a while if the recording is large", 
+                    this.senderUname));
+        
+        this.fileName = header.getFileName();
+        this.dataShareHeader = header;
+        this.dataShareBytesReceived = this.openDataShareFile(header);
+        if (header.getFileSize() == 0){
+            this.endDataShare();
+            return;
         }
+        if (this.dataShareBytesReceived > 0)
+            this.gui.setSystemText(String.format("Resuming the partly received "
+                    + "file from %s bytes", this.dataShareBytesReceived));
+        this.gui.getConnection().send(new Frame(Protocol.DATA_SHARE_RESUME, 
+                DataShareChunk.encodeOffset(this.dataShareBytesReceived)));
     }
     
     /**
-     * This method is used to receive a data transmission up to the size of the 
-     * DATA_BUFFER_SIZE variable.  This code has been developed to handle the 
-     * irregular behaviour of SSL connections which send the first data byte as 
-     * a separate transmission before sending the remainder in a second 
-     * transmission.  This method also handles non SSL receive transmissions 
-     * also.
-     * @return The receive data in the form of a String.
-     * @throws Exception If a read error occurs.
+     * This method is responsible for receiving the file data from the sending 
+     * client.  Each chunk is checked against its checksum and written to the 
+     * data share file as it arrives until the whole file has been received. 
+     * If a chunk fails its checksum the server is asked to resend the data 
+     * from that chunk, chunks other than the next expected chunk are ignored 
+     * until it arrives.  If the file can't be written the remaining chunks 
+     * are still received but discarded.  This method is used for both file 
+     * and voice data.  
+     * @param payload The received data share chunk payload.  
+     * @throws IOException If the chunk can't be decoded.  
      */
-    private synchronized String receive() throws Exception {
-        int timeout = this.conn.getSoTimeout();
-        byte[] temp = new byte[Configuration.DATA_BUFFER_SIZE];
-        byte[] storage = new byte[Configuration.DATA_BUFFER_SIZE];
-        
-        // Code to deal with the one initial byte receive which occurs during
-        // an SSL connection.  Also handles non SSL connections.
-        int numRead = 0, offset = 0;
-        do {
-            if (numRead == 1)
-                this.conn.setSoTimeout(100);
+    private void receiveDataShareChunk(byte[] payload) throws IOException {
+        if (this.dataShareHeader == null)
+            return;
+        DataShareChunk chunk = DataShareChunk.decode(payload);
+        if (chunk.getOffset() != this.dataShareBytesReceived)
+            return;
+        int length = chunk.getLength();
+        if (length != DataShareChunk.getChunkLength(this.dataShareBytesReceived, 
+                                    this.dataShareHeader.getFileSize()) || 
+            !chunk.isValid()){
+            this.gui.getConnection().send(new Frame(Protocol.DATA_SHARE_RESUME, 
+                    DataShareChunk.encodeOffset(this.dataShareBytesReceived)));
+            return;
+        }
+        if (this.dataShareOutput != null){
             try {
-                numRead = this.input.read(temp, 0, temp.length);
-                if ((offset + numRead) > storage.length)
-                    numRead = (storage.length - offset);
-                System.arraycopy(temp, 0, storage, offset, numRead);
-                offset += numRead;
-            } catch (SocketTimeoutException ste){
-                numRead = 0; // Breaks out of the do while loop.
-            }
-            finally {
-                this.conn.setSoTimeout(timeout);
+                this.dataShareOutput.write(payload, DataShareChunk.HEADER_SIZE, 
+                                           length);
+            } catch (IOException ex) {
+                this.gui.setSystemText(String.format("Could not save the file : %s",
+                                                              ex.getMessage()));
+                this.closeDataShareFile();
             }
         }
-        while (numRead == 1);
-  
-        // Convert to string and return.
-        byte[] data = new byte[offset];
-        System.arraycopy(storage, 0, data, 0, data.length);
-        return new String(data);
+        if (this.dataShareDigest != null)
+            this.dataShareDigest.update(payload, DataShareChunk.HEADER_SIZE, length);
+        this.dataShareBytesReceived += length;
+        if (this.dataShareBytesReceived == this.dataShareHeader.getFileSize())
+            this.endDataShare();
     }
     
     /**
-     * This method operates in the same manner as receive() except 
-     * its max receive value is set by the PREVIEW_BUFFER_SIZE variable.  This 
-     * method also marks and resets the position of data being received.  This 
-     * enables a receive to occur after the preview of the same data. 
-     * 
-     * As a result this method is used to preview incoming data to view and 
-     * process the data commands prepending the actual data.  These commands 
-     * are then used to handle the data once received by the receive method. 
-     * 
-     * @return The received preview data in the form of a String. Usually 
-     * represents the data command being used to transmit data.
-     * @throws Exception If a read error occurs.
+     * This method is called when the server cancels a data share.  The 
+     * server sends the reason as text separately.  If a data share is being 
+     * received the partly received file is kept if the data share can be 
+     * resumed (i.e. it has a content hash) and deleted otherwise, if not the 
+     * data share request last sent by this client is dropped.  
      */
-    private synchronized String receivePreview() throws Exception {
-        this.input.mark(Configuration.PREVIEW_BUFFER_SIZE);
-        int timeout = this.conn.getSoTimeout();
-        byte[] temp = new byte[Configuration.PREVIEW_BUFFER_SIZE];
-        byte[] storage = new byte[Configuration.PREVIEW_BUFFER_SIZE];
-        
-        // Code to deal with the one initial byte receive which occurs during
-        // an SSL connection.  Also handles non SSL connections.
-        int numRead = 0, offset = 0;
-        do {
-            if (numRead == 1)
-                this.conn.setSoTimeout(100);
-            try {
-                numRead = this.input.read(temp, 0, temp.length);
-                if ((offset + numRead) > storage.length)
-                    numRead = (storage.length - offset);
-                System.arraycopy(temp, 0, storage, offset, numRead);
-                offset += numRead;
-            } catch (SocketTimeoutException ste){
-                numRead = 0; // Breaks out of the do while loop.
-            }
-            finally {
-                this.conn.setSoTimeout(timeout);
-            }
+    private void cancelDataShare(){
+        if (this.dataShareHeader != null){
+            boolean isResumable = (this.dataShareDigest != null);
+            this.dataShareHeader = null;
+            if (this.closeDataShareFile() && !isResumable)
+                this.dataSharePartFile.delete();
+            this.gui.setGUIDataShareAbility(true);
         }
-        while (numRead == 1);
-        
-        // Convert to string and return.
-        byte[] data = new byte[offset];
-        System.arraycopy(storage, 0, data, 0, data.length);
-        
-        this.input.reset();
-        return new String(data);
+        else
+            this.gui.getConnection().cancelDataShareData();
     }
     
     /**
-     * This method is responsible for receiving the file data from the sending 
-     * client.  The file data is stored in the fileData variable and is accessed 
-     * from other methods in this class.  This method is used for both file and 
-     * voice data.  
-     * @param fileSize The size of the file being shared.
-     * @param cmdLength The size of the protocol command which prepends the file 
-     * data.
-     * @return The received byte data in an array.
-     * @throws Exception If a receive error occurs.
+     * This method is called once the whole data share has been received.  The 
+     * server is told the data has been received.  The whole file is checked 
+     * against its content hash (if known) and moved from its part file to 
+     * its final name, then the user is alerted as to the absolute file path 
+     * of the saved file.  Received voice recordings are played.  
      */
-    public byte[] receiveDataShare(int fileSize, int cmdLength) throws Exception {
-        int dataSize = fileSize + cmdLength;
-        byte[] byteData = new byte[dataSize];
-        int bytesReceived = 0;
+    private void endDataShare(){
+        DataShareHeader header = this.dataShareHeader;
+        MessageDigest digest = this.dataShareDigest;
+        this.dataShareHeader = null;
+        boolean isSaved = this.closeDataShareFile();
         
-        while (bytesReceived < dataSize){
-            int bytesLeft = (dataSize - bytesReceived);
-            int numBytesToReceive = Configuration.DATA_BUFFER_SIZE;
-            if (bytesLeft < Configuration.DATA_BUFFER_SIZE)
-                numBytesToReceive = bytesLeft;
-
-            int received = input.read(byteData, bytesReceived, numBytesToReceive);
-            if (received != numBytesToReceive)
-                numBytesToReceive = received;
-            bytesReceived += numBytesToReceive;
-        }
+        // Let the server know the file has been received.
+        this.gui.getConnection().send(new Frame(Protocol.DATA_SHARE_RECEIVED));
+        this.gui.setGUIDataShareAbility(true);
+        if (!isSaved)
+            return;
         
-        if (bytesReceived != dataSize)
-            throw new Exception("File size doesn't match the number of bytes received");
+        // Check the whole file and give it its final name.
+        if (digest != null && !ContentHash.toHex(digest.digest()).equals(
+                                                     header.getContentHash())){
+            this.dataSharePartFile.delete();
+            this.gui.setSystemText(String.format("The file received from %s "
+                    + "was corrupt and has been discarded", this.senderUname));
+            return;
+        }
+        this.dataShareFile.delete();
+        if (!this.dataSharePartFile.renameTo(this.dataShareFile)){
+            this.gui.setSystemText(String.format("Could not save the file : %s",
+                                   this.dataShareFile.getAbsolutePath()));
+            return;
+        }
         
-        // Remove command data from the file data.
-        byte[] fileData = new byte[fileSize];
-        System.arraycopy(byteData, cmdLength, fileData, 0, fileData.length);
-        return fileData;
+        // Alert the user.
+        if (header.isAFileShare()){
+            this.gui.setSystemText(String.format("File received from %s (%s)",
+                                        this.senderUname,
+                                        this.dataShareFile.getAbsolutePath()));
+        }
+        else {
+            this.gui.setSystemText(
+                    String.format("Voice recording received from %s (%s)",
+                                        this.senderUname,
+                                        this.dataShareFile.getAbsolutePath()));
+            
+            // Play recording.
+            new VoiceRecorderDialog(this.gui, this.dataShareFile);
+        }
     }
     
     /**
-     * This method is used to save received file data.  This is done by creating 
-     * a file matching that originally sent from the sending client and then 
-     * setting the files content to that of the received file data.  The 
-     * received data is passed in as a parameter.  This code below is fully 
+     * This method is used to open the file received data share data is 
+     * written to.  The file name matches that originally sent from the 
+     * sending client.  Files are saved to the user's downloads directory and 
+     * voice recordings (all of the .WAV file format) are saved to the 
+     * temporary files directory of the given OS.  This code below is fully 
      * cross platform in that both Windows and Linux based OS's are catered for 
-     * when trying to locate a users downloads directory (to save the file to). 
-     * If for some reason the downloads directory cannot be located then the 
-     * current working directory (CWD) is used instead.  Either way the user is 
-     * alerted as to the absolute file path of the saved file.  
-     * @param fileData The file data to be used in the construction of the newly 
-     * created (received) file.  
+     * when trying to locate a users downloads directory.  If for some reason 
+     * the directory cannot be located then the current working directory 
+     * (CWD) is used instead.  If the file can't be created the user is alerted 
+     * and the received data is discarded.  The data is written to a part file 
+     * until the whole file has been received (see openDataSharePartFile()).  
+     * @param header The data share header describing the data share.  
+     * @return The offset to receive the data from.  
      */
-    private synchronized void saveFile(byte[] fileData){
-        String thisUser = System.getProperty("user.name");
-        String os = System.getProperty("os.name").toLowerCase();
-        String downloads, fullFilePath;
-        
-        if (os.startsWith("win")){
-            downloads = String.format("C:\\Users\\%s\\Downloads", thisUser);
-            fullFilePath = String.format("%s\\%s", downloads, this.fileName);
-        }
-        else if (os.equals("linux")){
-            downloads = String.format("/home/%s/Downloads", thisUser);
-            fullFilePath = String.format("%s/%s", downloads, fileName);
+    private synchronized long openDataShareFile(DataShareHeader header){
+        boolean isAFileShare = header.isAFileShare();
+        String fullFilePath;
+        if (isAFileShare){
+            String thisUser = System.getProperty("user.name");
+            String os = System.getProperty("os.name").toLowerCase();
+            String downloads;
+            
+            if (os.startsWith("win")){
+                downloads = String.format("C:\\Users\\%s\\Downloads", thisUser);
+                fullFilePath = String.format("%s\\%s", downloads, this.fileName);
+            }
+            else if (os.equals("linux")){
+                downloads = String.format("/home/%s/Downloads", thisUser);
+                fullFilePath = String.format("%s/%s", downloads, fileName);
+            }
+            else { // Save file to the CWD.
+                fullFilePath = this.fileName;
+            }
         }
-        else { // Save file to the CWD.
-            fullFilePath = this.fileName;
+        else {
+            // Find the OS specific tmp files directory.
+            fullFilePath = System.getProperty("java.io.tmpdir") +
+                           System.getProperty("file.separator") + 
+                           this.fileName;
         }
         
         try {
-            File file = null;
-            FileOutputStream fos = null;
+            // Try opening the file in the chosen directory.  
             try {
-                file = new File(fullFilePath);
-                fos = new FileOutputStream(file);
-            } catch (Exception ex){
-                this.gui.setSystemText(
+                this.dataShareFile = new File(fullFilePath);
+                return this.openDataSharePartFile(header);
+            } 
+            
+            // Otherwise save to the CWD.  
+            catch (Exception ex){
+                if (isAFileShare)
+                    this.gui.setSystemText(
                        "There was a problem locating your downloads directory");
-                file = new File(this.fileName);
-                fos = new FileOutputStream(file);
+                else
+                    this.gui.setSystemText(
+                     "There was a problem locating your temporary files directory"
+                           + ", using the current working directory instead");
+                this.dataShareFile = new File(this.fileName);
+                return this.openDataSharePartFile(header);
             }
-            fos.write(fileData);
-            fos.close();
-            this.gui.setSystemText(String.format("File received from %s (%s)",
-                                                       this.senderUname,
-                                                       file.getAbsolutePath()));
-        } 
+        }
+        
+        // Alert the user if the file can't be created.  
         catch (Exception ex){
+            this.dataShareOutput = null;
+            this.dataShareDigest = null;
             this.gui.setSystemText(String.format("Could not save the file : %s",
                                                               ex.getMessage()));
+            return 0;
         }
     }
     
     /**
-     * This method is used to save a received voice recording.  This method 
-     * works in the same way as the saveFile() method except all received voice 
-     * recordings are of the .WAV file format.  All voice recordings are saved 
-     * to the temporary files directory of the given OS where possible.  If for 
-     * some reason the temporary files directory cannot be located then the 
-     * current working directory is used.  Either way the user is alerted as to 
-     * the absolute file path of the saved voice recording.  
-     * @param fileData The file data used in the construction of the voice 
-     * recording (.WAV file).  
-     * @return The saved voice recording file instance or null if an error 
-     * occurs.  
+     * This method opens the part file the received data is written to until 
+     * the whole file has been received.  The part file of a data share with 
+     * a content hash is named after the hash and kept if the data share is 
+     * interrupted, so a later data share of the same file resumes from the 
+     * last whole chunk of the part file.  The part file is hashed up to that 
+     * chunk so that the whole file can be checked once received.  
+     * @param header The data share header describing the data share.  
+     * @return The offset to receive the data from.  
+     * @throws IOException If the part file can't be opened.  
      */
-    private synchronized File saveVoiceRecording(byte[] fileData){
-        // Find the OS specific tmp files directory.
-        String fullFilePath = System.getProperty("java.io.tmpdir") +
-                              System.getProperty("file.separator") + 
-                              this.fileName;
+    private long openDataSharePartFile(DataShareHeader header) throws IOException {
+        String hash = header.getContentHash();
+        boolean isResumable = ContentHash.isValid(hash);
+        String partName = this.dataShareFile.getName() + ".part";
+        if (isResumable)
+            partName = ".yarn-" + hash + ".part";
+        this.dataSharePartFile = new File(
+                this.dataShareFile.getAbsoluteFile().getParentFile(), partName);
         
+        // Discard any partly received chunk at the end of the part file.
+        long offset = 0;
+        if (isResumable && this.dataSharePartFile.isFile()){
+            offset = Math.min(this.dataSharePartFile.length(), header.getFileSize());
+            offset -= offset % Protocol.CHUNK_SIZE;
+        }
+        RandomAccessFile part = new RandomAccessFile(this.dataSharePartFile, "rw");
         try {
-            File file = null;
-            FileOutputStream fos = null;
-            
-            // Try saving the file to the tmp files directory.  
+            part.setLength(offset);
+        } finally {
+            part.close();
+        }
+        
+        // Hash the data already received.
+        this.dataShareDigest = null;
+        if (isResumable){
+            this.dataShareDigest = ContentHash.newDigest();
+            byte[] buffer = new byte[Protocol.CHUNK_SIZE];
+            InputStream input = new FileInputStream(this.dataSharePartFile);
             try {
-                file = new File(fullFilePath);
-                fos = new FileOutputStream(file);
-            } 
-            
-            // Otherwise save to the CWD.  
-            catch (Exception ex){
-                this.gui.setSystemText(
-                 "There was a problem locating your temporary files directory"
-                           + ", using the current working directory instead");
-                file = new File(this.fileName);
-                fos = new FileOutputStream(file);
+                int length;
+                while ((length = input.read(buffer)) >= 0)
+                    this.dataShareDigest.update(buffer, 0, length);
+            } finally {
+                input.close();
             }
-            
-            // Write the received file data to the newly created file.  
-            fos.write(fileData);
-            fos.close();
-            this.gui.setSystemText(
-                    String.format("Voice recording received from %s (%s)",
-                                                       this.senderUname,
-                                                       file.getAbsolutePath()));
-            return file;
         }
-        
-        // Alert the user if an error occurs during the save.  
-        catch (Exception ex){
-            this.gui.setSystemText(
-                    String.format("Could not save the voice recording : %s",
-                                                          ex.getMessage()));
-            return null;
+        this.dataShareOutput = new BufferedOutputStream(
+                new FileOutputStream(this.dataSharePartFile, true), 
+                Configuration.DATA_BUFFER_SIZE);
+        return offset;
+    }
+    
+    /**
+     * This method closes the file received data share data is written to.  
+     * @return True if all of the received data was written to the file, false 
+     * if the file couldn't be written.  
+     */
+    private synchronized boolean closeDataShareFile(){
+        OutputStream output = this.dataShareOutput;
+        this.dataShareOutput = null;
+        if (output == null)
+            return false;
+        try {
+            output.close();
+            return true;
+        } catch (IOException ex) {
+            this.gui.setSystemText(String.format("Could not save the file : %s",
+                                                              ex.getMessage()));
+            return false;
         }
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,7 @@ package yarngui;
 import java.io.File;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import yarnprotocol.Protocol;
 
 /**
  * This class extends JFrame to provide a data share dialog.  This data share 
@@ -104,9 +105,9 @@ public class ShareDialog extends javax.swing.JFrame {
      * @return The data share protocol command.  
      */
     private String getShareCommand(String[] usernames, String path){
-        String dataType = ReceiveThread.FILE_SHARE_SEND_CMD;
+        String dataType = Protocol.FILE_SHARE_SEND_CMD;
         if (this.voiceShareRadioButton.isSelected())
-            dataType = ReceiveThread.VOICE_SHARE_SEND_CMD;
+            dataType = Protocol.VOICE_SHARE_SEND_CMD;
         String usernamesString = "";
         for (String uname : usernames){
             usernamesString += (uname + " ");
@@ -1,6 +1,8 @@
 
 package yarngui;
 
+import yarnprotocol.Protocol;
+
 /**
  * Utilities class for static methods used by many other classes.  
  * This class contains utilitarian methods which are useful code snippets 
@@ -78,9 +80,9 @@ public abstract class Utilities {
         */ 
         String dataType;
         if (isAFileShare)
-            dataType = ReceiveThread.FILE_SHARE_SEND_CMD;
+            dataType = Protocol.FILE_SHARE_SEND_CMD;
         else
-            dataType = ReceiveThread.VOICE_SHARE_SEND_CMD;
+            dataType = Protocol.VOICE_SHARE_SEND_CMD;
         
         // Get the filepath. The " is escaped below by using \" inside the str.
         String filepath = command.substring(command.indexOf(dataType) 
@@ -125,142 +127,11 @@ public abstract class Utilities {
         }
         
         // Determine protocol.
-        if (cmd.trim().charAt(0) == ReceiveThread.FILE_SHARE_SEND_CMD.trim().charAt(0))
+        if (cmd.trim().charAt(0) == Protocol.FILE_SHARE_SEND_CMD.trim().charAt(0))
             return true;
-        else if (cmd.trim().charAt(0) == ReceiveThread.VOICE_SHARE_SEND_CMD.trim().charAt(0))
+        else if (cmd.trim().charAt(0) == Protocol.VOICE_SHARE_SEND_CMD.trim().charAt(0))
             return false;
         else
             throw new Exception("Command protocol error, can't determine the data type");
     }
-    
-    /**
-     * Removes the username(s) from the text parameter.
-     * @param text The text containing one or more usernames.
-     * @param numUnames The number of usernames to remove.
-     * @return A sub-string of the text parameter with numUnames usernames 
-     * having been removed.  
-     */
-    public static String removeUserNames(String text, int numUnames){
-        text = text.trim();
-        String sender = text.substring(0, text.indexOf(' '));
-        for (int i = 0; i < numUnames; i++){
-            text = text.substring(text.indexOf("@") + 1);
-        }
-        text = text.substring(text.indexOf(" ") + 1);
-        text = text.trim();
-        return sender + " : " + text;
-    }
-    
-    /**
-     * This method compares two string arrays in both length and content.  Each 
-     * string within the arrays has an @ symbol prepended to the string value if 
-     * required.  This method is used to compare the usernames contained in the 
-     * received PM against the usernames contained in the conference dialog 
-     * usernames text field.  
-     * @param textUnames The first array containing usernames.
-     * @param confUnames The second array containing usernames.
-     * @return True if both arrays match in length and content, false otherwise. 
-     */
-    public static boolean doUserNamesMatch(String[] textUnames, String[] confUnames){
-        try {
-            if ((textUnames.length - 1) != confUnames.length)
-                return false;
-        }
-        catch (NullPointerException npe){
-            return false;
-        }
-        
-        int matches = 0;
-        for (int i = 0; i < confUnames.length; i++){
-            String uname1 = confUnames[i].trim();
-            if (!uname1.startsWith("@"))
-                uname1 = "@" + uname1;
-            for (int t = 0; t < textUnames.length; t++){
-                String uname2 = textUnames[t].trim();
-                if (!uname2.startsWith("@"))
-                    uname2 = "@" + uname2;
-                if (uname1.equals(uname2))
-                    matches++;
-            }
-        }
-        
-        if (confUnames.length == matches)
-            return true;
-        else
-            return false;
-    }
-    
-    /**
-     * This method is used to determine if a text transfer is addressed to 
-     * everybody or specific individuals.  A private message begins with the @ 
-     * symbol.  
-     * @param text The text being sent to either everybody or specific clients. 
-     * @return True if the text parameter begins with an @ symbol, false 
-     * otherwise.  
-     */
-    public static boolean isAPrivateMessage(String text){
-        try {
-            String s = text.substring(text.indexOf(':') + 1);
-            if (s.trim().charAt(0) == '@')
-                return true;
-            else
-                return false;
-        }
-        catch (Exception ex){
-            return false;
-        }
-    }
-    
-    /**
-     * This method is used to retrieve the usernames at the start of a string. 
-     * All usernames should begin with an @ symbol and are separated by a space. 
-     * @param text The text containing usernames which are to be retrieved.
-     * @return A string array containing any usernames from the start of the 
-     * text.  
-     */
-    public static String[] getUsernamesFromText(String text){
-        // Split up any usernames.
-        String[] usernames = text.split("@");
-        for (int i = 0; i < usernames.length; i++){
-            usernames[i] = usernames[i].trim();
-        }
-        
-        try {
-            // Separate the last username from the actual text of the message.
-            String lastUsername = usernames[usernames.length - 1];
-            lastUsername = lastUsername.substring(0, lastUsername.indexOf(" "));
-            usernames[usernames.length - 1] = lastUsername.trim();
-            // Remove the ':' from the first username (the senders username).
-            String firstUsername = usernames[0].trim();
-            firstUsername = firstUsername.substring(0, firstUsername.indexOf(' '));
-            usernames[0] = firstUsername.trim();
-        }
-        catch (Exception ex){} // Do nothing if there is no excess text.
-        
-        // Add the '@' symbol to the usernames.
-        for (int i = 0; i < usernames.length; i++){
-             if (!usernames[i].startsWith("@"))
-                 usernames[i] = "@" + usernames[i];
-        }
-
-        return usernames;
-    }
-    
-    /**
-     * This method retrieves the data and protocol command length from a data 
-     * share command.  
-     * @param text The data share protocol command.  
-     * @return An integer array containing firstly the data share size and 
-     * secondly the data share protocol command size.  
-     */
-    public static int[] getDataAndCmdLength(String text){
-        // Get the file size.
-        String temp = text.substring(text.indexOf('?') + 2);
-        int dataSize = Integer.parseInt(temp.substring(0, temp.indexOf("\"")));
-        // Get the cmd length.
-        int firstIndex = text.indexOf("?\"") + "?\"".length();
-        int cmdLength = text.indexOf("\"", firstIndex + 1);
-        cmdLength++;
-        return new int[]{dataSize, cmdLength};
-    }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,91 @@
+
+package yarnprotocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class computes the content hash of a data share.  The sending client
+ * offers the SHA-256 hash of the file with its data share command so that the
+ * server can skip the upload of a file it already has, the server checks the
+ * hash against the data it receives before trusting it.  Hashes are sent as
+ * lower case hex text.  This class is abstract meaning that no class instance
+ * is created.  All public variables and methods are therefore static.
+ * @author Michael Telford
+ */
+public abstract class ContentHash {
+
+    public  static final String ALGORITHM = "SHA-256";
+    public  static final int    LENGTH    = 64;  // The hex text length.
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Returns a new message digest for computing a content hash.
+     * @return The message digest.
+     */
+    public static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance(ContentHash.ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException ex){
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Computes the content hash of a file.
+     * @param file The file to hash.
+     * @return The content hash as hex text.
+     * @throws IOException If the file can't be read.
+     */
+    public static String of(File file) throws IOException {
+        MessageDigest digest = ContentHash.newDigest();
+        byte[] buffer = new byte[Protocol.CHUNK_SIZE];
+        InputStream input = new FileInputStream(file);
+        try {
+            int length;
+            while ((length = input.read(buffer)) >= 0)
+                digest.update(buffer, 0, length);
+        }
+        finally {
+            input.close();
+        }
+        return ContentHash.toHex(digest.digest());
+    }
+
+    /**
+     * Converts a digest into hex text.
+     * @param digest The digest bytes.
+     * @return The digest as lower case hex text.
+     */
+    public static String toHex(byte[] digest){
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++){
+            hex[i * 2]     = ContentHash.HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = ContentHash.HEX_DIGITS[digest[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns whether or not the given text is a valid content hash.
+     * @param hash The hash text.
+     * @return True if valid, false otherwise.
+     */
+    public static boolean isValid(String hash){
+        if (hash == null || hash.length() != ContentHash.LENGTH)
+            return false;
+        for (int i = 0; i < hash.length(); i++){
+            char c = hash.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+                return false;
+        }
+        return true;
+    }
+}
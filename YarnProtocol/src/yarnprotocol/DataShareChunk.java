@@ -0,0 +1,158 @@
+
+package yarnprotocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The payload of a DATA_SHARE_CHUNK frame.  Data share data is split into
+ * chunks of CHUNK_SIZE bytes (the last chunk may be shorter) which are
+ * numbered by their offset in the file.  Each chunk is encoded as an eight
+ * byte offset, a four byte CRC32 checksum of the chunk data and then the
+ * data itself, so a receiver can verify every chunk and knows exactly how
+ * much of the file it has verified.  A transfer which is interrupted can
+ * therefore be resumed from the last verified offset, which is sent as the
+ * payload of the DATA_SHARE_READY and DATA_SHARE_RESUME frames.
+ * @author Michael Telford
+ */
+public class DataShareChunk {
+
+    public  static final int HEADER_SIZE = 12;  // The chunk header size.
+
+    private final long   offset;
+    private final int    checksum;
+    private final byte[] payload;
+
+    /**
+     * Constructor which takes a decoded chunk payload.
+     * @param offset The offset of the chunk in the file.
+     * @param checksum The checksum of the chunk data.
+     * @param payload The chunk payload including the chunk header.
+     */
+    private DataShareChunk(long offset, int checksum, byte[] payload){
+        this.offset   = offset;
+        this.checksum = checksum;
+        this.payload  = payload;
+    }
+
+    /**
+     * Returns the offset of the chunk in the file.
+     * @return The chunk offset in bytes.
+     */
+    public long getOffset(){
+        return this.offset;
+    }
+
+    /**
+     * Returns the checksum sent with the chunk.
+     * @return The CRC32 checksum.
+     */
+    public int getChecksum(){
+        return this.checksum;
+    }
+
+    /**
+     * Returns the array containing the chunk data, the data starts at
+     * HEADER_SIZE.
+     * @return The chunk payload.
+     */
+    public byte[] getPayload(){
+        return this.payload;
+    }
+
+    /**
+     * Returns the length of the chunk data.
+     * @return The data length in bytes.
+     */
+    public int getLength(){
+        return this.payload.length - DataShareChunk.HEADER_SIZE;
+    }
+
+    /**
+     * Returns whether the chunk data matches its checksum.
+     * @return True if the chunk is intact, false otherwise.
+     */
+    public boolean isValid(){
+        return (this.checksum == DataShareChunk.checksum(this.payload,
+                                DataShareChunk.HEADER_SIZE, this.getLength()));
+    }
+
+    /**
+     * Returns the expected length of the chunk at the given offset.
+     * @param offset The chunk offset.
+     * @param fileSize The size of the file.
+     * @return The chunk length in bytes.
+     */
+    public static int getChunkLength(long offset, long fileSize){
+        return (int) Math.min(Protocol.CHUNK_SIZE, fileSize - offset);
+    }
+
+    /**
+     * Computes the checksum of chunk data.
+     * @param data The array containing the data.
+     * @param offset The offset of the data in the array.
+     * @param length The data length.
+     * @return The CRC32 checksum.
+     */
+    public static int checksum(byte[] data, int offset, int length){
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes a chunk header into the given array.
+     * @param offset The chunk offset.
+     * @param checksum The checksum of the chunk data.
+     * @param dest The array to write the header to.
+     * @param destOffset The offset in the array to write the header at.
+     */
+    public static void encodeHeader(long offset, int checksum, byte[] dest,
+                                    int destOffset){
+        ByteBuffer buffer = ByteBuffer.wrap(dest, destOffset,
+                                            DataShareChunk.HEADER_SIZE);
+        buffer.putLong(offset);
+        buffer.putInt(checksum);
+    }
+
+    /**
+     * Decodes a chunk from a frame payload.
+     * @param payload The DATA_SHARE_CHUNK frame payload.
+     * @return The decoded chunk.
+     * @throws ProtocolException If the payload is not a valid chunk.
+     */
+    public static DataShareChunk decode(byte[] payload) throws ProtocolException {
+        if (payload.length < DataShareChunk.HEADER_SIZE)
+            throw new ProtocolException("Illegal data share chunk");
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long offset = buffer.getLong();
+        if (offset < 0)
+            throw new ProtocolException("Illegal data share chunk offset " + offset);
+        return new DataShareChunk(offset, buffer.getInt(), payload);
+    }
+
+    /**
+     * Encodes the offset a transfer starts (or resumes) from.
+     * @param offset The offset in bytes.
+     * @return The DATA_SHARE_READY or DATA_SHARE_RESUME frame payload.
+     */
+    public static byte[] encodeOffset(long offset){
+        return ByteBuffer.allocate(8).putLong(offset).array();
+    }
+
+    /**
+     * Decodes the offset a transfer starts (or resumes) from.
+     * @param payload The DATA_SHARE_READY or DATA_SHARE_RESUME frame payload.
+     * @return The offset in bytes.
+     * @throws ProtocolException If the payload is not a valid offset.
+     */
+    public static long decodeOffset(byte[] payload) throws ProtocolException {
+        if (payload.length != 8)
+            throw new ProtocolException("Illegal data share offset");
+        long offset = ByteBuffer.wrap(payload).getLong();
+        if (offset < 0)
+            throw new ProtocolException("Illegal data share offset " + offset);
+        return offset;
+    }
+}
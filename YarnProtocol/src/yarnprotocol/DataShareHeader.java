@@ -0,0 +1,119 @@
+
+package yarnprotocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The payload of a DATA_SHARE_START frame.  Sent by the server to a receiving
+ * client once it has accepted a data share, the header describes the data
+ * share chunks which follow.  The header is encoded as a one byte data type
+ * (file or voice), an eight byte file size, a one byte content hash length
+ * followed by the content hash text (see ContentHash, empty if the sending
+ * client didn't offer one) and then the file name text.  The receiving client
+ * uses the content hash to find a partly received copy of the file to resume
+ * and to verify the whole file once received.
+ * @author Michael Telford
+ */
+public class DataShareHeader {
+
+    private static final byte FILE_SHARE  = 0;
+    private static final byte VOICE_SHARE = 1;
+    private static final int  SIZE        = 10; // The header size without the text.
+
+    private final boolean isAFileShare;
+    private final long    fileSize;
+    private final String  contentHash;
+    private final String  fileName;
+
+    /**
+     * Constructor which sets the data share details.
+     * @param isAFileShare True for a file share, false for a voice share.
+     * @param fileSize The size of the file in bytes.
+     * @param contentHash The content hash of the file or an empty string if
+     * it isn't known.
+     * @param fileName The name of the file being shared.
+     */
+    public DataShareHeader(boolean isAFileShare, long fileSize,
+                           String contentHash, String fileName){
+        this.isAFileShare = isAFileShare;
+        this.fileSize     = fileSize;
+        this.contentHash  = contentHash;
+        this.fileName     = fileName;
+    }
+
+    /**
+     * Returns whether a file or a voice recording is being shared.
+     * @return True for a file share, false for a voice share.
+     */
+    public boolean isAFileShare(){
+        return this.isAFileShare;
+    }
+
+    /**
+     * Returns the size of the file being shared.
+     * @return The file size in bytes.
+     */
+    public long getFileSize(){
+        return this.fileSize;
+    }
+
+    /**
+     * Returns the content hash of the file being shared.
+     * @return The content hash or an empty string if it isn't known.
+     */
+    public String getContentHash(){
+        return this.contentHash;
+    }
+
+    /**
+     * Returns the name of the file being shared.
+     * @return The file name.
+     */
+    public String getFileName(){
+        return this.fileName;
+    }
+
+    /**
+     * Encodes this header into a frame payload.
+     * @return The encoded header.
+     */
+    public byte[] encode(){
+        byte[] hash = this.contentHash.getBytes(Protocol.CHARSET);
+        byte[] name = this.fileName.getBytes(Protocol.CHARSET);
+        ByteBuffer buffer = ByteBuffer.allocate(DataShareHeader.SIZE + hash.length
+                                                + name.length);
+        buffer.put(this.isAFileShare ? DataShareHeader.FILE_SHARE : DataShareHeader.VOICE_SHARE);
+        buffer.putLong(this.fileSize);
+        buffer.put((byte) hash.length);
+        buffer.put(hash);
+        buffer.put(name);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a header from a frame payload.
+     * @param payload The DATA_SHARE_START frame payload.
+     * @return The decoded header.
+     * @throws ProtocolException If the payload is not a valid header.
+     */
+    public static DataShareHeader decode(byte[] payload) throws ProtocolException {
+        if (payload.length < DataShareHeader.SIZE)
+            throw new ProtocolException("Illegal data share header");
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        boolean isAFileShare = (buffer.get() == DataShareHeader.FILE_SHARE);
+        long fileSize = buffer.getLong();
+        if (fileSize < 0)
+            throw new ProtocolException("Illegal data share size " + fileSize);
+        int hashLength = buffer.get() & 0xFF;
+        if (payload.length < DataShareHeader.SIZE + hashLength)
+            throw new ProtocolException("Illegal data share header");
+        String contentHash = new String(payload, DataShareHeader.SIZE,
+                                        hashLength, Protocol.CHARSET);
+        int nameOffset = DataShareHeader.SIZE + hashLength;
+        String fileName = new String(payload, nameOffset,
+                                     payload.length - nameOffset,
+                                     Protocol.CHARSET);
+        return new DataShareHeader(isAFileShare, fileSize, contentHash, fileName);
+    }
+}
@@ -0,0 +1,109 @@
+
+package yarnprotocol;
+
+/**
+ * A single protocol frame consisting of a frame type and a payload.  See the
+ * Protocol class for the available frame types and the wire format.  Frames
+ * are immutable once created.
+ * @author Michael Telford
+ */
+public class Frame {
+
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private final int    type;
+    private final byte[] payload;
+
+    /**
+     * Constructor for a frame without a payload e.g. a connection request.
+     * @param type The frame type.
+     */
+    public Frame(int type){
+        this(type, Frame.EMPTY_PAYLOAD);
+    }
+
+    /**
+     * Constructor for a frame with a binary payload.  The payload array is
+     * used directly and is not copied.
+     * @param type The frame type.
+     * @param payload The frame payload.
+     */
+    public Frame(int type, byte[] payload){
+        this.type    = type;
+        this.payload = payload;
+    }
+
+    /**
+     * Constructor for a frame with a text payload.  The text is encoded using
+     * the protocol character set.
+     * @param type The frame type.
+     * @param text The frame payload text.
+     */
+    public Frame(int type, String text){
+        this(type, text.getBytes(Protocol.CHARSET));
+    }
+
+    /**
+     * Returns the frame type.
+     * @return The frame type.
+     */
+    public int getType(){
+        return this.type;
+    }
+
+    /**
+     * Returns the frame payload.
+     * @return The frame payload.
+     */
+    public byte[] getPayload(){
+        return this.payload;
+    }
+
+    /**
+     * Returns the frame payload decoded as text.
+     * @return The frame payload text.
+     */
+    public String getText(){
+        return new String(this.payload, Protocol.CHARSET);
+    }
+
+    /**
+     * Encodes this frame into its wire format (header and payload).
+     * @return The encoded frame.
+     */
+    public byte[] encode(){
+        return Frame.encode(this.type, this.payload, 0, this.payload.length);
+    }
+
+    /**
+     * Encodes a frame into its wire format (header and payload) without the
+     * need to create a Frame instance.  This is used to send chunks of a
+     * larger array e.g. data share data.
+     * @param type The frame type.
+     * @param data The array containing the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The payload length.
+     * @return The encoded frame.
+     */
+    public static byte[] encode(int type, byte[] data, int offset, int length){
+        byte[] frame = new byte[Protocol.HEADER_SIZE + length];
+        Frame.encodeHeader(type, length, frame, 0);
+        System.arraycopy(data, offset, frame, Protocol.HEADER_SIZE, length);
+        return frame;
+    }
+
+    /**
+     * Writes a frame header into the given array.
+     * @param type The frame type.
+     * @param length The payload length.
+     * @param dest The array to write the header to.
+     * @param offset The offset in the array to write the header at.
+     */
+    public static void encodeHeader(int type, int length, byte[] dest, int offset){
+        dest[offset]     = (byte) type;
+        dest[offset + 1] = (byte) (length >>> 24);
+        dest[offset + 2] = (byte) (length >>> 16);
+        dest[offset + 3] = (byte) (length >>> 8);
+        dest[offset + 4] = (byte) length;
+    }
+}
@@ -0,0 +1,227 @@
+
+package yarnprotocol;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses frame payloads for a connection which has
+ * negotiated compression (see Protocol.LOGIN).  A compressed frame has
+ * the Protocol.COMPRESSED bit set in its type and a deflated payload, the
+ * payload length in the header is the compressed length.  Each frame is
+ * compressed on its own so frames can be decoded in any order and a data
+ * share can be resumed from any chunk.
+ *
+ * Payloads smaller than the threshold are sent uncompressed because deflate
+ * gains little on them (e.g. short chat messages) while still costing CPU
+ * time, as are payloads which don't get any smaller (e.g. a chunk of a zip
+ * file).  The deflater and inflater are created once and reset per frame, so
+ * one instance should be used per connection.  The bytes saved and the CPU
+ * time spent are counted for the connection's statistics.  This class is
+ * thread safe.
+ * @author Michael Telford
+ */
+public class FrameCompressor {
+
+    public  static final int DEFAULT_THRESHOLD = 256;  // in bytes.
+
+    private final Deflater   deflater  = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater   inflater  = new Inflater();
+    private final int        threshold;
+    private byte[]           buffer    = new byte[Protocol.HEADER_SIZE];
+    private boolean          isEnded   = false;
+
+    // Compression statistics, guarded by this instance.
+    private long             numFramesSent         = 0;
+    private long             numFramesCompressed   = 0;
+    private long             bytesSent             = 0;
+    private long             compressedBytesSent   = 0;
+    private long             deflateTime           = 0;  // in nano seconds.
+    private long             numFramesInflated     = 0;
+    private long             bytesReceived         = 0;
+    private long             compressedBytesReceived = 0;
+    private long             inflateTime           = 0;  // in nano seconds.
+
+    /**
+     * Constructor which takes the smallest payload worth compressing.
+     * @param threshold The compression threshold in bytes.
+     */
+    public FrameCompressor(int threshold){
+        this.threshold = threshold;
+    }
+
+    /**
+     * Encodes a frame into its wire format, compressing the payload if it is
+     * at least the threshold size and deflates to something smaller.
+     * @param frame The frame to encode.
+     * @return The encoded frame.
+     */
+    public byte[] encode(Frame frame){
+        byte[] payload = frame.getPayload();
+        return this.encode(frame.getType(), payload, 0, payload.length);
+    }
+
+    /**
+     * Encodes a frame whose payload is part of a larger array into its wire
+     * format, see encode(Frame).
+     * @param type The frame type.
+     * @param data The array containing the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The payload length.
+     * @return The encoded frame.
+     */
+    public synchronized byte[] encode(int type, byte[] data, int offset,
+                                      int length){
+        this.numFramesSent++;
+        this.bytesSent += length;
+        if (length < this.threshold || this.isEnded){
+            this.compressedBytesSent += length;
+            return Frame.encode(type, data, offset, length);
+        }
+
+        // Deflate into a buffer the size of the payload, compression is
+        // abandoned if the buffer fills up.
+        long startTime = System.nanoTime();
+        if (this.buffer.length < Protocol.HEADER_SIZE + length)
+            this.buffer = new byte[Protocol.HEADER_SIZE + length];
+        this.deflater.reset();
+        this.deflater.setInput(data, offset, length);
+        this.deflater.finish();
+        int numBytes = 0;
+        while (!this.deflater.finished() && numBytes < length)
+            numBytes += this.deflater.deflate(this.buffer,
+                        Protocol.HEADER_SIZE + numBytes, length - numBytes);
+        boolean isSmaller = (this.deflater.finished() && numBytes < length);
+        this.deflateTime += System.nanoTime() - startTime;
+        if (!isSmaller){
+            this.compressedBytesSent += length;
+            return Frame.encode(type, data, offset, length);
+        }
+
+        this.numFramesCompressed++;
+        this.compressedBytesSent += numBytes;
+        byte[] frame = new byte[Protocol.HEADER_SIZE + numBytes];
+        Frame.encodeHeader(type | Protocol.COMPRESSED, numBytes, frame, 0);
+        System.arraycopy(this.buffer, Protocol.HEADER_SIZE, frame,
+                         Protocol.HEADER_SIZE, numBytes);
+        return frame;
+    }
+
+    /**
+     * Decompresses the payload of a received compressed frame.
+     * @param type The frame type without the COMPRESSED bit.
+     * @param payload The compressed payload.
+     * @return The decompressed frame.
+     * @throws ProtocolException If the payload isn't valid deflate data or
+     * decompresses to more than the maximum payload size.
+     */
+    public synchronized Frame decompress(int type, byte[] payload)
+                                                    throws ProtocolException {
+        if (this.isEnded)
+            throw new ProtocolException("Compressor has ended");
+        long startTime = System.nanoTime();
+        this.inflater.reset();
+        this.inflater.setInput(payload);
+        int numBytes = 0;
+        try {
+            while (!this.inflater.finished()){
+                if (numBytes == this.buffer.length){
+                    if (numBytes > Protocol.MAX_PAYLOAD_SIZE)
+                        throw new ProtocolException("Illegal compressed frame length");
+                    this.buffer = Arrays.copyOf(this.buffer, Math.min(
+                                  Math.max(numBytes * 2, Protocol.CHUNK_SIZE),
+                                  Protocol.MAX_PAYLOAD_SIZE + 1));
+                }
+                int numInflated = this.inflater.inflate(this.buffer, numBytes,
+                                                 this.buffer.length - numBytes);
+                if (numInflated == 0 && (this.inflater.needsInput() ||
+                                         this.inflater.needsDictionary()))
+                    throw new ProtocolException("Truncated compressed frame");
+                numBytes += numInflated;
+            }
+        }
+        catch (DataFormatException ex){
+            throw new ProtocolException("Illegal compressed frame");
+        }
+        if (numBytes > Protocol.MAX_PAYLOAD_SIZE)
+            throw new ProtocolException("Illegal compressed frame length");
+
+        byte[] data = new byte[numBytes];
+        System.arraycopy(this.buffer, 0, data, 0, numBytes);
+        this.numFramesInflated++;
+        this.bytesReceived += numBytes;
+        this.compressedBytesReceived += payload.length;
+        this.inflateTime += System.nanoTime() - startTime;
+        return new Frame(type, data);
+    }
+
+    /**
+     * Records a frame sent to this connection which was encoded by another
+     * compressor e.g. a broadcast message compressed once for all clients.
+     * @param length The payload length.
+     * @param encodedLength The encoded (possibly compressed) payload length.
+     */
+    public synchronized void recordSent(int length, int encodedLength){
+        this.numFramesSent++;
+        if (encodedLength < length)
+            this.numFramesCompressed++;
+        this.bytesSent += length;
+        this.compressedBytesSent += encodedLength;
+    }
+
+    /**
+     * Returns the compression statistics as text e.g. for a log.  The ratio
+     * is the size on the wire as a percentage of the uncompressed size.
+     * @return The compression statistics.
+     */
+    public synchronized String getStatistics(){
+        return String.format("sent %d frames (%d compressed), %d bytes as %d "
+                + "(ratio %.1f%%, deflate %d ms), received %d compressed frames, "
+                + "%d bytes as %d (ratio %.1f%%, inflate %d ms)",
+                this.numFramesSent, this.numFramesCompressed, this.bytesSent,
+                this.compressedBytesSent,
+                FrameCompressor.getRatio(this.compressedBytesSent, this.bytesSent),
+                this.deflateTime / 1000000, this.numFramesInflated,
+                this.bytesReceived, this.compressedBytesReceived,
+                FrameCompressor.getRatio(this.compressedBytesReceived,
+                                         this.bytesReceived),
+                this.inflateTime / 1000000);
+    }
+
+    /**
+     * Frees the native memory used by the deflater and inflater.  Frames
+     * encoded afterwards (e.g. by a thread which hasn't noticed the
+     * connection has closed) are left uncompressed.
+     */
+    public synchronized void end(){
+        if (this.isEnded)
+            return;
+        this.isEnded = true;
+        this.deflater.end();
+        this.inflater.end();
+    }
+
+    /**
+     * Returns whether an encoded frame has a compressed payload.
+     * @param frame The encoded frame.
+     * @return True if the frame is compressed, false otherwise.
+     */
+    public static boolean isCompressed(byte[] frame){
+        return ((frame[0] & Protocol.COMPRESSED) != 0);
+    }
+
+    /**
+     * Returns a compressed size as a percentage of the uncompressed size.
+     * @param compressed The compressed size.
+     * @param uncompressed The uncompressed size.
+     * @return The ratio as a percentage.
+     */
+    private static double getRatio(long compressed, long uncompressed){
+        if (uncompressed == 0)
+            return 100;
+        return (compressed * 100.0) / uncompressed;
+    }
+}
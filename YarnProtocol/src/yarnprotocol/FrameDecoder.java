@@ -0,0 +1,142 @@
+
+package yarnprotocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental frame decoder used with non blocking (NIO) sockets.  Data is
+ * passed to the decoder as it arrives in whatever sized pieces the network
+ * provides.  The decoder keeps any partially received frame between calls and
+ * returns each frame once it is complete.  Each byte is only examined once.
+ * The payload buffer grows as the payload arrives rather than being sized
+ * from the header, so a peer claiming a large frame costs only the memory of
+ * the bytes it has actually sent.  The frame size can also be capped below
+ * the maximum payload size e.g. until the peer has logged in.  One decoder
+ * instance should be used per connection.
+ * @author Michael Telford
+ */
+public class FrameDecoder {
+
+    private static final int INITIAL_PAYLOAD_SIZE = 4096;  // in bytes.
+
+    private final byte[] header = new byte[Protocol.HEADER_SIZE];
+    private int          headerBytesRead = 0;
+    private int          type;
+    private byte[]       payload = null;
+    private int          payloadLength = 0;
+    private int          payloadBytesRead = 0;
+    private int          maxPayloadSize = Protocol.MAX_PAYLOAD_SIZE;
+    private volatile FrameCompressor compressor = null;
+
+    /**
+     * Sets the largest frame payload accepted, a larger frame is invalid.
+     * @param maxPayloadSize The size in bytes, at most the maximum payload
+     * size of the protocol.
+     */
+    public void setMaxPayloadSize(int maxPayloadSize){
+        this.maxPayloadSize = Math.min(maxPayloadSize, Protocol.MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Sets the compressor used to decompress compressed frames once
+     * compression has been negotiated.  Until then a compressed frame is
+     * invalid.
+     * @param compressor The connection's compressor.
+     */
+    public void setCompressor(FrameCompressor compressor){
+        this.compressor = compressor;
+    }
+
+    /**
+     * Decodes the next frame from the given buffer.  The bytes used are
+     * consumed from the buffer.  This method should be called repeatedly until
+     * it returns null, at which point the buffer has been fully consumed and
+     * more data is needed.
+     * @param input The received data.
+     * @return The next complete frame, or null if more data is needed.
+     * @throws ProtocolException If the frame header or a compressed payload is
+     * invalid or the frame is larger than the maximum payload size set.
+     */
+    public Frame decode(ByteBuffer input) throws ProtocolException {
+
+        // Read the frame header.
+        if (this.payload == null){
+            int numBytes = Math.min(Protocol.HEADER_SIZE - this.headerBytesRead,
+                                    input.remaining());
+            input.get(this.header, this.headerBytesRead, numBytes);
+            this.headerBytesRead += numBytes;
+            if (this.headerBytesRead < Protocol.HEADER_SIZE)
+                return null;
+
+            this.type = (this.header[0] & 0xFF);
+            int length = ((this.header[1] & 0xFF) << 24) |
+                         ((this.header[2] & 0xFF) << 16) |
+                         ((this.header[3] & 0xFF) << 8)  |
+                          (this.header[4] & 0xFF);
+            FrameDecoder.validateHeader(this.type, length);
+            if (length > this.maxPayloadSize)
+                throw new ProtocolException("Frame length " + length
+                        + " exceeds the limit " + this.maxPayloadSize);
+            this.payload = new byte[Math.min(length, Math.max(
+                                   INITIAL_PAYLOAD_SIZE, input.remaining()))];
+            this.payloadLength = length;
+            this.payloadBytesRead = 0;
+        }
+
+        // Read the frame payload, doubling the buffer when it fills up.
+        int numBytes = Math.min(this.payloadLength - this.payloadBytesRead,
+                                input.remaining());
+        if (this.payloadBytesRead + numBytes > this.payload.length)
+            this.payload = Arrays.copyOf(this.payload, Math.min(Math.max(
+                    this.payload.length * 2, this.payloadBytesRead + numBytes),
+                    this.payloadLength));
+        input.get(this.payload, this.payloadBytesRead, numBytes);
+        this.payloadBytesRead += numBytes;
+        if (this.payloadBytesRead < this.payloadLength)
+            return null;
+
+        // The frame is complete, reset for the next frame.
+        byte[] data = this.payload;
+        this.payload = null;
+        this.headerBytesRead = 0;
+        return FrameDecoder.newFrame(this.type, data, this.compressor);
+    }
+
+    /**
+     * Validates a received frame header.
+     * @param type The frame type.
+     * @param length The payload length.
+     * @throws ProtocolException If the type is unknown or the length is
+     * negative or greater than the maximum payload size.
+     */
+    public static void validateHeader(int type, int length)
+                                                    throws ProtocolException {
+        if (!Protocol.isValidType(type & ~Protocol.COMPRESSED))
+            throw new ProtocolException("Unknown frame type " + type);
+        if (length < 0 || length > Protocol.MAX_PAYLOAD_SIZE)
+            throw new ProtocolException("Illegal frame length " + length);
+    }
+
+    /**
+     * Creates a received frame, decompressing its payload if the COMPRESSED
+     * bit is set in its type.
+     * @param type The frame type as received.
+     * @param payload The frame payload as received.
+     * @param compressor The connection's compressor or null if compression
+     * hasn't been negotiated.
+     * @return The received frame.
+     * @throws ProtocolException If the frame is compressed but compression
+     * hasn't been negotiated or the compressed payload is invalid.
+     */
+    public static Frame newFrame(int type, byte[] payload,
+                                 FrameCompressor compressor)
+                                                    throws ProtocolException {
+        if ((type & Protocol.COMPRESSED) == 0)
+            return new Frame(type, payload);
+        if (compressor == null)
+            throw new ProtocolException("Compression hasn't been negotiated");
+        return compressor.decompress(type & ~Protocol.COMPRESSED, payload);
+    }
+}
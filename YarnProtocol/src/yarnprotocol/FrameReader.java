@@ -0,0 +1,56 @@
+
+package yarnprotocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Frame reader used with blocking sockets (the clients and secure server
+ * connections).  Each call to read() blocks until a whole frame has been
+ * received.
+ * @author Michael Telford
+ */
+public class FrameReader {
+
+    private final DataInputStream input;
+    private volatile FrameCompressor compressor = null;
+
+    /**
+     * Constructor which takes the socket input stream to read frames from.
+     * @param input The socket input stream.
+     * @param bufferSize The size of the read buffer in bytes.
+     */
+    public FrameReader(InputStream input, int bufferSize){
+        this.input = new DataInputStream(new BufferedInputStream(input, bufferSize));
+    }
+
+    /**
+     * Sets the compressor used to decompress compressed frames once
+     * compression has been negotiated.  Until then a compressed frame is
+     * invalid.
+     * @param compressor The connection's compressor.
+     */
+    public void setCompressor(FrameCompressor compressor){
+        this.compressor = compressor;
+    }
+
+    /**
+     * Reads the next frame, blocking until it has been fully received.
+     * @return The received frame.
+     * @throws IOException If a read error occurs, the stream ends or an
+     * invalid frame header or compressed payload is received.
+     */
+    public Frame read() throws IOException {
+        int type = this.input.read();
+        if (type < 0)
+            throw new EOFException("Connection closed");
+        int length = this.input.readInt();
+        FrameDecoder.validateHeader(type, length);
+        byte[] payload = new byte[length];
+        this.input.readFully(payload);
+        return FrameDecoder.newFrame(type, payload, this.compressor);
+    }
+}
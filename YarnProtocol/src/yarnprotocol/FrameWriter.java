@@ -0,0 +1,154 @@
+
+package yarnprotocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Frame writer used with blocking sockets (the clients).  Only one thread
+ * writes at a time so that frames sent from different threads are never
+ * interleaved on the wire.  Interactive frames (e.g. text typed while a file
+ * is being uploaded by another thread) go ahead of bulk frames: a bulk frame
+ * isn't started while an interactive frame is waiting, so the interactive
+ * frame waits for at most the bulk frame being written (see
+ * Protocol.isBulkType()).
+ * @author Michael Telford
+ */
+public class FrameWriter {
+
+    private final OutputStream output;
+    private final byte[]       header = new byte[Protocol.HEADER_SIZE];
+    private volatile FrameCompressor compressor = null;
+
+    // Write ownership, guarded by this writer's lock.
+    private boolean            isWriting              = false;
+    private int                numInteractiveWaiting  = 0;
+
+    /**
+     * Constructor which takes the socket output stream to write frames to.
+     * @param output The socket output stream.
+     * @param bufferSize The size of the write buffer in bytes.
+     */
+    public FrameWriter(OutputStream output, int bufferSize){
+        this.output = new BufferedOutputStream(output, bufferSize);
+    }
+
+    /**
+     * Sets the compressor used to compress frames once compression has been
+     * negotiated.  Frames are written uncompressed until then.
+     * @param compressor The connection's compressor.
+     */
+    public void setCompressor(FrameCompressor compressor){
+        this.compressor = compressor;
+    }
+
+    /**
+     * Writes a frame and flushes it to the socket.
+     * @param frame The frame to write.
+     * @throws IOException If a write error occurs.
+     */
+    public void write(Frame frame) throws IOException {
+        byte[] payload = frame.getPayload();
+        this.write(frame.getType(), payload, 0, payload.length);
+    }
+
+    /**
+     * Writes a frame whose payload is part of a larger array and flushes it to
+     * the socket.
+     * @param type The frame type.
+     * @param data The array containing the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The payload length.
+     * @throws IOException If a write error occurs.
+     */
+    public void write(int type, byte[] data, int offset, int length)
+                                                            throws IOException {
+        this.write(type, data, offset, length, true);
+    }
+
+    /**
+     * Writes a frame whose payload is part of a larger array and flushes it to
+     * the socket.  The payload is compressed if compression has been
+     * negotiated and the caller expects it to compress, a caller sending data
+     * which doesn't compress (e.g. the rest of a zip file) can therefore
+     * avoid wasting CPU time on it.
+     * @param type The frame type.
+     * @param data The array containing the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The payload length.
+     * @param isCompressible True if the payload should be compressed.
+     * @return True if the payload was written compressed, false otherwise.
+     * @throws IOException If a write error occurs.
+     */
+    public boolean write(int type, byte[] data, int offset, int length,
+                         boolean isCompressible) throws IOException {
+        this.acquire(Protocol.isBulkType(type));
+        try {
+            FrameCompressor frameCompressor = this.compressor;
+            if (frameCompressor != null && isCompressible){
+                byte[] frame = frameCompressor.encode(type, data, offset, length);
+                this.output.write(frame);
+                this.output.flush();
+                return FrameCompressor.isCompressed(frame);
+            }
+            Frame.encodeHeader(type, length, this.header, 0);
+            this.output.write(this.header);
+            this.output.write(data, offset, length);
+            this.output.flush();
+            return false;
+        }
+        finally {
+            this.release();
+        }
+    }
+
+    /**
+     * Writes already encoded frame data (see Frame.encode()) and flushes it to
+     * the socket.  The data is written as an interactive frame.
+     * @param data The encoded frame data.
+     * @throws IOException If a write error occurs.
+     */
+    public void writeEncoded(byte[] data) throws IOException {
+        this.acquire(false);
+        try {
+            this.output.write(data);
+            this.output.flush();
+        }
+        finally {
+            this.release();
+        }
+    }
+
+    /**
+     * Waits until the calling thread may write a frame.  A bulk frame also
+     * waits for any interactive frames waiting to be written.
+     * @param isBulk True if a bulk frame is to be written.
+     * @throws IOException If the thread is interrupted while waiting.
+     */
+    private synchronized void acquire(boolean isBulk) throws IOException {
+        if (!isBulk)
+            this.numInteractiveWaiting++;
+        try {
+            while (this.isWriting || (isBulk && this.numInteractiveWaiting > 0))
+                this.wait();
+        }
+        catch (InterruptedException ex){
+            throw new InterruptedIOException("Interrupted waiting to write");
+        }
+        finally {
+            if (!isBulk)
+                this.numInteractiveWaiting--;
+        }
+        this.isWriting = true;
+    }
+
+    /**
+     * Lets the next waiting thread write a frame.
+     */
+    private synchronized void release(){
+        this.isWriting = false;
+        this.notifyAll();
+    }
+}
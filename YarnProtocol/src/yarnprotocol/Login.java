@@ -0,0 +1,124 @@
+
+package yarnprotocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The payload of a LOGIN frame.  Sent by a client straight after connecting,
+ * the login contains everything the server needs to admit the client so that
+ * logging in takes a single round trip.  The login is encoded as a one byte
+ * protocol version, a one byte set of the capabilities the client supports
+ * (see Protocol.CAPABILITY_), a two byte password length followed by the
+ * server password text (empty if the client doesn't know one) and then the
+ * chosen username text.  The server responds with a LOGIN_RESULT frame (see
+ * LoginResult).
+ * @author Michael Telford
+ */
+public class Login {
+
+    private static final int SIZE = 4; // The login size without the text.
+
+    private final int    version;
+    private final int    capabilities;
+    private final String password;
+    private final String username;
+
+    /**
+     * Constructor which sets the login details for this protocol version.
+     * @param capabilities The capabilities the client supports.
+     * @param password The server password or an empty string.
+     * @param username The chosen username.
+     */
+    public Login(int capabilities, String password, String username){
+        this(Protocol.VERSION, capabilities, password, username);
+    }
+
+    /**
+     * Constructor which sets the login details of a decoded login.
+     * @param version The protocol version the client uses.
+     * @param capabilities The capabilities the client supports.
+     * @param password The server password or an empty string.
+     * @param username The chosen username.
+     */
+    private Login(int version, int capabilities, String password,
+                  String username){
+        this.version      = version;
+        this.capabilities = capabilities;
+        this.password     = password;
+        this.username     = username;
+    }
+
+    /**
+     * Returns the protocol version the client uses.
+     * @return The protocol version.
+     */
+    public int getVersion(){
+        return this.version;
+    }
+
+    /**
+     * Returns the capabilities the client supports.
+     * @return The set of CAPABILITY_ flags.
+     */
+    public int getCapabilities(){
+        return this.capabilities;
+    }
+
+    /**
+     * Returns the server password given by the client.
+     * @return The password or an empty string.
+     */
+    public String getPassword(){
+        return this.password;
+    }
+
+    /**
+     * Returns the username chosen by the client.
+     * @return The username.
+     */
+    public String getUsername(){
+        return this.username;
+    }
+
+    /**
+     * Encodes this login into a frame payload.
+     * @return The encoded login.
+     */
+    public byte[] encode(){
+        byte[] pword = this.password.getBytes(Protocol.CHARSET);
+        byte[] uname = this.username.getBytes(Protocol.CHARSET);
+        ByteBuffer buffer = ByteBuffer.allocate(Login.SIZE + pword.length
+                                                + uname.length);
+        buffer.put((byte) this.version);
+        buffer.put((byte) this.capabilities);
+        buffer.putShort((short) pword.length);
+        buffer.put(pword);
+        buffer.put(uname);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a login from a frame payload.
+     * @param payload The LOGIN frame payload.
+     * @return The decoded login.
+     * @throws ProtocolException If the payload is not a valid login.
+     */
+    public static Login decode(byte[] payload) throws ProtocolException {
+        if (payload.length < Login.SIZE)
+            throw new ProtocolException("Illegal login");
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int version = buffer.get() & 0xFF;
+        int capabilities = buffer.get() & 0xFF;
+        int passwordLength = buffer.getShort() & 0xFFFF;
+        if (payload.length < Login.SIZE + passwordLength)
+            throw new ProtocolException("Illegal login");
+        String password = new String(payload, Login.SIZE, passwordLength,
+                                     Protocol.CHARSET);
+        int usernameOffset = Login.SIZE + passwordLength;
+        String username = new String(payload, usernameOffset,
+                                     payload.length - usernameOffset,
+                                     Protocol.CHARSET);
+        return new Login(version, capabilities, password, username);
+    }
+}
@@ -0,0 +1,167 @@
+
+package yarnprotocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The payload of a LOGIN_RESULT frame.  Sent by the server in response to a
+ * client's LOGIN, the result tells the client whether it has logged in and if
+ * so the details of its session: the capabilities both ends will use, the
+ * username it was given (which may have been truncated) and how many other
+ * clients are connected.  The result is encoded as a one byte result code, a
+ * one byte set of the agreed capabilities, a four byte number of other
+ * connected clients, a two byte username length followed by the username text
+ * and then the message text for the user, either the server's welcome message
+ * or the reason the login was refused.  A refused client may correct its
+ * login and send it again before the login times out.
+ * @author Michael Telford
+ */
+public class LoginResult {
+
+    // Result codes.
+    public  static final int ACCEPTED             = 0;
+    public  static final int INCORRECT_PASSWORD   = 1;
+    public  static final int USERNAME_NOT_ALLOWED = 2;
+    public  static final int UNSUPPORTED_VERSION  = 3;
+
+    private static final int SIZE = 8; // The result size without the text.
+
+    private final int    result;
+    private final int    capabilities;
+    private final int    numOtherClients;
+    private final String username;
+    private final String message;
+
+    /**
+     * Constructor which sets the details of an accepted login.
+     * @param capabilities The capabilities both ends will use.
+     * @param numOtherClients The number of other connected clients.
+     * @param username The username the client was given.
+     * @param message The welcome message for the user.
+     */
+    public LoginResult(int capabilities, int numOtherClients, String username,
+                       String message){
+        this(LoginResult.ACCEPTED, capabilities, numOtherClients, username,
+             message);
+    }
+
+    /**
+     * Constructor which sets the details of a refused login.
+     * @param result The reason the login was refused e.g. INCORRECT_PASSWORD.
+     * @param message The reason for the user.
+     */
+    public LoginResult(int result, String message){
+        this(result, 0, 0, "", message);
+    }
+
+    /**
+     * Constructor which sets every result detail.
+     * @param result The result code.
+     * @param capabilities The capabilities both ends will use.
+     * @param numOtherClients The number of other connected clients.
+     * @param username The username the client was given.
+     * @param message The message for the user.
+     */
+    private LoginResult(int result, int capabilities, int numOtherClients,
+                        String username, String message){
+        this.result          = result;
+        this.capabilities    = capabilities;
+        this.numOtherClients = numOtherClients;
+        this.username        = username;
+        this.message         = message;
+    }
+
+    /**
+     * Returns the result code e.g. ACCEPTED or INCORRECT_PASSWORD.
+     * @return The result code.
+     */
+    public int getResult(){
+        return this.result;
+    }
+
+    /**
+     * Returns whether the client has logged in.
+     * @return True if the login was accepted, false otherwise.
+     */
+    public boolean isAccepted(){
+        return (this.result == LoginResult.ACCEPTED);
+    }
+
+    /**
+     * Returns the capabilities both ends will use.
+     * @return The set of CAPABILITY_ flags.
+     */
+    public int getCapabilities(){
+        return this.capabilities;
+    }
+
+    /**
+     * Returns the number of other clients connected when the client logged
+     * in.
+     * @return The number of other connected clients.
+     */
+    public int getNumOtherClients(){
+        return this.numOtherClients;
+    }
+
+    /**
+     * Returns the username the client was given.
+     * @return The username or an empty string if the login was refused.
+     */
+    public String getUsername(){
+        return this.username;
+    }
+
+    /**
+     * Returns the message for the user.
+     * @return The welcome message or the reason the login was refused.
+     */
+    public String getMessage(){
+        return this.message;
+    }
+
+    /**
+     * Encodes this result into a frame payload.
+     * @return The encoded result.
+     */
+    public byte[] encode(){
+        byte[] uname = this.username.getBytes(Protocol.CHARSET);
+        byte[] text = this.message.getBytes(Protocol.CHARSET);
+        ByteBuffer buffer = ByteBuffer.allocate(LoginResult.SIZE + uname.length
+                                                + text.length);
+        buffer.put((byte) this.result);
+        buffer.put((byte) this.capabilities);
+        buffer.putInt(this.numOtherClients);
+        buffer.putShort((short) uname.length);
+        buffer.put(uname);
+        buffer.put(text);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a result from a frame payload.
+     * @param payload The LOGIN_RESULT frame payload.
+     * @return The decoded result.
+     * @throws ProtocolException If the payload is not a valid result.
+     */
+    public static LoginResult decode(byte[] payload) throws ProtocolException {
+        if (payload.length < LoginResult.SIZE)
+            throw new ProtocolException("Illegal login result");
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int result = buffer.get() & 0xFF;
+        int capabilities = buffer.get() & 0xFF;
+        int numOtherClients = buffer.getInt();
+        int usernameLength = buffer.getShort() & 0xFFFF;
+        if (payload.length < LoginResult.SIZE + usernameLength)
+            throw new ProtocolException("Illegal login result");
+        String username = new String(payload, LoginResult.SIZE, usernameLength,
+                                     Protocol.CHARSET);
+        int messageOffset = LoginResult.SIZE + usernameLength;
+        String message = new String(payload, messageOffset,
+                                    payload.length - messageOffset,
+                                    Protocol.CHARSET);
+        return new LoginResult(result, capabilities, numOtherClients,
+                               username, message);
+    }
+}
@@ -0,0 +1,155 @@
+
+package yarnprotocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * The payload of a DATA_SHARE_PROOF frame sent by the server, a challenge
+ * asking the sending client of a data share to prove that it has the content
+ * it offered the hash of (see ContentHash).  A hash alone doesn't prove the
+ * client has the content, so before the server reuses its cached copy (or
+ * resumes an interrupted upload of it) the client must hash a random nonce
+ * followed by a random range of the file, which only a client with the data
+ * can do.  The challenge is encoded as the NONCE_SIZE byte nonce, an eight
+ * byte range offset and a four byte range length.  The client responds with
+ * a DATA_SHARE_PROOF frame whose payload is the answer (see answer()).
+ * @author Michael Telford
+ */
+public class PossessionProof {
+
+    public  static final int NONCE_SIZE = 16;
+    public  static final int MAX_RANGE  = Protocol.CHUNK_SIZE; // in bytes.
+
+    private static final int SIZE       = PossessionProof.NONCE_SIZE + 12;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] nonce;
+    private final long   offset;
+    private final int    length;
+
+    /**
+     * Constructor which sets the challenge details.
+     * @param nonce The nonce.
+     * @param offset The offset of the range in the file.
+     * @param length The length of the range in bytes.
+     */
+    private PossessionProof(byte[] nonce, long offset, int length){
+        this.nonce  = nonce;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Creates a challenge with a new random nonce and a random range of up
+     * to MAX_RANGE bytes within the first given number of bytes of the file.
+     * @param available The number of bytes the range is chosen from, the
+     * file size or the length spooled so far.
+     * @return The challenge.
+     */
+    public static PossessionProof create(long available){
+        byte[] nonce = new byte[PossessionProof.NONCE_SIZE];
+        PossessionProof.RANDOM.nextBytes(nonce);
+        int length = (int) Math.min(available, PossessionProof.MAX_RANGE);
+        long offset = (long) (PossessionProof.RANDOM.nextDouble() *
+                              (available - length + 1));
+        return new PossessionProof(nonce, Math.min(offset, available - length),
+                                   length);
+    }
+
+    /**
+     * Returns the offset of the range to hash.
+     * @return The range offset in bytes.
+     */
+    public long getOffset(){
+        return this.offset;
+    }
+
+    /**
+     * Returns the length of the range to hash.
+     * @return The range length in bytes.
+     */
+    public int getLength(){
+        return this.length;
+    }
+
+    /**
+     * Computes the answer to this challenge from the range's data.
+     * @param range The data of the range, getLength() bytes.
+     * @return The content hash of the nonce followed by the range.
+     */
+    public byte[] answer(byte[] range){
+        MessageDigest digest = ContentHash.newDigest();
+        digest.update(this.nonce);
+        digest.update(range, 0, this.length);
+        return digest.digest();
+    }
+
+    /**
+     * Computes the answer to this challenge from a file.
+     * @param file The file offered by the data share.
+     * @return The content hash of the nonce followed by the range.
+     * @throws IOException If the range can't be read e.g. the file has
+     * changed size.
+     */
+    public byte[] answer(File file) throws IOException {
+        byte[] range = new byte[this.length];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.seek(this.offset);
+            input.readFully(range);
+        }
+        finally {
+            input.close();
+        }
+        return this.answer(range);
+    }
+
+    /**
+     * Returns whether or not an answer received from a client is the
+     * expected one, compared in constant time.
+     * @param expected The answer computed from the known data.
+     * @param answer The DATA_SHARE_PROOF frame payload sent by the client.
+     * @return True if the answer is correct, false otherwise.
+     */
+    public static boolean isCorrect(byte[] expected, byte[] answer){
+        return MessageDigest.isEqual(expected, answer);
+    }
+
+    /**
+     * Encodes this challenge into a frame payload.
+     * @return The DATA_SHARE_PROOF frame payload.
+     */
+    public byte[] encode(){
+        ByteBuffer buffer = ByteBuffer.allocate(PossessionProof.SIZE);
+        buffer.put(this.nonce);
+        buffer.putLong(this.offset);
+        buffer.putInt(this.length);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a challenge from a frame payload.
+     * @param payload The DATA_SHARE_PROOF frame payload sent by the server.
+     * @return The decoded challenge.
+     * @throws ProtocolException If the payload is not a valid challenge.
+     */
+    public static PossessionProof decode(byte[] payload) throws ProtocolException {
+        if (payload.length != PossessionProof.SIZE)
+            throw new ProtocolException("Illegal possession proof challenge");
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte[] nonce = new byte[PossessionProof.NONCE_SIZE];
+        buffer.get(nonce);
+        long offset = buffer.getLong();
+        int length = buffer.getInt();
+        if (offset < 0 || length < 0 || length > PossessionProof.MAX_RANGE)
+            throw new ProtocolException("Illegal possession proof range");
+        return new PossessionProof(nonce, offset, length);
+    }
+}
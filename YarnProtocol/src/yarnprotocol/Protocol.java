@@ -0,0 +1,129 @@
+
+package yarnprotocol;
+
+import java.nio.charset.Charset;
+
+/**
+ * This class contains the constants which make up the Yarn wire protocol.  The
+ * protocol is shared by the server, GUI client and CLI client so that each
+ * application encodes and decodes data in exactly the same way.
+ *
+ * All data is transmitted as frames.  Each frame consists of a one byte frame
+ * type, a four byte (big endian) payload length and then the payload itself.
+ * Message boundaries are therefore exact and a receiver knows how much data to
+ * read before it reads it.  The top bit of the frame type marks a compressed
+ * payload if the connection has negotiated compression (see LOGIN).
+ *
+ * A connection carries two streams of frames: the interactive stream (text,
+ * commands and control frames) and the bulk stream (data share chunks, see
+ * isBulkType()).  Both ends send waiting interactive frames ahead of the next
+ * bulk frame so that chat keeps flowing while a large file is transferred.
+ * This class is abstract meaning that no class
+ * instance is created.  All public variables and methods are therefore static.
+ * @author Michael Telford
+ */
+public abstract class Protocol {
+
+    public  static final int     HEADER_SIZE            = 5;         // in bytes.
+    public  static final int     MAX_PAYLOAD_SIZE       = 1048576;   // 1MB.
+    public  static final int     CHUNK_SIZE             = 65530;     // in bytes.
+    public  static final Charset CHARSET                = Charset.forName("UTF-8");
+
+    // The protocol version sent in a client's LOGIN frame.
+    public  static final int     VERSION                = 1;
+
+    // Frame types.
+
+    /** Text typed by a user or sent by the server e.g. a message or command. */
+    public  static final int     TEXT                   = 1;
+    /** Connection request sent by the server, the client responds in kind. */
+    public  static final int     CONNECTION_REQUEST     = 2;
+    /** Data share command sent by the sending client, chunks follow once the
+     *  server has sent DATA_SHARE_READY. */
+    public  static final int     DATA_SHARE_SEND        = 3;
+    /** Data share request (offer) sent by the server to a receiving client. */
+    public  static final int     DATA_SHARE_REQUEST     = 4;
+    /** Receiving client accepts the data share request. */
+    public  static final int     DATA_SHARE_ACCEPT      = 5;
+    /** Receiving client rejects the data share request. */
+    public  static final int     DATA_SHARE_REJECT      = 6;
+    /** Data share header sent by the server once a data share is accepted. */
+    public  static final int     DATA_SHARE_START       = 7;
+    /** A chunk of data share (file) data, see DataShareChunk. */
+    public  static final int     DATA_SHARE_CHUNK       = 8;
+    /** Receiving client confirms the whole data share has been received. */
+    public  static final int     DATA_SHARE_RECEIVED    = 9;
+    /** Sent by the server once it is ready to store a data share with the
+     *  offset to send from, the sending client then sends the data share
+     *  chunks from that offset. */
+    public  static final int     DATA_SHARE_READY       = 10;
+    /** Cancels the data share in progress, sent by the server when a data
+     *  share fails or by the sending client if it can't send the data. */
+    public  static final int     DATA_SHARE_CANCEL      = 11;
+    /** Sent by the server instead of DATA_SHARE_READY when it already has the
+     *  content of a data share (see ContentHash) and the sending client has
+     *  proved it has it too (see DATA_SHARE_PROOF), no chunks are sent. */
+    public  static final int     DATA_SHARE_CACHED      = 12;
+    /** Sent by a receiving client after DATA_SHARE_START with the offset it
+     *  has verified so far (zero for a new file), the server then sends the
+     *  chunks from that offset.  Sent again if a chunk fails its checksum. */
+    public  static final int     DATA_SHARE_RESUME      = 13;
+    /** Sent by a client straight after connecting with everything needed to
+     *  log in (see Login), the server responds with LOGIN_RESULT. */
+    public  static final int     LOGIN                  = 14;
+    /** The server's response to a LOGIN (see LoginResult), if the login was
+     *  refused the client may send another LOGIN. */
+    public  static final int     LOGIN_RESULT           = 15;
+    /** Sent only between federated servers over their server to server
+     *  links, the payload's first byte is the kind of peer message (see the
+     *  server's Federation class).  Ignored if sent by a client. */
+    public  static final int     PEER                   = 16;
+    /** Sent by the server instead of DATA_SHARE_READY or DATA_SHARE_CACHED
+     *  when it has the content of a data share (or part of it) to reuse,
+     *  challenging the sending client to prove it has the content (see
+     *  PossessionProof).  The client responds in kind with its answer. */
+    public  static final int     DATA_SHARE_PROOF       = 17;
+
+    // Frame type bit set when the payload is compressed, see FrameCompressor.
+    // Only sent once compression has been negotiated.
+    public  static final int     COMPRESSED             = 0x80;
+
+    // Capability flags sent in the LOGIN and LOGIN_RESULT frame payloads.
+    public  static final int     CAPABILITY_COMPRESSION = 0x01;
+
+    // Data share commands typed by the user e.g. @bill ^"C:\file.txt"
+    public  static final String  VOICE_SHARE_SEND_CMD   = " *\"";   //  *"
+    public  static final String  FILE_SHARE_SEND_CMD    = " ^\"";   //  ^"
+
+    // Appended to the data share command by the sending client after the
+    // file size e.g. @bill ^"C:\file.txt"?"1024"#"<content hash>"
+    public  static final String  CONTENT_HASH_CMD       = "#\"";    // #"
+
+    // Channel commands typed by the user e.g. -join #friends.  A message to a
+    // channel starts with its name e.g. #friends hello, as does each message
+    // received from a channel e.g. #friends bill : hello
+    public  static final String  CHANNEL_PREFIX         = "#";
+    public  static final String  JOIN_CMD               = "-join";
+    public  static final String  LEAVE_CMD              = "-leave";
+    public  static final String  CHANNELS_CMD           = "-channels";
+
+    /**
+     * Returns whether or not the given value is a known frame type.
+     * @param type The frame type value.
+     * @return True if the frame type is known, false otherwise.
+     */
+    public static boolean isValidType(int type){
+        return (type >= Protocol.TEXT && type <= Protocol.DATA_SHARE_PROOF);
+    }
+
+    /**
+     * Returns whether or not the given frame type belongs to the bulk stream
+     * i.e. it may be held back while interactive frames are waiting to be
+     * sent.
+     * @param type The frame type value (without the COMPRESSED bit).
+     * @return True for a bulk frame type, false for an interactive one.
+     */
+    public static boolean isBulkType(int type){
+        return (type == Protocol.DATA_SHARE_CHUNK);
+    }
+}
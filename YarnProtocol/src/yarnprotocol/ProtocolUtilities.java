@@ -0,0 +1,31 @@
+package yarnprotocol;
+
+/**
+ * Utilities class for static methods shared by the server, GUI client and CLI
+ * client which aren't part of the wire format itself, so that each
+ * application presents protocol data in exactly the same way.
+ * Because all the methods are static this class is abstract and therefore
+ * does not contain a constructor.
+ * @author Michael Telford
+ */
+public abstract class ProtocolUtilities {
+
+    /**
+     * This method returns a human readable transfer rate e.g. "1.50 MB/s"
+     * given the number of bytes transferred and the time it took.
+     * @param numBytes The number of bytes transferred.
+     * @param timeTaken The time taken in milliseconds.
+     * @return The transfer rate text.
+     */
+    public static String formatThroughput(long numBytes, long timeTaken){
+        // Avoid dividing by zero for very fast (local) transfers.
+        if (timeTaken < 1)
+            timeTaken = 1;
+        double bytesPerSecond = (numBytes * 1000.0) / timeTaken;
+        if (bytesPerSecond >= 1048576)
+            return String.format("%.2f MB/s", bytesPerSecond / 1048576);
+        if (bytesPerSecond >= 1024)
+            return String.format("%.2f KB/s", bytesPerSecond / 1024);
+        return String.format("%.0f B/s", bytesPerSecond);
+    }
+}
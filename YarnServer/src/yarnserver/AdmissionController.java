@@ -0,0 +1,198 @@
+
+package yarnserver;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Used to decide what happens to each accepted connection.  Connections are
+ * always accepted straight away.  While the server is below its connection
+ * limit the connection is admitted and the client logs in as normal.  Once
+ * the limit has been reached the admission policy is applied (see
+ * Configuration.admissionPolicy):
+ *
+ * queue - The client is told that the server is full and is placed in a
+ * waiting queue.  Each time a client disconnects the client at the front of
+ * the queue is admitted and can log in.  Clients are rejected once the queue
+ * is full.
+ *
+ * evict - The client which has been inactive (not sent any text or data
+ * share) the longest is disconnected to make room for the new client.  If no
+ * client can be evicted the client is queued instead.
+ *
+ * Admission counts and queue wait times are kept and logged with each queue,
+ * admission from the queue, rejection and eviction so that the connection
+ * limit can be sized from the server log.  This class is used by the
+ * accepting thread and the event loops and so is thread safe.
+ * @author Michael Telford
+ */
+public class AdmissionController {
+
+    private final SessionRegistry           sessions;
+    private final ArrayDeque<QueuedClient>  queue       = new ArrayDeque<QueuedClient>();
+
+    // Admission statistics, guarded by this instance.
+    private long                            numAdmitted = 0;
+    private long                            numQueued   = 0;
+    private long                            numAdmittedFromQueue = 0;
+    private long                            numAbandoned = 0;
+    private long                            numRejected = 0;
+    private long                            numEvicted  = 0;
+    private long                            totalWaitTime = 0;
+    private long                            maxWaitTime = 0;
+
+    /**
+     * A client waiting in the queue with the time it was queued.
+     */
+    private static class QueuedClient {
+        final ClientConnection client;
+        final EventLoop        eventLoop;
+        final long             queuedTime;
+
+        QueuedClient(ClientConnection client, EventLoop eventLoop, long queuedTime){
+            this.client     = client;
+            this.eventLoop  = eventLoop;
+            this.queuedTime = queuedTime;
+        }
+    }
+
+    /**
+     * Constructor which takes the session registry the admitted connections
+     * are added to.
+     * @param sessions The session registry.
+     */
+    public AdmissionController(SessionRegistry sessions){
+        this.sessions = sessions;
+    }
+
+    /**
+     * Admits, queues or rejects a newly accepted connection according to the
+     * admission policy.  Admitted and queued connections are registered with
+     * the given event loop.  This method never blocks waiting for space.
+     * @param client The accepted client connection.
+     * @param loop The event loop to register the connection with.
+     */
+    public synchronized void admit(ClientConnection client, EventLoop loop){
+
+        // Admit the client straight away if there is space.
+        if (!this.sessions.isFull()){
+            this.numAdmitted++;
+            this.sessions.add(client);
+            loop.register(client);
+            return;
+        }
+
+        // Make space by evicting the longest inactive client.
+        if (Configuration.admissionPolicy == Configuration.ADMISSION_EVICT){
+            ClientConnection victim = this.getLongestInactiveClient();
+            if (victim != null){
+                this.numAdmitted++;
+                this.numEvicted++;
+                Log.logAdmission(client.getSocket(), String.format(
+                        "evicted @%s, inactive for %d seconds : %s",
+                        victim.getUsername(),
+                        victim.getInactiveTime(System.currentTimeMillis()) / 1000,
+                        this.getStatistics()));
+                victim.evict();
+                this.sessions.add(client);
+                loop.register(client);
+                return;
+            }
+        }
+
+        // Reject the client if the queue is full.
+        if (this.queue.size() >= Configuration.admissionQueueLimit){
+            this.numRejected++;
+            Log.logAdmission(client.getSocket(),
+                             "rejected, queue full : " + this.getStatistics());
+            client.reject("The server is full, please try again later...");
+            return;
+        }
+
+        // Otherwise queue the client.
+        this.numQueued++;
+        this.queue.add(new QueuedClient(client, loop, System.currentTimeMillis()));
+        client.setQueued(this.queue.size());
+        Log.logAdmission(client.getSocket(), String.format(
+                "queued at position %d : %s", this.queue.size(), this.getStatistics()));
+        loop.register(client);
+    }
+
+    /**
+     * Admits clients from the front of the queue while there is space.  This
+     * is called each time a connection is removed from the session registry.
+     */
+    public synchronized void admitQueuedClients(){
+        while (!this.queue.isEmpty() && !this.sessions.isFull()){
+            QueuedClient queued = this.queue.poll();
+            long waitTime = System.currentTimeMillis() - queued.queuedTime;
+            this.numAdmittedFromQueue++;
+            this.totalWaitTime += waitTime;
+            if (waitTime > this.maxWaitTime)
+                this.maxWaitTime = waitTime;
+            Log.logAdmission(queued.client.getSocket(), String.format(
+                    "admitted from queue after %d ms : %s",
+                    waitTime, this.getStatistics()));
+
+            this.sessions.add(queued.client);
+            final ClientConnection client = queued.client;
+            queued.eventLoop.execute(new Runnable(){
+                public void run(){
+                    client.admit();
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes a client which has disconnected while waiting in the queue.
+     * @param client The disconnected client connection.
+     */
+    public synchronized void removeQueuedClient(ClientConnection client){
+        Iterator<QueuedClient> it = this.queue.iterator();
+        while (it.hasNext()){
+            if (it.next().client == client){
+                it.remove();
+                this.numAbandoned++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the connected client which has been inactive the longest and
+     * isn't involved in a data share or already being evicted.
+     * @return The client to evict or null if there is no such client.
+     */
+    private ClientConnection getLongestInactiveClient(){
+        long now = System.currentTimeMillis();
+        ClientConnection victim = null;
+        long victimInactiveTime = -1;
+        for (ClientConnection client : this.sessions.getConnectedClients()){
+            if (client.isDataShareInProgress() || client.isEvicted())
+                continue;
+            long inactiveTime = client.getInactiveTime(now);
+            if (inactiveTime > victimInactiveTime){
+                victim = client;
+                victimInactiveTime = inactiveTime;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Returns the admission statistics as text for the server log.
+     * @return The admission statistics.
+     */
+    private String getStatistics(){
+        long averageWaitTime = 0;
+        if (this.numAdmittedFromQueue > 0)
+            averageWaitTime = this.totalWaitTime / this.numAdmittedFromQueue;
+        return String.format("admitted %d, queued %d, admitted from queue %d "
+                + "(average wait %d ms, max wait %d ms), abandoned %d, "
+                + "rejected %d, evicted %d, currently queued %d",
+                this.numAdmitted, this.numQueued, this.numAdmittedFromQueue,
+                averageWaitTime, this.maxWaitTime, this.numAbandoned,
+                this.numRejected, this.numEvicted, this.queue.size());
+    }
+}
@@ -0,0 +1,73 @@
+
+package yarnserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct byte buffers, used for the encrypted data
+ * of secure connections (see SecureChannel).  A connection only holds a
+ * buffer while it has encrypted data waiting to be written or a partly
+ * received record, so idle connections hold none and the direct memory used
+ * depends on how many connections are busy rather than how many are
+ * connected.  Direct buffers are expensive to allocate and are freed by the
+ * garbage collector, so released buffers are kept for reuse up to the pool
+ * limit.  This class is used by all of the event loops and so is thread
+ * safe.
+ * @author Michael Telford
+ */
+public class BufferPool {
+
+    private final int                          bufferSize;
+    private final int                          limit;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers =
+                                      new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger                numPooled = new AtomicInteger();
+
+    /**
+     * Constructor which takes the buffer size and how many released buffers
+     * are kept.
+     * @param bufferSize The size of each buffer in bytes.
+     * @param limit The maximum number of buffers kept in the pool.
+     */
+    public BufferPool(int bufferSize, int limit){
+        this.bufferSize = bufferSize;
+        this.limit      = limit;
+    }
+
+    /**
+     * Returns the size of the pool's buffers.
+     * @return The buffer size in bytes.
+     */
+    public int getBufferSize(){
+        return this.bufferSize;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, a new buffer is allocated if the
+     * pool is empty.
+     * @return The buffer.
+     */
+    public ByteBuffer acquire(){
+        ByteBuffer buffer = this.buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(this.bufferSize);
+        this.numPooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.  The buffer is left to the garbage
+     * collector if the pool is full.
+     * @param buffer The buffer, which mustn't be used by the caller again.
+     */
+    public void release(ByteBuffer buffer){
+        if (this.numPooled.incrementAndGet() > this.limit){
+            this.numPooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        this.buffers.offer(buffer);
+    }
+}
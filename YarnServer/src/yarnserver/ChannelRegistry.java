@@ -0,0 +1,131 @@
+
+package yarnserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Used to keep track of the named channels of the server and their members.
+ * A message sent to a channel is sent only to its members, so the cost of
+ * sending it depends on the size of the channel rather than the number of
+ * connected clients, and the members are never sent with the message.
+ *
+ * Each channel keeps its members as an array which is replaced (copied) when
+ * a client joins or leaves.  Sending a message to a channel therefore reads
+ * the current array without a lock or an allocation, while joining and
+ * leaving, which are far rarer than messages, are serialised by the
+ * registry.  A channel is created by its first member joining and removed
+ * once its last member has left.  This class is used by all of the event
+ * loops and so is thread safe.
+ * @author Michael Telford
+ */
+public class ChannelRegistry {
+
+    /**
+     * A named channel and its members.
+     */
+    public static class Channel {
+        private final String                name;
+        private volatile ClientConnection[] members = new ClientConnection[0];
+
+        Channel(String name){
+            this.name = name;
+        }
+
+        /**
+         * Returns the name of this channel including its '#' prefix.
+         * @return The channel name.
+         */
+        public String getName(){
+            return this.name;
+        }
+
+        /**
+         * Returns the members of this channel at the time of the call.  The
+         * array must not be modified.
+         * @return The members of this channel.
+         */
+        public ClientConnection[] getMembers(){
+            return this.members;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Channel> channels =
+                                  new ConcurrentHashMap<String, Channel>();
+
+    /**
+     * Adds a client to a channel, creating the channel if it doesn't exist.
+     * @param name The channel name.
+     * @param client The client joining the channel.
+     * @return The channel or null if the client is already a member.
+     */
+    public synchronized Channel join(String name, ClientConnection client){
+        Channel channel = this.channels.get(name);
+        if (channel == null){
+            channel = new Channel(name);
+            this.channels.put(name, channel);
+        }
+        ClientConnection[] members = channel.members;
+        for (ClientConnection member : members){
+            if (member == client)
+                return null;
+        }
+        ClientConnection[] joined = Arrays.copyOf(members, members.length + 1);
+        joined[members.length] = client;
+        channel.members = joined;
+        return channel;
+    }
+
+    /**
+     * Removes a client from a channel, removing the channel if the client was
+     * its last member.
+     * @param name The channel name.
+     * @param client The client leaving the channel.
+     * @return The channel or null if the client isn't a member.
+     */
+    public synchronized Channel leave(String name, ClientConnection client){
+        Channel channel = this.channels.get(name);
+        if (channel == null)
+            return null;
+        ClientConnection[] members = channel.members;
+        for (int i = 0; i < members.length; i++){
+            if (members[i] != client)
+                continue;
+            ClientConnection[] left = new ClientConnection[members.length - 1];
+            System.arraycopy(members, 0, left, 0, i);
+            System.arraycopy(members, i + 1, left, i, left.length - i);
+            channel.members = left;
+            if (left.length == 0)
+                this.channels.remove(name);
+            return channel;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the channel with the given name.
+     * @param name The channel name.
+     * @return The channel or null if it has no members.
+     */
+    public Channel get(String name){
+        return this.channels.get(name);
+    }
+
+    /**
+     * Returns the names of the channels with members.
+     * @return The channel names.
+     */
+    public List<String> getNames(){
+        return new ArrayList<String>(this.channels.keySet());
+    }
+
+    /**
+     * Returns the number of channels with members.
+     * @return The number of channels.
+     */
+    public int getNumChannels(){
+        return this.channels.size();
+    }
+}
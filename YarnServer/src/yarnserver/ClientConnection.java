@@ -1,60 +1,343 @@
 
 package yarnserver;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import yarnprotocol.DataShareChunk;
+import yarnprotocol.Frame;
+import yarnprotocol.FrameCompressor;
+import yarnprotocol.FrameDecoder;
+import yarnprotocol.Login;
+import yarnprotocol.LoginResult;
+import yarnprotocol.Protocol;
 
 /**
  * Used to provide an instance for each client connection to the server.
- * The overall amount of client connections and checking of connection status
- * should be handled by the calling class (Main).  An instance of this class should
- * be used once a client has connected successfully to the server.  The sending
- * and receiving of textual data once connected is handled by this class.  This
- * class can obviously interact with other clients through their instances of 
- * this class. 
+ * The overall amount of client connections should be handled by the calling
+ * class (Main).  An instance of this class should be used once a client has
+ * connected successfully to the server.  The sending and receiving of textual
+ * data once connected is handled by this class.  This class can obviously
+ * interact with other clients through their instances of this class.
+ *
+ * Each instance is owned by a single EventLoop which performs all of its
+ * reads, writes and timeout checks.  Instead of blocking on a receive the
+ * connection is a state machine (login, connected, data share etc.) which is
+ * advanced each time a protocol frame is received.  Data sent to a client is
+ * placed on its output queue and written by the owning event loop as the
+ * socket accepts it, therefore sending never blocks the calling thread.  The
+ * output queue is bounded (see OutputQueue) so a slow client can't hold up or
+ * exhaust the memory of the server.  Secure connections are read and written
+ * through a SecureChannel and otherwise serviced in exactly the same way.
  * @author Michael Telford
  */
-public class ClientConnection extends Thread {
+public class ClientConnection {
 
-    private String               username               = null;
-    private String               status                 = null;
-    private boolean              isDataShareInProgress  = false;
+    // Connection states.
+    private static final int     LOGIN                  = 0;
+    private static final int     CONNECTED              = 1;
+    private static final int     QUEUED                 = 2;
+
+    // Results of writing a data share chunk, see writeDataShareChunk().
+    private static final int     CHUNK_WRITTEN          = 0;
+    private static final int     CHUNK_BLOCKED          = 1;
+    private static final int     CHUNK_NONE             = 2;
+
+    // The largest frame accepted until the client has logged in, a LOGIN
+    // frame is far smaller.
+    private static final int     LOGIN_PAYLOAD_LIMIT    = 4096;     // in bytes.
+
+    private volatile String      username               = null;
+    private volatile String      status                 = null;
+    private volatile boolean     isDataShareInProgress  = false;
+    private volatile boolean     isDisconnected         = false;
+    private volatile boolean     isEvicted              = false;
+    private volatile long        lastActiveTime         = System.currentTimeMillis();
+    private volatile long        loginTime              = 0;
+    private int                  queuePosition          = 0;
     private Socket               socket                 = null;
-    private BufferedInputStream  input                  = null;
-    private BufferedOutputStream output                 = null;
-    private Timer                connectionTimer        = null;
+    private SocketChannel        channel                = null;
+    private SelectionKey         key                    = null;
+    private SecureChannel        secureChannel          = null;
+    private GatheringByteChannel output                 = null;  // Either channel.
+    private final FrameDecoder   decoder                = new FrameDecoder();
+    private volatile FrameCompressor compressor         = null;
+    private EventLoop            eventLoop              = null;
+    private final OutputQueue    outputQueue            = new OutputQueue();
+    private boolean              isFlushScheduled       = false;
+    private boolean              isFlushDeferred        = false;
+    private int                  state                  = LOGIN;
+    private byte[]               pendingLogin           = null;  // Sent while queued.
+
+    // Rate limiting variables, the limits of this client and of its source
+    // address (see RateLimiter).
+    private final RateLimiter.Limits clientLimits       =
+                                 Main.rateLimiter.newClientLimits();
+    private RateLimiter.Limits   addressLimits          = null;
+    private boolean              isMessageDropped       = false;
+    private boolean              isReadThrottled        = false;
+    private long                 historyCursor          = -1;    // See sendHistory().
+    private final Set<String>    joinedChannels         = new TreeSet<String>();
+    private final TimingWheel.Timeout readTimeout       =
+                                 new TimingWheel.Timeout(new Runnable(){
+        public void run(){
+            resumeReading();
+        }
+    });
+
+    // Timeout variables, only accessed by the owning event loop.
+    private long                 loginDeadline          = 0;
+    private long                 lastReceivedTime       = 0;
+    private long                 connectionRequestDeadline = 0;
+    private final TimingWheel.Timeout timeout           =
+                                 new TimingWheel.Timeout(new Runnable(){
+        public void run(){
+            checkTimeouts(System.currentTimeMillis());
+            scheduleTimeoutCheck();
+        }
+    });
+
+    // Data share variables, only accessed by the owning event loop.
+    private DataShare            dataShareUpload        = null;
+    private DataShare            dataShare              = null;
+    private long                 dataShareDeadline      = 0;
+    private long                 dataShareStartTime     = 0;
+    private SpoolFile            dataShareSpool         = null;
+    private long                 dataSharePosition      = 0;
+    private long                 dataShareProgress      = -1;
+    private long                 dataShareChunkEnd      = 0;
+    private long                 dataShareResumeOffset  = -1;
+    private final ByteBuffer     dataShareChunkHeader   = ByteBuffer.allocate(
+                       Protocol.HEADER_SIZE + DataShareChunk.HEADER_SIZE);
+    private ByteBuffer           dataShareChunkFrame    = null;
+    private boolean              isAwaitingDataShareConfirmation = false;
+
+    /**
+     * Constructor which takes a connected non secure socket channel.  The
+     * channel is switched to non blocking mode so that it can be serviced by
+     * an event loop.
+     * @param channel - The connected socket channel.
+     * @throws Exception - If there is an underlying socket error.
+     */
+    public ClientConnection(SocketChannel channel) throws Exception {
+        this.channel = channel;
+        this.output = channel;
+        this.socket = channel.socket();
+        this.channel.configureBlocking(false);
+        this.socket.setKeepAlive(true);
+        this.socket.setSendBufferSize(Configuration.DATA_BUFFER_SIZE);
+        this.socket.setReceiveBufferSize(Configuration.DATA_BUFFER_SIZE);
+        this.decoder.setMaxPayloadSize(LOGIN_PAYLOAD_LIMIT);
+    }
 
     /**
-     * Constructor which takes a connected socket to create data streams from.
-     * These are used for the subsequent transfer of data thereafter. The data
-     * streams are buffered for efficient data transmissions. This constructor
-     * also sets the socket timeout to zero causing receive methods to block.
-     * @param socket - The connected socket instance.
+     * Constructor which takes a connected socket channel to be secured.  The
+     * handshake is performed by the owning event loop as the client sends its
+     * handshake data, anything sent to the client in the meantime is queued
+     * until the handshake has completed.
+     * @param channel - The connected socket channel.
+     * @param context - The secure context which creates the SSL engine.
      * @throws Exception - If there is an underlying socket error.
      */
-    public ClientConnection(Socket socket) throws Exception {
-        super();
-        this.socket = socket;
-        // Init data streams on connected socket.
-        this.socket.setSoTimeout(0);
-        this.input = new BufferedInputStream(
-                this.socket.getInputStream(), Configuration.DATA_BUFFER_SIZE);
-        this.output = new BufferedOutputStream(
-                this.socket.getOutputStream(), Configuration.DATA_BUFFER_SIZE);
+    public ClientConnection(SocketChannel channel, SecureContext context)
+                                                            throws Exception {
+        this(channel);
+        this.secureChannel = context.createChannel(channel);
+        this.output = this.secureChannel;
+    }
+
+    /**
+     * This method is called by the owning event loop once this client
+     * connection has been registered with it.  The socket channel is
+     * registered with the event loop selector, the client takes its share of
+     * its source address's rate limits and the login process begins.
+     * @param loop The event loop which owns this client connection.
+     * @throws Exception If the socket channel cannot be registered.
+     */
+    public void open(EventLoop loop) throws Exception {
+        this.eventLoop = loop;
+        this.addressLimits = Main.rateLimiter.acquireAddressLimits(
+                                                this.socket.getInetAddress());
+        this.key = this.channel.register(
+                               loop.getSelector(), SelectionKey.OP_READ, this);
+
+        // Carry on with the handshake on this event loop once its delegated
+        // tasks have been run, and time it out if the client stalls.
+        if (this.secureChannel != null){
+            this.secureChannel.setTaskCallback(new Runnable(){
+                public void run(){
+                    eventLoop.execute(new Runnable(){
+                        public void run(){
+                            onReadable();
+                        }
+                    });
+                }
+            });
+            this.eventLoop.getTimingWheel().schedule(this.timeout,
+                                    this.secureChannel.getHandshakeDeadline());
+        }
+
+        // A queued client waits to be admitted before logging in.
+        if (this.state == ClientConnection.QUEUED){
+            this.sendDataToThis(String.format("The server is full, you are "
+                    + "number %d in the queue. You will be connected when "
+                    + "space becomes available...", this.queuePosition));
+            return;
+        }
+        this.beginLogin();
+    }
+
+    /**
+     * This method begins the login process.  Nothing is sent to the client,
+     * which sends its whole login straight after connecting (see login()) and
+     * is given the welcome message with the login result.  The client must
+     * log in before the connection request delay expires.  A login received
+     * while the client was queued is processed straight away.
+     */
+    private void beginLogin(){
+        this.state = ClientConnection.LOGIN;
+        this.loginDeadline = System.currentTimeMillis() +
+                       Configuration.getConnectionRequestDelayInMilliSeconds();
+        this.scheduleTimeoutCheck();
+
+        if (this.pendingLogin != null){
+            byte[] payload = this.pendingLogin;
+            this.pendingLogin = null;
+            try {
+                this.login(payload);
+            }
+            catch (Exception ex){
+                //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Marks this connection as waiting in the admission queue.  This is
+     * called by the admission controller before the connection is registered
+     * with its event loop.
+     * @param position The client's position in the queue.
+     */
+    public void setQueued(int position){
+        this.state = ClientConnection.QUEUED;
+        this.queuePosition = position;
+    }
+
+    /**
+     * This method is called on the owning event loop thread once a queued
+     * client has been admitted by the admission controller.  The client can
+     * then log in.
+     */
+    public void admit(){
+        if (this.isDisconnected || this.state != ClientConnection.QUEUED)
+            return;
+        this.sendDataToThis("Space has become available on the server");
+        this.beginLogin();
+    }
+
+    /**
+     * This method rejects a newly accepted connection which can't be admitted
+     * or queued.  The connection hasn't been registered with an event loop so
+     * the message is written directly before the connection is closed.  A
+     * secure connection is closed without a message because it hasn't
+     * completed its handshake.
+     * @param text The rejection message sent to the client.
+     */
+    public void reject(String text){
+        this.isDisconnected = true;
+        try {
+            if (this.secureChannel != null)
+                this.secureChannel.close();
+            else {
+                byte[] data = new Frame(Protocol.TEXT, text).encode();
+                this.channel.write(ByteBuffer.wrap(data));
+                this.channel.close();
+            }
+        }
+        catch (Exception ex){
+            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * This method disconnects this client to make room for a new client
+     * because it has been inactive the longest, the other users are told it
+     * has left.  The disconnect is performed on the owning event loop thread.
+     */
+    public void evict(){
+        this.isEvicted = true;
+        this.eventLoop.execute(new Runnable(){
+            public void run(){
+                sendDataToThis("You have been disconnected to make room for a "
+                        + "new client because you were inactive the longest");
+                disconnectOnException();
+            }
+        });
+    }
+
+    /**
+     * Returns whether or not this client is being evicted.
+     * @return True if this client is being evicted, false otherwise.
+     */
+    public boolean isEvicted(){
+        return this.isEvicted;
+    }
+
+    /**
+     * Returns when this client logged in, used by the federation to decide
+     * which of two users with the same username keeps it (see Federation).
+     * @return The login time in milliseconds or 0 if not logged in.
+     */
+    public long getLoginTime(){
+        return this.loginTime;
+    }
+
+    /**
+     * Returns how long it has been since this client last sent text or a
+     * data share.  Connection request responses don't count as activity.
+     * @param now The current time in milliseconds.
+     * @return The inactive time in milliseconds.
+     */
+    public long getInactiveTime(long now){
+        return (now - this.lastActiveTime);
+    }
+
+    /**
+     * Returns the socket of this client connection.
+     * @return The client socket.
+     */
+    public Socket getSocket(){
+        return this.socket;
     }
-    
+
     /**
-     * Returns the buffered input stream for this client connection instance.
-     * @return The buffered input stream instance.
+     * Returns the event loop which owns this client connection.
+     * @return The owning event loop.
      */
-    public BufferedInputStream getBufferedInputStream(){
-        return this.input;
+    public EventLoop getEventLoop(){
+        return this.eventLoop;
     }
-    
+
+    /**
+     * Returns the timeout used to schedule this connection's timeout checks
+     * on the owning event loop's timing wheel.
+     * @return The timing wheel timeout.
+     */
+    public TimingWheel.Timeout getTimeout(){
+        return this.timeout;
+    }
+
     /**
      * Returns the chosen client username.
      * @return - The chosen client username.
@@ -62,7 +345,7 @@ public class ClientConnection extends Thread {
     public String getUsername(){
         return this.username;
     }
-    
+
     /**
      * Returns the client presence information status.
      * @return - The client presence information status.
@@ -78,7 +361,7 @@ public class ClientConnection extends Thread {
     public boolean isDataShareInProgress(){
         return this.isDataShareInProgress;
     }
-    
+
     /**
      * Sets the isDataShareInProgress boolean flag.
      * @param isFileShareInProgress true or false.
@@ -88,466 +371,1323 @@ public class ClientConnection extends Thread {
     }
 
     /**
-     * This method is called from the run() method for each client connection.
-     * Its job is to send a connection request to the client when the connection 
-     * timer has expired and a data share is not currently in progress. To remain 
-     * connected the client must respond within a certain time frame. The client 
-     * response is automatic if connected, the user is not alerted to its workings.
-     * This method helps in proxy situations where a client disconnect does not 
-     * disconnect the servers connection with the proxy therefore the server is 
-     * not notified directly of the client disconnect.
-     * @return true or false.
+     * This method is called by the owning event loop's timing wheel when this
+     * connection's timeout expires (see scheduleTimeoutCheck()).  Its job is
+     * to disconnect clients which haven't logged in on time, to disconnect
+     * slow clients (if that is the slow client policy), to time out data
+     * share requests and confirmations and to send a connection request to the
+     * client when the connection request delay has expired and a data share
+     * is not currently in progress.  To remain connected the client must
+     * respond within a certain time frame.  The client response is automatic
+     * if connected, the user is not alerted to its workings.  This helps in
+     * proxy situations where a client disconnect does not disconnect the
+     * servers connection with the proxy therefore the server is not notified
+     * directly of the client disconnect.
+     * @param now The current time in milliseconds.
      */
-    private boolean isStillConnected(){
-        try {
-            // If the connection timer has expired send a connection request.
-            if (this.connectionTimer.hasTimerExpired() && !this.isDataShareInProgress){
-                this.sendDataToThis(DataShare.CONNECTION_REQUEST);
-                
-                // Wait for the client response.
-                String text = this.receivePreviewDataFromThis(
-                    Configuration.getConnectionResponseTimeoutInMilliSeconds());
-                if (text.equals(DataShare.CONNECTION_REQUEST))
-                    this.skipAvailableData();
-                
-                // If connected then reset the client connection timer for the 
-                // next cycle.  
-                this.startTimerThread();
+    private void checkTimeouts(long now){
+        if (this.isDisconnected)
+            return;
+
+        // Disconnect a secure client whose handshake hasn't completed on time.
+        if (this.secureChannel != null && this.secureChannel.isHandshakeTimedOut(now)){
+            this.disconnect();
+            return;
+        }
+        if (this.state == ClientConnection.QUEUED)
+            return;
+
+        // Disconnect a client if they haven't logged in on time.
+        if (this.state != ClientConnection.CONNECTED){
+            if (now >= this.loginDeadline){
+                this.sendDataToThis(
+                    "Your login timed out, please re-connect and try again...");
+                this.disconnect();
             }
-            return true;
+            return;
         }
-        // Any exceptions thrown mean the client is no longer connected.
-        catch (Exception ex){
-            return false;
+
+        // Disconnect a client whose output queue has stopped draining.
+        if (Configuration.slowClientPolicy == Configuration.SLOW_CLIENT_DISCONNECT){
+            boolean isSlow;
+            synchronized (this.outputQueue){
+                isSlow = this.isSlowClient(now);
+            }
+            if (isSlow){
+                this.disconnectOnException();
+                return;
+            }
+        }
+
+        // Time out the data share request or confirmation.
+        if (this.dataShare != null && now >= this.dataShareDeadline){
+            if (!this.isAwaitingDataShareConfirmation)
+                this.processDataShareResponse(false);
+            else {
+                DataShare share = this.endDataShare();
+                share.dataFailed(this);
+                this.disconnectOnException();
+            }
+            return;
+        }
+        if (this.isDataShareInProgress)
+            return;
+
+        // If the client hasn't responded to the connection request.
+        if (this.connectionRequestDeadline != 0){
+            if (now >= this.connectionRequestDeadline)
+                this.disconnectOnException();
+            return;
+        }
+
+        // If the connection timer has expired send a connection request.
+        if ((now - this.lastReceivedTime) >=
+                       Configuration.getConnectionRequestDelayInMilliSeconds()){
+            this.sendFrameToThis(new Frame(Protocol.CONNECTION_REQUEST));
+            this.connectionRequestDeadline =
+                   now + Configuration.getConnectionResponseTimeoutInMilliSeconds();
         }
     }
-    
+
     /**
-     * This method disconnects the client connection by nullifing the client 
-     * connection slot in the array.  This therefore frees the slot for a 
-     * future connecting client. This closes the clients side of the connection. 
+     * This method schedules the next call to checkTimeouts() for the earliest
+     * of this connection's deadlines.  Only a deadline earlier than the one
+     * already scheduled causes the timeout to be moved, later deadlines (e.g.
+     * the connection request delay restarting each time a frame is received)
+     * are picked up when the scheduled timeout expires.  Resetting a deadline
+     * is therefore just a field update.  A check is always scheduled within
+     * the connection request delay so that changes which don't reschedule the
+     * timeout are never missed.  Must be called on the owning event loop
+     * thread.
      */
-    private void disconnect(){
-        for (int i = 0; i < Main.connections.length; i++){
-            if (Main.connections[i] == this){
-                Log.logClientDisconnected(this.socket,
-                        Utilities.getNumAllConnectedClients(), this.username);
-                Main.connections[i].interrupt();
-                Main.connections[i] = null;
-                break;
-            }
+    private void scheduleTimeoutCheck(){
+        if (this.isDisconnected || this.state == ClientConnection.QUEUED)
+            return;
+        long now  = System.currentTimeMillis();
+        long next = now + Configuration.getConnectionRequestDelayInMilliSeconds();
+        if (this.state != ClientConnection.CONNECTED)
+            next = Math.min(next, this.loginDeadline);
+        else if (this.connectionRequestDeadline != 0)
+            next = Math.min(next, this.connectionRequestDeadline);
+        else if (!this.isDataShareInProgress)
+            next = Math.min(next, this.lastReceivedTime +
+                       Configuration.getConnectionRequestDelayInMilliSeconds());
+        if (this.dataShare != null)
+            next = Math.min(next, this.dataShareDeadline);
+
+        if (!this.timeout.isScheduled() || next < this.timeout.getDeadline())
+            this.eventLoop.getTimingWheel().schedule(this.timeout, next);
+    }
+
+    /**
+     * This method disconnects the client connection by nullifing the client
+     * connection slot in the array.  This therefore frees the slot for a
+     * future connecting client. This closes the clients side of the connection.
+     * Any data share this client is involved in is cancelled.  This method
+     * should be called on the owning event loop thread.
+     */
+    public void disconnect(){
+        if (this.isDisconnected)
+            return;
+        this.isDisconnected = true;
+
+        // Free this client's slot for the next queued client.
+        int numConnected = Utilities.getNumAllConnectedClients();
+        Log.logClientDisconnected(this.socket, numConnected, this.username);
+        if (Main.sessions.remove(this))
+            Main.admission.admitQueuedClients();
+        else
+            Main.admission.removeQueuedClient(this);
+        this.leaveAllChannels();
+        if (this.username != null && Main.federation != null)
+            Main.federation.userLeft(this.username);
+
+        // Log the output queue counters of a client which has been slow.
+        synchronized (this.outputQueue){
+            if (this.outputQueue.getNumSlowPeriods() > 0)
+                Log.logClientQueueStatistics(this.socket, this.username,
+                                        this.outputQueue.getPeakSize(),
+                                        this.outputQueue.getPeakBytes(),
+                                        this.outputQueue.getNumSlowPeriods(),
+                                        this.outputQueue.getTotalSkipped());
         }
+
+        // Log the compression statistics of a client which negotiated
+        // compression.
+        if (this.compressor != null){
+            Log.logClientCompressionStatistics(this.socket, this.username,
+                                        this.compressor.getStatistics());
+            this.compressor.end();
+        }
+
+        // Cancel any data share in progress.
+        if (this.dataShareUpload != null){
+            DataShare share = this.dataShareUpload;
+            this.dataShareUpload = null;
+            share.cancel();
+        }
+        if (this.dataShare != null){
+            boolean wasConfirming = this.isAwaitingDataShareConfirmation;
+            DataShare share = this.endDataShare();
+            if (wasConfirming)
+                share.dataFailed(this);
+            else
+                share.processResponse(this, false);
+        }
+
+        // Write anything still queued (e.g. the login timeout message) and
+        // close the connection.
+        try {
+            if (this.key != null)
+                this.writeOutputQueue();
+        }
+        catch (Exception ex){
+            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        try {
+            if (this.key != null)
+                this.key.cancel();
+            this.output.close();
+        }
+        catch (Exception ex){
+            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (this.eventLoop != null){
+            this.eventLoop.getTimingWheel().cancel(this.readTimeout);
+            this.eventLoop.deregister(this);
+        }
+        if (this.addressLimits != null)
+            Main.rateLimiter.releaseAddressLimits(this.socket.getInetAddress(),
+                                                  this.addressLimits);
     }
-    
+
     /**
-     * This method alerts other users to the disconnect and then calls the 
+     * This method alerts other users to the disconnect and then calls the
      * disconnect method.
-     * @throws Exception If there is an issue alerting other users to the 
-     * client disconnect. 
      */
-    private void disconnectOnException() throws Exception {
+    public void disconnectOnException(){
+        if (this.isDisconnected)
+            return;
         // Alert others that the user has left the yarn.
-        String oldUser = username + " has left the yarn";
-        this.sendDataToAllOtherClients(oldUser);
+        if (this.username != null){
+            String oldUser = username + " has left the yarn";
+            this.sendDataToAllOtherClients(oldUser);
+            if (Main.federation != null)
+                Main.federation.broadcast("", oldUser);
+        }
         this.disconnect();
     }
 
+    /**
+     * This method disconnects this client because a client of another server
+     * of the federation logged in with the same username first, both logins
+     * having been taken before either server knew of the other (see
+     * Federation).  The other users aren't told this user has left because
+     * the username is still connected.  The disconnect is performed on the
+     * owning event loop thread.
+     * @param node The node name of the server the username belongs to.
+     */
+    public void disconnectTakenUsername(final String node){
+        this.eventLoop.execute(new Runnable(){
+            public void run(){
+                if (isDisconnected)
+                    return;
+                sendDataToThis("Your username was taken first by a user of "
+                        + "another server (" + node + "), you have been "
+                        + "disconnected, log in with another username...");
+                disconnect();
+            }
+        });
+    }
+
     /**
      * This method calls disconnect for all connected clients.
      */
     private void disconnectAllClients(){
-        for (int i = 0; i < Main.connections.length; i++){
-            if (Main.connections[i] != null)
-                Main.connections[i].disconnect();
-        }
-    }
-    
-    /**
-     * This method is used to receive a data transmission up to the size of the 
-     * DATA_BUFFER_SIZE variable.  This code has been developed to handle the 
-     * irregular behaviour of SSL connections which send the first data byte as 
-     * a separate transmission before sending the remainder in a second 
-     * transmission.  This method also handles non SSL receive transmissions 
-     * also.
-     * @return The receive data in the form of a String.
-     * @throws Exception If a read error occurs.
-     */
-    public String receiveDataFromThis() throws Exception {
-        int timeout = this.socket.getSoTimeout();
-        byte[] temp = new byte[Configuration.DATA_BUFFER_SIZE];
-        byte[] storage = new byte[Configuration.DATA_BUFFER_SIZE];
-        
-        // Code to deal with the one initial byte receive which occurs during
-        // an SSL connection.  Also handles non SSL connections.
-        int numRead = 0, offset = 0;
+        for (final ClientConnection client : Main.sessions.getAllConnections()){
+            client.eventLoop.execute(new Runnable(){
+                public void run(){
+                    client.disconnect();
+                }
+            });
+        }
+    }
+
+    /**
+     * This method is called by the owning event loop when the socket channel
+     * has data to be read.  The data is read into the event loop's shared read
+     * buffer and each complete frame is processed straight away.  Partially
+     * received frames are kept by the frame decoder until the rest of the
+     * frame arrives.  If the client has closed the connection or sent an
+     * invalid frame then this client connection is disconnected.
+     *
+     * A secure connection is read until its decrypted data has all been
+     * processed, and as reading may advance its handshake the output queue
+     * is then written in case it was waiting for the handshake to complete.
+     * A client which has gone over its byte rate isn't read from again until
+     * it is back under it (see throttleReading()).
+     */
+    public void onReadable(){
+        if (this.isDisconnected)
+            return;
+        ByteBuffer buffer = this.eventLoop.getReadBuffer();
+        int numRead;
         do {
-            if (numRead == 1)
-                this.socket.setSoTimeout(100);
+            buffer.clear();
             try {
-                numRead = this.input.read(temp, 0, temp.length);
-                if ((offset + numRead) > storage.length)
-                    numRead = (storage.length - offset);
-                System.arraycopy(temp, 0, storage, offset, numRead);
-                offset += numRead;
-                Utilities.delay(Configuration.TRANSMISSION_DELAY);
-            } catch (SocketTimeoutException ste){
-                numRead = 0; // Breaks out of the do while loop.
+                if (this.secureChannel != null)
+                    numRead = this.secureChannel.read(buffer);
+                else
+                    numRead = this.channel.read(buffer);
             }
-            finally {
-                this.socket.setSoTimeout(timeout);
+            catch (IOException ioe){
+                numRead = -1;
             }
-        }
-        while (numRead == 1);
-        
-        // For when a timeout has already been set and it has expired.
-        if (offset == 0){
-            throw new SocketTimeoutException(
-                                   "Didn't receive anything in the time frame");
-        }
-        
-        // Convert to string and return.
-        byte[] data = new byte[offset];
-        System.arraycopy(storage, 0, data, 0, data.length);
-        return new String(data);
-    }
-    
-    /**
-     * This method operates in the same manner as receiveDataFromThis() except 
-     * its max receive value is set by the PREVIEW_BUFFER_SIZE variable.  This 
-     * method also marks and resets the position of data being received.  This 
-     * enables a receive to occur after the preview of the same data. 
-     * 
-     * As a result this method is used to preview incoming data to view and 
-     * process the data commands prepending the actual data.  These commands 
-     * are then used to handle the data once received by the 
-     * receiveDataFromThis() method. 
-     * 
-     * @return The received preview data in the form of a String. Usually 
-     * represents the data command being used to transmit data.
-     * @throws Exception If a read error occurs.
-     */
-    public String receivePreviewDataFromThis() throws Exception {
-        this.input.mark(Configuration.PREVIEW_BUFFER_SIZE);
-        
-        int timeout = this.socket.getSoTimeout();
-        byte[] temp = new byte[Configuration.PREVIEW_BUFFER_SIZE];
-        byte[] storage = new byte[Configuration.PREVIEW_BUFFER_SIZE];
-        
-        // Code to deal with the one initial byte receive which occurs during
-        // an SSL connection.  Also handles non SSL connections.
-        int numRead = 0, offset = 0;
-        do {
-            if (numRead == 1)
-                this.socket.setSoTimeout(100);
+            if (numRead < 0){
+                this.disconnectOnException();
+                return;
+            }
+            buffer.flip();
             try {
-                numRead = this.input.read(temp, 0, temp.length);
-                if ((offset + numRead) > storage.length)
-                    numRead = (storage.length - offset);
-                System.arraycopy(temp, 0, storage, offset, numRead);
-                offset += numRead;
-                Utilities.delay(Configuration.TRANSMISSION_DELAY);
-            } catch (SocketTimeoutException ste){
-                numRead = 0; // Breaks out of the do while loop.
+                Frame frame;
+                while (!this.isDisconnected && (frame = this.decoder.decode(buffer)) != null)
+                    this.receiveFrame(frame);
             }
-            finally {
-                this.socket.setSoTimeout(timeout);
+            catch (ProtocolException pe){
+                this.disconnectOnException();
+                return;
             }
+            if (numRead > 0 && !this.isDisconnected)
+                this.throttleReading(numRead);
+        } while (numRead > 0 && !this.isDisconnected && !this.isReadThrottled &&
+                 this.secureChannel != null && this.secureChannel.hasBufferedInput());
+
+        if (this.secureChannel != null && !this.isDisconnected)
+            this.flush();
+    }
+
+    /**
+     * This method is called by the owning event loop when the socket channel
+     * can accept more data having previously been full.
+     */
+    public void onWritable(){
+        this.flush();
+    }
+
+    /**
+     * This method counts the bytes just read against this client's and its
+     * source address's byte rates.  If either has been exceeded then the
+     * client isn't read from until it is back under its rate, the socket's
+     * receive buffer then fills up and TCP flow control slows the client
+     * down.  This method is called on the owning event loop thread.
+     * @param numRead The number of bytes read.
+     */
+    private void throttleReading(int numRead){
+        long delay = Main.rateLimiter.receiveBytes(this.clientLimits,
+                                                   this.addressLimits, numRead);
+        if (delay <= 0)
+            return;
+        this.isReadThrottled = true;
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+        this.eventLoop.getTimingWheel().schedule(this.readTimeout,
+                        System.currentTimeMillis() + (delay / 1000000) + 1);
+    }
+
+    /**
+     * This method is called when a throttled client may be read from again.
+     * Decrypted data a secure connection read before it was throttled is
+     * processed straight away as the selector won't report it.
+     */
+    private void resumeReading(){
+        if (this.isDisconnected || !this.isReadThrottled)
+            return;
+        this.isReadThrottled = false;
+        this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+        if (this.secureChannel != null && this.secureChannel.hasBufferedInput())
+            this.onReadable();
+    }
+
+    /**
+     * This method checks a text message or data share command from this
+     * client against its own and its source address's message rates.  The
+     * client is told the first time a message is dropped, and not again
+     * until a message has been allowed, so that a flood doesn't cause a
+     * flood of replies.  This method is called on the owning event loop
+     * thread.
+     * @return True if the message is allowed, false if it is to be dropped.
+     */
+    private boolean isMessageAllowed(){
+        if (Main.rateLimiter.isMessageAllowed(this.clientLimits,
+                                              this.addressLimits)){
+            this.isMessageDropped = false;
+            return true;
         }
-        while (numRead == 1);
-        
-        // For when a timeout has already been set and it has expired.
-        if (offset == 0){
-            throw new SocketTimeoutException(
-                                   "Didn't receive anything in the time frame");
-        }
-        
-        // Convert to string and return.
-        byte[] data = new byte[offset];
-        System.arraycopy(storage, 0, data, 0, data.length);
-        
-        // Resets the stream position so the full data can be received by the 
-        // receiveDataFromThis() method.
-        this.input.reset();
-        return new String(data);
-    }
-    
-    /**
-     * This sets the socket timeout from the given parameter timeoutInMilliSeconds 
-     * and then calls the receivePreviewDataFromThis() method before resetting 
-     * the socket timeout to zero for subsequent receives.  This creates a 
-     * timed preview receive which throws a SocketTimeoutException if the time 
-     * expires before any data is received.
-     * @param timeoutInMilliSeconds The receive time limit.
-     * @return The received data in the form of a String.
-     * @throws SocketTimeoutException If data has not been received within the 
-     * specified time limit.
-     */
-    public String receivePreviewDataFromThis(int timeoutInMilliSeconds) 
-                                                              throws Exception {
-        String text = "";
-        this.socket.setSoTimeout(timeoutInMilliSeconds);
-        
+        if (!this.isMessageDropped){
+            this.isMessageDropped = true;
+            this.sendDataToThis("You are sending messages too quickly, some "
+                                + "have not been sent. Slow down and try again...");
+        }
+        return false;
+    }
+
+    /**
+     * This method processes a frame received from the client according to the
+     * current state of the connection e.g. the login, a data share response,
+     * a chunk of a data share being sent by this client or a command or text
+     * once connected.  This method is called on the owning event loop thread.
+     * @param frame The received frame.
+     */
+    public void receiveFrame(Frame frame){
+        if (this.isDisconnected)
+            return;
+
+        // Any frame received counts as a response to a connection request.
+        this.lastReceivedTime = System.currentTimeMillis();
+        this.connectionRequestDeadline = 0;
+
         try {
-            text = this.receivePreviewDataFromThis();
+            switch (frame.getType()){
+
+                case Protocol.TEXT:
+                    if (this.state == ClientConnection.CONNECTED &&
+                        this.isMessageAllowed()){
+                        this.lastActiveTime = this.lastReceivedTime;
+                        this.processText(frame.getText());
+                    }
+                    break;
+
+                // Data share command, the data share chunks follow once the
+                // receiving clients have responded.  A refused (or rate
+                // limited) data share is cancelled so that the client stops
+                // waiting to send it.
+                case Protocol.DATA_SHARE_SEND:
+                    if (this.state == ClientConnection.CONNECTED &&
+                        this.dataShareUpload == null){
+                        this.lastActiveTime = this.lastReceivedTime;
+                        if (!this.isMessageAllowed() ||
+                            !this.dataShare(frame.getText()))
+                            this.sendFrameToThis(new Frame(Protocol.DATA_SHARE_CANCEL));
+                    }
+                    break;
+
+                // Spool data share data from the sending client.  Chunks of
+                // a data share which has been refused are ignored.
+                case Protocol.DATA_SHARE_CHUNK:
+                    if (this.dataShareUpload != null)
+                        this.dataShareUpload.receiveData(frame.getPayload());
+                    break;
+
+                // This (sending) client's answer to the proof that it has the
+                // content of its data share, which the server has cached.
+                case Protocol.DATA_SHARE_PROOF:
+                    if (this.dataShareUpload != null)
+                        this.dataShareUpload.receiveProof(frame.getPayload());
+                    break;
+
+                // This (receiving) client is ready for the data share chunks
+                // from the offset it has verified so far.
+                case Protocol.DATA_SHARE_RESUME:
+                    if (this.dataShareSpool != null)
+                        this.resumeDataShareTransfer(
+                                DataShareChunk.decodeOffset(frame.getPayload()));
+                    break;
+
+                // The sending client has cancelled its data share e.g. the
+                // file could no longer be read.
+                case Protocol.DATA_SHARE_CANCEL:
+                    if (this.dataShareUpload != null){
+                        DataShare share = this.dataShareUpload;
+                        this.endDataShareUpload(share);
+                        share.cancel();
+                    }
+                    break;
+
+                // Data share responses from this (receiving) client.
+                case Protocol.DATA_SHARE_ACCEPT:
+                case Protocol.DATA_SHARE_REJECT:
+                    if (this.dataShare != null && !this.isAwaitingDataShareConfirmation)
+                        this.processDataShareResponse(
+                                frame.getType() == Protocol.DATA_SHARE_ACCEPT);
+                    break;
+
+                case Protocol.DATA_SHARE_RECEIVED:
+                    if (this.dataShare != null && this.isAwaitingDataShareConfirmation){
+                        long timeTaken = System.currentTimeMillis() -
+                                         this.dataShareStartTime;
+                        DataShare share = this.endDataShare();
+                        share.dataReceived(this, timeTaken);
+                    }
+                    break;
+
+                // The client's login, sent straight after connecting and
+                // again if the login is refused.  A queued client's login is
+                // kept until it is admitted.
+                case Protocol.LOGIN:
+                    if (this.state == ClientConnection.LOGIN)
+                        this.login(frame.getPayload());
+                    else if (this.state == ClientConnection.QUEUED)
+                        this.pendingLogin = frame.getPayload();
+                    break;
+
+                // The connection request response needs no further processing.
+                default:
+                    break;
+            }
+        }
+        // Exceptions are ignored and the client connection carries on.
+        catch (Exception ex){
+            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * This method processes text received from the connected client.  The
+     * text is processed through a if - else if tree.  The order within the
+     * tree should be run from most specific to least specific condition.
+     * @param text The received text.
+     * @throws Exception If an error occurs processing the text.
+     */
+    private void processText(String text) throws Exception {
+
+        // If the text is empty e.g. "" do nothing.
+        if (text.isEmpty()){
+            // Do nothing.
+        }
+
+        // Displays the current number of connected clients.
+        else if (text.equals("-c") || text.equals("-connections")){
+            this.sendNumberOfConnectedClients();
+        }
+
+        // Lists the usernames of connected clients.
+        else if (text.equals("-n") || text.equals("-names")){
+            this.sendConnectedClientNames();
+        }
+
+        // -h command is handled internally by the client.
+
+        // Stops listening server and disconnects all clients.
+        else if (text.equals(Configuration.serverShutdownCommand)){
+            if (!Configuration.serverShutdownCommand.trim().isEmpty()){
+                if (this.username != null)
+                    Log.logServerStop(username);
+                this.sendDataToAllClients(
+                        "Admin has shut down this server, please re/connect");
+                this.disconnectAllClients();
+                Utilities.delay(Configuration.TRANSMISSION_DELAY * 10);
+                System.out.println("SERVER HAS STOPPED (client admin request)");
+                System.exit(0);
+            }
+        }
+
+        // Pages back through the chat and PM history.
+        else if (text.equals("-history") || text.equals("-history more")){
+            this.sendHistory(text.equals("-history more"));
+        }
+
+        // Joins, leaves or lists channels.  E.g. "-join #friends"
+        else if (text.equals(Protocol.JOIN_CMD) ||
+                 text.startsWith(Protocol.JOIN_CMD + " ")){
+            this.joinChannel(text.substring(Protocol.JOIN_CMD.length()).trim());
+        }
+        else if (text.equals(Protocol.LEAVE_CMD) ||
+                 text.startsWith(Protocol.LEAVE_CMD + " ")){
+            this.leaveChannel(text.substring(Protocol.LEAVE_CMD.length()).trim());
+        }
+        else if (text.equals(Protocol.CHANNELS_CMD)){
+            this.sendJoinedChannels();
+        }
+
+        // Sends data to the other members of a channel the client is in,
+        // other text starting with the prefix is chat.  E.g. "#friends Howdy all"
+        else if (this.isChannelMessage(text)){
+            this.sendChannelMessage(text);
+        }
+
+        // Sends (PM) data to client(s) via the username(s).
+        // E.g. "@bill Howdy bill? wdc?"
+        else if (text.charAt(0) == '@'){
+            this.sendPrivateMessage(text, this.username + " : ");
+        }
+
+        // Searches for connected clients with the given usernames.
+        else if (text.startsWith("-s") || text.startsWith("-search")){
+            this.searchForConnectedClients(text);
+        }
+
+        // Updates the clients presence info (status).
+        else if (text.startsWith("-p") || text.startsWith("-presence")){
+            this.updatePresenceInformation(text);
+        }
+
+        // Sends data to all other connected clients.
+        else {
+            // Check if there are other clients connected.
+            if (Utilities.getNumOtherConnectedClients(this) == 0){
+                this.sendDataToThis("No other clients are connected");
+            }
+            else {
+                // Send the full data to all other clients and keep it to be
+                // replayed to clients which join later.
+                Frame frame = new Frame(Protocol.TEXT, this.username + " : " + text);
+                byte[][] encoded = new byte[][] { frame.encode(), null };
+                this.sendDataToAllOtherClients(frame, encoded);
+                Main.replay.append(encoded[0]);
+                if (Main.messageLog != null)
+                    Main.messageLog.append(MessageLog.CHAT, this.username, "", text);
+                if (Main.federation != null)
+                    Main.federation.broadcast(this.username, text);
+            }
+        }
+    }
+
+    /**
+     * This method is used to send data to the connected client.  The input
+     * parameter is one or more encoded protocol frames (see Frame.encode()).
+     * Therefore this method is used to send all forms of data whether it be
+     * text or file etc.  This should be the only method used to write data to
+     * the client.  Other send methods therefore call this method to actually
+     * transmit the data to the connected client.  Encoding a frame once and
+     * passing the same array to several clients avoids encoding a broadcast
+     * message per client.
+     *
+     * The data is added to the output queue and written by the owning event
+     * loop, therefore this method never blocks and can be called from any
+     * thread.  If a coalescing window is configured the write is deferred by
+     * the window (or until coalesce_bytes are queued) so that the messages
+     * queued in the meantime are written together.  If the client has
+     * disconnected the data is discarded.
+     * @param data The encoded frame data to be sent.
+     */
+    public void sendDataToThis(byte[] data){
+        this.sendDataToThis(data, false);
+    }
+
+    /**
+     * Sends encoded frame data to this client, see sendDataToThis(byte[]).
+     * If this client's output queue has crossed the slow client threshold the
+     * configured slow client policy is applied.  Droppable data (e.g. chat
+     * messages) is dropped or replaces the older queued droppable data
+     * depending on the policy, other data is always queued.  With the
+     * disconnect policy this client is disconnected.
+     * @param data The encoded frame data to be sent.
+     * @param isDroppable True if the data can be dropped or coalesced when
+     * this client is slow, false otherwise.
+     */
+    public void sendDataToThis(byte[] data, boolean isDroppable){
+        if (this.isDisconnected)
+            return;
+
+        boolean isSlowDisconnect = false;
+        boolean isDeferred = false;
+        synchronized (this.outputQueue){
+            if (this.isSlowClient(System.currentTimeMillis())){
+                if (Configuration.slowClientPolicy == Configuration.SLOW_CLIENT_DISCONNECT)
+                    isSlowDisconnect = true;
+                else if (isDroppable){
+                    if (Configuration.slowClientPolicy == Configuration.SLOW_CLIENT_DROP){
+                        this.outputQueue.skip();
+                        return;
+                    }
+                    this.outputQueue.coalesce();
+                }
+            }
+            if (!isSlowDisconnect){
+                this.outputQueue.add(data, isDroppable);
+                boolean isCoalesceFull = (this.outputQueue.getQueuedBytes() >=
+                                          Configuration.coalesceBytes);
+                if (this.isFlushScheduled){
+                    if (!this.isFlushDeferred || !isCoalesceFull)
+                        return;
+                    this.isFlushDeferred = false;
+                }
+                else {
+                    this.isFlushScheduled = true;
+                    isDeferred = (Configuration.coalesceWindow > 0 && !isCoalesceFull);
+                    this.isFlushDeferred = isDeferred;
+                }
+            }
+        }
+        if (isSlowDisconnect){
+            this.disconnectSlowClient();
+            return;
+        }
+        if (isDeferred)
+            this.eventLoop.deferFlush(this);
+        else if (this.eventLoop.inEventLoop())
+            this.flush();
+        else {
+            this.eventLoop.execute(new Runnable(){
+                public void run(){
+                    flush();
+                }
+            });
         }
-        catch (SocketTimeoutException ste){
-            throw ste;
+    }
+
+    /**
+     * Encodes a frame before calling the sendDataToThis(byte[]) method.
+     * @param frame The frame to be sent.
+     */
+    public void sendFrameToThis(Frame frame){
+        this.sendDataToThis(this.encodeForThis(frame));
+    }
+
+    /**
+     * Encodes a frame to be sent to this client, the frame is compressed if
+     * this client negotiated compression and the frame is worth compressing.
+     * @param frame The frame to be encoded.
+     * @return The encoded frame data.
+     */
+    private byte[] encodeForThis(Frame frame){
+        FrameCompressor frameCompressor = this.compressor;
+        if (frameCompressor == null)
+            return frame.encode();
+        return frameCompressor.encode(frame);
+    }
+
+    /**
+     * Encodes a broadcast frame to be sent to the given client.  The frame is
+     * encoded at most twice however many clients it is sent to, once as is
+     * for the clients which didn't negotiate compression and once compressed
+     * (by this client's event loop) for those which did.  The compressed
+     * frame still counts towards each client's compression statistics.
+     * @param client The client the frame is being sent to.
+     * @param frame The frame to be encoded.
+     * @param encoded The frame encoded so far, [0] as is and [1] compressed,
+     * either is null until first needed.
+     * @return The encoded frame data for the client.
+     */
+    private byte[] encodeForClient(ClientConnection client, Frame frame,
+                                   byte[][] encoded){
+        FrameCompressor clientCompressor = client.compressor;
+        if (clientCompressor == null){
+            if (encoded[0] == null)
+                encoded[0] = frame.encode();
+            return encoded[0];
         }
-        finally {
-            this.socket.setSoTimeout(0);
+        if (encoded[1] == null)
+            encoded[1] = this.eventLoop.getCompressor().encode(frame);
+        clientCompressor.recordSent(frame.getPayload().length,
+                                    encoded[1].length - Protocol.HEADER_SIZE);
+        return encoded[1];
+    }
+
+    /**
+     * Takes a text (String) argument and sends it as a text frame by calling
+     * the sendFrameToThis(Frame) method.
+     * @param text The text to be sent.
+     */
+    public void sendDataToThis(String text){
+        this.sendFrameToThis(new Frame(Protocol.TEXT, text));
+    }
+
+    /**
+     * This method is called by the owning event loop once the coalescing
+     * window of a deferred write has passed, see sendDataToThis(byte[],
+     * boolean).
+     */
+    public void flushDeferred(){
+        synchronized (this.outputQueue){
+            this.isFlushDeferred = false;
         }
-        
-        return text;
+        this.flush();
     }
-    
+
     /**
-     * This method is used to skip all incoming data to this client connection. 
-     * When there is no incoming data left the method returns allowing the next 
-     * receive to be processed as normal.  
+     * This method writes the output queue to the socket channel until either
+     * the queue is empty or the socket can't accept any more data.  In the
+     * latter case the event loop is asked to call onWritable() when the
+     * socket can accept more data.  The output queue (chat, commands and
+     * control frames) is written in full before each data share chunk, so a
+     * client receiving a data share keeps chatting with at most one chunk's
+     * delay however large the file.  A chunk which has been partly written
+     * is finished first as frames can't be interleaved on the wire.  A secure
+     * connection which is blocked waiting for handshake data from the client
+     * (rather than for the socket) is written again once it has been read
+     * from.  This method is called on
+     * the owning event loop thread.
      */
-    public void skipAvailableData(){
-        int cycles = 2;
+    private void flush(){
+        if (this.isDisconnected)
+            return;
         try {
-            this.socket.setSoTimeout(Configuration.TRANSMISSION_DELAY);
-            for (int i = 0; i < cycles; i++){
-                try {
-                    this.input.skip(Configuration.DATA_BUFFER_SIZE);
-                    i = 0;
+            boolean isBlocked;
+            while (true){
+                if (!this.isDataShareChunkPartlyWritten() &&
+                    !this.writeOutputQueue()){
+                    isBlocked = true;
+                    break;
+                }
+                int result = this.writeDataShareChunk();
+                if (result != ClientConnection.CHUNK_WRITTEN){
+                    isBlocked = (result == ClientConnection.CHUNK_BLOCKED);
+                    break;
                 }
-                catch (Exception ex){}
-                Utilities.delay((int)(Configuration.TRANSMISSION_DELAY * 1.5));
             }
-        } catch (Exception ex){
-            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+            if (this.secureChannel != null)
+                isBlocked = this.secureChannel.isWritePending();
+            int ops = this.isReadThrottled ? 0 : SelectionKey.OP_READ;
+            if (isBlocked)
+                ops |= SelectionKey.OP_WRITE;
+            this.key.interestOps(ops);
+            this.checkDataShareTransferProgress();
         }
-        finally {
-            try {
-                this.socket.setSoTimeout(0);
-            } catch (SocketException ex){
-                //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+        catch (Exception ex){
+            this.disconnectOnException();
+        }
+    }
+
+    /**
+     * This method writes the next data share chunk from the spool file of the
+     * data share being sent to this client.  The chunk header (including the
+     * chunk's offset and checksum, see DataShareChunk) is written followed by
+     * the chunk data which is sent straight from the spool file to the
+     * socket channel.  Only one chunk is written per call so that queued
+     * messages (e.g. chat) are sent between chunks.  A requested resume
+     * offset takes effect once the chunk in progress has been written.  If
+     * this client negotiated compression the chunk is read into memory and
+     * written as a compressed frame instead, unless it has already been
+     * found not to compress.
+     * @return CHUNK_WRITTEN if a chunk was written, CHUNK_BLOCKED if the
+     * socket can't accept any more data or CHUNK_NONE if all of the data
+     * spooled so far has been written.
+     * @throws IOException If a read or write error occurs.
+     */
+    private int writeDataShareChunk() throws IOException {
+        if (this.dataShareSpool == null)
+            return ClientConnection.CHUNK_NONE;
+
+        // Start the next chunk if more data has been spooled.
+        if (this.dataSharePosition == this.dataShareChunkEnd &&
+            !this.dataShareChunkHeader.hasRemaining() &&
+            this.dataShareChunkFrame == null){
+            if (!this.isDataShareChunkAvailable())
+                return ClientConnection.CHUNK_NONE;
+            int length = DataShareChunk.getChunkLength(this.dataSharePosition,
+                                                   this.dataShareSpool.getSize());
+            if (this.isDataShareChunkCompressible()){
+                this.dataShareChunkFrame = ByteBuffer.wrap(
+                        this.encodeDataShareChunk(this.dataSharePosition, length));
+                this.dataSharePosition += length;
+                this.dataShareChunkEnd = this.dataSharePosition;
             }
+            else {
+                byte[] header = this.dataShareChunkHeader.array();
+                this.dataShareChunkHeader.clear();
+                Frame.encodeHeader(Protocol.DATA_SHARE_CHUNK,
+                                   DataShareChunk.HEADER_SIZE + length, header, 0);
+                DataShareChunk.encodeHeader(this.dataSharePosition,
+                        this.dataShareSpool.getChecksum(this.dataSharePosition),
+                        header, Protocol.HEADER_SIZE);
+                this.dataShareChunkEnd = this.dataSharePosition + length;
+            }
+        }
+
+        if (this.dataShareChunkFrame != null){
+            this.output.write(this.dataShareChunkFrame);
+            if (this.dataShareChunkFrame.hasRemaining())
+                return ClientConnection.CHUNK_BLOCKED;
+            this.dataShareChunkFrame = null;
+            return ClientConnection.CHUNK_WRITTEN;
+        }
+        if (this.dataShareChunkHeader.hasRemaining()){
+            this.output.write(this.dataShareChunkHeader);
+            if (this.dataShareChunkHeader.hasRemaining())
+                return ClientConnection.CHUNK_BLOCKED;
+        }
+        while (this.dataSharePosition < this.dataShareChunkEnd){
+            long numBytes = this.dataShareSpool.transferTo(this.dataSharePosition,
+                     this.dataShareChunkEnd - this.dataSharePosition, this.output);
+            if (numBytes == 0)
+                return ClientConnection.CHUNK_BLOCKED;
+            this.dataSharePosition += numBytes;
+        }
+        return ClientConnection.CHUNK_WRITTEN;
+    }
+
+    /**
+     * Returns whether a data share chunk has been partly written to the
+     * socket, in which case nothing else can be written until it has been
+     * finished.
+     * @return True if a chunk is partly written, false otherwise.
+     */
+    private boolean isDataShareChunkPartlyWritten(){
+        if (this.dataShareSpool == null)
+            return false;
+        return (this.dataShareChunkFrame != null ||
+                this.dataShareChunkHeader.hasRemaining() ||
+                this.dataSharePosition < this.dataShareChunkEnd);
+    }
+
+    /**
+     * This method reads a chunk of the data share from its spool file.
+     * @param position The offset of the chunk.
+     * @param length The length of the chunk data.
+     * @return The chunk payload, including the chunk header.
+     * @throws IOException If a read error occurs.
+     */
+    private byte[] readDataShareChunk(long position, int length)
+                                                        throws IOException {
+        byte[] chunk = new byte[DataShareChunk.HEADER_SIZE + length];
+        DataShareChunk.encodeHeader(position,
+                this.dataShareSpool.getChecksum(position), chunk, 0);
+        this.dataShareSpool.read(position, ByteBuffer.wrap(
+                            chunk, DataShareChunk.HEADER_SIZE, length));
+        return chunk;
+    }
+
+    /**
+     * This method returns whether the next chunk of the data share should be
+     * compressed, i.e. this client negotiated compression and the chunk
+     * hasn't already been found not to compress.
+     * @return True if the chunk should be compressed, false otherwise.
+     */
+    private boolean isDataShareChunkCompressible(){
+        return (this.compressor != null &&
+                this.dataShareSpool.isCompressible(this.dataSharePosition));
+    }
+
+    /**
+     * This method reads a chunk of the data share from its spool file and
+     * encodes it as a compressed frame.  A chunk which doesn't compress is
+     * encoded as is and marked in the spool file so that it isn't compressed
+     * for any other receiving client.
+     * @param position The offset of the chunk.
+     * @param length The length of the chunk data.
+     * @return The encoded frame.
+     * @throws IOException If a read error occurs.
+     */
+    private byte[] encodeDataShareChunk(long position, int length)
+                                                        throws IOException {
+        byte[] chunk = this.readDataShareChunk(position, length);
+        byte[] frame = this.compressor.encode(Protocol.DATA_SHARE_CHUNK, chunk,
+                                              0, chunk.length);
+        if (!FrameCompressor.isCompressed(frame))
+            this.dataShareSpool.setIncompressible(position);
+        return frame;
+    }
+
+    /**
+     * This method applies a requested resume offset and returns whether the
+     * next chunk of the data share has been spooled and can be sent.  Must
+     * only be called between chunks.
+     * @return True if the next chunk can be sent, false otherwise.
+     */
+    private boolean isDataShareChunkAvailable(){
+        if (this.dataShareResumeOffset >= 0){
+            this.dataSharePosition = this.dataShareResumeOffset;
+            this.dataShareChunkEnd = this.dataShareResumeOffset;
+            this.dataShareResumeOffset = -1;
         }
+        long size = this.dataShareSpool.getSize();
+        if (this.dataSharePosition < 0 || this.dataSharePosition >= size)
+            return false;
+        long chunkEnd = this.dataSharePosition +
+                        DataShareChunk.getChunkLength(this.dataSharePosition, size);
+        return (this.dataShareSpool.getLength() >= chunkEnd);
     }
 
     /**
-     * This method is used to send data to the connected client.  The input 
-     * parameter is the data to be sent in the form of bytes.  Therefore this 
-     * method is used to send all forms of data whether it be text or file etc.
-     * This should be the only method used to write data via the output steam.
-     * Other send methods therefore call this method to actually transmit the 
-     * data to the connected client.
-     * @param data The data bytes to be sent.
-     * @throws Exception If there is a send error.
+     * This method restarts the data share response timeout each time the
+     * offset read from the spool file for this client advances, or while
+     * this client has been sent everything spooled so far and is waiting for
+     * the sender.  The client is therefore given the full response timeout to
+     * confirm receipt once the last chunk has been written, and a transfer is
+     * timed out when the client stops reading the data share even if it is
+     * still being sent (and so flushed) chat.
      */
-    public void sendDataToThis(byte[] data) throws Exception {
-        try {    
-            int bytesSent = 0;
-            while (bytesSent < data.length){
-                int bytesLeft = (data.length - bytesSent);
-                int numBytesToSend = Configuration.DATA_BUFFER_SIZE;
-                if (bytesLeft < Configuration.DATA_BUFFER_SIZE)
-                    numBytesToSend = bytesLeft;
+    private void checkDataShareTransferProgress(){
+        if (this.dataShareSpool == null || !this.isAwaitingDataShareConfirmation)
+            return;
+        boolean isAdvanced = (this.dataSharePosition != this.dataShareProgress);
+        boolean isWaitingForSender = (!this.isDataShareChunkPartlyWritten() &&
+                this.dataSharePosition >= 0 &&
+                this.dataSharePosition < this.dataShareSpool.getSize() &&
+                this.dataSharePosition >= this.dataShareSpool.getLength());
+        if (isAdvanced || isWaitingForSender){
+            this.dataShareProgress = this.dataSharePosition;
+            this.dataShareDeadline = System.currentTimeMillis() +
+                        Configuration.getDataShareResponseTimeoutInMilliSeconds();
+        }
+    }
 
-                this.output.write(data, bytesSent, numBytesToSend);
-                this.output.flush();
-                bytesSent += numBytesToSend;
-                Utilities.delay(Configuration.TRANSMISSION_DELAY);
+    /**
+     * This method writes as much of the output queue to the socket channel as
+     * the socket will currently accept.  The queued messages are written
+     * with gathering writes, several messages per system call.  Once a slow
+     * client has caught up it is told how many messages it missed.
+     * @return True if the output queue has been fully written, false otherwise.
+     * @throws IOException If a write error occurs.
+     */
+    private boolean writeOutputQueue() throws IOException {
+        ByteBuffer[] buffers = this.eventLoop.getWriteBuffers();
+        while (true){
+            int numBuffers;
+            synchronized (this.outputQueue){
+                numBuffers = this.outputQueue.peek(buffers);
+                if (numBuffers == 0){
+                    this.outputQueue.setSlow(false);
+                    int numSkipped = this.outputQueue.takeNumSkipped();
+                    if (numSkipped == 0){
+                        this.isFlushScheduled = false;
+                        return true;
+                    }
+                    String msg = String.format("%d message(s) were not delivered "
+                            + "to you because your connection is too slow",
+                            numSkipped);
+                    this.outputQueue.add(new Frame(Protocol.TEXT, msg).encode(), false);
+                    continue;
+                }
+            }
+            try {
+                this.output.write(buffers, 0, numBuffers);
+                this.eventLoop.recordWrite();
+                long now = System.nanoTime();
+                int numWritten = 0;
+                synchronized (this.outputQueue){
+                    while (numWritten < numBuffers &&
+                           !buffers[numWritten].hasRemaining()){
+                        this.eventLoop.recordMessageWritten(
+                                             this.outputQueue.remove(), now);
+                        numWritten++;
+                    }
+                }
+                if (numWritten < numBuffers)
+                    return false;
+            }
+            finally {
+                Arrays.fill(buffers, 0, numBuffers, null);
             }
         }
-        // If a client has disconnected but the server is yet to
-        // realise by not receiving a connection response from the client catch
-        // the exception and print alert, otherwise throw any other exception.
-        catch (SocketException se){
-            if (!se.getMessage().equals("Connection closed by remote host"))
-                throw se;
-//            else
-//                System.out.println(se.getMessage());
+    }
+
+    /**
+     * Returns whether this client's output queue has crossed the slow client
+     * threshold.  The client is logged the first time it crosses the
+     * threshold.  The caller must hold the output queue lock.
+     * @param now The current time in milliseconds.
+     * @return True if this client is a slow client, false otherwise.
+     */
+    private boolean isSlowClient(long now){
+        if (!this.outputQueue.isOverLimit(now))
+            return false;
+        if (!this.outputQueue.isSlow()){
+            this.outputQueue.setSlow(true);
+            Log.logSlowClient(this.socket, this.username,
+                              this.outputQueue.size(),
+                              this.outputQueue.getQueuedBytes());
         }
+        return true;
     }
-    
+
     /**
-     * Takes a text (String) argument and converts it to byte data before 
-     * calling the sendDataToThis(byte[]) method.
-     * @param text The text to be sent.
-     * @throws Exception If a send error occurs.
+     * This method disconnects this client because it has crossed the slow
+     * client threshold and the slow client policy is to disconnect, the other
+     * users are told it has left.  The disconnect is performed later on the
+     * owning event loop thread even when called on it, as the client may be
+     * crossing the threshold while a message is being sent to every client.
      */
-    public void sendDataToThis(String text) throws Exception {
-        this.sendDataToThis(text.getBytes());
+    private void disconnectSlowClient(){
+        this.eventLoop.execute(new Runnable(){
+            public void run(){
+                disconnectOnException();
+            }
+        });
     }
-    
+
     /**
-     * This method sends data to all connected clients which aren't this one 
-     * (the sending client).  Therefore this method calls the sendDataToThis(byte[]) 
-     * method to transmit the data to each corresponding client.
-     * @param data The broken down byte data to be sent.
-     * @throws Exception If a send error occurs.
+     * This method sends a frame to all connected clients which aren't this
+     * one (the sending client).  Therefore this method calls the
+     * sendDataToThis(byte[]) method to transmit the frame to each
+     * corresponding client.  Clients sending or receiving a data share are
+     * included, their queued messages are written ahead of the data share
+     * chunks (see flush()).
+     * @param frame The frame to be sent.
+     */
+    private void sendDataToAllOtherClients(Frame frame){
+        this.sendDataToAllOtherClients(frame, new byte[2][]);
+    }
+
+    /**
+     * This method sends a frame to all connected clients which aren't this
+     * one, see sendDataToAllOtherClients(Frame).
+     * @param frame The frame to be sent.
+     * @param encoded The frame encoded so far (see encodeForClient()).
      */
-    private void sendDataToAllOtherClients(byte[] data) throws Exception {
-        for (int i = 0; i < Main.connections.length; i++){
-            ClientConnection client = Main.connections[i];
-            if (client != null && client.username != null && 
-                client != this && !client.isDataShareInProgress())
+    private void sendDataToAllOtherClients(Frame frame, byte[][] encoded){
+        for (ClientConnection client : Main.sessions.getConnectedClients()){
+            if (client.username != null && client != this)
             {
-                client.sendDataToThis(data);
+                client.sendDataToThis(
+                        this.encodeForClient(client, frame, encoded), true);
             }
         }
     }
-    
+
     /**
-     * This method takes text (String) data as an input and sends it to all 
-     * other connected clients that aren't this one.  Therefore this method 
-     * calls the sendDataToAllOtherClients(byte[]) method to transmit the data.
+     * This method takes text (String) data as an input and sends it to all
+     * other connected clients that aren't this one.  Therefore this method
+     * calls the sendDataToAllOtherClients(Frame) method to transmit the data.
      * @param text The text data to be sent.
-     * @throws Exception If a send error occurs.
      */
-    private void sendDataToAllOtherClients(String text) throws Exception {
-        this.sendDataToAllOtherClients(text.getBytes());
+    private void sendDataToAllOtherClients(String text){
+        this.sendDataToAllOtherClients(new Frame(Protocol.TEXT, text));
     }
-    
+
     /**
-     * This method sends data to all connected clients including this one. 
-     * This method calls the sendDataToThis(byte[]) method to transmit the data.
-     * @param data The byte data to be sent.
-     * @throws Exception If a send error occurs.
+     * This method sends a frame to the members of a channel which aren't this
+     * client.  The frame is encoded once however many members it is sent to
+     * (see encodeForClient()).
+     * @param channel The channel whose members the frame is sent to.
+     * @param frame The frame to be sent.
+     * @return The number of members the frame was sent to.
+     */
+    private int sendDataToChannel(ChannelRegistry.Channel channel, Frame frame){
+        byte[][] encoded = new byte[2][];
+        int numSent = 0;
+        for (ClientConnection member : channel.getMembers()){
+            if (member != this){
+                member.sendDataToThis(
+                        this.encodeForClient(member, frame, encoded), true);
+                numSent++;
+            }
+        }
+        return numSent;
+    }
+
+    /**
+     * This method sends a frame to all connected clients including this one.
+     * This method calls the sendDataToThis(byte[]) method to transmit the
+     * frame.
+     * @param frame The frame to be sent.
      */
-    private void sendDataToAllClients(byte[] data) throws Exception {
-        for (int i = 0; i < Main.connections.length; i++){
-            ClientConnection client = Main.connections[i];
-            if (client != null && client.username != null && !client.isDataShareInProgress())
+    private void sendDataToAllClients(Frame frame){
+        byte[][] encoded = new byte[2][];
+        for (ClientConnection client : Main.sessions.getConnectedClients()){
+            if (client.username != null)
             {
-                client.sendDataToThis(data);
+                client.sendDataToThis(this.encodeForClient(client, frame, encoded));
             }
         }
     }
-    
+
     /**
-     * This method takes a text (String) argument, converts the data into bytes 
-     * and sends them to all connected clients including this one.  Therefore 
-     * the sendDataToAllClients(byte[]) method is called which in turn calls 
-     * the sendDataToThis(byte[]) method to transmit the data. 
+     * This method takes a text (String) argument, encodes it as a text frame
+     * and sends it to all connected clients including this one.  Therefore
+     * the sendDataToAllClients(Frame) method is called which in turn calls
+     * the sendDataToThis(byte[]) method to transmit the data.
      * @param text The text data to be sent.
-     * @throws Exception If a send occurs.
      */
-    private void sendDataToAllClients(String text) throws Exception {
-        byte[] data = text.getBytes();
-        this.sendDataToAllClients(data);
+    private void sendDataToAllClients(String text){
+        this.sendDataToAllClients(new Frame(Protocol.TEXT, text));
     }
-    
+
     /**
-     * Method used for the sending of text data to specific clients based upon 
-     * their chosen usernames.  Validation occurs before the data is transmitted. 
-     * Such validation includes checking there is a message after the list of 
-     * usernames, removing any invalid usernames etc.
+     * Method used for the sending of text data to specific clients based upon
+     * their chosen usernames.  Validation occurs before the data is transmitted.
+     * Such validation includes checking there is a message after the list of
+     * usernames, removing any invalid usernames etc.  A PM to a user who is
+     * connected to another server of the federation is sent to that server
+     * and a PM to a user who isn't connected is queued until they next log in
+     * (see OfflineQueue).
      * @param origDataString The data received from the sending client.
      * @param sendersUsername The username of the sending client.
      * @throws Exception If a send error occurs.
      */
-    private void sendPrivateMessage(String origDataString, 
+    private void sendPrivateMessage(String origDataString,
                                     String sendersUsername) throws Exception {
-        
+
         // Assert there is a message after the last username.
         if (!Utilities.hasMessageAfterLastUsername(origDataString)){
             this.sendDataToThis("No message provided after the last username, "
                                                              + "try again...");
             return;
         }
-        
+
         // Get the list of usernames to send the PM to.
         String[] clientUnames = Utilities.getReceivingClientUsernames(origDataString);
-  
-        // Remove any incorrect usernames and alert the sending client.
+
+        // Remove any incorrect usernames and alert the sending client.  The
+        // usernames of users who aren't connected are kept if their PMs can
+        // be queued, i.e. they have logged in before.
         for (String uname : clientUnames){
             ClientConnection client =
                                 Utilities.getClientFromUsername(this, uname);
-            // If user enters an incorrect username alert them, remove the 
+            if (client == null && Main.federation != null &&
+                Main.federation.getNode(uname) != null)
+                continue;
+            // If user enters an incorrect username alert them, remove the
             // bogus username from the dataText and continue.
-            if (client == null){
+            if (client == null && (Main.offlineQueue == null ||
+                uname.equals(this.username) || !Utilities.isUsernameOk(uname) ||
+                !Main.offlineQueue.isKnownUser(uname))){
                 this.sendDataToThis("Your PM has not been sent to " + uname +
                                                     ", check the username (-n)...");
                 origDataString = origDataString.replaceFirst("@" + uname + " ", "");
                 continue;
             }
         }
-        
+
         // Get the final list of usernames having removed any bogus ones.
         clientUnames = Utilities.getReceivingClientUsernames(origDataString.trim());
-        
-        // Cycle through the usernames and send the message to each client.
+
+        // Cycle through the usernames and send the message to each client,
+        // queuing it for those who aren't connected.
+        StringBuilder recipients = new StringBuilder();
         for (String uname : clientUnames){
             ClientConnection client = Utilities.getClientFromUsername(this, uname);
+            if (client == null && Main.federation != null &&
+                Main.federation.sendPrivateMessage(uname, this.username,
+                                                   origDataString)){
+                recipients.append(uname).append(' ');
+                continue;
+            }
+            // A user of another server who couldn't be sent the PM can only
+            // be sent it later if PMs are queued.
+            if (client == null && Main.offlineQueue == null){
+                this.sendDataToThis("Your PM has not been sent to " + uname
+                        + ", try again later...");
+                continue;
+            }
+            if (client == null && Main.federation != null &&
+                Main.federation.queuePrivateMessage(uname, this.username,
+                                                    origDataString)){
+                this.sendDataToThis(uname + " isn't connected, your PM "
+                        + "will be delivered when they next log in");
+                recipients.append(uname).append(' ');
+                continue;
+            }
+            if (client == null){
+                int result = Main.offlineQueue.offer(uname, this.username,
+                                                     origDataString);
+                if (result == OfflineQueue.QUEUED){
+                    this.sendDataToThis(uname + " isn't connected, your PM "
+                            + "will be delivered when they next log in");
+                    recipients.append(uname).append(' ');
+                    continue;
+                }
+                if (result == OfflineQueue.FULL){
+                    this.sendDataToThis("Your PM has not been sent to " + uname
+                            + ", they have too many PMs waiting for them");
+                    continue;
+                }
+                if (result == OfflineQueue.SENDER_FULL){
+                    this.sendDataToThis("Your PM has not been sent to " + uname
+                            + ", you have too many PMs waiting to be delivered");
+                    continue;
+                }
+                if (result == OfflineQueue.UNKNOWN){
+                    this.sendDataToThis("Your PM has not been sent to " + uname +
+                                        ", check the username (-n)...");
+                    continue;
+                }
+                // The user has just logged in.
+                client = Utilities.getClientFromUsername(this, uname);
+            }
             // Send PM to the client matching the username.
-            if (client != null && !client.isDataShareInProgress()) // Never should be null.
-                client.sendDataToThis(sendersUsername + origDataString);
+            if (client != null){
+                client.sendDataToThis(client.encodeForThis(new Frame(Protocol.TEXT,
+                            sendersUsername + origDataString)), true);
+                recipients.append(uname).append(' ');
+            }
+        }
+
+        // Keep the PM in the history of the sender and recipients.
+        if (Main.messageLog != null && recipients.length() > 0){
+            Main.messageLog.append(MessageLog.PM, this.username,
+                                   recipients.toString().trim(), origDataString);
         }
     }
-    
+
     /**
-     * This method begins the data share process between a sending client and 
-     * one or more receiving clients.  Both file and voice shares are transmitted 
-     * with this method because they reach the server as bytes and are therefore 
-     * handled in the same way. Validation occurs before the data is transmitted. 
-     * @param cmd The data share protocol command.  Used to process the share. 
-     * @throws Exception If an error occurs e.g. the receiving client disconnects 
-     * whilst receiving the data.
+     * This method begins the data share process between a sending client and
+     * one or more receiving clients.  Both file and voice shares are transmitted
+     * with this method because they reach the server as bytes and are therefore
+     * handled in the same way. Validation occurs before the data is transmitted.
+     * Once validated the receiving clients are sent the data share request
+     * straight away and this client is told to send the data share chunks,
+     * which are spooled as they arrive by the receiveFrame() method, unless
+     * the server already has the file's content (see ShareSpool).
+     * @param cmd The data share protocol command.  Used to process the share.
+     * @return True if the data share has begun, false if it was refused.
+     * @throws Exception If a send error occurs.
      */
-    private void dataShare(String cmd) throws Exception {
-        
+    private boolean dataShare(String cmd) throws Exception {
+
+        // A client can't send a data share while it is receiving one.
+        if (this.dataShare != null){
+            this.sendDataToThis("You can't send a data share while receiving "
+                                + "one, try again later...");
+            return false;
+        }
+
         // Assert there is a filepath after the last username.
         if (!Utilities.hasMessageAfterLastUsername(cmd)){
-            this.skipAvailableData();
             this.sendDataToThis("No filepath provided after the last username, "
                                                               + "try again...");
-            return;
+            return false;
         }
-        
+
         // Determine if the transfer is a file or voice share.
         final boolean isAFileShare = Utilities.isAFileShare(cmd);
-        
+
         // Get the filename, file length and command length.
         final String fileName;
-        final int fileLength, cmdLength;
+        final long fileLength;
         try {
             String[] details = Utilities.getFileNameAndCmdLengthFromText(
                                                             cmd, isAFileShare);
             fileName         = details[0];
-            fileLength       = Integer.parseInt(details[1]);
-            cmdLength        = Integer.parseInt(details[2]);
+            fileLength       = Long.parseLong(details[1]);
         }
         catch (Exception ex){
-            this.skipAvailableData();
             String msg = "Your data share has not been sent, check the filepath, name and extension...";
             this.sendDataToThis(msg);
-            return;
+            return false;
+        }
+
+        // Check the file isn't too large.
+        if (fileLength < 0 || fileLength > Configuration.dataShareSizeLimit){
+            String msg = String.format("File error, the file is too large. The "
+                    + "maximum file size is %s Bytes", Configuration.dataShareSizeLimit);
+            this.sendDataToThis(msg);
+            return false;
         }
 
         // Check for illegal file extensions.
         String ext = fileName.substring(fileName.lastIndexOf('.') + 1);
         if (Utilities.isValuePresent(Configuration.illegalFileExtensions, ext)){
-            this.skipAvailableData();
             String msg = String.format(".%s is not a legal file extension, try again...", ext);
             this.sendDataToThis(msg);
-            return;
+            return false;
         }
-        
+
         // Get the username(s) of the receiving client(s).
         String[] usernames;
         try {
             usernames = Utilities.getReceivingClientUsernames(cmd);
         }
         catch (Exception ex){
-            this.skipAvailableData();
             this.sendDataToThis("There was a problem with the provided "
                     + "username(s), try again...");
-            return;
+            return false;
         }
-        
-        // Check the usernames are of valid connected clients.
+
+        // Check the usernames are of valid connected clients, the data share
+        // is relayed to the users connected to other servers.
         int numReceivingClients = 0;
         ClientConnection[] temp = new ClientConnection[usernames.length];
+        Map<String, String> remoteUsers = new LinkedHashMap<String, String>();
         for (int i = 0; i < usernames.length; i++){
             String uname = usernames[i];
             ClientConnection receivingClient = Utilities.getClientFromUsername(this, uname);
-            if (receivingClient == null){
+            String node = (Main.federation != null) ?
+                          Main.federation.getNode(uname) : null;
+            if (receivingClient == null && node != null){
+                remoteUsers.put(uname, node);
+            }
+            else if (receivingClient == null){
                 String msg = "Your data share has not been sent to " + uname +
                              ", check the username...";
                 this.sendDataToThis(msg);
@@ -557,183 +1697,282 @@ public class ClientConnection extends Thread {
                 numReceivingClients++;
             }
         }
-        
+
         // Check that at least one client is to receive the data share.
         ClientConnection[] receivingClients;
-        if (numReceivingClients == 0){
-            this.skipAvailableData();
+        if (numReceivingClients == 0 && remoteUsers.isEmpty()){
             this.sendDataToThis("Data share failed, check the username(s)");
-            return;
+            return false;
         }
         else {
             receivingClients = new ClientConnection[numReceivingClients];
             System.arraycopy(temp, 0, receivingClients, 0, receivingClients.length);
         }
-        
-        // RECEIVING THE FILE FROM THE SENDING CLIENT.
-        // Set up the fileshare instance with the necessary data.
-        final DataShare dataShare = new DataShare(this, fileName);
-        try { 
-            // Isolate the sending client, receive the file and free the client.
-            this.isDataShareInProgress = true;
-            dataShare.receiveData(fileLength, cmdLength);
+
+        // Check the client (and its source address) doesn't already have too
+        // many data shares in progress, the slot is released by
+        // releaseDataShareSlot() once the data share has finished.
+        if (!Main.rateLimiter.tryAcquireShare(this.clientLimits,
+                                              this.addressLimits)){
+            this.sendDataToThis("You have too many data shares in progress, "
+                                + "try again once one has finished...");
+            return false;
+        }
+
+        // SPOOLING THE FILE FROM THE SENDING CLIENT.
+        // Set up the data share instance with the necessary data and send the
+        // data share requests, the data itself is spooled by receiveFrame().
+        this.isDataShareInProgress = true;
+        this.dataShareUpload = new DataShare(this, receivingClients,
+                                             remoteUsers, fileName,
+                                             fileLength, isAFileShare,
+                                             Utilities.getContentHashFromText(cmd));
+        if (!this.dataShareUpload.begin()){
+            this.dataShareUpload = null;
             this.isDataShareInProgress = false;
+            this.releaseDataShareSlot();
+            this.sendDataToThis("The server is too busy to accept your data "
+                                + "share, try again later...");
+            return false;
         }
-        catch (Exception ex){
-            this.disconnect();
-            Log.logFailedDataShare(this.username, null, fileName, fileLength, isAFileShare);
+        return true;
+    }
+
+    /**
+     * This method frees this (sending) client from its data share once all
+     * of the data has been relayed or the data share has been cancelled.
+     * Must be called on the owning event loop thread.
+     * @param share The data share being sent by this client.
+     */
+    public void endDataShareUpload(DataShare share){
+        if (this.dataShareUpload != share)
+            return;
+        this.dataShareUpload = null;
+        this.isDataShareInProgress = false;
+        this.lastReceivedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * This method releases the data share slot taken by dataShare() once the
+     * data share has finished, so that this (sending) client can begin
+     * another.  Must be called once per data share begun.
+     */
+    public void releaseDataShareSlot(){
+        Main.rateLimiter.releaseShare(this.clientLimits, this.addressLimits);
+    }
+
+    /**
+     * This method is called on the owning event loop thread when a data share
+     * request is to be sent to this (receiving) client.  The client can't
+     * send or receive another data share until it has responded to the
+     * request and, if accepted, received the data, but carries on chatting.
+     * @param share The data share being sent to this client.
+     * @return True if this client can receive the data share, false if it is
+     * already processing a data share or has disconnected.
+     */
+    public boolean beginDataShare(DataShare share){
+        if (this.isDisconnected || this.dataShare != null ||
+            this.dataShareUpload != null)
+            return false;
+        this.dataShare = share;
+        this.isDataShareInProgress = true;
+        this.isAwaitingDataShareConfirmation = false;
+        this.dataShareDeadline = System.currentTimeMillis() +
+                                 DataShare.getRequestTimeoutInMilliSeconds();
+        this.scheduleTimeoutCheck();
+        return true;
+    }
+
+    /**
+     * This method is called on the owning event loop thread once this
+     * (receiving) client has accepted a data share.  Nothing is sent until
+     * the client says which offset to send from (see
+     * resumeDataShareTransfer()).
+     * @param spool The spool file of the accepted data share.
+     */
+    public void startDataShareTransfer(SpoolFile spool){
+        if (this.isDisconnected)
             return;
+        this.dataShareSpool = spool;
+        this.dataSharePosition = -1;
+        this.dataShareProgress = -1;
+        this.dataShareChunkEnd = -1;
+        this.dataShareResumeOffset = -1;
+        this.dataShareChunkHeader.position(this.dataShareChunkHeader.limit());
+        this.dataShareChunkFrame = null;
+    }
+
+    /**
+     * This method is called on the owning event loop thread when this
+     * (receiving) client says which offset of the data share it has verified
+     * so far, either when the transfer starts (zero unless the client is
+     * resuming a partly received file) or when a chunk fails its checksum.
+     * The offset is rounded down to the start of a chunk.  The data spooled
+     * from the offset is sent by flush() as the client's socket accepts it,
+     * the rest is sent as it is spooled (see dataShareDataAvailable()).
+     * @param offset The offset to send the data share from.
+     */
+    private void resumeDataShareTransfer(long offset){
+        offset = Math.min(offset, this.dataShareSpool.getSize());
+        this.dataShareResumeOffset = offset - (offset % Protocol.CHUNK_SIZE);
+        this.lastReceivedTime = System.currentTimeMillis();
+        this.dataShareDeadline = this.lastReceivedTime +
+                        Configuration.getDataShareResponseTimeoutInMilliSeconds();
+        this.flush();
+    }
+
+    /**
+     * This method is called by the sending client's event loop each time
+     * more data of the data share being sent to this (receiving) client has
+     * been spooled.  The data is sent on this client's event loop.
+     */
+    public void dataShareDataAvailable(){
+        synchronized (this.outputQueue){
+            if (this.isFlushScheduled)
+                return;
+            this.isFlushScheduled = true;
         }
-        
-        // CYCLE THROUGH THE RECEIVING CLIENTS.
-        for (final ClientConnection receivingClient : receivingClients){
-            
-            final String uname = receivingClient.getUsername();
-            
-            // Check that the desired client isn't already in a data share.
-            if (receivingClient.isDataShareInProgress()){
-                String msg = uname + " is already processing a data share, try again later...";
-                this.sendDataToThis(msg);
-                continue;
+        this.eventLoop.execute(new Runnable(){
+            public void run(){
+                flush();
             }
+        });
+    }
 
-            // SENDING THE FILE TO THE RECEIVING CLIENT.
-            // Each receiving client has its own request thread to determine if 
-            // the data share is accepted. Each client must respond within a 
-            // given timeframe.  All this makes for an efficient share process.
-            Thread receiveThread = new Thread(new Runnable(){
-                public void run(){
-                    
-                    boolean accepted;
-                    try {
-                        // Isolate the receiving client, send fileshare request and appropiate
-                        // response data then free the client.
-                        receivingClient.isDataShareInProgress = true;
-                        accepted = dataShare.isDataShareAccepted(receivingClient, isAFileShare);
-                        dataShare.sendData(receivingClient, accepted, isAFileShare);
-
-                        // Check the file has been received before releasing the fileshare flag.
-                        if (accepted){
-                            String response;
-                            response = receivingClient.receivePreviewDataFromThis(
-                                 Configuration.getDataShareResponseTimeoutInMilliSeconds());
-                            if (!response.equals(DataShare.CONNECTION_REQUEST))
-                                throw new Exception("Share data not sent to receiving client");
-                            else 
-                                receivingClient.skipAvailableData();
-                        }
-                        receivingClient.isDataShareInProgress = false;
-                        startTimerThread();
-                        receivingClient.startTimerThread();
-                    }
-                    catch (Exception ex){
-                        receivingClient.disconnect();
-                        try {
-                            sendDataToThis("An error occured, the data share was cancelled");
-                        } catch (Exception ex1){}
-                        Log.logFailedDataShare(username, uname, fileName, fileLength, isAFileShare);
-                        startTimerThread();
-                        return;
-                    }
+    /**
+     * This method is called on the owning event loop thread when the data
+     * share this (receiving) client is involved in has been stopped e.g.
+     * cancelled by the sending client.  The client is told to discard any
+     * data it has received and is freed from the data share.
+     * @param share The stopped data share.
+     * @param msg The message explaining why the data share was stopped.
+     */
+    public void cancelDataShare(DataShare share, String msg){
+        if (this.dataShare != share)
+            return;
+        this.endDataShare();
+        this.sendFrameToThis(new Frame(Protocol.DATA_SHARE_CANCEL));
+        this.sendDataToThis(msg);
+        share.removeReceivingClient(this);
+    }
 
-                    // Log the accepted or rejected file share.
-                    if (accepted){ 
-                        Log.logAcceptedDataShare(getUsername(), 
-                                                 uname, 
-                                                 fileName,
-                                                 fileLength,
-                                                 isAFileShare);
-                    }
-                    else {
-                        Log.logRejectedDataShare(getUsername(), 
-                                                 uname,
-                                                 fileName,
-                                                 fileLength,
-                                                 isAFileShare);
-                    }
-                } // End thread run method.
-            }); // End thread init.
-            
-            receiveThread.setName("File Receive Thread : " + receivingClient.getUsername());
-            receiveThread.start();
-        } // End for each receiving client loop.
+    /**
+     * This method frees this (receiving) client from the data share it is
+     * involved in.
+     * @return The data share which has ended.
+     */
+    private DataShare endDataShare(){
+        DataShare share = this.dataShare;
+        this.dataShare = null;
+        this.dataShareSpool = null;
+        this.isDataShareInProgress = false;
+        this.isAwaitingDataShareConfirmation = false;
+        this.dataShareDeadline = 0;
+        this.lastReceivedTime = System.currentTimeMillis();
+        return share;
+    }
+
+    /**
+     * This method processes this (receiving) client's response to a data share
+     * request.  If accepted the data is relayed to the client which is given
+     * a certain amount of time to confirm it has received the data, otherwise
+     * the client is freed from the data share.
+     * @param accepted True if the client accepted the data share, false if it
+     * rejected the data share or didn't respond in time.
+     */
+    private void processDataShareResponse(boolean accepted){
+        DataShare share = this.dataShare;
+        if (accepted){
+            this.isAwaitingDataShareConfirmation = true;
+            this.dataShareStartTime = System.currentTimeMillis();
+            this.dataShareDeadline = this.dataShareStartTime +
+                        Configuration.getDataShareResponseTimeoutInMilliSeconds();
+        }
+        else
+            this.endDataShare();
+        share.processResponse(this, accepted);
     }
 
     /**
-     * Cycles through connected clients and sends their names & statuses to the 
-     * requesting client. Connected means having entered a username and joined 
-     * the chat.  Each status represents each clients presence information. 
+     * Cycles through connected clients and sends their names & statuses to the
+     * requesting client. Connected means having entered a username and joined
+     * the chat.  Each status represents each clients presence information.
+     * The users connected to the other servers of the federation follow,
+     * each with the name of its server.
      * @throws Exception If a send error occurs.
      */
     private void sendConnectedClientNames() throws Exception {
-        if (this.isDataShareInProgress())
-            return;
-        
         int numClients = Utilities.getNumOtherConnectedClients(this);
         if (numClients <= 0){
             this.sendDataToThis("No other clients are connected");
             return;
         }
-        
+
         String[] names = new String[numClients];
         int index = 0;
-        
+
         // Record usernames of other connected clients.
-        for (int i = 0; i < Main.connections.length; i++){
-            ClientConnection client = Main.connections[i];
-            if (client != null && client != this && client.username != null){
+        for (ClientConnection client : Main.sessions.getConnectedClients()){
+            if (index == names.length)
+                break;
+            if (client != this && client.username != null){
                 names[index] = client.getUsername();
                 index++;
             }
         }
-        
+        if (index < names.length)
+            names = Arrays.copyOf(names, index);
+
         // NOTE: Don't use String.format() below because there is a format issue
         // when using [s%] for the status information.
-        String userNamesString = String.format(("%s (you) [" + 
+        String userNamesString = String.format(("%s (you) [" +
                                  this.getStatus() + "], "), this.getUsername());
         Arrays.sort(names); // Order the other usernames alphabetically.
-	
+
         // Add other users to the response string.
         for (String uname : names){
-            userNamesString += String.format(("%s [" + 
-                     Utilities.getClientFromUsername(this, uname).getStatus() + 
-                     "], "), uname);
+            ClientConnection client = Utilities.getClientFromUsername(this, uname);
+            if (client == null)
+                continue;
+            userNamesString += String.format(("%s [" +
+                     client.getStatus() + "], "), uname);
 	}
-        
+        if (Main.federation != null){
+            for (Map.Entry<String, String> user :
+                              Main.federation.getRemoteUsers().entrySet()){
+                userNamesString += (user.getKey() + " [" + user.getValue() +
+                        "] (on " + Main.federation.getNode(user.getKey()) + "), ");
+            }
+        }
+
         // Remove the last , as it is not needed, then send to client.
-        userNamesString = 
+        userNamesString =
                  userNamesString.substring(0, userNamesString.lastIndexOf(','));
         this.sendDataToThis(userNamesString.trim());
     }
-    
+
     /**
      * Counts the number of connected clients not including the calling client.
      * The number is then put into a text response and sent to the calling client.
-     * @throws Exception If a send error occurs.
      */
-    private void sendNumberOfConnectedClients() throws Exception {
-        if (this.isDataShareInProgress())
-            return;
+    private void sendNumberOfConnectedClients(){
         String text = "There is currently " +
                     (Utilities.getNumOtherConnectedClients(this)) +
                     " other connected client(s)";
         this.sendDataToThis(text);
     }
-    
+
     /**
      * This method searches for connected clients with the provided usernames.
-     * Each result is recorded and placed in a string response which is then 
+     * Each result is recorded and placed in a string response which is then
      * sent to the sending client.
      * @param dataString Text containing the username(s) to search for.
      * @throws Exception If a send error occurs.
      */
     private void searchForConnectedClients(String dataString) throws Exception {
-        if (this.isDataShareInProgress())
-            return;
-        
         String[] clientUnames = null;
         String resultsString = "";
-        
+
         // Get the list of usernames to search for.
         dataString = dataString.substring(dataString.indexOf("-s ") + "-s ".length());
         clientUnames = Utilities.getReceivingClientUsernames(dataString.trim());
@@ -745,109 +1984,420 @@ public class ClientConnection extends Thread {
 
         // Search for a client with each username and record the result.
         for (String uname : clientUnames){
-            ClientConnection client = 
+            ClientConnection client =
                     Utilities.getClientFromUsername(null, uname);
-            if (client != null) 
+            String node = (client == null && Main.federation != null) ?
+                          Main.federation.getNode(uname) : null;
+            if (client != null)
                 resultsString += ("@" + uname + " is connected\n");
+            else if (node != null)
+                resultsString += ("@" + uname + " is connected (on " + node + ")\n");
             else
                 resultsString += ("@" + uname + " is NOT connected\n");
         }
-        
-        // Send the results back to the requesting client after removing the 
+
+        // Send the results back to the requesting client after removing the
         // last line break - '\n'.
         resultsString = resultsString.substring(0, resultsString.length() - 1);
         this.sendDataToThis(resultsString);
     }
 
     /**
-     * This method requests that the newly connected client choose a username. 
-     * The chosen username is validated to ensure it is both legal and unique 
-     * (not already taken). If invalid this method alerts the user and then 
-     * calls itself recursively to restart the process.  Once a username has 
-     * been chosen the clients status (presence information) is set to the 
-     * default value. 
-     * @throws Exception If a send or receive error occurs.
+     * This method logs in the newly connected client.  The client sends the
+     * server password (if it knows one), its chosen username and the
+     * capabilities it supports in a single LOGIN frame straight after
+     * connecting, and a single LOGIN_RESULT frame is sent back, so logging in
+     * takes one round trip.  The password is checked, the chosen username is
+     * validated to ensure it is both legal and unique (not already taken) and
+     * the capabilities used are agreed.  If the login is refused the client
+     * is told why and may send another login before the login times out.
+     * Once logged in the clients status (presence information) is set to the
+     * default value, the client is given the welcome message and told how
+     * many other clients are connected and the other clients are alerted that
+     * the user has entered.  If compression is agreed this client's frames
+     * are compressed from then on and the client may send compressed frames
+     * once it has the result.
+     *
+     * The password is transmitted as plain text and therefore should
+     * only be used in conjunction with secure communications (SSL/TLS).
+     * @param payload The LOGIN frame payload.
+     * @throws Exception If the login can't be decoded.
      */
-    private void setUsernameViaLogin() throws Exception {
-        
-        // Request username from user.
-        String text = "Enter your username (usernames are case sensitive) :";
-        this.sendDataToThis(text);
+    private void login(byte[] payload) throws Exception {
+        Login login = Login.decode(payload);
+        if (login.getVersion() != Protocol.VERSION){
+            this.refuseLogin(LoginResult.UNSUPPORTED_VERSION, String.format(
+                    "This server uses protocol version %d, please update your "
+                    + "client", Protocol.VERSION));
+            return;
+        }
+
+        // Check the yarn password for this server if necessary.
+        if (Configuration.isTheServerPasswordSet()){
+            String password = login.getPassword();
+            if (password.length() > Configuration.usernameAndPasswordCharLimit)
+                password = password.substring(0,
+                                    Configuration.usernameAndPasswordCharLimit);
+            if (password.isEmpty()){
+                this.refuseLogin(LoginResult.INCORRECT_PASSWORD,
+                                 "This server requires a password");
+                return;
+            }
+            if (!password.equals(Configuration.serverPassword)){
+                Log.logClientFailedPasswordAttempt(this.socket, password);
+                this.refuseLogin(LoginResult.INCORRECT_PASSWORD, "Access denied, "
+                                 + "incorrect password provided, try again...");
+                return;
+            }
+        }
 
-        // Receive username.
-        String uname = this.receiveDataFromThis();
+        // Truncate the username if necessary.
+        String text = Utilities.getWelcomeMessage();
+        String uname = login.getUsername();
         if (uname.length() > Configuration.usernameAndPasswordCharLimit){
             uname = uname.substring(0, Configuration.usernameAndPasswordCharLimit);
-            text = String.format("Your chosen username has been truncated "
+            text += String.format("\nYour chosen username has been truncated "
                     + "to '%s' because it exceeded the maximum character "
-                    + "limit (%d)", uname, Configuration.usernameAndPasswordCharLimit);
-            this.sendDataToThis(text);
+                    + "limit (%d)\n", uname, Configuration.usernameAndPasswordCharLimit);
         }
-        
-        // Check whether username is taken or not allowed.
-        if (Utilities.isUsernameOk(this, uname)){
-            this.username = uname;
-            this.status   = Configuration.legalStatuses[0]; // Default status.
+
+        // Check whether username is taken or not allowed, including by a user
+        // of another server of the federation.  The username is claimed
+        // atomically so that two clients can't both be given it.
+        if (!Utilities.isUsernameOk(uname) || (Main.federation != null &&
+            Main.federation.getNode(uname) != null) ||
+            !Main.sessions.claimUsername(this, uname)){
+            this.refuseLogin(LoginResult.USERNAME_NOT_ALLOWED, "Username is "
+                    + "taken or not allowed (no spaces allowed), try again...");
+            return;
         }
-        else {
-            text = "Username is taken or not allowed "
-                         + "(no spaces allowed), try again...";
-            this.sendDataToThis(text);
-            Utilities.delay(100);
-            this.setUsernameViaLogin();
-        }
-    }
-    
-    /**
-     * If the server has been setup to require a password upon connection (by 
-     * setting a password in the configuration file) then this method is called 
-     * to request and validate the client password entry/entries. If an 
-     * incorrect password is entered then this method alerts the user and calls 
-     * this method recursively. 
-     * 
-     * This method transmits the password as plain text and therefore should 
-     * only be used in conjunction with secure communications (SSL/TLS).
-     * 
-     * @throws Exception If a send or receive error occurs.
-     */
-    private void validatePasswordViaLogin() throws Exception {
-        // Delays are used here to separate lines being sent.
-        // Request the server password.
-        Utilities.delay(100);
-        String text = "Enter the yarn server password : ";
-        this.sendDataToThis(text);
-        
-        // Receive password.
-        String password = this.receiveDataFromThis();
-        if (password.length() > Configuration.usernameAndPasswordCharLimit){
-            password = password.substring(0, Configuration.usernameAndPasswordCharLimit);
-        }
-        
-        // If password entry is incorrect re-call this method.
-        Utilities.delay(100);
-        if (!password.equals(Configuration.serverPassword)){
-            Log.logClientFailedPasswordAttempt(this.socket, password);
-            text = "Access denied, incorrect password provided, try again...";
-            this.sendDataToThis(text);
-            this.validatePasswordViaLogin();
-        }
-        // Else if password entry in correct, alert the user and continue.
-        else 
-            this.sendDataToThis("Access granted!");
-        Utilities.delay(100);
-    }
-    
-    /**
-     * This method updates the presence information status for the calling client. 
-     * Validation occurs to ensure the status is legal etc.  Feedback is given 
-     * to the user if an invalid status is provided. 
-     * @param status The desired status value.
-     * @throws Exception If a send error occurs.
+        this.username = uname;
+        this.lastActiveTime = System.currentTimeMillis();
+        this.loginTime = this.lastActiveTime;
+        this.status   = Configuration.legalStatuses[0]; // Default status.
+        this.state    = ClientConnection.CONNECTED;
+        this.decoder.setMaxPayloadSize(Protocol.MAX_PAYLOAD_SIZE);
+        this.lastReceivedTime = System.currentTimeMillis();
+
+        // Agree the capabilities and tell the user how many other clients are
+        // currently connected.
+        int capabilities = 0;
+        if (Configuration.useCompression)
+            capabilities = (login.getCapabilities() & Protocol.CAPABILITY_COMPRESSION);
+        int numOtherClients = Utilities.getNumOtherConnectedClients(this);
+        text += String.format("\nYour username is %s\n\nThere is currently %d "
+                + "other connected client(s)\n\nStart typing to have a yarn...",
+                this.username, numOtherClients);
+        this.sendFrameToThis(new Frame(Protocol.LOGIN_RESULT, new LoginResult(
+                capabilities, numOtherClients, this.username, text).encode()));
+
+        if ((capabilities & Protocol.CAPABILITY_COMPRESSION) != 0){
+            FrameCompressor frameCompressor =
+                    new FrameCompressor(Configuration.compressionThreshold);
+            this.decoder.setCompressor(frameCompressor);
+            this.compressor = frameCompressor;
+        }
+
+        // Show the user what was said recently, the frames are sent as they
+        // were broadcast.
+        byte[] recentFrames = Main.replay.getRecentFrames();
+        if (recentFrames != null){
+            this.sendDataToThis("Here's what was said before you joined...");
+            this.sendDataToThis(recentFrames);
+        }
+
+        // Deliver the PMs sent while the user wasn't connected, as one write.
+        // The PMs queued by the server owning the username, if federated,
+        // follow once it has sent them.
+        List<String> queuedPMs = (Main.offlineQueue != null) ?
+                                 Main.offlineQueue.take(this.username) : null;
+        if (queuedPMs != null)
+            this.sendQueuedPrivateMessages(queuedPMs);
+        if (Main.offlineQueue != null && Main.federation != null)
+            Main.federation.requestQueuedPrivateMessages(this.username);
+
+        // Log this new connection.
+        Log.logClientConnected(this.socket,
+                Utilities.getNumAllConnectedClients(), this.username);
+
+        // Alert others that the user has entered.
+        String newUser = this.username + " has entered for a yarn";
+        this.sendDataToAllOtherClients(newUser);
+        if (Main.federation != null){
+            Main.federation.userJoined(this.username, this.status,
+                                       this.getLoginTime());
+            Main.federation.broadcast("", newUser);
+        }
+    }
+
+    /**
+     * This method sends the client the PMs queued for it while it wasn't
+     * connected as one write.
+     * @param lines The PMs formatted for the client, oldest first.
+     * @throws IOException If the PMs can't be encoded.
+     */
+    private void sendQueuedPrivateMessages(List<String> lines) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        frames.write(this.encodeForThis(new Frame(Protocol.TEXT, String.format(
+                "You were sent %d PM(s) while you were away...", lines.size()))));
+        for (String line : lines)
+            frames.write(this.encodeForThis(new Frame(Protocol.TEXT, line)));
+        this.sendDataToThis(frames.toByteArray());
+    }
+
+    /**
+     * This method sends the client the PMs queued for it by another server
+     * of the federation (see Federation).  The PMs are sent by the owning
+     * event loop thread, or queued again if the client has disconnected.
+     * @param records The mailbox records of the PMs (see OfflineQueue).
      */
-    private void updatePresenceInformation(String status) throws Exception {
-        if (this.isDataShareInProgress())
+    public void deliverQueuedPrivateMessages(final byte[] records){
+        this.eventLoop.execute(new Runnable(){
+            public void run(){
+                if (isDisconnected){
+                    Main.federation.requeueQueuedPrivateMessages(username,
+                                                                 records);
+                    return;
+                }
+                try {
+                    sendQueuedPrivateMessages(OfflineQueue.format(records));
+                }
+                catch (IOException ex){
+                    //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * This method tells the client why its login was refused.  The client
+     * may correct its login and send it again, the login deadline is
+     * restarted to give the user time to do so.
+     * @param result The reason the login was refused e.g. INCORRECT_PASSWORD.
+     * @param text The reason for the user.
+     */
+    private void refuseLogin(int result, String text){
+        this.loginDeadline = System.currentTimeMillis() +
+                       Configuration.getConnectionRequestDelayInMilliSeconds();
+        this.sendFrameToThis(new Frame(Protocol.LOGIN_RESULT,
+                                       new LoginResult(result, text).encode()));
+    }
+
+    /**
+     * This method adds the client to a channel, creating the channel if it
+     * doesn't exist, and tells the other members.
+     * @param name The channel name e.g. #friends
+     */
+    private void joinChannel(String name){
+        if (!Utilities.isChannelNameOk(name)){
+            this.sendDataToThis("Channel names start with " + Protocol.CHANNEL_PREFIX
+                    + " and have no spaces e.g. " + Protocol.JOIN_CMD + " "
+                    + Protocol.CHANNEL_PREFIX + "friends");
+            return;
+        }
+        if (this.joinedChannels.contains(name)){
+            this.sendDataToThis("You are already in " + name);
+            return;
+        }
+        if (this.joinedChannels.size() >= Configuration.channelLimit){
+            this.sendDataToThis(String.format("You can't be in more than %d "
+                    + "channels, type %s %s to leave one", Configuration.channelLimit,
+                    Protocol.LEAVE_CMD, this.joinedChannels.iterator().next()));
+            return;
+        }
+        ChannelRegistry.Channel channel = Main.channels.join(name, this);
+        if (channel == null) // Never should be null.
+            return;
+        this.joinedChannels.add(name);
+        this.sendDataToChannel(channel, new Frame(Protocol.TEXT,
+                               name + " " + this.username + " has joined"));
+        if (Main.federation != null){
+            Main.federation.channelChanged(name);
+            Main.federation.sendChannelMessage(name, name + " " + this.username
+                                               + " has joined", "", "");
+        }
+        this.sendDataToThis(String.format("You have joined %s (%d member(s)), "
+                + "type %s followed by your message to send to it", name,
+                channel.getMembers().length, name));
+    }
+
+    /**
+     * This method removes the client from a channel and tells the other
+     * members.
+     * @param name The channel name e.g. #friends
+     */
+    private void leaveChannel(String name){
+        if (!this.joinedChannels.remove(name)){
+            this.sendDataToThis("You aren't in " + name + ", type "
+                                + Protocol.CHANNELS_CMD + " to see your channels");
+            return;
+        }
+        ChannelRegistry.Channel channel = Main.channels.leave(name, this);
+        if (channel != null){
+            this.sendDataToChannel(channel, new Frame(Protocol.TEXT,
+                                   name + " " + this.username + " has left"));
+            this.channelLeft(channel);
+        }
+        this.sendDataToThis("You have left " + name);
+    }
+
+    /**
+     * This method removes the client from all of its channels when it
+     * disconnects and tells the other members.
+     */
+    private void leaveAllChannels(){
+        for (String name : this.joinedChannels){
+            ChannelRegistry.Channel channel = Main.channels.leave(name, this);
+            if (channel != null){
+                this.sendDataToChannel(channel, new Frame(Protocol.TEXT,
+                                       name + " " + this.username + " has left"));
+                this.channelLeft(channel);
+            }
+        }
+        this.joinedChannels.clear();
+    }
+
+    /**
+     * This method tells the members of a channel on the other servers of the
+     * federation, if any, that the client has left it.
+     * @param channel The channel the client has left.
+     */
+    private void channelLeft(ChannelRegistry.Channel channel){
+        if (Main.federation == null)
+            return;
+        Main.federation.channelChanged(channel.getName());
+        Main.federation.sendChannelMessage(channel.getName(), channel.getName()
+                + " " + this.username + " has left", "", "");
+    }
+
+    /**
+     * This method tells the client which channels it is in and how many
+     * members each has.
+     */
+    private void sendJoinedChannels(){
+        if (this.joinedChannels.isEmpty()){
+            this.sendDataToThis(String.format("You aren't in any channels, type "
+                    + "%s %sname to join or create one (%d channel(s) on this "
+                    + "server)", Protocol.JOIN_CMD, Protocol.CHANNEL_PREFIX,
+                    Main.channels.getNumChannels()));
+            return;
+        }
+        StringBuilder text = new StringBuilder("Your channels :");
+        for (String name : this.joinedChannels){
+            ChannelRegistry.Channel channel = Main.channels.get(name);
+            int numMembers = (channel != null) ? channel.getMembers().length : 0;
+            text.append(String.format("\n%s (%d member(s))", name, numMembers));
+        }
+        this.sendDataToThis(text.toString());
+    }
+
+    /**
+     * Returns the channel name a message starts with e.g. #friends for
+     * "#friends hello".
+     * @param text The received text.
+     * @return The first word of the text.
+     */
+    private String getChannelName(String text){
+        int index = text.indexOf(' ');
+        return (index < 0) ? text : text.substring(0, index);
+    }
+
+    /**
+     * Returns true if the text is a message to one of the client's channels,
+     * it starts with a valid channel name which the client has joined.  Other
+     * text starting with the channel prefix e.g. "#1 fan" is chat.
+     * @param text The received text.
+     * @return True if the text should be sent to a channel.
+     */
+    private boolean isChannelMessage(String text){
+        if (!text.startsWith(Protocol.CHANNEL_PREFIX))
+            return false;
+        String name = this.getChannelName(text);
+        return (Utilities.isChannelNameOk(name) &&
+                this.joinedChannels.contains(name));
+    }
+
+    /**
+     * This method sends a message to the other members of one of the
+     * client's channels (see isChannelMessage).  The members receive the
+     * message prefixed with the channel name and the sender's username e.g.
+     * #friends bill : hello
+     * Members on the other servers of the federation are sent it by way of
+     * the server owning the channel (see Federation).
+     * @param text The received text e.g. #friends hello
+     */
+    private void sendChannelMessage(String text){
+        String name = this.getChannelName(text);
+        String message = text.substring(name.length()).trim();
+        if (message.isEmpty()){
+            this.sendDataToThis("No message provided after the channel name, "
+                                + "try again...");
+            return;
+        }
+        ChannelRegistry.Channel channel = Main.channels.get(name);
+        if (channel == null) // Never should be null.
+            return;
+        String channelText = name + " " + this.username + " : " + message;
+        int numSent = this.sendDataToChannel(channel, new Frame(Protocol.TEXT,
+                                                                channelText));
+        if (Main.federation != null)
+            Main.federation.sendChannelMessage(name, channelText,
+                                               this.username, message);
+        else if (numSent == 0)
+            this.sendDataToThis("No other members are in " + name);
+        if (Main.messageLog != null)
+            Main.messageLog.append(MessageLog.CHANNEL, this.username, name,
+                                   message);
+    }
+
+    /**
+     * This method sends the client a page of the chat, PM and channel history
+     * kept by the message log, the latest messages or those before the last page
+     * sent.  Each message is sent as its own text frame, oldest first.
+     * @param isMore True to send the page before the last page sent, false
+     * to send the latest messages.
+     */
+    private void sendHistory(boolean isMore){
+        if (Main.messageLog == null){
+            this.sendDataToThis("This server doesn't keep a message history");
+            return;
+        }
+        long before = Long.MAX_VALUE;
+        if (isMore){
+            if (this.historyCursor < 0){
+                this.sendDataToThis("There are no older messages, type "
+                                    + "-history to see the latest messages");
+                return;
+            }
+            before = this.historyCursor;
+        }
+
+        MessageLog.Page page = Main.messageLog.readPage(this.username,
+                            this.joinedChannels, before, MessageLog.PAGE_SIZE);
+        this.historyCursor = page.getCursor();
+        if (page.getLines().isEmpty() && this.historyCursor >= 0){
+            this.sendDataToThis("There are no messages for you in this part of "
+                    + "the history, type -history more to search older messages");
             return;
-        
+        }
+        if (page.getLines().isEmpty()){
+            this.sendDataToThis("There are no messages in the history");
+            return;
+        }
+        this.sendDataToThis("Message history (oldest first) :");
+        for (String line : page.getLines())
+            this.sendDataToThis(line);
+        if (this.historyCursor >= 0)
+            this.sendDataToThis("Type -history more to see older messages");
+    }
+
+    /**
+     * This method updates the presence information status for the calling client.
+     * Validation occurs to ensure the status is legal etc.  Feedback is given
+     * to the user if an invalid status is provided.
+     * @param status The desired status value.
+     */
+    private void updatePresenceInformation(String status){
         // Ensure there is a status after the '-p' etc.
         try {
             status = status.trim();
@@ -862,7 +2412,7 @@ public class ClientConnection extends Thread {
             this.sendDataToThis("Presence status not detected, use '-p busy' etc.");
             return;
         }
-        
+
         // If the status is valid.
         if (Utilities.isValuePresent(Configuration.legalStatuses, status)){
             // Alert the client as to status update.
@@ -872,6 +2422,8 @@ public class ClientConnection extends Thread {
             else {
                 this.status = status;
                 this.sendDataToThis("Your presence status has been updated to '" + status + "'");
+                if (Main.federation != null)
+                    Main.federation.userStatusChanged(this.username, status);
             }
         }
         // Else if the status is invalid.
@@ -882,251 +2434,10 @@ public class ClientConnection extends Thread {
                 availableStatuses += ("'" + s + "', ");
             }
             availableStatuses = availableStatuses.substring(0, availableStatuses.lastIndexOf(',')).trim();
-            
+
             String msg = "'" + status + "' is not a legal presence status, try again...\n" +
             availableStatuses + "\nE.g. -p busy";
             this.sendDataToThis(msg);
         }
     }
-    
-    /**
-     * This method simply nullifies the existing timer thread (if present) and 
-     * starts a new timer thread instance.  The timer thread is used to 
-     * periodically send client connection requests to clients.  
-     */
-    private void startTimerThread(){
-        // Stop the timer instance if already initialised.
-        if (this.connectionTimer != null && this.connectionTimer.isAlive() &&
-                                        !this.connectionTimer.isInterrupted()){
-            this.connectionTimer.interrupt();
-        }
-        
-        // Create a new instance, name the timer thread and start the count down.
-        this.connectionTimer = new Timer(
-                    Configuration.getConnectionRequestDelayInSeconds());
-        
-        this.connectionTimer.setName(this.getName() + " - Connection Timer");
-        this.connectionTimer.start();
-    }
-
-    /**
-     * When a client connects a client connection thread is started which in 
-     * turn executes this method.  Therefore this method provides all client 
-     * interactions whether with itself or other clients. 
-     * 
-     * This method once started requests a password (if applicable) and username 
-     * from the client before starting a connection timer thread and entering 
-     * the continuous receive loop.
-     * 
-     * The receive loop waits (blocks) for a certain amount of time.  If data 
-     * is received (as a preview) then the connection timer is reset and the 
-     * data is processed through a if - else if tree.  If data is not received 
-     * within the allocated time frame then the isStillConnected() method is 
-     * called.  This method may or may not send a connection request to the 
-     * client depending on if the connection timer has expired or not. 
-     * 
-     * Any exceptions thrown from within this method are handled depending on 
-     * the type of exception thrown.  This can lead to a client disconnect or 
-     * a message being sent to the user etc.  Certain exceptions result in the 
-     * client being disconnected and this client connection instance being 
-     * nullified. For example if the client disconnects whilst this method is 
-     * in a receive block then the resulting exception will stop this thread 
-     * exiting the while(true) loop.  This therefore prevents an infinite loop 
-     * scenario from occurring.  
-     */
-    @Override
-    public void run(){
-        try {
-            
-            // Display welcome msg to user.
-            this.sendDataToThis(Utilities.getWelcomeMessage());
-            
-            // Set the receive block to last a max of CONNECTION_REQUEST_DELAY
-            // for the pasword and username receive reads.
-            this.socket.setSoTimeout(
-                       Configuration.getConnectionRequestDelayInMilliSeconds());
-            
-            // Request the yarn password for this server if necessary.
-            if (Configuration.isTheServerPasswordSet())
-                this.validatePasswordViaLogin();
-            
-            // Receive the clients username.
-            this.setUsernameViaLogin(); // Sets this.user & this.status vars.
-            this.sendDataToThis(("Your username is " + this.username + "\n\n" +
-                    "Start typing to have a yarn..."));
-            
-            this.socket.setSoTimeout(0); // Causes a receive block.
-            
-            // Tell the user how many other clients are currently connected.
-            Utilities.delay(100);
-            this.sendNumberOfConnectedClients();
-            
-            // Log this new connection.
-            Log.logClientConnected(this.socket, 
-                    Utilities.getNumAllConnectedClients(), this.username);
-
-            // Alert others that the user has entered.
-            String newUser = this.username + " has entered for a yarn";
-            this.sendDataToAllOtherClients(newUser);
-            
-            // Init and start the connection timer.
-            this.startTimerThread();
-
-            // Initialize variables for receiveData and echo loop.
-            String previewString;
-            String origDataString;
-            String updatedDataString;
-
-            while (true){ // Continuous receive loop.
-                try {
-                    // Wait for the file share to complete if necessary.
-                    while (this.isDataShareInProgress){
-                        Utilities.delay(Configuration.TRANSMISSION_DELAY);
-                    }
-                    
-                    // Get preview data and decide what to do, options below.
-                    try {
-                        previewString = this.receivePreviewDataFromThis(
-                                              Configuration.TRANSMISSION_DELAY);
-                        this.startTimerThread();
-                    }
-                    catch (Exception ex){
-                        if (!this.isStillConnected()) 
-                                throw new SocketException(String.format(
-                                           "Not connected: %s", this.username));
-                        continue;
-                    }
-
-                    // Send data out to clients or self (see options below).
-                    // The order within the if-else block below should be run
-                    // from most specific to least specific condition.
-                    
-                    // If the data is empty e.g. "" or a connection request is 
-                    // received when the server isn't expecting it do nothing.
-                    if (previewString.isEmpty() || previewString.equals(DataShare.CONNECTION_REQUEST)){
-                        this.skipAvailableData();
-                        continue;
-                    }
-
-                    // Displays the current number of connected clients.
-                    else if (previewString.equals("-c") || previewString.equals("-connections")){
-                        this.skipAvailableData();
-                        this.sendNumberOfConnectedClients();
-                    }
-
-                    // Lists the usernames of connected clients.
-                    else if (previewString.equals("-n") || previewString.equals("-names")){
-                        this.skipAvailableData();
-                        this.sendConnectedClientNames();
-                    }
-                    
-                    // -h command is handled internally by the client.
-
-                    // Stops listening server and disconnects all clients.
-                    else if (previewString.equals(Configuration.serverShutdownCommand)){
-                        if (!Configuration.serverShutdownCommand.trim().isEmpty()){
-                            if (this.username != null) 
-                                Log.logServerStop(username);
-                            this.sendDataToAllClients(
-                                    "Admin has shut down this server, please re/connect");
-                            System.out.println("SERVER HAS STOPPED (client admin request)");
-                            System.exit(0);
-                        }
-                    }
-                    
-                    // Do nothing if a file share response cmd is received when
-                    // it shouldn't, only the fileShare() method is concerned here.
-                    else if (previewString.equals(DataShare.DATA_SHARE_ACCEPT_CMD)
-                            || previewString.equals(DataShare.DATA_SHARE_DECLINE_CMD)){
-                        this.skipAvailableData();
-                    }
-          
-                    // Share command should contain the username and filepath.
-                    else if ((previewString.charAt(0) == '@' && 
-                              previewString.contains(DataShare.FILE_SHARE_SEND_CMD)) ||
-                             (previewString.charAt(0) == '@' && 
-                              previewString.contains(DataShare.VOICE_SHARE_SEND_CMD))){
-                        this.dataShare(previewString);
-                    }
-                    
-                    // Sends (PM) data to client(s) via the username(s).
-                    // E.g. "@bill Howdy bill? wdc?"
-                    else if (previewString.charAt(0) == '@'){
-                        // Receive full data and fit to exact sized array.
-                        origDataString = this.receiveDataFromThis();
-                        this.sendPrivateMessage(origDataString, this.username + " : ");
-                    }
-                    
-                    // Searches for connected clients with the given usernames.
-                    else if (previewString.startsWith("-s") || previewString.startsWith("-search")){
-                        origDataString = this.receiveDataFromThis();
-                        this.searchForConnectedClients(origDataString);
-                    }
-                    
-                    // Updates the clients presence info (status).
-                    else if (previewString.startsWith("-p") || previewString.startsWith("-presence")){
-                        origDataString = this.receiveDataFromThis();
-                        this.updatePresenceInformation(origDataString);
-                    }
-
-                    // Sends data to all other connected clients.
-                    else {
-                        // Check if there are other clients connected.
-                        if (Utilities.getNumOtherConnectedClients(this) == 0){
-                            this.skipAvailableData();
-                            if (!this.isDataShareInProgress())
-                                this.sendDataToThis("No other clients are connected");
-                        }
-                        else {
-                            // Receive full data and send it to all other clients.
-                            origDataString = this.receiveDataFromThis();
-                            updatedDataString = this.username + " : " + origDataString;
-                            this.sendDataToAllOtherClients(updatedDataString);
-                        }
-                    }
-                }
-                // For disconnecting when on a receiveData block on localhost.
-                catch (SocketException se){
-                    //System.out.println(se.getMessage()); // Print disconnects.
-                    this.disconnectOnException();
-                    break; // Breaks out of receiveData and echo loop.
-                }
-
-                // For disconnecting when on a receiveData block over LAN.
-                catch (NegativeArraySizeException nase){
-                    //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, nase);
-                    this.disconnectOnException();
-                    break; // Breaks out of receiveData and echo loop.
-                }
-
-                // Exceptions during loop are printed and then the loop
-                // commences again for each client connection.
-                catch (Exception ex){
-                    //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-        }
-        // For disconnecting when on a receiveData block on localhost.
-        catch (SocketException se){
-            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, se);
-            this.disconnect();
-        }
-        // For disconnecting when on a receiveData block over LAN.
-        catch (NegativeArraySizeException nase){
-            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, nase);
-            this.disconnect();
-        }
-        // For disconnecting a client if they haven't logged in on time.
-        catch (SocketTimeoutException ste){
-            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ste);
-            try {
-                this.sendDataToThis(
-                    "Your login timed out, please re-connect and try again...");
-            } catch (Exception ex){}
-            this.disconnect();
-        }
-        catch (Exception ex){
-            //Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
-        }
-    }
-}
\ No newline at end of file
+}
@@ -1,12 +1,17 @@
 
 package yarnserver;
 
+import java.io.File;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
+import yarnprotocol.FrameCompressor;
 
 /**
  * This class is used to contain configuration details for other classes in the
@@ -18,14 +23,26 @@ import org.w3c.dom.Node;
 public abstract class Configuration {
 
     public  static final double  VERSION                        = 1.0;
-    public  static final int     PREVIEW_BUFFER_SIZE            = 500;      // in bytes.
     public  static final int     DATA_BUFFER_SIZE               = 65535;    // in bytes.
     public  static final int     TRANSMISSION_DELAY             = 10;       // in milli seconds.
-    public  static final int     DATA_SHARE_SIZE_LIMIT          = 5242880;  // 5MB.
+    public  static final int     DATA_SHARE_WINDOW_SIZE         = 262144;   // in bytes.
     private static final int     CONNECTION_REQUEST_DELAY       = 15;       // in seconds.
     private static final double  CONNECTION_RESPONSE_TIMEOUT    = 2.5;      // in seconds.
     private static final int     DATA_SHARE_RESPONSE_TIMEOUT    = 300;      // in seconds.
     
+    // Slow client policies, see OutputQueue.
+    public  static final int     SLOW_CLIENT_DROP               = 0;
+    public  static final int     SLOW_CLIENT_COALESCE           = 1;
+    public  static final int     SLOW_CLIENT_DISCONNECT         = 2;
+    private static final String[] SLOW_CLIENT_POLICY_NAMES      = 
+                                 { "drop", "coalesce", "disconnect" };
+    
+    // Admission policies, see AdmissionController.
+    public  static final int     ADMISSION_QUEUE                = 0;
+    public  static final int     ADMISSION_EVICT                = 1;
+    private static final String[] ADMISSION_POLICY_NAMES        = 
+                                 { "queue", "evict" };
+    
     public  static String[]      illegalUsernames               = null;
     public  static String[]      illegalFileExtensions          = null;
     public  static String[]      legalStatuses                  = null;
@@ -37,6 +54,73 @@ public abstract class Configuration {
     public  static int           usernameAndPasswordCharLimit;
     public  static int           connectionLimit;
     public  static int           serverListeningPort;
+    public  static int           eventLoopThreads               = 
+                                 Runtime.getRuntime().availableProcessors();
+    public  static int           slowClientPolicy               = SLOW_CLIENT_COALESCE;
+    public  static long          slowClientQueueLimit           = 1048576;  // in bytes.
+    public  static int           slowClientQueueAge             = 30;       // in seconds.
+    public  static int           coalesceWindow                 = 0;        // in micro seconds.
+    public  static int           coalesceBytes                  = 65536;    // in bytes.
+    public  static int           admissionPolicy                = ADMISSION_QUEUE;
+    public  static int           admissionQueueLimit            = 50;
+    public  static long          dataShareSizeLimit             = 4294967296L; // 4GB.
+    public  static String        spoolDirectory                 = 
+                                 new File(System.getProperty("java.io.tmpdir"),
+                                          "yarn-spool").getPath();
+    public  static long          spoolSizeLimit                 = 10737418240L; // 10GB.
+    public  static int           spoolTTL                       = 300;      // in seconds.
+    public  static boolean       useCompression                 = true;
+    public  static int           compressionThreshold           = 
+                                 FrameCompressor.DEFAULT_THRESHOLD;  // in bytes.
+    
+    // Default rate limits per client and per source IP address, zero means
+    // unlimited (see RateLimiter).
+    public  static int           clientMessageRate              = 10;       // per second.
+    public  static int           clientMessageBurst             = 30;
+    public  static long          clientByteRate                 = 10485760; // in bytes per second.
+    public  static int           clientShareLimit               = 3;
+    public  static int           ipMessageRate                  = 30;       // per second.
+    public  static int           ipMessageBurst                 = 90;
+    public  static long          ipByteRate                     = 20971520; // in bytes per second.
+    public  static int           ipShareLimit                   = 6;
+    
+    // Default limits of the recent messages replayed to a client once it
+    // has logged in (see ReplayBuffer), zero disables the replay.
+    public  static int           replayBufferSize               = 262144;   // in bytes.
+    public  static int           replayMessageLimit             = 50;
+    public  static int           replayTimeLimit                = 60;       // in minutes.
+    
+    // Default message log configuration details (see MessageLog).
+    public  static boolean       useMessageLog                  = true;
+    public  static String        messageLogDirectory            = "yarn-message-log";
+    public  static int           messageLogSegmentSize          = 16777216; // 16MB.
+    public  static long          messageLogSizeLimit            = 1073741824L; // 1GB.
+    public  static int           messageLogRetention            = 30;       // in days.
+    public  static int           messageLogSyncInterval         = 100;      // in milliseconds.
+    
+    // Default maximum number of channels a client can be in at once (see 
+    // ChannelRegistry).
+    public  static int           channelLimit                   = 20;
+    
+    // Default limits of the PMs queued for users who aren't connected (see 
+    // OfflineQueue).
+    public  static boolean       useOfflineMessages             = true;
+    public  static String        offlineMessageDirectory        = "yarn-offline-messages";
+    public  static int           offlineMessageLimit            = 100;      // per user.
+    public  static long          offlineMessageUserSizeLimit    = 65536;    // 64KB per user.
+    public  static long          offlineMessageSenderSizeLimit  = 1048576;  // 1MB per sender.
+    public  static long          offlineMessageSizeLimit        = 104857600; // 100MB.
+    public  static int           offlineMessageTTL              = 7;        // in days.
+    public  static int           offlineMessageSyncInterval     = 100;      // in milliseconds.
+    
+    // Default federation details, the federation is only used if the port is
+    // set (see Federation).
+    public  static int           federationPort                 = 0;
+    public  static String        nodeName                       = "";       // hostname:port.
+    public  static String        federationPeers                = "";       // e.g. host:port, host:port
+    public  static String        federationPassword             = "";
+    public  static int           gossipInterval                 = 1000;     // in milliseconds.
+    public  static int           virtualNodes                   = 4096;     // per node.
     
     // Default proxy configuration details.
     public  static boolean       useProxy                       = false;
@@ -49,6 +133,13 @@ public abstract class Configuration {
     public  static boolean       useSecureComms                 = false;
     public  static String        keyStore                       = "";
     public  static String        keyStorePassword               = "";
+    public  static int           sslSessionCacheSize            = 10000;
+    public  static int           sslSessionTimeout              = 86400;    // in seconds.
+    public  static String        sslCipherSuites                = "";       // Comma separated.
+    public  static int           sslHandshakeThreads            = 
+                                 Runtime.getRuntime().availableProcessors();
+    public  static int           sslHandshakeQueueLimit         = 100;
+    public  static int           sslHandshakeTimeout            = 10;       // in seconds.
 
     /*************************************************************************/
     
@@ -106,6 +197,224 @@ public abstract class Configuration {
             node = doc.getElementsByTagName("server_listening_port").item(0);
             Configuration.serverListeningPort = Integer.parseInt(node.getTextContent());
             
+            // Optional, defaults to the number of available processors.
+            node = doc.getElementsByTagName("event_loop_threads").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.eventLoopThreads = Integer.parseInt(node.getTextContent().trim());
+            if (Configuration.eventLoopThreads < 1)
+                Configuration.eventLoopThreads = 1;
+            
+            // Optional, the slow client policy and thresholds.
+            node = doc.getElementsByTagName("slow_client_policy").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty()){
+                String policy = node.getTextContent().trim().toLowerCase();
+                int i = 0;
+                while (!Configuration.SLOW_CLIENT_POLICY_NAMES[i].equals(policy))
+                    i++; // An unknown policy causes an XML format error.
+                Configuration.slowClientPolicy = i;
+            }
+            
+            node = doc.getElementsByTagName("slow_client_queue_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.slowClientQueueLimit = Long.parseLong(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("slow_client_queue_age").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.slowClientQueueAge = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, the admission policy once the connection limit is reached.
+            node = doc.getElementsByTagName("admission_policy").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty()){
+                String policy = node.getTextContent().trim().toLowerCase();
+                int i = 0;
+                while (!Configuration.ADMISSION_POLICY_NAMES[i].equals(policy))
+                    i++; // An unknown policy causes an XML format error.
+                Configuration.admissionPolicy = i;
+            }
+            
+            node = doc.getElementsByTagName("admission_queue_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.admissionQueueLimit = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, how long (in micro seconds) to hold outbound messages
+            // so they are written together, zero (the default) writes them
+            // straight away, and the bytes which cause an early write.
+            node = doc.getElementsByTagName("coalesce_window").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.coalesceWindow = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("coalesce_bytes").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.coalesceBytes = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, the largest file size (in bytes) which can be shared.
+            node = doc.getElementsByTagName("data_share_size_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.dataShareSizeLimit = Long.parseLong(node.getTextContent().trim());
+            
+            // Optional, where data shares are spooled to and the spool limits.
+            node = doc.getElementsByTagName("spool_directory").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.spoolDirectory = node.getTextContent().trim();
+            
+            node = doc.getElementsByTagName("spool_size_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.spoolSizeLimit = Long.parseLong(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("spool_ttl").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.spoolTTL = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, whether clients may negotiate compression and the
+            // smallest frame payload (in bytes) worth compressing.
+            node = doc.getElementsByTagName("use_compression").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.useCompression = Boolean.parseBoolean(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("compression_threshold").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.compressionThreshold = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, the rate limits of each client and of each source IP
+            // address, messages per second, bytes per second and concurrent
+            // data shares.
+            node = doc.getElementsByTagName("client_message_rate").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.clientMessageRate = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("client_message_burst").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.clientMessageBurst = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("client_byte_rate").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.clientByteRate = Long.parseLong(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("client_share_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.clientShareLimit = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("ip_message_rate").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.ipMessageRate = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("ip_message_burst").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.ipMessageBurst = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("ip_byte_rate").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.ipByteRate = Long.parseLong(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("ip_share_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.ipShareLimit = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, the limits of the recent messages replayed to new 
+            // clients.
+            node = doc.getElementsByTagName("replay_buffer_size").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.replayBufferSize = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("replay_message_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.replayMessageLimit = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("replay_time_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.replayTimeLimit = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, where the chat and PM history is kept and its limits.
+            node = doc.getElementsByTagName("use_message_log").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.useMessageLog = Boolean.parseBoolean(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("message_log_directory").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.messageLogDirectory = node.getTextContent().trim();
+            
+            node = doc.getElementsByTagName("message_log_segment_size").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.messageLogSegmentSize = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("message_log_size_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.messageLogSizeLimit = Long.parseLong(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("message_log_retention").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.messageLogRetention = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("message_log_sync_interval").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.messageLogSyncInterval = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, the maximum number of channels per client.
+            node = doc.getElementsByTagName("channel_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.channelLimit = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, where the PMs for users who aren't connected are 
+            // queued and the queue's limits.
+            node = doc.getElementsByTagName("use_offline_messages").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.useOfflineMessages = Boolean.parseBoolean(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("offline_message_directory").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.offlineMessageDirectory = node.getTextContent().trim();
+            
+            node = doc.getElementsByTagName("offline_message_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.offlineMessageLimit = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("offline_message_user_size_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.offlineMessageUserSizeLimit = Long.parseLong(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("offline_message_sender_size_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.offlineMessageSenderSizeLimit = Long.parseLong(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("offline_message_size_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.offlineMessageSizeLimit = Long.parseLong(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("offline_message_ttl").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.offlineMessageTTL = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("offline_message_sync_interval").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.offlineMessageSyncInterval = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, the port other servers link to this one on, this 
+            // server's node name, the servers it links to, the gossip 
+            // interval and the points of each server on the hash ring.
+            node = doc.getElementsByTagName("federation_port").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.federationPort = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("node_name").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.nodeName = node.getTextContent().trim();
+            
+            node = doc.getElementsByTagName("federation_peers").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.federationPeers = node.getTextContent().trim();
+            
+            node = doc.getElementsByTagName("federation_password").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.federationPassword = node.getTextContent().trim();
+            
+            node = doc.getElementsByTagName("gossip_interval").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.gossipInterval = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("virtual_nodes").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.virtualNodes = Integer.parseInt(node.getTextContent().trim());
+            
             // Proxy config values.
             node = doc.getElementsByTagName("use_proxy").item(0);
             Configuration.useProxy = Boolean.parseBoolean(node.getTextContent());
@@ -133,6 +442,37 @@ public abstract class Configuration {
             node = doc.getElementsByTagName("key_store_password").item(0);
             Configuration.keyStorePassword = node.getTextContent();
             
+            // Optional, the size of the SSL session cache and how long (in
+            // seconds) a session can be resumed for.
+            node = doc.getElementsByTagName("ssl_session_cache_size").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.sslSessionCacheSize = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("ssl_session_timeout").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.sslSessionTimeout = Integer.parseInt(node.getTextContent().trim());
+            
+            // Optional, the comma separated cipher suites to enable in order
+            // of preference, empty (the default) prefers the AES-GCM suites.
+            node = doc.getElementsByTagName("ssl_cipher_suites").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.sslCipherSuites = node.getTextContent().trim();
+            
+            // Optional, the number of handshake threads, how many accepted
+            // connections can wait for one and the handshake timeout (in
+            // seconds).
+            node = doc.getElementsByTagName("ssl_handshake_threads").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.sslHandshakeThreads = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("ssl_handshake_queue_limit").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.sslHandshakeQueueLimit = Integer.parseInt(node.getTextContent().trim());
+            
+            node = doc.getElementsByTagName("ssl_handshake_timeout").item(0);
+            if (node != null && !node.getTextContent().trim().isEmpty())
+                Configuration.sslHandshakeTimeout = Integer.parseInt(node.getTextContent().trim());
+            
             // Get local hostname and IP address.
             Configuration.hostname  = InetAddress.getLocalHost().getHostName();
             Configuration.ipAddr    = 
@@ -170,6 +510,102 @@ public abstract class Configuration {
         System.out.println(Configuration.connectionLimit);
         System.out.print("SERVER_LISTENING_PORT: ");
         System.out.println(Configuration.serverListeningPort);
+        System.out.print("EVENT_LOOP_THREADS: ");
+        System.out.println(Configuration.eventLoopThreads);
+        System.out.print("SLOW_CLIENT_POLICY: ");
+        System.out.println(Configuration.getSlowClientPolicyName());
+        System.out.print("SLOW_CLIENT_QUEUE_LIMIT: ");
+        System.out.println(Configuration.slowClientQueueLimit);
+        System.out.print("SLOW_CLIENT_QUEUE_AGE: ");
+        System.out.println(Configuration.slowClientQueueAge);
+        System.out.print("COALESCE_WINDOW: ");
+        System.out.println(Configuration.coalesceWindow);
+        System.out.print("COALESCE_BYTES: ");
+        System.out.println(Configuration.coalesceBytes);
+        System.out.print("ADMISSION_POLICY: ");
+        System.out.println(Configuration.ADMISSION_POLICY_NAMES[Configuration.admissionPolicy]);
+        System.out.print("ADMISSION_QUEUE_LIMIT: ");
+        System.out.println(Configuration.admissionQueueLimit);
+        System.out.print("DATA_SHARE_SIZE_LIMIT: ");
+        System.out.println(Configuration.dataShareSizeLimit);
+        System.out.print("SPOOL_DIRECTORY: ");
+        System.out.println(Configuration.spoolDirectory);
+        System.out.print("SPOOL_SIZE_LIMIT: ");
+        System.out.println(Configuration.spoolSizeLimit);
+        System.out.print("SPOOL_TTL: ");
+        System.out.println(Configuration.spoolTTL);
+        System.out.print("USE_COMPRESSION: ");
+        System.out.println(Configuration.useCompression);
+        System.out.print("COMPRESSION_THRESHOLD: ");
+        System.out.println(Configuration.compressionThreshold);
+        System.out.print("CLIENT_MESSAGE_RATE: ");
+        System.out.println(Configuration.clientMessageRate);
+        System.out.print("CLIENT_MESSAGE_BURST: ");
+        System.out.println(Configuration.clientMessageBurst);
+        System.out.print("CLIENT_BYTE_RATE: ");
+        System.out.println(Configuration.clientByteRate);
+        System.out.print("CLIENT_SHARE_LIMIT: ");
+        System.out.println(Configuration.clientShareLimit);
+        System.out.print("IP_MESSAGE_RATE: ");
+        System.out.println(Configuration.ipMessageRate);
+        System.out.print("IP_MESSAGE_BURST: ");
+        System.out.println(Configuration.ipMessageBurst);
+        System.out.print("IP_BYTE_RATE: ");
+        System.out.println(Configuration.ipByteRate);
+        System.out.print("IP_SHARE_LIMIT: ");
+        System.out.println(Configuration.ipShareLimit);
+        System.out.print("REPLAY_BUFFER_SIZE: ");
+        System.out.println(Configuration.replayBufferSize);
+        System.out.print("REPLAY_MESSAGE_LIMIT: ");
+        System.out.println(Configuration.replayMessageLimit);
+        System.out.print("REPLAY_TIME_LIMIT: ");
+        System.out.println(Configuration.replayTimeLimit);
+        System.out.print("USE_MESSAGE_LOG: ");
+        System.out.println(Configuration.useMessageLog);
+        if (Configuration.useMessageLog){
+            System.out.print("MESSAGE_LOG_DIRECTORY: ");
+            System.out.println(Configuration.messageLogDirectory);
+            System.out.print("MESSAGE_LOG_SEGMENT_SIZE: ");
+            System.out.println(Configuration.messageLogSegmentSize);
+            System.out.print("MESSAGE_LOG_SIZE_LIMIT: ");
+            System.out.println(Configuration.messageLogSizeLimit);
+            System.out.print("MESSAGE_LOG_RETENTION: ");
+            System.out.println(Configuration.messageLogRetention);
+            System.out.print("MESSAGE_LOG_SYNC_INTERVAL: ");
+            System.out.println(Configuration.messageLogSyncInterval);
+        }
+        System.out.print("CHANNEL_LIMIT: ");
+        System.out.println(Configuration.channelLimit);
+        System.out.print("USE_OFFLINE_MESSAGES: ");
+        System.out.println(Configuration.useOfflineMessages);
+        if (Configuration.useOfflineMessages){
+            System.out.print("OFFLINE_MESSAGE_DIRECTORY: ");
+            System.out.println(Configuration.offlineMessageDirectory);
+            System.out.print("OFFLINE_MESSAGE_LIMIT: ");
+            System.out.println(Configuration.offlineMessageLimit);
+            System.out.print("OFFLINE_MESSAGE_USER_SIZE_LIMIT: ");
+            System.out.println(Configuration.offlineMessageUserSizeLimit);
+            System.out.print("OFFLINE_MESSAGE_SENDER_SIZE_LIMIT: ");
+            System.out.println(Configuration.offlineMessageSenderSizeLimit);
+            System.out.print("OFFLINE_MESSAGE_SIZE_LIMIT: ");
+            System.out.println(Configuration.offlineMessageSizeLimit);
+            System.out.print("OFFLINE_MESSAGE_TTL: ");
+            System.out.println(Configuration.offlineMessageTTL);
+            System.out.print("OFFLINE_MESSAGE_SYNC_INTERVAL: ");
+            System.out.println(Configuration.offlineMessageSyncInterval);
+        }
+        System.out.print("FEDERATION_PORT: ");
+        System.out.println(Configuration.federationPort);
+        if (Configuration.federationPort > 0){
+            System.out.print("NODE_NAME: ");
+            System.out.println(Configuration.getNodeName());
+            System.out.print("FEDERATION_PEERS: ");
+            System.out.println(Configuration.federationPeers);
+            System.out.print("GOSSIP_INTERVAL: ");
+            System.out.println(Configuration.gossipInterval);
+            System.out.print("VIRTUAL_NODES: ");
+            System.out.println(Configuration.virtualNodes);
+        }
         
         // Print proxy details.
         System.out.print("USE_PROXY: ");
@@ -197,6 +633,18 @@ public abstract class Configuration {
             for (int i = 0; i < Configuration.keyStorePassword.length(); i++)
                 System.out.print("*");
             System.out.println();
+            System.out.print("SSL_SESSION_CACHE_SIZE: ");
+            System.out.println(Configuration.sslSessionCacheSize);
+            System.out.print("SSL_SESSION_TIMEOUT: ");
+            System.out.println(Configuration.sslSessionTimeout);
+            System.out.print("SSL_CIPHER_SUITES: ");
+            System.out.println(Configuration.sslCipherSuites);
+            System.out.print("SSL_HANDSHAKE_THREADS: ");
+            System.out.println(Configuration.sslHandshakeThreads);
+            System.out.print("SSL_HANDSHAKE_QUEUE_LIMIT: ");
+            System.out.println(Configuration.sslHandshakeQueueLimit);
+            System.out.print("SSL_HANDSHAKE_TIMEOUT: ");
+            System.out.println(Configuration.sslHandshakeTimeout);
         }
         System.out.println();
         
@@ -285,4 +733,102 @@ public abstract class Configuration {
         double d = (Configuration.DATA_SHARE_RESPONSE_TIMEOUT * 1000);
         return (int) d;
     }
+    
+    /**
+     * Returns the slowClientQueueAge variable value in milliseconds.
+     * @return The slowClientQueueAge variable value in milliseconds.
+     */
+    public static long getSlowClientQueueAgeInMilliSeconds(){
+        return (Configuration.slowClientQueueAge * 1000L);
+    }
+    
+    /**
+     * Returns the sslHandshakeTimeout variable value in milliseconds.
+     * @return The sslHandshakeTimeout variable value in milliseconds.
+     */
+    public static int getSSLHandshakeTimeoutInMilliSeconds(){
+        return (Configuration.sslHandshakeTimeout * 1000);
+    }
+    
+    /**
+     * Returns the coalesceWindow variable value in nanoseconds.
+     * @return The coalesceWindow variable value in nanoseconds.
+     */
+    public static long getCoalesceWindowInNanoSeconds(){
+        return (Configuration.coalesceWindow * 1000L);
+    }
+    
+    /**
+     * Returns the spoolTTL variable value in milliseconds.
+     * @return The spoolTTL variable value in milliseconds.
+     */
+    public static long getSpoolTTLInMilliSeconds(){
+        return (Configuration.spoolTTL * 1000L);
+    }
+    
+    /**
+     * Returns the replayTimeLimit variable value in milliseconds.
+     * @return The replayTimeLimit variable value in milliseconds.
+     */
+    public static long getReplayTimeLimitInMilliSeconds(){
+        return (Configuration.replayTimeLimit * 60000L);
+    }
+    
+    /**
+     * Returns the messageLogRetention variable value in milliseconds.
+     * @return The messageLogRetention variable value in milliseconds.
+     */
+    public static long getMessageLogRetentionInMilliSeconds(){
+        return (Configuration.messageLogRetention * 86400000L);
+    }
+    
+    /**
+     * Returns the offlineMessageTTL variable value in milliseconds.
+     * @return The offlineMessageTTL variable value in milliseconds.
+     */
+    public static long getOfflineMessageTTLInMilliSeconds(){
+        return (Configuration.offlineMessageTTL * 86400000L);
+    }
+    
+    /**
+     * Returns the node name of this server, hostname:federationPort if it 
+     * isn't set.
+     * @return The node name.
+     */
+    public static String getNodeName(){
+        if (!Configuration.nodeName.isEmpty())
+            return Configuration.nodeName;
+        return (Configuration.hostname + ":" + Configuration.federationPort);
+    }
+    
+    /**
+     * Returns the addresses of the federationPeers variable value e.g. 
+     * "localhost:5001, localhost:5002", invalid addresses are ignored.
+     * @return The peer addresses.
+     */
+    public static List<InetSocketAddress> getFederationPeerAddresses(){
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        for (String peer : Configuration.federationPeers.split(",")){
+            peer = peer.trim();
+            int index = peer.lastIndexOf(':');
+            if (index <= 0)
+                continue;
+            try {
+                peers.add(new InetSocketAddress(peer.substring(0, index), 
+                        Integer.parseInt(peer.substring(index + 1))));
+            }
+            catch (Exception ex){
+                System.out.println("Invalid federation peer ignored : " + peer);
+            }
+        }
+        return peers;
+    }
+    
+    /**
+     * Returns the name of the slow client policy e.g. "drop".
+     * @return The slowClientPolicy variable value as text.
+     */
+    public static String getSlowClientPolicyName(){
+        return Configuration.SLOW_CLIENT_POLICY_NAMES[Configuration.slowClientPolicy];
+    }
 }
\ No newline at end of file
@@ -1,185 +1,832 @@
 
 package yarnserver;
 
-import java.io.BufferedInputStream;
-import java.net.SocketTimeoutException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import yarnprotocol.DataShareChunk;
+import yarnprotocol.DataShareHeader;
+import yarnprotocol.Frame;
+import yarnprotocol.PossessionProof;
+import yarnprotocol.Protocol;
+import yarnprotocol.ProtocolUtilities;
 
 /**
- * This class is responsible for the negotiation and transfer of file and voice 
- * data between clients.  
- * 
- * This class also contains static final variables which 
- * are used as the protocol commands when transmitting data.  
+ * This class is responsible for the negotiation and transfer of file and voice
+ * data between clients.
+ *
+ * The data share is driven by the event loops of the clients involved.  As
+ * soon as the sending client's data share command arrives a spool file is
+ * created for the data share (see ShareSpool), the sending client is told to
+ * send the file data and the receiving clients are sent a data share request.
+ * The file data is spooled to disk as it arrives while the receiving clients
+ * decide, each response is processed on the receiving client's own event loop
+ * and each accepting client is then sent the data from the spool file at its
+ * own pace.  A receiving client which accepts late or reads slowly therefore
+ * holds up neither the sending client nor the other receiving clients, and the
+ * file is never held in memory.  No thread is created or blocked per data
+ * share.
+ *
+ * If the sending client offered a content hash which the spool already has
+ * the data for (see ShareSpool) the upload is skipped and the accepting
+ * clients are sent the cached data instead.  If an earlier upload of the same
+ * content was interrupted the sending client is told to resume it from the
+ * last verified chunk.  Either way the sending client must first prove it
+ * has the data (see PossessionProof), the data share requests aren't sent
+ * until it has answered and a wrong answer means a fresh upload.  Likewise
+ * each receiving client says which offset to send the data from, so a partly
+ * received file can be resumed.
+ *
+ * Users connected to other nodes of the federation are sent the data share
+ * by relays (see DataShareRelay) which stream the spooled data to their
+ * nodes.  On the receiving node the relayed data share is a data share with
+ * no sending client: its data arrives from the sending node and the messages
+ * for the sending client are sent back to it there.
+ *
+ * The spool file is released once every receiving client has responded and
+ * every accepting client (and relay) has received (or failed to receive) the
+ * data.
  * @author Michael Telford
  */
 public class DataShare {
-    
-    // Protocol variables.
-    public static final String CONNECTION_REQUEST      = "{###}";
-    public static final String VOICE_SHARE_SEND_CMD    = " *\"";   //  *"
-    public static final String FILE_SHARE_SEND_CMD     = " ^\"";   //  ^"
-    public static final String DATA_SHARE_RECEIVE_CMD  = "^\"\"^"; // ^""^
-    public static final String DATA_SHARE_ACCEPT_CMD   = "^-accept";
-    public static final String DATA_SHARE_DECLINE_CMD  = "^-reject";
-    public static final String VOICE_SHARE_IMMINENT_DATA_CMD = 
-                    String.format("%s-*", DataShare.DATA_SHARE_RECEIVE_CMD);
-    public static final String FILE_SHARE_IMMINENT_DATA_CMD = 
-                    String.format("%s-^", DataShare.DATA_SHARE_RECEIVE_CMD);
-    
-    private ClientConnection sendingClient;
-    private String fileName;
-    private byte[] fileData;
-    private int fileSize;
-    
-    /**
-     * The constructor sets the sendingClient and fileName instance variables. 
+
+    private static final int   DATA_SHARE_REQUEST_TIMEOUT = 20; // in seconds.
+
+    private ClientConnection   sendingClient;   // Null if relayed here.
+    private String             sendingUsername;
+    private String             sendingNode     = null;
+    private String             relayId         = null;
+    private ClientConnection[] receivingClients;
+    private DataShareRelay[]   relays;
+    private String             fileName;
+    private long               fileSize;
+    private boolean            isAFileShare;
+    private String             contentHash;
+    private SpoolFile          spool           = null;
+    private boolean            isCached        = false;
+
+    // Progress of the data share, guarded by this instance.
+    private final List<ClientConnection> acceptingClients =
+                                         new ArrayList<ClientConnection>();
+    private final List<DataShareRelay>   acceptingRelays  =
+                                         new ArrayList<DataShareRelay>();
+    private int                numResponsesPending;
+    private boolean            isStarted       = false;
+    private boolean            isUploading     = true;
+    private boolean            isCancelled     = false;
+    private String             cancelMessage   = null;
+    private boolean            isReleased      = false;
+
+    // Only accessed by the sending client's event loop.
+    private long               uploadStartTime = 0;
+    private byte[]             expectedProof   = null;
+    private final TimingWheel.Timeout idleTimeout =
+                               new TimingWheel.Timeout(new Runnable(){
+        public void run(){
+            checkIdle();
+        }
+    });
+
+    /**
+     * The constructor sets the instance variables describing the data share.
      * @param sendingClient The client sending the file to other files.
-     * @param fileName The name of file being transmitted.  Voice transfers are 
-     * sent as files.  
+     * @param receivingClients The clients the data share is being sent to.
+     * @param remoteUsers The nodes of the users of other nodes the data
+     * share is being sent to by username.
+     * @param fileName The name of file being transmitted.  Voice transfers are
+     * sent as files.
+     * @param fileSize The size of the file being shared.
+     * @param isAFileShare True if a file is being transmitted, false if a
+     * voice recording is being transmitted.
+     * @param contentHash The content hash of the file offered by the sending
+     * client or null if none was offered.
      */
-    public DataShare(ClientConnection sendingClient, String fileName){
-        this.sendingClient = sendingClient;
-        this.fileName = fileName;
+    public DataShare(ClientConnection   sendingClient,
+                     ClientConnection[] receivingClients,
+                     Map<String, String> remoteUsers,
+                     String             fileName,
+                     long               fileSize,
+                     boolean            isAFileShare,
+                     String             contentHash){
+        this.sendingClient       = sendingClient;
+        this.sendingUsername     = sendingClient.getUsername();
+        this.receivingClients    = receivingClients;
+        this.relays              = new DataShareRelay[remoteUsers.size()];
+        this.fileName            = fileName;
+        this.fileSize            = fileSize;
+        this.isAFileShare        = isAFileShare;
+        this.contentHash         = contentHash;
+        int i = 0;
+        for (Map.Entry<String, String> user : remoteUsers.entrySet())
+            this.relays[i++] = new DataShareRelay(this, user.getKey(),
+                                                  user.getValue());
+        this.numResponsesPending = receivingClients.length + this.relays.length;
     }
-    
+
     /**
-     * This method is responsible for receiving the file data from the sending 
-     * client.  The file data is stored in the fileData variable and is accessed 
-     * from other methods in this class.  This method is used for both file and 
-     * voice data.  
+     * The constructor of a data share relayed to a client of this node by
+     * another node of the federation (see DataShareRelay).  Must be called
+     * on the receiving client's event loop, which drives the data share.
+     * @param sendingUsername The username of the sending client.
+     * @param sendingNode The node of the sending client.
+     * @param relayId The id of the relay on the sending node.
+     * @param receivingClient The client the data share is being sent to.
+     * @param fileName The name of file being transmitted.
      * @param fileSize The size of the file being shared.
-     * @param cmdLength The size of the protocol command which prepends the file 
-     * data.
-     * @return The number of data bytes received.
-     * @throws Exception If a receive error occurs.
-     */
-    public int receiveData(int fileSize, int cmdLength) throws Exception {        
-        BufferedInputStream input = this.sendingClient.getBufferedInputStream();
-        this.fileSize = fileSize;
-        fileSize += cmdLength;
-        byte[] byteData = new byte[fileSize];
-        
-        int bytesReceived = 0;
-        while (bytesReceived < fileSize){
-            int bytesLeft = (fileSize - bytesReceived);
-            int numBytesToReceive = Configuration.DATA_BUFFER_SIZE;
-            if (bytesLeft < Configuration.DATA_BUFFER_SIZE)
-                numBytesToReceive = bytesLeft;
-
-            int received = input.read(byteData, bytesReceived, numBytesToReceive);
-            if (received != numBytesToReceive)
-                numBytesToReceive = received;
-            bytesReceived += numBytesToReceive;
-        }
-        
-        if (bytesReceived != fileSize)
-            throw new Exception("File size doesn't match the number of bytes received");
-        this.fileData = byteData;
-        return bytesReceived;
-    }
-    
-    /**
-     * This method is responsible for contacting the receiving client to 
-     * determine whether or not the user wants to accept the data share.  The 
-     * user is provided data share details to help base their decision on.  
-     * Once the data share request is sent to the receiving client there is a 
-     * given amount of time for the client to respond before this method 
-     * automatically takes the response to be 'reject' stopping the data share.
+     * @param isAFileShare True if a file is being transmitted, false if a
+     * voice recording is being transmitted.
+     * @param contentHash The content hash of the file offered by the sending
+     * client or null if none was offered.
+     */
+    public DataShare(String           sendingUsername,
+                     String           sendingNode,
+                     String           relayId,
+                     ClientConnection receivingClient,
+                     String           fileName,
+                     long             fileSize,
+                     boolean          isAFileShare,
+                     String           contentHash){
+        this.sendingClient       = null;
+        this.sendingUsername     = sendingUsername;
+        this.sendingNode         = sendingNode;
+        this.relayId             = relayId;
+        this.receivingClients    = new ClientConnection[]{receivingClient};
+        this.relays              = new DataShareRelay[0];
+        this.fileName            = fileName;
+        this.fileSize            = fileSize;
+        this.isAFileShare        = isAFileShare;
+        this.contentHash         = contentHash;
+        this.numResponsesPending = 1;
+    }
+
+    /**
+     * Returns the username of the sending client.
+     * @return The sending client's username.
+     */
+    public String getSendingUsername(){
+        return this.sendingUsername;
+    }
+
+    /**
+     * Returns the node of the sending client if the data share was relayed
+     * to this node.
+     * @return The node name or null if the sending client is a client of
+     * this node.
+     */
+    public String getSendingNode(){
+        return this.sendingNode;
+    }
+
+    /**
+     * Returns the id of the relay on the sending node if the data share was
+     * relayed to this node.
+     * @return The id or null if the sending client is a client of this node.
+     */
+    public String getRelayId(){
+        return this.relayId;
+    }
+
+    /**
+     * Returns the content hash of the file offered by the sending client.
+     * @return The content hash or null if none was offered.
+     */
+    public String getContentHash(){
+        return this.contentHash;
+    }
+
+    /**
+     * Returns the name of the file being shared.
+     * @return The file name.
+     */
+    public String getFileName(){
+        return this.fileName;
+    }
+
+    /**
+     * Returns the size of the file being shared.
+     * @return The file size in bytes.
+     */
+    public long getFileSize(){
+        return this.fileSize;
+    }
+
+    /**
+     * Returns whether a file or a voice recording is being shared.
+     * @return True for a file share, false for a voice share.
+     */
+    public boolean isAFileShare(){
+        return this.isAFileShare;
+    }
+
+    /**
+     * This method begins the data share on the sending client's event loop.
+     * If the spool has the file cached (or partly spooled to resume) the
+     * sending client is challenged to prove it has the data and the data
+     * share starts once it answers (see receiveProof()), otherwise a spool
+     * file is created and the data share starts straight away.  A data share
+     * relayed to this node is always spooled afresh.
+     * @return True if the data share has begun, false if there is no space
+     * in the spool for the data share.
+     */
+    public boolean begin(){
+        this.uploadStartTime = System.currentTimeMillis();
+        this.spool = (this.sendingClient != null) ?
+                     Main.spool.lookup(this, this.contentHash) : null;
+        if (this.spool != null){
+            if (!this.sendProofChallenge()){
+                Main.spool.release(this.spool, this);
+                return false;
+            }
+            this.scheduleIdleCheck();
+            return true;
+        }
+        if (!this.createSpool())
+            return false;
+        this.scheduleIdleCheck();
+        this.start();
+        return true;
+    }
+
+    /**
+     * Challenges the sending client to prove it has the data of the spool
+     * file found by the spool, a random range of the file if it is cached or
+     * of the part spooled so far if the upload is to be resumed.  The
+     * expected answer is kept until the client responds.
+     * @return True if the challenge was sent, false if the spool file can't
+     * be read.
+     */
+    private boolean sendProofChallenge(){
+        PossessionProof proof = PossessionProof.create(this.spool.getLength());
+        ByteBuffer range = ByteBuffer.allocate(proof.getLength());
+        try {
+            this.spool.read(proof.getOffset(), range);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(DataShare.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+        this.expectedProof = proof.answer(range.array());
+        this.sendingClient.sendFrameToThis(new Frame(Protocol.DATA_SHARE_PROOF,
+                                                     proof.encode()));
+        return true;
+    }
+
+    /**
+     * This method processes the sending client's answer to the proof of
+     * possession on its event loop.  If correct the spool file found by the
+     * spool is reused, otherwise the file is uploaded afresh to a new spool
+     * file.  The data share then starts unless it has been stopped (e.g.
+     * expired) meanwhile.  An answer which wasn't asked for is ignored.
+     * @param payload The DATA_SHARE_PROOF frame payload.
+     */
+    public void receiveProof(byte[] payload){
+        if (this.expectedProof == null)
+            return;
+        boolean isProven = PossessionProof.isCorrect(this.expectedProof, payload);
+        this.expectedProof = null;
+        synchronized (this){
+            if (this.isCancelled)
+                return;
+        }
+        this.spool = Main.spool.confirm(this, this.spool, isProven);
+        if (this.spool == null){
+            if (!this.createSpool()){
+                this.stop("The server is too busy to accept your data share, "
+                          + "try again later...", true);
+                return;
+            }
+            this.scheduleIdleCheck();
+        }
+        this.start();
+    }
+
+    /**
+     * Creates a new spool file for the data share.
+     * @return True if created, false if there is no space in the spool.
+     */
+    private boolean createSpool(){
+        try {
+            this.spool = Main.spool.create(this, this.contentHash);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(DataShare.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return (this.spool != null);
+    }
+
+    /**
+     * This method starts the data share once its spool file is settled.  If
+     * the spool has the file cached the sending client is told it needn't
+     * send the file data, otherwise it is told which offset to send the file
+     * data from.  The data share requests are then sent.
+     */
+    private void start(){
+        synchronized (this){
+            if (this.isCancelled)
+                return;
+            this.isStarted = true;
+        }
+        this.isCached = this.spool.isComplete();
+        // The sending node of a relayed data share streams the data once it
+        // has been accepted.
+        if (this.sendingClient != null){
+            if (this.isCached)
+                this.sendingClient.sendFrameToThis(new Frame(Protocol.DATA_SHARE_CACHED));
+            else
+                this.sendingClient.sendFrameToThis(new Frame(Protocol.DATA_SHARE_READY,
+                              DataShareChunk.encodeOffset(this.spool.getLength())));
+        }
+        this.sendDataShareRequests();
+        if (this.spool.isComplete())
+            this.uploadComplete();
+    }
+
+    /**
+     * This method sends the data share request to each receiving client.
+     * Each request is sent on the receiving client's own event loop because
+     * that is where the receiving client's data share state lives.  Receiving
+     * clients which are already processing a data share are skipped and the
+     * sending client is alerted, a skipped client counts as having responded.
+     * The data share is offered to the nodes of the receiving users of other
+     * nodes, a user whose node can't be reached counts as having responded.
+     */
+    private void sendDataShareRequests(){
+        for (DataShareRelay relay : this.relays){
+            if (!relay.offer(this.spool)){
+                this.notifySender("Your data share has not been sent to " +
+                                  relay.getUsername() + ", their server (" +
+                                  relay.getNode() + ") can't be reached");
+                this.responseReceived();
+            }
+        }
+        for (final ClientConnection receivingClient : this.receivingClients){
+            receivingClient.getEventLoop().execute(new Runnable(){
+                public void run(){
+                    synchronized (DataShare.this){
+                        if (isCancelled){
+                            responseReceived();
+                            return;
+                        }
+                    }
+                    // Check that the desired client isn't already in a data share.
+                    if (!receivingClient.beginDataShare(DataShare.this)){
+                        String msg = receivingClient.getUsername() +
+                                " is already processing a data share, try again later...";
+                        notifySender(msg);
+                        responseReceived();
+                        return;
+                    }
+                    sendDataShareRequest(receivingClient);
+                }
+            });
+        }
+    }
+
+    /**
+     * This method is responsible for contacting the receiving client to
+     * determine whether or not the user wants to accept the data share.  The
+     * user is provided data share details to help base their decision on.
+     * Once the data share request is sent to the receiving client there is a
+     * given amount of time for the client to respond (see
+     * getRequestTimeoutInMilliSeconds()) before the receiving client's event
+     * loop automatically takes the response to be 'reject' stopping the data
+     * share.
      * @param receivingClient A receiving client of the data share.
-     * @param isAFileShare True if a file is being transmitted, false if a 
-     * voice recording is being transmitted.  
-     * @return True if the receiving client wishes to receive the file, 
-     * otherwise false is returned.  
-     * @throws Exception If a send or receive error occurs.  
-     */
-    public boolean isDataShareAccepted(ClientConnection receivingClient, 
-                                       boolean isAFileShare) throws Exception {
+     */
+    private void sendDataShareRequest(ClientConnection receivingClient){
         // Determine the data type - file or voice.
         String dataType = "file";
-        if (!isAFileShare)
+        if (!this.isAFileShare)
             dataType = "voice recording";
-        
+
         // Ask the receiving client do they wish to receive the data share.
-        String msg = String.format("%s%s wants to send you the %s '%s' "
+        String msg = String.format("%s wants to send you the %s '%s' "
                      + "(%s bytes)\nDo you wish to accept this %s transfer?"
-                     + "\nYou have 10 seconds to respond",
-                     DataShare.DATA_SHARE_RECEIVE_CMD, 
-                     this.sendingClient.getUsername(),
+                     + "\nYou have %s seconds to respond",
+                     this.sendingUsername,
                      dataType,
-                     this.fileName, 
+                     this.fileName,
                      this.fileSize,
-                     dataType);
-        receivingClient.sendDataToThis(msg);
+                     dataType,
+                     DataShare.DATA_SHARE_REQUEST_TIMEOUT);
+        receivingClient.sendFrameToThis(new Frame(Protocol.DATA_SHARE_REQUEST, msg));
+    }
 
-        // Receive the response.
-        String response;
-        try {
-            int timeoutInSeconds = 20;
-            response = receivingClient.receivePreviewDataFromThis(timeoutInSeconds * 1000);
-            receivingClient.skipAvailableData();
-        }
-        catch (SocketTimeoutException ste){
-            return false;
-        }
-        
-        // Return the client response.
-        if (response.trim().equals(DataShare.DATA_SHARE_ACCEPT_CMD))
-            return true;
-        else
-            return false;
+    /**
+     * Returns the amount of time a receiving client has to respond to a data
+     * share request.
+     * @return The request timeout in milliseconds.
+     */
+    public static int getRequestTimeoutInMilliSeconds(){
+        return (DataShare.DATA_SHARE_REQUEST_TIMEOUT * 1000);
     }
-    
+
     /**
-     * This method is responsible for sending data to a receiving client.  The 
-     * data being sent depends upon whether or not the data share has been 
-     * accepted.  If accepted the file data is sent, if rejected both the 
-     * sending and receiving clients involved are notified of the rejection.  
+     * This method processes a receiving client's response to the data share
+     * request on the receiving client's event loop.  If accepted the data
+     * share header is sent to the receiving client followed by the data
+     * spooled so far, if rejected both the sending and receiving clients
+     * involved are notified of the rejection.  A client accepting a data
+     * share which has since been cancelled is told so straight away.  The
+     * sending node of a relayed data share is told the response so that it
+     * streams the data if it was accepted.
      * @param receivingClient A receiving client of the data share.
-     * @param isDataShareAccepted True if the receiving client has accepted the 
-     * data share, false otherwise.  
-     * @param isAFileShare True if the data share contains file data, false if 
-     * the data share contains voice recording data.  
-     * @throws Exception If a send or receive error occurs.  
-     */
-    public void sendData(ClientConnection receivingClient, 
-                         boolean isDataShareAccepted, 
-                         boolean isAFileShare) throws Exception {
-        // If yes then send the file to the receiving client.
+     * @param isDataShareAccepted True if the receiving client has accepted the
+     * data share, false otherwise.
+     */
+    public void processResponse(ClientConnection receivingClient,
+                                boolean isDataShareAccepted){
+        // If yes then send the spooled data to the receiving client.
         if (isDataShareAccepted){
-            
-            // Determine the data type being transfered.
-            String dataType = "file";
-            String protocol = DataShare.FILE_SHARE_IMMINENT_DATA_CMD;
-            if (!isAFileShare){
-                dataType = "voice recording";
-                protocol = DataShare.VOICE_SHARE_IMMINENT_DATA_CMD;
+            String msg;
+            synchronized (this){
+                msg = this.cancelMessage;
+                if (!this.isCancelled)
+                    this.acceptingClients.add(receivingClient);
             }
-            
-            sendingClient.sendDataToThis(String.format("Sending file to %s... "
-                                + "This may take a while if the file is large", 
-                                receivingClient.getUsername()));
-            
-            // Add the immenient file share command.
-            byte[] cmdData = protocol.getBytes();
-            byte[] cmdAndFileData = new byte[cmdData.length + this.fileData.length];
-            System.arraycopy(cmdData, 0, cmdAndFileData, 0, cmdData.length);
-            System.arraycopy(this.fileData, 0, cmdAndFileData, 
-                             cmdData.length, this.fileData.length);
-            
-            // Send the cmd and file data.
-            receivingClient.sendDataToThis(cmdAndFileData);
-            sendingClient.sendDataToThis(String.format(
-                                    "The %s '%s' was successfully sent to %s",
-                                    dataType,
-                                    this.fileName, 
+            if (this.sendingClient == null)
+                Main.federation.replyDataShare(this.sendingNode, this.relayId,
+                                               msg == null);
+            if (msg != null){
+                receivingClient.cancelDataShare(this, msg);
+            }
+            else {
+                this.notifySender(String.format("Sending file to %s... "
+                                    + "This may take a while if the file is large",
                                     receivingClient.getUsername()));
+                DataShareHeader header = new DataShareHeader(
+                               this.isAFileShare, this.fileSize,
+                               (this.contentHash == null) ? "" : this.contentHash,
+                               this.fileName);
+                receivingClient.sendFrameToThis(
+                               new Frame(Protocol.DATA_SHARE_START, header.encode()));
+                receivingClient.startDataShareTransfer(this.spool);
+            }
         }
         // If no then alert the sending client.
         else {
-            sendingClient.sendDataToThis(String.format(
-                                         "%s rejected the data share", 
-                                         receivingClient.getUsername()));
+            if (this.sendingClient == null)
+                Main.federation.replyDataShare(this.sendingNode, this.relayId,
+                                               false);
+            this.notifySender(String.format("%s rejected the data share",
+                                            receivingClient.getUsername()));
             receivingClient.sendDataToThis("You have rejected the data share");
+            Log.logRejectedDataShare(this.sendingUsername,
+                                     receivingClient.getUsername(),
+                                     this.fileName,
+                                     this.fileSize,
+                                     this.isAFileShare);
+        }
+        this.responseReceived();
+    }
+
+    /**
+     * Records that a receiving client has responded (or been skipped).
+     */
+    private void responseReceived(){
+        synchronized (this){
+            this.numResponsesPending--;
+        }
+        this.checkFinished();
+    }
+
+    /**
+     * This method spools a chunk received from the sending client and lets
+     * the accepting clients and relays know there is more data to send.  It
+     * is called by the sending client's event loop.  A chunk which is out of
+     * order or fails its checksum stops the data share, the chunks verified
+     * so far are kept so that the upload can be resumed.  The sending node of
+     * a relayed data share is told how much has been spooled.
+     * @param payload The received chunk payload.
+     */
+    public void receiveData(byte[] payload){
+        try {
+            this.spool.append(DataShareChunk.decode(payload));
+        }
+        catch (IOException ex){
+            this.stop("An error occured, the data share was cancelled", true);
+            return;
+        }
+        if (this.sendingClient == null)
+            Main.federation.acknowledgeDataShare(this.sendingNode, this.relayId,
+                                                 this.spool.getLength());
+
+        ClientConnection[] receivers;
+        DataShareRelay[] accepted;
+        synchronized (this){
+            receivers = this.acceptingClients.toArray(
+                           new ClientConnection[this.acceptingClients.size()]);
+            accepted = this.acceptingRelays.toArray(
+                           new DataShareRelay[this.acceptingRelays.size()]);
+        }
+        for (ClientConnection receivingClient : receivers)
+            receivingClient.dataShareDataAvailable();
+        for (DataShareRelay relay : accepted)
+            relay.dataAvailable();
+
+        if (this.spool.isComplete())
+            this.uploadComplete();
+    }
+
+    /**
+     * This method is called on the sending client's event loop once all of
+     * the data has been spooled (or found in the cache).  The sending client
+     * is freed from the data share and the throughput of the upload is
+     * logged.
+     */
+    private void uploadComplete(){
+        synchronized (this){
+            this.isUploading = false;
+        }
+        if (this.sendingClient != null)
+            this.sendingClient.endDataShareUpload(this);
+        if (!this.isCached)
+            Log.logDataShareThroughput(this.sendingUsername, null,
+                             this.fileName, this.fileSize,
+                             System.currentTimeMillis() - this.uploadStartTime);
+        this.checkFinished();
+    }
+
+    /**
+     * This method spools a chunk of a data share relayed to this node, sent
+     * by the sending node.  The chunk is spooled on the receiving client's
+     * event loop, chunks arriving after the data share has stopped are
+     * ignored.
+     * @param payload The chunk payload.
+     */
+    public void receiveRelayedData(final byte[] payload){
+        this.getEventLoop().execute(new Runnable(){
+            public void run(){
+                synchronized (DataShare.this){
+                    if (!isUploading)
+                        return;
+                }
+                receiveData(payload);
+            }
+        });
+    }
+
+    /**
+     * This method processes the response of a user of another node to the
+     * data share, sent back by the user's node (see DataShareRelay).  If
+     * accepted the relay streams the data spooled so far, unless the data
+     * share has since been stopped.
+     * @param relay The relay to the user.
+     * @param accepted True if the user accepted the data share.
+     */
+    void relayReplied(DataShareRelay relay, boolean accepted){
+        boolean isStopped = false;
+        if (accepted){
+            synchronized (this){
+                isStopped = this.isCancelled;
+                if (!isStopped)
+                    this.acceptingRelays.add(relay);
+            }
+        }
+        this.responseReceived();
+        if (isStopped)
+            relay.cancel();
+        else if (accepted)
+            relay.dataAvailable();
+    }
+
+    /**
+     * This method removes a relay from the data share once it has ended,
+     * a relay which ended before the user responded counts as a response.
+     * @param relay The relay.
+     * @param wasReplied True if the user's response had been received.
+     */
+    void relayEnded(DataShareRelay relay, boolean wasReplied){
+        synchronized (this){
+            this.acceptingRelays.remove(relay);
+        }
+        if (wasReplied)
+            this.checkFinished();
+        else
+            this.responseReceived();
+    }
+
+    /**
+     * This method sends a message to the sending client, on the sending
+     * node if the data share was relayed to this node.
+     * @param msg The message.
+     */
+    void notifySender(String msg){
+        if (this.sendingClient != null)
+            this.sendingClient.sendDataToThis(msg);
+        else
+            Main.federation.sendDataShareNotice(this.sendingNode,
+                                                this.sendingUsername, msg);
+    }
+
+    /**
+     * Returns the event loop which drives the data share, the sending
+     * client's or, if the data share was relayed to this node, the receiving
+     * client's.
+     * @return The event loop.
+     */
+    private EventLoop getEventLoop(){
+        return (this.sendingClient != null) ? this.sendingClient.getEventLoop()
+                                            : this.receivingClients[0].getEventLoop();
+    }
+
+    /**
+     * This method cancels the data share because the sending client has
+     * disconnected or cancelled the upload.
+     */
+    public void cancel(){
+        this.stop("The data share was cancelled by the sender", false);
+    }
+
+    /**
+     * This method expires the data share because its spool file has been
+     * evicted or has been idle for the spool TTL (see ShareSpool).  The
+     * sending client is told if it is still sending the data.
+     */
+    public void expire(){
+        this.stop("The data share has expired, ask the sender to send it again", true);
+    }
+
+    /**
+     * This method stops the data share.  Each accepting client is told the
+     * data share was stopped on its own event loop and the failure is
+     * logged.  Receiving clients which haven't responded yet are told when
+     * they respond, a data share stopped before it started (see
+     * receiveProof()) has no responses to wait for.  The relays to the users
+     * of other nodes are cancelled.
+     * @param msg The message sent to the receiving clients.
+     * @param isSenderNotified True if a sending client which is still sending
+     * the data should be told to stop, false if it already has.
+     */
+    private void stop(final String msg, boolean isSenderNotified){
+        List<ClientConnection> receivers;
+        boolean wasUploading, wasStarted;
+        synchronized (this){
+            if (this.isCancelled)
+                return;
+            wasStarted         = this.isStarted;
+            if (!wasStarted)
+                this.numResponsesPending = 0;
+            this.isCancelled   = true;
+            this.cancelMessage = msg;
+            wasUploading       = this.isUploading;
+            this.isUploading   = false;
+            receivers = new ArrayList<ClientConnection>(this.acceptingClients);
         }
+
+        // Stop the upload before the spool file can be released, the sending
+        // node of a relayed data share stops once the relay has ended.
+        if (wasUploading && isSenderNotified && this.sendingClient == null)
+            this.notifySender(msg);
+        else if (wasUploading && isSenderNotified){
+            this.sendingClient.getEventLoop().execute(new Runnable(){
+                public void run(){
+                    sendingClient.endDataShareUpload(DataShare.this);
+                    sendingClient.sendFrameToThis(new Frame(Protocol.DATA_SHARE_CANCEL));
+                    sendingClient.sendDataToThis(msg);
+                }
+            });
+        }
+        for (final ClientConnection receivingClient : receivers){
+            receivingClient.getEventLoop().execute(new Runnable(){
+                public void run(){
+                    receivingClient.cancelDataShare(DataShare.this, msg);
+                }
+            });
+        }
+        if (wasStarted){
+            for (DataShareRelay relay : this.relays)
+                relay.cancel();
+        }
+        Log.logFailedDataShare(this.sendingUsername, null,
+                               this.fileName,
+                               this.fileSize,
+                               this.isAFileShare);
+        this.checkFinished();
+    }
+
+    /**
+     * This method releases the spool file once every receiving client has
+     * responded and no accepting client is still receiving the data.  If the
+     * data is still being sent at that point nobody is going to receive it,
+     * so the sending client is told to stop.  The spool file is released on
+     * the sending client's event loop after the upload has stopped.  The
+     * sending node of a relayed data share is told the relay has ended.
+     */
+    private void checkFinished(){
+        final boolean isUploadStopped;
+        synchronized (this){
+            if (this.isReleased || this.numResponsesPending > 0 ||
+                !this.acceptingClients.isEmpty() ||
+                !this.acceptingRelays.isEmpty())
+                return;
+            this.isReleased  = true;
+            isUploadStopped  = this.isUploading;
+            this.isUploading = false;
+            this.isCancelled = true;
+        }
+        this.getEventLoop().execute(new Runnable(){
+            public void run(){
+                if (isUploadStopped && sendingClient != null){
+                    sendingClient.endDataShareUpload(DataShare.this);
+                    sendingClient.sendFrameToThis(new Frame(Protocol.DATA_SHARE_CANCEL));
+                }
+                getEventLoop().getTimingWheel().cancel(idleTimeout);
+                if (spool != null)
+                    Main.spool.release(spool, DataShare.this);
+                if (sendingClient != null)
+                    sendingClient.releaseDataShareSlot();
+                else
+                    Main.federation.endRelayedDataShare(DataShare.this);
+            }
+        });
+    }
+
+    /**
+     * Schedules the check for the spool file being idle for the spool TTL.
+     * Must be called on the data share's event loop (see getEventLoop()).
+     */
+    private void scheduleIdleCheck(){
+        this.getEventLoop().getTimingWheel().schedule(
+                this.idleTimeout, this.spool.getLastActiveTime() +
+                Configuration.getSpoolTTLInMilliSeconds());
+    }
+
+    /**
+     * Expires the data share if its spool file has been idle for the spool
+     * TTL, otherwise the check is rescheduled.  Runs on the data share's
+     * event loop.
+     */
+    private void checkIdle(){
+        synchronized (this){
+            if (this.isReleased)
+                return;
+        }
+        if (!Main.spool.expireIfIdle(this, this.spool, System.currentTimeMillis()))
+            this.scheduleIdleCheck();
+    }
+
+    /**
+     * Removes a receiving client from the data share once it has confirmed,
+     * failed or been told the data share was stopped.  The receiving client
+     * must no longer be using the spool file.
+     * @param receivingClient A receiving client of the data share.
+     */
+    public void removeReceivingClient(ClientConnection receivingClient){
+        synchronized (this){
+            this.acceptingClients.remove(receivingClient);
+        }
+        this.checkFinished();
+    }
+
+    /**
+     * This method is called once the receiving client has confirmed that the
+     * data share has been received.  The sending client is alerted and the
+     * data share is logged along with the measured throughput.
+     * @param receivingClient A receiving client of the data share.
+     * @param timeTaken The time taken to send the data to the receiving
+     * client in milliseconds.
+     */
+    public void dataReceived(ClientConnection receivingClient, long timeTaken){
+        this.removeReceivingClient(receivingClient);
+        String dataType = "file";
+        if (!this.isAFileShare)
+            dataType = "voice recording";
+        this.notifySender(String.format(
+                                "The %s '%s' was successfully sent to %s "
+                                + "(%s bytes in %.1f seconds, %s)",
+                                dataType,
+                                this.fileName,
+                                receivingClient.getUsername(),
+                                this.fileSize,
+                                timeTaken / 1000.0,
+                                ProtocolUtilities.formatThroughput(this.fileSize, timeTaken)));
+        Log.logDataShareThroughput(this.sendingUsername,
+                                   receivingClient.getUsername(),
+                                   this.fileName, this.fileSize, timeTaken);
+        Log.logAcceptedDataShare(this.sendingUsername,
+                                 receivingClient.getUsername(),
+                                 this.fileName,
+                                 this.fileSize,
+                                 this.isAFileShare);
+    }
+
+    /**
+     * This method is called if the receiving client fails to confirm receipt
+     * of the data share in time or disconnects during the data share.  The
+     * sending client is alerted and the failure is logged.  The other
+     * accepting clients carry on receiving the data.
+     * @param receivingClient A receiving client of the data share.
+     */
+    public void dataFailed(ClientConnection receivingClient){
+        this.removeReceivingClient(receivingClient);
+        this.notifySender("An error occured, the data share was cancelled");
+        Log.logFailedDataShare(this.sendingUsername,
+                               receivingClient.getUsername(),
+                               this.fileName,
+                               this.fileSize,
+                               this.isAFileShare);
     }
-}
\ No newline at end of file
+}
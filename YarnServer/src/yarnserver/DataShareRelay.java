@@ -0,0 +1,193 @@
+
+package yarnserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import yarnprotocol.DataShareChunk;
+import yarnprotocol.Protocol;
+
+/**
+ * Relays a data share to a user connected to another node of the federation
+ * (see Federation).  The data share is offered to the user's node, which
+ * spools it and sends the user the data share request like one of its own
+ * (see DataShare).  Once the user has accepted, the data spooled on this node
+ * is streamed to their node as data share chunks, at most WINDOW chunks ahead
+ * of the data that node has acknowledged spooling, so a slow node can't fill
+ * the link.  The user's node sends the messages for the sending client back
+ * as notices and ends the relay once it has finished with the data share.
+ *
+ * A relayed data share isn't resumed or taken from the other node's cache,
+ * if it fails it is sent again in full.  The relay is used by the sending
+ * client's event loop and the link threads and so is thread safe.
+ * @author Michael Telford
+ */
+public class DataShareRelay {
+
+    private static final int WINDOW = 16;   // in chunks.
+
+    private final DataShare  share;
+    private final String     uname;
+    private final String     node;
+    private SpoolFile        spool       = null;
+    private String           id          = null;
+    private long             position    = 0;     // Sent so far.
+    private long             acknowledged = 0;    // Spooled by the node.
+    private boolean          isReplied   = false;
+    private boolean          isAccepted  = false;
+    private boolean          isEnded     = false;
+
+    /**
+     * Constructor which takes the data share and the user it is relayed to.
+     * @param share The data share.
+     * @param uname The username of the receiving user.
+     * @param node The node the receiving user is connected to.
+     */
+    public DataShareRelay(DataShare share, String uname, String node){
+        this.share = share;
+        this.uname = uname;
+        this.node  = node;
+    }
+
+    /**
+     * Returns the data share being relayed.
+     * @return The data share.
+     */
+    public DataShare getDataShare(){
+        return this.share;
+    }
+
+    /**
+     * Returns the username of the receiving user.
+     * @return The username.
+     */
+    public String getUsername(){
+        return this.uname;
+    }
+
+    /**
+     * Returns the node the receiving user is connected to.
+     * @return The node name.
+     */
+    public String getNode(){
+        return this.node;
+    }
+
+    /**
+     * Offers the data share to the receiving user's node.
+     * @param spool The spool file of the data share.
+     * @return True if the offer was sent, false if there is no link to the
+     * node, in which case the relay has ended.
+     */
+    public synchronized boolean offer(SpoolFile spool){
+        this.spool = spool;
+        this.id = Main.federation.offerDataShare(this);
+        if (this.id == null)
+            this.isEnded = true;
+        return (this.id != null);
+    }
+
+    /**
+     * Processes the receiving user's response to the data share request, the
+     * data spooled so far is streamed to their node if they accepted.
+     * @param accepted True if the user accepted the data share.
+     */
+    public void replied(boolean accepted){
+        synchronized (this){
+            if (this.isEnded || this.isReplied)
+                return;
+            this.isReplied  = true;
+            this.isAccepted = accepted;
+        }
+        this.share.relayReplied(this, accepted);
+    }
+
+    /**
+     * Records how much of the data share the receiving user's node has
+     * spooled and streams the next chunks.
+     * @param length The length spooled by the node in bytes.
+     */
+    public void acknowledged(long length){
+        synchronized (this){
+            this.acknowledged = Math.max(this.acknowledged, length);
+        }
+        this.dataAvailable();
+    }
+
+    /**
+     * Streams the chunks spooled since the last ones sent, within the window.
+     * The relay is cancelled if they can't be read or sent.
+     */
+    public void dataAvailable(){
+        try {
+            this.sendChunks();
+        }
+        catch (IOException ex){
+            //Logger.getLogger(DataShareRelay.class.getName()).log(Level.SEVERE, null, ex);
+            this.share.notifySender("An error occured, the data share to " +
+                                    this.uname + " was cancelled");
+            this.cancel();
+        }
+    }
+
+    private synchronized void sendChunks() throws IOException {
+        if (this.isEnded || !this.isAccepted)
+            return;
+        long length = this.spool.getLength();
+        long window = (long) WINDOW * Protocol.CHUNK_SIZE;
+        while (this.position < length &&
+               this.position - this.acknowledged < window){
+            int numBytes = DataShareChunk.getChunkLength(this.position,
+                                                         this.spool.getSize());
+            byte[] chunk = new byte[DataShareChunk.HEADER_SIZE + numBytes];
+            DataShareChunk.encodeHeader(this.position,
+                    this.spool.getChecksum(this.position), chunk, 0);
+            this.spool.read(this.position, ByteBuffer.wrap(
+                            chunk, DataShareChunk.HEADER_SIZE, numBytes));
+            if (!Main.federation.sendDataShareChunk(this.node, this.id, chunk))
+                throw new IOException("No link to node " + this.node);
+            this.position += numBytes;
+        }
+    }
+
+    /**
+     * Ends the relay because the receiving user's node has finished with the
+     * data share (the user received it, rejected it or it failed there).
+     */
+    public void ended(){
+        boolean wasReplied;
+        synchronized (this){
+            if (this.isEnded)
+                return;
+            this.isEnded = true;
+            wasReplied = this.isReplied;
+        }
+        Main.federation.removeDataShareRelay(this.id);
+        this.share.relayEnded(this, wasReplied);
+    }
+
+    /**
+     * Ends the relay because the receiving user's node has failed, the
+     * sending client is told.
+     */
+    public void failed(){
+        this.share.notifySender("An error occured, the data share to " +
+                                this.uname + " was cancelled");
+        this.ended();
+    }
+
+    /**
+     * Cancels the relay from this node e.g. because the sending client has
+     * cancelled the data share, the receiving user's node is told to stop.
+     */
+    public void cancel(){
+        boolean wasReplied;
+        synchronized (this){
+            if (this.isEnded)
+                return;
+            this.isEnded = true;
+            wasReplied = this.isReplied;
+        }
+        Main.federation.cancelDataShareRelay(this.node, this.id);
+        this.share.relayEnded(this, wasReplied);
+    }
+}
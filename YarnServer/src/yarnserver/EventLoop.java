@@ -0,0 +1,332 @@
+
+package yarnserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import yarnprotocol.FrameCompressor;
+
+/**
+ * Event loop thread which services many client connections from a single
+ * thread using a NIO selector.  The server starts a small fixed number of event
+ * loops (see Configuration.eventLoopThreads) and each accepted client
+ * connection is registered with one of them.  From then on all of that
+ * connection's reads, writes, timeouts and protocol processing happen on the
+ * owning event loop thread.  This replaces the previous design of one thread
+ * (plus one timer thread) per client connection.
+ *
+ * Other threads interact with an event loop by submitting tasks via the
+ * execute(Runnable) method.  Tasks are run in submission order on the event
+ * loop thread after the selector has been woken up.
+ *
+ * The timeouts of the event loop's connections are run by a timing wheel
+ * (see TimingWheel) so that only the connections with an expired timeout are
+ * visited on each tick, rather than every connection being checked.
+ *
+ * If a coalescing window is configured (see Configuration.coalesceWindow)
+ * the writing of a connection's output queue is deferred by the window, so
+ * a burst of messages (e.g. a busy conference) is written with one gathering
+ * write per connection rather than one write per message.  The number of
+ * writes per message and the time messages spend queued are logged every
+ * STATISTICS_INTERVAL so that the window can be tuned.
+ * @author Michael Telford
+ */
+public class EventLoop extends Thread {
+
+    private static final int SELECT_TIMEOUT        = 1000; // in milli seconds.
+    private static final int MAX_GATHERED_WRITES   = 64;   // Messages per write.
+    private static final int STATISTICS_INTERVAL   = 60000; // in milli seconds.
+
+    private final Selector                selector;
+    private final ByteBuffer              readBuffer;
+    private final Queue<Runnable>         tasks;
+    private final TimingWheel             timingWheel;
+    private final FrameCompressor         compressor;
+    private final ByteBuffer[]            writeBuffers;
+    private final Queue<DeferredFlush>    deferredFlushes;
+
+    // Write statistics, only used by the event loop thread.
+    private final LatencyHistogram        queueLatency;
+    private long                          numMessagesWritten = 0;
+    private long                          numWrites          = 0;
+    private long                          nextStatisticsTime;
+
+    /**
+     * A connection whose output queue is to be written once the coalescing
+     * window has passed.
+     */
+    private static class DeferredFlush {
+        final ClientConnection client;
+        final long             deadline;  // in nano seconds.
+
+        DeferredFlush(ClientConnection client, long deadline){
+            this.client   = client;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Constructor which opens the selector used by this event loop.  The
+     * event loop thread is a daemon thread and must be started by the caller.
+     * @param index The index of this event loop, used to name the thread.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public EventLoop(int index) throws IOException {
+        super("Event Loop Thread " + index);
+        this.setDaemon(true);
+        this.selector    = Selector.open();
+        this.readBuffer  = ByteBuffer.allocateDirect(Configuration.DATA_BUFFER_SIZE);
+        this.tasks       = new ConcurrentLinkedQueue<Runnable>();
+        this.timingWheel = new TimingWheel(System.currentTimeMillis());
+        this.compressor  = new FrameCompressor(Configuration.compressionThreshold);
+        this.writeBuffers    = new ByteBuffer[EventLoop.MAX_GATHERED_WRITES];
+        this.deferredFlushes = new ConcurrentLinkedQueue<DeferredFlush>();
+        this.queueLatency    = new LatencyHistogram();
+        this.nextStatisticsTime = System.currentTimeMillis() +
+                                  EventLoop.STATISTICS_INTERVAL;
+    }
+
+    /**
+     * Returns the selector used by this event loop.  Client connections use
+     * the selector to register their socket channels.
+     * @return The selector instance.
+     */
+    public Selector getSelector(){
+        return this.selector;
+    }
+
+    /**
+     * Returns the read buffer shared by all connections of this event loop.
+     * Because reads are only ever performed on the event loop thread a single
+     * buffer is enough, which keeps the memory used per connection flat.  The
+     * buffer is direct so that socket reads (and the decryption of secure
+     * connections) fill it without an intermediate copy.
+     * @return The shared read buffer.
+     */
+    public ByteBuffer getReadBuffer(){
+        return this.readBuffer;
+    }
+
+    /**
+     * Returns the array shared by all connections of this event loop to
+     * gather queued messages into a single write.  Writes are only ever
+     * performed on the event loop thread so a single array is enough.  The
+     * caller must clear the array after use.
+     * @return The shared write buffer array.
+     */
+    public ByteBuffer[] getWriteBuffers(){
+        return this.writeBuffers;
+    }
+
+    /**
+     * Records a write of queued messages to a connection's socket channel.
+     * Must be called on the event loop thread.
+     */
+    public void recordWrite(){
+        this.numWrites++;
+    }
+
+    /**
+     * Records a queued message which has been fully written.  Must be called
+     * on the event loop thread.
+     * @param queuedNanos The System.nanoTime() the message was queued at.
+     * @param now The current System.nanoTime().
+     */
+    public void recordMessageWritten(long queuedNanos, long now){
+        this.numMessagesWritten++;
+        this.queueLatency.record(now - queuedNanos);
+    }
+
+    /**
+     * Defers the writing of a connection's output queue by the coalescing
+     * window so that the messages queued in the meantime are written with
+     * it.  Can be called from any thread.
+     * @param client The client connection to flush.
+     */
+    public void deferFlush(ClientConnection client){
+        this.deferredFlushes.add(new DeferredFlush(client, System.nanoTime() +
+                                 Configuration.getCoalesceWindowInNanoSeconds()));
+        if (!this.inEventLoop())
+            this.selector.wakeup();
+    }
+
+    /**
+     * Returns the compressor used to compress a broadcast message once for
+     * all of the clients which negotiated compression, rather than once per
+     * client.  Broadcasts are sent from this event loop's thread so the
+     * compressor is rarely contended.
+     * @return The broadcast compressor.
+     */
+    public FrameCompressor getCompressor(){
+        return this.compressor;
+    }
+
+    /**
+     * Returns the timing wheel used to run the timeouts of this event loop's
+     * connections.  The timing wheel must only be used on the event loop
+     * thread.
+     * @return The timing wheel instance.
+     */
+    public TimingWheel getTimingWheel(){
+        return this.timingWheel;
+    }
+
+    /**
+     * Returns whether or not the calling thread is this event loop thread.
+     * @return True if called from this event loop, false otherwise.
+     */
+    public boolean inEventLoop(){
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * Submits a task to be run on this event loop thread.  The selector is
+     * woken up if the calling thread is not the event loop thread itself.
+     * @param task The task to run.
+     */
+    public void execute(Runnable task){
+        this.tasks.add(task);
+        if (!this.inEventLoop())
+            this.selector.wakeup();
+    }
+
+    /**
+     * Registers a newly accepted client connection with this event loop.  The
+     * registration itself takes place on the event loop thread.
+     * @param client The accepted client connection.
+     */
+    public void register(final ClientConnection client){
+        this.execute(new Runnable(){
+            public void run(){
+                try {
+                    client.open(EventLoop.this);
+                }
+                catch (Exception ex){
+                    client.disconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes a disconnected client connection from this event loop by
+     * cancelling its timeout.  Must be called on the event loop thread.
+     * @param client The disconnected client connection.
+     */
+    public void deregister(ClientConnection client){
+        this.timingWheel.cancel(client.getTimeout());
+    }
+
+    /**
+     * The event loop.  Waits for socket events, dispatches them to the owning
+     * client connections, runs any submitted tasks and turns the timing wheel
+     * to run any expired connection timeouts (connection requests, login and
+     * data share timeouts).  Exceptions are caught so that one misbehaving
+     * connection cannot stop the loop for every other connection.
+     */
+    @Override
+    public void run(){
+        while (true){
+            try {
+                // Wake up for the next tick while there are timeouts, or
+                // the next deferred flush.  A deferred flush due within a
+                // milli second is waited for without blocking.
+                long timeout = EventLoop.SELECT_TIMEOUT;
+                if (!this.timingWheel.isEmpty())
+                    timeout = TimingWheel.TICK_DURATION;
+                DeferredFlush nextFlush = this.deferredFlushes.peek();
+                if (nextFlush != null)
+                    timeout = Math.min(timeout,
+                               (nextFlush.deadline - System.nanoTime()) / 1000000);
+                if (timeout > 0)
+                    this.selector.select(timeout);
+                else
+                    this.selector.selectNow();
+
+                // Dispatch socket events.
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ClientConnection client = (ClientConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            client.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            client.onWritable();
+                    }
+                    catch (CancelledKeyException cke){
+                        client.disconnect();
+                    }
+                }
+
+                // Run submitted tasks.
+                Runnable task;
+                while ((task = this.tasks.poll()) != null){
+                    try {
+                        task.run();
+                    }
+                    catch (Exception ex){
+                        //Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+
+                // Write the output queues whose coalescing window has passed.
+                this.runDeferredFlushes(System.nanoTime());
+
+                // Run expired connection timeouts.
+                long now = System.currentTimeMillis();
+                this.timingWheel.advance(now);
+                if (now >= this.nextStatisticsTime)
+                    this.logWriteStatistics(now);
+                Main.rateLimiter.logStatisticsIfDue(now);
+            }
+            catch (Exception ex){
+                //Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the output queues of the connections whose coalescing window
+     * has passed.  Flushes are deferred by the same window so they become due
+     * in the order they were deferred.
+     * @param now The current System.nanoTime().
+     */
+    private void runDeferredFlushes(long now){
+        DeferredFlush flush;
+        while ((flush = this.deferredFlushes.peek()) != null &&
+               flush.deadline - now <= 0){
+            this.deferredFlushes.poll();
+            try {
+                flush.client.flushDeferred();
+            }
+            catch (Exception ex){
+                //Logger.getLogger(EventLoop.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Logs the write statistics of the last interval, if any messages were
+     * written, and starts the next interval.
+     * @param now The current time in milliseconds.
+     */
+    private void logWriteStatistics(long now){
+        if (this.numMessagesWritten > 0)
+            Log.logWriteStatistics(this.getName(), this.numMessagesWritten,
+                                   this.numWrites,
+                                   this.queueLatency.getPercentile(50),
+                                   this.queueLatency.getPercentile(99),
+                                   this.queueLatency.getMax());
+        this.numMessagesWritten = 0;
+        this.numWrites = 0;
+        this.queueLatency.reset();
+        this.nextStatisticsTime = now + EventLoop.STATISTICS_INTERVAL;
+    }
+}
@@ -0,0 +1,1947 @@
+
+package yarnserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import yarnprotocol.Frame;
+import yarnprotocol.FrameReader;
+import yarnprotocol.FrameWriter;
+import yarnprotocol.Protocol;
+
+/**
+ * Joins this server to other servers (nodes) so that they form one logical
+ * yarn.  Each node keeps its own client connections and is linked to the
+ * other nodes by server to server links (see PeerLink), a node only needs a
+ * link to one other node of the federation for messages to reach every node.
+ * The federation password is never sent, each end of a link proves it knows
+ * it by answering the other end's random nonce with an HMAC keyed by the
+ * password (see handshake()).
+ *
+ * Roster - Each node owns the roster (usernames and presence statuses) of its
+ * own clients, versioned by the time it last changed.  Each change (a login,
+ * a status change or a logout) is pushed to the links straight away as a
+ * delta naming the version it follows, which a node applies only on top of
+ * that version and passes on to its other links, so a change costs the same
+ * however many users there are.  The rosters are also replicated by gossip:
+ * every gossip interval each node sends each of its links a digest of the
+ * version and heartbeat of every roster it knows, and a node receiving a
+ * digest sends back what the other node is missing, the recent deltas it
+ * keeps (DELTA_LIMIT per roster) if they reach back to the other node's
+ * version and otherwise the whole roster, in chunks of ROSTER_CHUNK_SIZE
+ * bytes so that a roster of any size fits in PEER frames.  A whole roster
+ * is encoded from a copy, never on an event loop or holding the federation.
+ * A node whose heartbeat hasn't advanced for FAILURE_INTERVALS gossip
+ * intervals is taken to have failed and its users are removed, it rejoins
+ * once its heartbeat advances again.  Usernames are unique across the federation, a login with
+ * a username seen on another node is refused.  Two logins with the same
+ * username on different nodes before either roster has been gossiped are
+ * both taken, once the rosters meet every node gives the username to the
+ * earliest login (then the lowest node name) and the other node disconnects
+ * its user, so the nodes agree without asking each other.
+ *
+ * Messages - Chat and the entered and left notices are flooded to every node
+ * and PMs are sent to the node of the recipient, directly if there is a link
+ * to it and otherwise flooded.  Each message carries its origin node and a
+ * sequence number so that a node passes each message on only once.  Each
+ * node delivers a message to its own clients, keeps chat in its replay
+ * buffer and records chat and PMs in its own message log.
+ *
+ * Data shares - A data share to a user of another node is offered to the
+ * user's node, which spools it and asks the user like a data share of its
+ * own.  If the user accepts, the sending node streams the spooled data to it
+ * (see DataShareRelay), each chunk spooled there is acknowledged so that at
+ * most a window of chunks is in flight.  The receiving node sends the
+ * messages for the sending client back and ends the relay once it has
+ * finished with the data share, either node cancels it if the other fails.
+ *
+ * Sharding - The state which isn't replicated is split between the nodes by
+ * a consistent hash ring of the live nodes (see HashRing).  The mailbox of
+ * PMs for a user who isn't connected (see OfflineQueue) is kept by the node
+ * owning the username, which sends it to the user's node when they log in.
+ * The member nodes of a channel are kept by the node owning the channel name,
+ * a channel message goes to that node which sends it on to the other nodes
+ * with members, while each node keeps its own clients' memberships (see
+ * ChannelRegistry).  When the ring changes each node moves the mailboxes it
+ * no longer owns to their new owners and tells the owners of its channels
+ * about its members again, so only the keys whose owner changed move.  A
+ * node sending PMs from a mailbox keeps them until the receiving node ACKs
+ * them, they are queued again and sent by the next rebalance if they can't
+ * be sent or aren't ACKed in time, so a PM may arrive twice but isn't lost.
+ *
+ * The federation is used by the event loops and by the link threads and so
+ * is thread safe.
+ * @author Michael Telford
+ */
+public class Federation extends Thread {
+
+    // Peer message kinds, the first byte of a PEER frame payload.
+    private static final int     HELLO             = 0;
+    private static final int     DIGEST            = 1;
+    private static final int     STATE             = 2;
+    private static final int     BROADCAST         = 3;
+    private static final int     PM                = 4;
+    private static final int     OFFLINE           = 5;
+    private static final int     TAKE              = 6;
+    private static final int     CHANNEL           = 7;
+    private static final int     MEMBER            = 8;
+    private static final int     ACK               = 9;
+    private static final int     SHARE             = 10;
+    private static final int     SHARE_REPLY       = 11;
+    private static final int     SHARE_DATA        = 12;
+    private static final int     SHARE_ACK         = 13;
+    private static final int     SHARE_END         = 14;
+    private static final int     SHARE_CANCEL      = 15;
+    private static final int     SHARE_NOTICE      = 16;
+    private static final int     AUTH              = 17;
+    private static final int     ROSTER            = 18;
+
+    // Roster changes, sent in a ROSTER delta.
+    private static final int     JOINED            = 0;
+    private static final int     CHANGED           = 1;
+    private static final int     LEFT              = 2;
+
+    private static final int     FAILURE_INTERVALS = 5;
+    private static final int     ACK_INTERVALS     = FAILURE_INTERVALS * 2;
+    private static final int     SEEN_LIMIT        = 16384;    // in messages.
+    private static final int     CONNECT_TIMEOUT   = 5000;     // in milliseconds.
+    private static final int     MAILBOX_LIMIT     = Protocol.MAX_PAYLOAD_SIZE / 2;
+    private static final int     NONCE_SIZE        = 32;       // in bytes.
+    private static final int     ROSTER_CHUNK_SIZE = Protocol.MAX_PAYLOAD_SIZE / 4;
+    private static final int     DELTA_LIMIT       = 1024;     // per roster.
+    private static final String  MAC_ALGORITHM     = "HmacSHA256";
+
+    private static final SecureRandom RANDOM       = new SecureRandom();
+
+    /**
+     * The PMs of a mailbox sent to another node and not yet ACKed.
+     */
+    private static class Transfer {
+        private final String uname;
+        private final byte[] records;
+        private final long   sentTime;
+
+        Transfer(String uname, byte[] records, long sentTime){
+            this.uname    = uname;
+            this.records  = records;
+            this.sentTime = sentTime;
+        }
+    }
+
+    /**
+     * A change to a roster as sent to the links, kept so that a node which
+     * missed it can be sent it again.
+     */
+    private static class RosterDelta {
+        private final long   version;
+        private final byte[] payload;
+
+        RosterDelta(long version, byte[] payload){
+            this.version = version;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The roster of a node and how recently it was heard from, with its
+     * recent deltas by the version each follows.
+     */
+    private static class NodeState {
+        private final String        node;
+        private long                version   = -1;
+        private long                heartbeat = -1;
+        private long                lastSeen  = 0;
+        private Map<String, String> roster    = new HashMap<String, String>();
+        private Map<String, Long>   logins    = new HashMap<String, Long>();
+        private final Map<Long, RosterDelta> deltas =
+                                  new LinkedHashMap<Long, RosterDelta>(){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, RosterDelta> eldest){
+                return (this.size() > DELTA_LIMIT);
+            }
+        };
+
+        NodeState(String node){
+            this.node = node;
+        }
+    }
+
+    /**
+     * A copy of a roster to be encoded without holding the federation.
+     */
+    private static class RosterCopy {
+        private final String              node;
+        private final long                version;
+        private final long                heartbeat;
+        private final Map<String, String> roster;
+        private final Map<String, Long>   logins;
+
+        RosterCopy(NodeState state){
+            this.node      = state.node;
+            this.version   = state.version;
+            this.heartbeat = state.heartbeat;
+            this.roster    = new HashMap<String, String>(state.roster);
+            this.logins    = new HashMap<String, Long>(state.logins);
+        }
+    }
+
+    /**
+     * A roster being received in chunks from a link.
+     */
+    private static class RosterChunks {
+        private final PeerLink            link;
+        private final long                version;
+        private int                       nextChunk = 0;
+        private final Map<String, String> roster    = new HashMap<String, String>();
+        private final Map<String, Long>   logins    = new HashMap<String, Long>();
+
+        RosterChunks(PeerLink link, long version){
+            this.link    = link;
+            this.version = version;
+        }
+    }
+
+    private final String                     nodeName;
+    private final String                     password;
+    private final List<InetSocketAddress>    peers;
+    private final long                       gossipInterval;
+    private final SecureContext              secureContext;
+    private final ServerSocket               server;
+    private final List<PeerLink>             links       =
+                                  new CopyOnWriteArrayList<PeerLink>();
+    private final Set<InetSocketAddress>     connecting  =
+                                  new HashSet<InetSocketAddress>(); // Guarded.
+
+    // The rosters, guarded by this instance.
+    private final NodeState                  self;
+    private final Map<String, NodeState>     nodes       =
+                                  new HashMap<String, NodeState>();
+    private final Map<String, Long>          failedNodes =
+                                  new HashMap<String, Long>();    // Heartbeats.
+    private final Map<String, String>        userNodes   =
+                                  new HashMap<String, String>();
+    private final Map<String, RosterChunks>  resyncs     =
+                                  new HashMap<String, RosterChunks>(); // By node.
+
+    // Held while this node's roster deltas are sent so that they are queued
+    // on the links in version order, never held along with this instance.
+    private final Object                     rosterLock  = new Object();
+
+    // The ring of live nodes and the member nodes of the channels this node
+    // owns, guarded by this instance.
+    private final HashRing                   ring;
+    private final Map<String, Set<String>>   channelNodes =
+                                  new HashMap<String, Set<String>>();
+    private final Map<String, Long>          memberVersions =
+                                  new HashMap<String, Long>(); // By channel node.
+    private long                             memberVersion  = 0;
+    private volatile boolean                 isRebalanceDue = false;
+    private volatile boolean                 isMailboxDue   = false;
+
+    // The mailboxes sent and not yet ACKed by their sequence, guarded by
+    // transfers.
+    private final Map<String, Transfer>      transfers    =
+                                  new HashMap<String, Transfer>();
+
+    // The data shares relayed to other nodes by id and those relayed to this
+    // node by sending node and id, each guarded by itself.
+    private final Map<String, DataShareRelay> relays      =
+                                  new HashMap<String, DataShareRelay>();
+    private final Map<String, DataShare>     relayedShares =
+                                  new HashMap<String, DataShare>();
+
+    // The messages seen, guarded by seen.  Each run of a node numbers its
+    // messages from zero, so the numbers are prefixed by the time the run
+    // started (its incarnation) to keep them unique across restarts.
+    private final long                       incarnation;
+    private long                             nextSequence = 0;
+    private final Map<String, Boolean>       seen        =
+                                  new LinkedHashMap<String, Boolean>(){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest){
+            return (this.size() > SEEN_LIMIT);
+        }
+    };
+
+    /**
+     * Constructor which starts listening for links from the other nodes, the
+     * gossip thread, which also connects to the configured peers, must then
+     * be started.
+     * @param nodeName The unique name of this node.
+     * @param port The port the links from the other nodes are accepted on.
+     * @param peers The addresses of the nodes this node connects to.
+     * @param password The federation password each node must give.
+     * @param gossipInterval The time between gossip rounds in milliseconds.
+     * @param virtualNodes The number of points of each node on the hash ring.
+     * @param secureContext The SSL context the links are secured with or null
+     * if the links are plain sockets.
+     * @throws IOException If the port can't be listened on.
+     */
+    public Federation(String nodeName, int port, List<InetSocketAddress> peers,
+                      String password, long gossipInterval, int virtualNodes,
+                      SecureContext secureContext) throws IOException {
+        super("Federation Gossip Thread");
+        this.setDaemon(true);
+        this.nodeName       = nodeName;
+        this.password       = password;
+        this.peers          = peers;
+        this.secureContext  = secureContext;
+        this.gossipInterval = Math.max(gossipInterval, 1);
+        this.self           = new NodeState(nodeName);
+        this.self.version   = System.currentTimeMillis();
+        this.self.heartbeat = this.self.version;
+        this.incarnation    = this.self.version;
+        this.ring           = new HashRing(virtualNodes);
+        this.ring.add(nodeName);
+
+        this.server = (secureContext != null) ?
+                      secureContext.createPeerServerSocket() : new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(new Runnable(){
+            public void run(){
+                acceptLinks();
+            }
+        }, "Federation Accept Thread");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the name of this node.
+     * @return The node name.
+     */
+    public String getNodeName(){
+        return this.nodeName;
+    }
+
+    /**
+     * Returns the node a user is connected to if it isn't this node.
+     * @param uname The username of the user.
+     * @return The node name or null if no other node has the user.
+     */
+    public synchronized String getNode(String uname){
+        return this.userNodes.get(uname);
+    }
+
+    /**
+     * Returns the number of users connected to the other nodes.
+     * @return The number of users.
+     */
+    public synchronized int getNumRemoteUsers(){
+        return this.userNodes.size();
+    }
+
+    /**
+     * Returns the users connected to the other nodes and their statuses.
+     * @return The statuses by username in username order.
+     */
+    public synchronized SortedMap<String, String> getRemoteUsers(){
+        SortedMap<String, String> users = new TreeMap<String, String>();
+        for (Map.Entry<String, String> user : this.userNodes.entrySet())
+            users.put(user.getKey(),
+                      this.nodes.get(user.getValue()).roster.get(user.getKey()));
+        return users;
+    }
+
+    /**
+     * Records that a client of this node has logged in and pushes the change
+     * to the other nodes.
+     * @param uname The client's username.
+     * @param status The client's presence status.
+     * @param loginTime When the client logged in in milliseconds.
+     */
+    public void userJoined(String uname, String status, long loginTime){
+        this.rosterChanged(JOINED, uname, status, loginTime);
+    }
+
+    /**
+     * Records that a client of this node has changed its presence status and
+     * pushes the change to the other nodes.
+     * @param uname The client's username.
+     * @param status The client's new presence status.
+     */
+    public void userStatusChanged(String uname, String status){
+        this.rosterChanged(CHANGED, uname, status, 0);
+    }
+
+    /**
+     * Records that a client of this node has disconnected and pushes the
+     * change to the other nodes.
+     * @param uname The client's username.
+     */
+    public void userLeft(String uname){
+        this.rosterChanged(LEFT, uname, "", 0);
+    }
+
+    /**
+     * Applies a change to this node's roster and pushes it to the other nodes
+     * as a delta following the roster's previous version, kept to be sent
+     * again to nodes which miss it.  Only the user changed is indexed, so a
+     * change costs the same however many users there are.
+     * @param change The change, JOINED, CHANGED or LEFT.
+     * @param uname The username of the user.
+     * @param status The user's status, ignored if the user left.
+     * @param loginTime When the user logged in, only used if they joined.
+     */
+    private void rosterChanged(int change, String uname, String status,
+                               long loginTime){
+        boolean isTaken;
+        synchronized (this.rosterLock){
+            byte[] payload;
+            synchronized (this){
+                if (change == LEFT){
+                    this.self.roster.remove(uname);
+                    this.self.logins.remove(uname);
+                }
+                else {
+                    this.self.roster.put(uname, status);
+                    if (change == JOINED)
+                        this.self.logins.put(uname, loginTime);
+                }
+                Long login = this.self.logins.get(uname);
+                long previous = this.self.version;
+                this.self.version = Math.max(previous + 1,
+                                             System.currentTimeMillis());
+                payload = Federation.encode(ROSTER, this.nodeName,
+                        String.valueOf(previous), String.valueOf(this.self.version),
+                        String.valueOf(this.self.heartbeat), String.valueOf(change),
+                        uname, status, String.valueOf((login != null) ? login : 0));
+                this.self.deltas.put(previous, new RosterDelta(this.self.version,
+                                                               payload));
+                isTaken = this.indexUser(uname);
+            }
+            for (PeerLink link : this.links)
+                link.send(payload);
+        }
+        if (isTaken)
+            this.disconnectTakenUsers(Collections.singletonList(uname));
+    }
+
+    /**
+     * Sends chat or a notice to the clients of the other nodes.
+     * @param from The username of the sender, an empty string for a notice.
+     * @param text The chat text or the notice e.g. "bill has entered".
+     */
+    public void broadcast(String from, String text){
+        byte[] payload = Federation.encode(BROADCAST, this.nodeName,
+                                           this.nextSequence(), from, text);
+        for (PeerLink link : this.links)
+            link.send(payload);
+    }
+
+    /**
+     * Sends a PM to a user connected to another node.
+     * @param to The username of the recipient.
+     * @param from The username of the sender.
+     * @param text The PM text.
+     * @return True if the PM was sent, false if no other node has the user
+     * or there is no link to send it on.
+     */
+    public boolean sendPrivateMessage(String to, String from, String text){
+        String node = this.getNode(to);
+        if (node == null)
+            return false;
+        return this.sendTo(PM, node, to, from, text);
+    }
+
+    /**
+     * Returns the node which owns a key on the hash ring.
+     * @param key The key, a username or a channel name.
+     * @return The node name.
+     */
+    public synchronized String getOwner(String key){
+        return this.ring.getNode(key);
+    }
+
+    /**
+     * Queues a PM for a user who isn't connected to any node in the mailbox
+     * kept by the node owning the username.
+     * @param to The username of the recipient.
+     * @param from The username of the sender.
+     * @param text The PM text.
+     * @return True if the PM was sent to the owning node, false if this node
+     * owns the username and so should queue the PM itself.
+     */
+    public boolean queuePrivateMessage(String to, String from, String text){
+        String owner = this.getOwner(to);
+        if (owner.equals(this.nodeName))
+            return false;
+        this.sendMailbox(owner, to, OfflineQueue.encode(
+                         System.currentTimeMillis(), from, text));
+        return true;
+    }
+
+    /**
+     * Queues the PMs of a mailbox here again, e.g. when they were sent to a
+     * client of this node which disconnected before they were delivered, to
+     * be moved to the owner of the username by the next rebalance if this
+     * node isn't it.
+     * @param uname The username of the user.
+     * @param records The mailbox records of the PMs.
+     */
+    public void requeueQueuedPrivateMessages(String uname, byte[] records){
+        if (Main.offlineQueue == null)
+            return;
+        Main.offlineQueue.offerRecords(uname, records);
+        if (!this.getOwner(uname).equals(this.nodeName))
+            this.isMailboxDue = true;
+    }
+
+    /**
+     * Asks the node owning a username which has just logged in to this node
+     * for the PMs queued for the user, which it sends back if there are any.
+     * @param uname The username of the user.
+     */
+    public void requestQueuedPrivateMessages(String uname){
+        String owner = this.getOwner(uname);
+        if (!owner.equals(this.nodeName))
+            this.sendTo(TAKE, owner, uname, this.nodeName);
+    }
+
+    /**
+     * Tells the node owning a channel whether this node has members of the
+     * channel, called when a client of this node joins or leaves it.  The
+     * current membership is sent with a version, taken along with it holding
+     * this instance, so that the owner ends up with the latest one whatever
+     * order the calls are made (or the messages arrive) in.  The message is
+     * sent after releasing this instance.
+     * @param name The channel name e.g. #friends
+     */
+    public void channelChanged(String name){
+        String owner;
+        String hasMembers;
+        long version;
+        synchronized (this){
+            owner = this.ring.getNode(name);
+            if (owner.equals(this.nodeName))
+                return;
+            hasMembers = (Main.channels.get(name) != null) ? "1" : "0";
+            this.memberVersion = Math.max(this.memberVersion + 1,
+                                          System.currentTimeMillis());
+            version = this.memberVersion;
+        }
+        this.sendTo(MEMBER, owner, name, this.nodeName, hasMembers,
+                    String.valueOf(version));
+    }
+
+    /**
+     * Sends a channel message or notice to the members of the channel on the
+     * other nodes, by way of the node owning the channel.
+     * @param name The channel name e.g. #friends
+     * @param text The text sent to the members e.g. #friends bill : hello
+     * @param from The username of the sender, an empty string for a notice.
+     * @param message The message kept in the history e.g. hello
+     */
+    public void sendChannelMessage(String name, String text, String from,
+                                   String message){
+        String owner = this.getOwner(name);
+        if (owner.equals(this.nodeName))
+            this.fanOut(name, text, from, message, this.nodeName);
+        else
+            this.sendTo(CHANNEL, owner, name, text, from, message, "1");
+    }
+
+    /**
+     * Sends a channel message from the channel's owner (this node) to each
+     * other node with members of the channel.
+     * @param name The channel name.
+     * @param text The text sent to the members.
+     * @param from The username of the sender, an empty string for a notice.
+     * @param message The message kept in the history.
+     * @param origin The node the message was sent from, which isn't sent it.
+     */
+    private void fanOut(String name, String text, String from, String message,
+                        String origin){
+        List<String> nodes;
+        synchronized (this){
+            Set<String> members = this.channelNodes.get(name);
+            if (members == null)
+                return;
+            nodes = new ArrayList<String>(members);
+        }
+        for (String node : nodes){
+            if (!node.equals(origin))
+                this.sendTo(CHANNEL, node, name, text, from, message, "0");
+        }
+    }
+
+    /**
+     * Offers a data share to the node of a user of another node, the relay
+     * is kept until it has ended so that the node's replies reach it.
+     * @param relay The relay to the user.
+     * @return The id of the relay or null if there is no link to send the
+     * offer on.
+     */
+    public String offerDataShare(DataShareRelay relay){
+        DataShare share = relay.getDataShare();
+        String hash = share.getContentHash();
+        String id = this.nextSequence();
+        synchronized (this.relays){
+            this.relays.put(id, relay);
+        }
+        if (this.sendSequenced(SHARE, id, relay.getNode(), new Object[]{
+                share.getSendingUsername(), relay.getUsername(),
+                share.getFileName(), String.valueOf(share.getFileSize()),
+                share.isAFileShare() ? "1" : "0", (hash == null) ? "" : hash}))
+            return id;
+        this.removeDataShareRelay(id);
+        return null;
+    }
+
+    /**
+     * Sends a chunk of a relayed data share to the receiving user's node.
+     * @param node The node.
+     * @param id The id of the relay.
+     * @param chunk The chunk payload.
+     * @return True if the chunk was queued on a link, false otherwise.
+     */
+    public boolean sendDataShareChunk(String node, String id, byte[] chunk){
+        return this.sendTo(SHARE_DATA, node, id, chunk);
+    }
+
+    /**
+     * Forgets a relay which has ended.
+     * @param id The id of the relay.
+     */
+    public void removeDataShareRelay(String id){
+        synchronized (this.relays){
+            this.relays.remove(id);
+        }
+    }
+
+    /**
+     * Cancels a relay, the receiving user's node stops the data share.
+     * @param node The node.
+     * @param id The id of the relay.
+     */
+    public void cancelDataShareRelay(String node, String id){
+        this.removeDataShareRelay(id);
+        this.sendTo(SHARE_CANCEL, node, id);
+    }
+
+    /**
+     * Sends the response of the receiving client of a data share relayed to
+     * this node to the sending node.
+     * @param node The sending node.
+     * @param id The id of the relay.
+     * @param accepted True if the client accepted the data share.
+     */
+    public void replyDataShare(String node, String id, boolean accepted){
+        this.sendTo(SHARE_REPLY, node, id, accepted ? "1" : "0");
+    }
+
+    /**
+     * Tells the sending node of a data share relayed to this node how much
+     * of it has been spooled, so that it sends more.
+     * @param node The sending node.
+     * @param id The id of the relay.
+     * @param length The length spooled in bytes.
+     */
+    public void acknowledgeDataShare(String node, String id, long length){
+        this.sendTo(SHARE_ACK, node, id, String.valueOf(length));
+    }
+
+    /**
+     * Sends a message to the sending client of a data share relayed to this
+     * node.
+     * @param node The sending node.
+     * @param uname The username of the sending client.
+     * @param text The message.
+     */
+    public void sendDataShareNotice(String node, String uname, String text){
+        this.sendTo(SHARE_NOTICE, node, uname, text);
+    }
+
+    /**
+     * Forgets a data share relayed to this node once it has finished and
+     * tells the sending node that the relay has ended.
+     * @param share The data share.
+     */
+    public void endRelayedDataShare(DataShare share){
+        synchronized (this.relayedShares){
+            this.relayedShares.remove(share.getSendingNode() + ' ' +
+                                      share.getRelayId());
+        }
+        this.sendTo(SHARE_END, share.getSendingNode(), share.getRelayId());
+    }
+
+    /**
+     * Sends a message to a node, the message is given this node as its
+     * origin and the next sequence number.
+     * @param kind The kind of message e.g. PM.
+     * @param node The node the message is for.
+     * @param fields The fields of the message after the node.
+     * @return True if the message was queued on a link, false otherwise.
+     */
+    private boolean sendTo(int kind, String node, Object... fields){
+        return this.sendSequenced(kind, this.nextSequence(), node, fields);
+    }
+
+    /**
+     * Sends a message with a given sequence number to a node, see
+     * sendTo(int, String, Object...).
+     * @param kind The kind of message e.g. PM.
+     * @param sequence The sequence number.
+     * @param node The node the message is for.
+     * @param fields The fields of the message after the node.
+     * @return True if the message was queued on a link, false otherwise.
+     */
+    private boolean sendSequenced(int kind, String sequence, String node,
+                                  Object[] fields){
+        Object[] message = new Object[fields.length + 3];
+        message[0] = this.nodeName;
+        message[1] = sequence;
+        message[2] = node;
+        System.arraycopy(fields, 0, message, 3, fields.length);
+        return this.route(node, Federation.encode(kind, message), null);
+    }
+
+    /**
+     * Sends the PMs of a mailbox to a node, keeping them until the node ACKs
+     * them.  They are queued here again straight away if there is no link to
+     * send them on, or by expireTransfers() if the ACK doesn't arrive.
+     * @param node The node the PMs are for.
+     * @param uname The username of the user.
+     * @param records The mailbox records of the PMs.
+     */
+    private void sendMailbox(String node, String uname, byte[] records){
+        String sequence = this.nextSequence();
+        synchronized (this.transfers){
+            this.transfers.put(sequence, new Transfer(uname, records,
+                                              System.currentTimeMillis()));
+        }
+        if (!this.sendSequenced(OFFLINE, sequence, node,
+                                new Object[]{uname, records})){
+            synchronized (this.transfers){
+                if (this.transfers.remove(sequence) == null)
+                    return;
+            }
+            this.requeueQueuedPrivateMessages(uname, records);
+        }
+    }
+
+    /**
+     * Queues the PMs of the mailboxes which haven't been ACKed in time here
+     * again, called by the gossip thread.
+     * @param now The current time in milliseconds.
+     */
+    private void expireTransfers(long now){
+        List<Transfer> expired = new ArrayList<Transfer>();
+        synchronized (this.transfers){
+            Iterator<Transfer> it = this.transfers.values().iterator();
+            while (it.hasNext()){
+                Transfer transfer = it.next();
+                if (now - transfer.sentTime > this.gossipInterval * ACK_INTERVALS){
+                    it.remove();
+                    expired.add(transfer);
+                }
+            }
+        }
+        for (Transfer transfer : expired)
+            this.requeueQueuedPrivateMessages(transfer.uname, transfer.records);
+    }
+
+    /**
+     * Sends a routed message towards a node, directly if there is a link to
+     * it and otherwise on every link.
+     * @param node The node the message is for.
+     * @param payload The encoded message.
+     * @param except The link the message was received on, or null.
+     * @return True if the message was queued on a link, false otherwise.
+     */
+    private boolean route(String node, byte[] payload, PeerLink except){
+        for (PeerLink link : this.links){
+            if (node.equals(link.getNode()) && link.send(payload))
+                return true;
+        }
+        boolean isSent = false;
+        for (PeerLink link : this.links){
+            if (link != except && link.send(payload))
+                isSent = true;
+        }
+        return isSent;
+    }
+
+    /**
+     * Sends a message received from one link on to the other links.
+     * @param payload The encoded message.
+     * @param except The link the message was received on.
+     */
+    private void relay(byte[] payload, PeerLink except){
+        for (PeerLink link : this.links){
+            if (link != except)
+                link.send(payload);
+        }
+    }
+
+    /**
+     * Runs a gossip round every gossip interval, connecting to any configured
+     * peers which aren't linked first and rebalancing after the ring has
+     * changed.
+     */
+    @Override
+    public void run(){
+        while (true){
+            try {
+                Thread.sleep(this.gossipInterval);
+                this.connectToPeers();
+                long now = System.currentTimeMillis();
+                this.gossip(now);
+                this.expireTransfers(now);
+                if (this.isRebalanceDue)
+                    this.rebalance();
+                else if (this.isMailboxDue)
+                    this.moveMailboxes();
+            }
+            catch (InterruptedException ex){
+                break;
+            }
+            catch (Exception ex){
+                //Logger.getLogger(Federation.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Advances this node's heartbeat, removes the nodes which have failed (and
+     * ends the data shares relayed to and from them) and sends the digest of
+     * the known rosters to every link.
+     * @param now The current time in milliseconds.
+     */
+    private void gossip(long now){
+        byte[] digest;
+        Set<String> failed = new HashSet<String>();
+        synchronized (this){
+            this.self.heartbeat = Math.max(this.self.heartbeat + 1, now);
+            long timeout = this.gossipInterval * FAILURE_INTERVALS;
+            boolean isChanged = false;
+            Iterator<NodeState> it = this.nodes.values().iterator();
+            while (it.hasNext()){
+                NodeState state = it.next();
+                if (now - state.lastSeen <= timeout)
+                    continue;
+                it.remove();
+                this.failedNodes.put(state.node, state.heartbeat);
+                failed.add(state.node);
+                this.ring.remove(state.node);
+                for (Set<String> members : this.channelNodes.values())
+                    members.remove(state.node);
+                this.isRebalanceDue = true;
+                isChanged = true;
+                Log.logFederation(String.format("node %s has failed, %d "
+                        + "user(s) removed", state.node, state.roster.size()));
+            }
+            if (isChanged)
+                this.indexUsers();
+            digest = this.encodeDigest();
+        }
+        for (PeerLink link : this.links)
+            link.send(digest);
+        if (!failed.isEmpty())
+            this.endDataShares(failed);
+    }
+
+    /**
+     * Moves the state this node no longer owns after the ring has changed.
+     * The mailboxes of the usernames owned by other nodes are sent to them
+     * and the owners of this node's channels are told about its members
+     * again, forgetting the channels owned by other nodes.
+     */
+    private void rebalance(){
+        this.isRebalanceDue = false;
+        int numMoved = this.moveMailboxes();
+        List<String> names = Main.channels.getNames();
+        for (String name : names)
+            this.channelChanged(name);
+
+        int numNodes;
+        double share;
+        synchronized (this){
+            Iterator<String> it = this.channelNodes.keySet().iterator();
+            while (it.hasNext()){
+                if (!this.ring.getNode(it.next()).equals(this.nodeName))
+                    it.remove();
+            }
+            it = this.memberVersions.keySet().iterator();
+            while (it.hasNext()){
+                String key = it.next();
+                String name = key.substring(0, key.lastIndexOf(' '));
+                if (!this.ring.getNode(name).equals(this.nodeName))
+                    it.remove();
+            }
+            numNodes = this.ring.getNumNodes();
+            share = this.ring.getShare(this.nodeName) * 100;
+        }
+        Log.logFederation(String.format("ring of %d node(s) rebalanced, this "
+                + "node owns %.1f%% of the keys : %d mailbox(es) moved, %d "
+                + "channel(s) registered", numNodes, share, numMoved,
+                names.size()));
+    }
+
+    /**
+     * Sends the mailboxes of the usernames owned by other nodes to them.
+     * @return The number of mailboxes sent.
+     */
+    private int moveMailboxes(){
+        this.isMailboxDue = false;
+        int numMoved = 0;
+        if (Main.offlineQueue == null)
+            return numMoved;
+        for (String uname : Main.offlineQueue.getUsernames()){
+            String owner = this.getOwner(uname);
+            if (owner.equals(this.nodeName))
+                continue;
+            byte[] records = Main.offlineQueue.takeRecords(uname, MAILBOX_LIMIT);
+            if (records == null)
+                continue;
+            this.sendMailbox(owner, uname, records);
+            numMoved++;
+        }
+        return numMoved;
+    }
+
+    /**
+     * Connects to each configured peer which there isn't a link to.  Each
+     * connect runs on its own thread so that an unreachable peer never
+     * delays this node's heartbeats (which would have the other nodes drop
+     * it), and a peer is only connected to by one thread at a time.
+     */
+    private void connectToPeers(){
+        for (final InetSocketAddress address : this.peers){
+            boolean isLinked = false;
+            for (PeerLink link : this.links){
+                if (address.equals(link.getAddress()))
+                    isLinked = true;
+            }
+            if (isLinked)
+                continue;
+            synchronized (this.connecting){
+                if (!this.connecting.add(address))
+                    continue;
+            }
+            Thread connector = new Thread(new Runnable(){
+                public void run(){
+                    try {
+                        connectToPeer(address);
+                    }
+                    finally {
+                        synchronized (connecting){
+                            connecting.remove(address);
+                        }
+                    }
+                }
+            }, "Federation Connect Thread");
+            connector.setDaemon(true);
+            connector.start();
+        }
+    }
+
+    /**
+     * Connects to a configured peer and starts the link, run by a connecting
+     * thread.
+     * @param address The address of the peer.
+     */
+    private void connectToPeer(InetSocketAddress address){
+        // The links never go through the clients' SOCKS proxy.
+        Socket socket = new Socket(Proxy.NO_PROXY);
+        try {
+            socket.connect(address, CONNECT_TIMEOUT);
+            if (this.secureContext != null)
+                socket = this.secureContext.createPeerSocket(socket, address);
+            PeerLink link = new PeerLink(this, socket, address);
+            this.links.add(link);
+            link.start();
+        }
+        catch (IOException ex){
+            try {
+                socket.close();
+            }
+            catch (IOException ex2){
+                //Logger.getLogger(Federation.class.getName()).log(Level.SEVERE, null, ex2);
+            }
+        }
+    }
+
+    /**
+     * Accepts the links from the other nodes, run by the accepting thread.
+     */
+    private void acceptLinks(){
+        while (true){
+            try {
+                Socket socket = this.server.accept(); // Blocks.
+                PeerLink link = new PeerLink(this, socket, null);
+                this.links.add(link);
+                link.start();
+            }
+            catch (Exception ex){
+                //Logger.getLogger(Federation.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Called by a link once the other node's HELLO has been checked, the
+     * link is sent this node's digest straight away.
+     * @param link The link.
+     */
+    void linkOpened(PeerLink link){
+        Log.logFederation(String.format("link to node %s opened [%s]",
+                link.getNode(), (link.getAddress() != null) ?
+                link.getAddress() : "accepted"));
+        byte[] digest;
+        synchronized (this){
+            digest = this.encodeDigest();
+        }
+        link.send(digest);
+    }
+
+    /**
+     * Called by a link when it closes, any roster being received from it in
+     * chunks is dropped.
+     * @param link The link.
+     */
+    void linkClosed(PeerLink link){
+        if (this.links.remove(link) && link.getNode() != null)
+            Log.logFederation(String.format("link to node %s closed",
+                                            link.getNode()));
+        synchronized (this){
+            Iterator<RosterChunks> it = this.resyncs.values().iterator();
+            while (it.hasNext()){
+                if (it.next().link == link)
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Runs the handshake of a new link, called by the link's thread before
+     * anything else is sent on it.  Each end sends a HELLO with its node name
+     * and a random nonce, and proves it knows the federation password with
+     * an AUTH holding the HMAC (keyed by the password) of the other end's
+     * nonce and both node names, so the password is never sent and an AUTH
+     * can't be replayed or reflected.  The node which connected proves itself
+     * first and the accepting node only answers once it has checked that
+     * proof, so a node which doesn't know the password learns nothing.
+     * @param reader The link's frame reader.
+     * @param writer The link's frame writer.
+     * @param isConnecting True if this node connected to the other node,
+     * false if it accepted the link.
+     * @return The other node's name or null if the link is refused (the
+     * wrong password or this node's own name).
+     * @throws IOException If the link fails, or times out, during the
+     * handshake.
+     */
+    String handshake(FrameReader reader, FrameWriter writer,
+                     boolean isConnecting) throws IOException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        Federation.RANDOM.nextBytes(nonce);
+        writer.write(new Frame(Protocol.PEER, Federation.encode(HELLO,
+                                              this.nodeName, nonce)));
+        DataInputStream in = Federation.readHandshake(reader, HELLO);
+        String node = Federation.readString(in);
+        byte[] otherNonce = Federation.readBytes(in);
+        if (node.isEmpty() || node.equals(this.nodeName) ||
+            otherNonce.length != NONCE_SIZE){
+            Log.logFederation(String.format("link from node %s refused "
+                    + "(incorrect node name)", node));
+            return null;
+        }
+
+        byte[] proof = this.authenticate(otherNonce, this.nodeName, node);
+        if (isConnecting)
+            writer.write(new Frame(Protocol.PEER, Federation.encode(AUTH, proof)));
+        byte[] otherProof = Federation.readBytes(
+                            Federation.readHandshake(reader, AUTH));
+        // The proofs are compared in constant time so the time taken doesn't
+        // give away how much of a forgery is right.
+        if (!MessageDigest.isEqual(otherProof,
+                                   this.authenticate(nonce, node, this.nodeName))){
+            Log.logFederation(String.format("link from node %s refused "
+                    + "(incorrect password)", node));
+            return null;
+        }
+        if (!isConnecting)
+            writer.write(new Frame(Protocol.PEER, Federation.encode(AUTH, proof)));
+        return node;
+    }
+
+    /**
+     * Returns the proof that a node knows the federation password, the HMAC
+     * keyed by the password of a nonce and the names of the node proving
+     * itself and of the node checking the proof.
+     * @param nonce The nonce sent by the node checking the proof.
+     * @param prover The name of the node proving itself.
+     * @param verifier The name of the node checking the proof.
+     * @return The proof.
+     */
+    private byte[] authenticate(byte[] nonce, String prover, String verifier){
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(this.password.getBytes(Protocol.CHARSET),
+                                       MAC_ALGORITHM));
+            return mac.doFinal(Federation.encode(AUTH, nonce, prover, verifier));
+        }
+        catch (GeneralSecurityException ex){
+            // Every Java platform is required to support HmacSHA256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Reads a handshake message from a new link.
+     * @param reader The link's frame reader.
+     * @param kind The kind of message expected, HELLO or AUTH.
+     * @return The message after its kind.
+     * @throws IOException If the link fails or sends anything else.
+     */
+    private static DataInputStream readHandshake(FrameReader reader, int kind)
+                                                          throws IOException {
+        Frame frame = reader.read();
+        if (frame.getType() != Protocol.PEER || frame.getPayload().length == 0 ||
+            (frame.getPayload()[0] & 0xFF) != kind)
+            throw new IOException("Unexpected peer handshake message");
+        return new DataInputStream(new ByteArrayInputStream(
+                   frame.getPayload(), 1, frame.getPayload().length - 1));
+    }
+
+    /**
+     * Processes a peer message received on a link.
+     * @param link The link the message was received on.
+     * @param payload The encoded message.
+     */
+    void receive(PeerLink link, byte[] payload){
+        try {
+            DataInputStream in = new DataInputStream(
+                                 new ByteArrayInputStream(payload));
+            switch (in.readUnsignedByte()){
+                case DIGEST:
+                    this.receiveDigest(link, in);
+                    break;
+                case STATE:
+                    this.receiveState(link, in);
+                    break;
+                case ROSTER:
+                    this.receiveDelta(link, payload, in);
+                    break;
+                case BROADCAST:
+                    this.receiveBroadcast(link, payload, in);
+                    break;
+                case PM:
+                case OFFLINE:
+                case TAKE:
+                case CHANNEL:
+                case MEMBER:
+                case ACK:
+                case SHARE:
+                case SHARE_REPLY:
+                case SHARE_DATA:
+                case SHARE_ACK:
+                case SHARE_END:
+                case SHARE_CANCEL:
+                case SHARE_NOTICE:
+                    this.receiveRouted(link, payload, in, payload[0]);
+                    break;
+                default:
+                    break;
+            }
+        }
+        catch (IOException ex){
+            //Logger.getLogger(Federation.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (NumberFormatException ex){
+            //Logger.getLogger(Federation.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Processes a digest, noting the heartbeats of the nodes in it and
+     * sending back what the other node is missing of the rosters this node
+     * has which are newer: the deltas since the other node's version if they
+     * are all kept, otherwise the whole roster.  Whole rosters are copied
+     * holding this instance and encoded after releasing it.
+     * @param link The link the digest was received on.
+     * @param in The digest after its kind.
+     * @throws IOException If the digest can't be decoded.
+     */
+    private void receiveDigest(PeerLink link, DataInputStream in)
+                                                      throws IOException {
+        Map<String, Long> versions = new HashMap<String, Long>();
+        List<byte[]> deltas = new ArrayList<byte[]>();
+        List<RosterCopy> states = new ArrayList<RosterCopy>();
+        long now = System.currentTimeMillis();
+        int numNodes = in.readInt();
+        synchronized (this){
+            for (int i = 0; i < numNodes; i++){
+                String node = Federation.readString(in);
+                long version = in.readLong();
+                long heartbeat = in.readLong();
+                versions.put(node, version);
+                NodeState state = this.nodes.get(node);
+                if (state != null && heartbeat > state.heartbeat){
+                    state.heartbeat = heartbeat;
+                    state.lastSeen  = now;
+                }
+            }
+            List<NodeState> newer = new ArrayList<NodeState>();
+            Long version = versions.get(this.nodeName);
+            if (version == null || version < this.self.version)
+                newer.add(this.self);
+            for (NodeState state : this.nodes.values()){
+                version = versions.get(state.node);
+                if (version == null || version < state.version)
+                    newer.add(state);
+            }
+            for (NodeState state : newer){
+                if (!Federation.addDeltas(state, versions.get(state.node), deltas))
+                    states.add(new RosterCopy(state));
+            }
+        }
+        for (byte[] delta : deltas)
+            link.send(delta);
+        for (RosterCopy state : states){
+            for (byte[] chunk : Federation.encodeState(state))
+                link.send(chunk);
+        }
+    }
+
+    /**
+     * Adds the deltas which bring a roster up to date from a version, called
+     * holding this instance.
+     * @param state The roster.
+     * @param version The version to bring it up to date from or null if the
+     * roster isn't known.
+     * @param deltas The list the deltas are added to.
+     * @return True if the deltas were added, false if they aren't all kept.
+     */
+    private static boolean addDeltas(NodeState state, Long version,
+                                     List<byte[]> deltas){
+        if (version == null)
+            return false;
+        List<byte[]> missing = new ArrayList<byte[]>();
+        long current = version;
+        while (current < state.version){
+            RosterDelta delta = state.deltas.get(current);
+            if (delta == null)
+                return false;
+            missing.add(delta.payload);
+            current = delta.version;
+        }
+        deltas.addAll(missing);
+        return true;
+    }
+
+    /**
+     * Processes a delta of another node's roster, applying it if it follows
+     * the version held for the node and passing it on to the other links.  A
+     * delta which doesn't follow it (one was missed) is ignored, the next
+     * digest brings the roster up to date.  Deltas of nodes which aren't
+     * known (or have failed) are ignored until their whole roster arrives.
+     * @param link The link the delta was received on.
+     * @param payload The encoded delta.
+     * @param in The delta after its kind.
+     * @throws IOException If the delta can't be decoded.
+     */
+    private void receiveDelta(PeerLink link, byte[] payload, DataInputStream in)
+                                                          throws IOException {
+        String node = Federation.readString(in);
+        long previous = Long.parseLong(Federation.readString(in));
+        long version = Long.parseLong(Federation.readString(in));
+        long heartbeat = Long.parseLong(Federation.readString(in));
+        int change = Integer.parseInt(Federation.readString(in));
+        String uname = Federation.readString(in);
+        String status = Federation.readString(in);
+        long loginTime = Long.parseLong(Federation.readString(in));
+
+        boolean isTaken;
+        synchronized (this){
+            NodeState state = this.nodes.get(node);
+            if (state == null || this.failedNodes.containsKey(node))
+                return;
+            if (heartbeat > state.heartbeat){
+                state.heartbeat = heartbeat;
+                state.lastSeen  = System.currentTimeMillis();
+            }
+            if (state.version != previous)
+                return;
+            if (change == LEFT){
+                state.roster.remove(uname);
+                state.logins.remove(uname);
+            }
+            else {
+                state.roster.put(uname, status);
+                state.logins.put(uname, loginTime);
+            }
+            state.version = version;
+            state.deltas.put(previous, new RosterDelta(version, payload));
+            isTaken = this.indexUser(uname);
+        }
+        this.relay(payload, link);
+        if (change == JOINED && Main.offlineQueue != null)
+            Main.offlineQueue.addKnownUsers(Collections.singleton(uname));
+        if (isTaken)
+            this.disconnectTakenUsers(Collections.singletonList(uname));
+    }
+
+    /**
+     * Processes a chunk of a roster, replacing the roster held for its node
+     * once the last chunk has arrived if it is newer.  The chunks of a roster
+     * must arrive in order on one link, a chunk which doesn't follow the
+     * chunks received so far is ignored and the next digest sends the roster
+     * again.  A failed node's roster is only taken once its heartbeat has
+     * advanced so that the rosters still held by other nodes don't bring it
+     * back.
+     * @param link The link the chunk was received on.
+     * @param in The chunk after its kind.
+     * @throws IOException If the chunk can't be decoded.
+     */
+    private void receiveState(PeerLink link, DataInputStream in)
+                                                      throws IOException {
+        String node = Federation.readString(in);
+        long version = in.readLong();
+        long heartbeat = in.readLong();
+        int chunk = in.readInt();
+        boolean isLastChunk = in.readBoolean();
+        int numUsers = in.readInt();
+        Map<String, String> users = new HashMap<String, String>();
+        Map<String, Long> userLogins = new HashMap<String, Long>();
+        for (int i = 0; i < numUsers; i++){
+            String uname = Federation.readString(in);
+            users.put(uname, Federation.readString(in));
+            userLogins.put(uname, in.readLong());
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> taken = null;
+        Map<String, String> roster;
+        synchronized (this){
+            if (node.equals(this.nodeName))
+                return;
+            Long failedHeartbeat = this.failedNodes.get(node);
+            if (failedHeartbeat != null && heartbeat <= failedHeartbeat)
+                return;
+            NodeState known = this.nodes.get(node);
+            RosterChunks chunks = this.resyncs.get(node);
+            if (chunk == 0){
+                if (known != null && version <= known.version)
+                    return;
+                chunks = new RosterChunks(link, version);
+                this.resyncs.put(node, chunks);
+            }
+            else if (chunks == null || chunks.link != link ||
+                     chunks.version != version || chunks.nextChunk != chunk)
+                return;
+            chunks.roster.putAll(users);
+            chunks.logins.putAll(userLogins);
+            chunks.nextChunk++;
+            if (!isLastChunk)
+                return;
+            this.resyncs.remove(node);
+            roster = chunks.roster;
+            Map<String, Long> logins = chunks.logins;
+            this.failedNodes.remove(node);
+
+            NodeState state = known;
+            if (state == null){
+                state = new NodeState(node);
+                this.nodes.put(node, state);
+                this.ring.add(node);
+                this.isRebalanceDue = true;
+                Log.logFederation(String.format("node %s has joined, %d "
+                        + "user(s)", node, roster.size()));
+            }
+            if (heartbeat > state.heartbeat){
+                state.heartbeat = heartbeat;
+                state.lastSeen  = now;
+            }
+            if (version > state.version){
+                state.version = version;
+                state.roster  = roster;
+                state.logins  = logins;
+                state.deltas.clear();
+                taken = this.indexUsers();
+            }
+        }
+        if (taken != null && Main.offlineQueue != null)
+            Main.offlineQueue.addKnownUsers(roster.keySet());
+        if (taken != null)
+            this.disconnectTakenUsers(taken);
+    }
+
+    /**
+     * Processes chat or a notice from another node, delivering it to this
+     * node's clients and passing it on to the other links the first time it
+     * is seen.
+     * @param link The link the message was received on.
+     * @param payload The encoded message.
+     * @param in The message after its kind.
+     * @throws IOException If the message can't be decoded.
+     */
+    private void receiveBroadcast(PeerLink link, byte[] payload,
+                                  DataInputStream in) throws IOException {
+        String origin = Federation.readString(in);
+        String sequence = Federation.readString(in);
+        if (!this.markSeen(origin, sequence))
+            return;
+        String from = Federation.readString(in);
+        String text = Federation.readString(in);
+        this.relay(payload, link);
+
+        byte[] frame = new Frame(Protocol.TEXT, from.isEmpty() ? text :
+                                 from + " : " + text).encode();
+        for (ClientConnection client : Main.sessions.getConnectedClients()){
+            if (client.getUsername() != null)
+                client.sendDataToThis(frame, true);
+        }
+        if (!from.isEmpty()){
+            Main.replay.append(frame);
+            if (Main.messageLog != null)
+                Main.messageLog.append(MessageLog.CHAT, from, "", text);
+        }
+    }
+
+    /**
+     * Processes a message sent to one node, the first time it is seen,
+     * sending it on towards its node if that isn't this node.
+     * @param link The link the message was received on.
+     * @param payload The encoded message.
+     * @param in The message after its kind.
+     * @param kind The kind of message e.g. PM.
+     * @throws IOException If the message can't be decoded.
+     */
+    private void receiveRouted(PeerLink link, byte[] payload,
+                               DataInputStream in, int kind) throws IOException {
+        String origin = Federation.readString(in);
+        String sequence = Federation.readString(in);
+        if (!this.markSeen(origin, sequence))
+            return;
+        String node = Federation.readString(in);
+        if (!node.equals(this.nodeName)){
+            this.route(node, payload, link);
+            return;
+        }
+        switch (kind){
+            case PM:
+                this.receivePrivateMessage(Federation.readString(in),
+                        Federation.readString(in), Federation.readString(in));
+                break;
+            case OFFLINE:
+                this.receiveQueuedPrivateMessages(Federation.readString(in),
+                                                  Federation.readBytes(in));
+                this.sendTo(ACK, origin, sequence);
+                break;
+            case ACK:
+                synchronized (this.transfers){
+                    this.transfers.remove(Federation.readString(in));
+                }
+                break;
+            case TAKE:
+                this.takeQueuedPrivateMessages(Federation.readString(in),
+                                               Federation.readString(in));
+                break;
+            case CHANNEL:
+                this.receiveChannelMessage(origin, Federation.readString(in),
+                        Federation.readString(in), Federation.readString(in),
+                        Federation.readString(in),
+                        Federation.readString(in).equals("1"));
+                break;
+            case MEMBER:
+                this.receiveChannelMember(Federation.readString(in),
+                        Federation.readString(in),
+                        Federation.readString(in).equals("1"),
+                        Long.parseLong(Federation.readString(in)));
+                break;
+            case SHARE:
+                this.receiveDataShare(origin, sequence, Federation.readString(in),
+                        Federation.readString(in), Federation.readString(in),
+                        Long.parseLong(Federation.readString(in)),
+                        Federation.readString(in).equals("1"),
+                        Federation.readString(in));
+                break;
+            case SHARE_REPLY:
+            case SHARE_ACK:
+            case SHARE_END:
+                DataShareRelay relay;
+                synchronized (this.relays){
+                    relay = this.relays.get(Federation.readString(in));
+                }
+                if (relay == null)
+                    break;
+                if (kind == SHARE_REPLY)
+                    relay.replied(Federation.readString(in).equals("1"));
+                else if (kind == SHARE_ACK)
+                    relay.acknowledged(Long.parseLong(Federation.readString(in)));
+                else
+                    relay.ended();
+                break;
+            case SHARE_DATA:
+            case SHARE_CANCEL:
+                DataShare share;
+                synchronized (this.relayedShares){
+                    share = this.relayedShares.get(origin + ' ' +
+                                                   Federation.readString(in));
+                }
+                if (share == null)
+                    break;
+                if (kind == SHARE_DATA)
+                    share.receiveRelayedData(Federation.readBytes(in));
+                else
+                    share.cancel();
+                break;
+            case SHARE_NOTICE:
+                ClientConnection client = Main.sessions.getClient(
+                                          Federation.readString(in));
+                if (client != null)
+                    client.sendDataToThis(Federation.readString(in));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Processes a PM for a client of this node, queuing it if they have
+     * since disconnected.
+     * @param to The username of the recipient.
+     * @param from The username of the sender.
+     * @param text The PM text.
+     */
+    private void receivePrivateMessage(String to, String from, String text){
+        ClientConnection client = Main.sessions.getClient(to);
+        if (client != null)
+            client.sendDataToThis(new Frame(Protocol.TEXT,
+                                  from + " : " + text).encode(), true);
+        else if (Main.offlineQueue != null && !this.queuePrivateMessage(to,
+                 from, text))
+            Main.offlineQueue.offer(to, from, text);
+        if (Main.messageLog != null)
+            Main.messageLog.append(MessageLog.PM, from, to, text);
+    }
+
+    /**
+     * Processes the PMs queued for a user, sent to the owner of the username
+     * to be queued or to the user's node to be delivered.  The PMs are
+     * delivered if the user is a client of this node, sent on if the user is
+     * a client of another node and otherwise queued here, to be moved to the
+     * owner of the username by the next rebalance if this node isn't it.
+     * The sending node is ACKed once this node has taken the PMs on.
+     * @param uname The username of the user.
+     * @param records The mailbox records of the PMs.
+     */
+    private void receiveQueuedPrivateMessages(String uname, byte[] records){
+        ClientConnection client = Main.sessions.getClient(uname);
+        if (client != null){
+            client.deliverQueuedPrivateMessages(records);
+            return;
+        }
+        String node = this.getNode(uname);
+        if (node != null){
+            this.sendMailbox(node, uname, records);
+            return;
+        }
+        this.requeueQueuedPrivateMessages(uname, records);
+    }
+
+    /**
+     * Sends the PMs queued here for a user to the node they have logged in to.
+     * @param uname The username of the user.
+     * @param node The node the user has logged in to.
+     */
+    private void takeQueuedPrivateMessages(String uname, String node){
+        byte[] records = (Main.offlineQueue != null) ?
+                Main.offlineQueue.takeRecords(uname, MAILBOX_LIMIT) : null;
+        if (records != null)
+            this.sendMailbox(node, uname, records);
+    }
+
+    /**
+     * Processes a channel message, delivering it to the members of the
+     * channel on this node and, if it was sent to this node as the channel's
+     * owner, sending it on to the other nodes with members.
+     * @param origin The node the message was sent from.
+     * @param name The channel name.
+     * @param text The text sent to the members.
+     * @param from The username of the sender, an empty string for a notice.
+     * @param message The message kept in the history.
+     * @param isForOwner True if the message was sent to the channel's owner.
+     */
+    private void receiveChannelMessage(String origin, String name, String text,
+                                       String from, String message,
+                                       boolean isForOwner){
+        if (isForOwner)
+            this.fanOut(name, text, from, message, origin);
+        ChannelRegistry.Channel channel = Main.channels.get(name);
+        if (channel == null)
+            return;
+        byte[] frame = new Frame(Protocol.TEXT, text).encode();
+        for (ClientConnection member : channel.getMembers())
+            member.sendDataToThis(frame, true);
+        if (!from.isEmpty() && Main.messageLog != null)
+            Main.messageLog.append(MessageLog.CHANNEL, from, name, message);
+    }
+
+    /**
+     * Records whether a node has members of a channel owned by this node,
+     * unless a later membership of the node has already been recorded.
+     * @param name The channel name.
+     * @param node The node.
+     * @param hasMembers True if the node has members of the channel.
+     * @param version The version of the node's membership.
+     */
+    private synchronized void receiveChannelMember(String name, String node,
+                                                   boolean hasMembers,
+                                                   long version){
+        Long known = this.memberVersions.get(name + ' ' + node);
+        if (known != null && version <= known)
+            return;
+        this.memberVersions.put(name + ' ' + node, version);
+        Set<String> members = this.channelNodes.get(name);
+        if (hasMembers){
+            if (members == null){
+                members = new HashSet<String>();
+                this.channelNodes.put(name, members);
+            }
+            members.add(node);
+        }
+        else if (members != null){
+            members.remove(node);
+            if (members.isEmpty())
+                this.channelNodes.remove(name);
+        }
+    }
+
+    /**
+     * Processes a data share offered by another node to a client of this
+     * node, beginning it on the client's event loop as a relayed data share
+     * (see DataShare).  The sending node is told straight away if the client
+     * isn't here or there isn't space in the spool.
+     * @param origin The sending node.
+     * @param id The id of the relay on the sending node.
+     * @param from The username of the sending client.
+     * @param to The username of the receiving client.
+     * @param fileName The name of the file.
+     * @param fileSize The size of the file in bytes.
+     * @param isAFileShare True for a file share, false for a voice share.
+     * @param contentHash The content hash offered, an empty string for none.
+     */
+    private void receiveDataShare(final String origin, final String id,
+                                  final String from, final String to,
+                                  final String fileName, final long fileSize,
+                                  final boolean isAFileShare,
+                                  final String contentHash){
+        final ClientConnection client = Main.sessions.getClient(to);
+        if (client == null){
+            this.sendTo(SHARE_NOTICE, origin, from, "Your data share has not "
+                        + "been sent to " + to + ", check the username...");
+            this.sendTo(SHARE_END, origin, id);
+            return;
+        }
+        client.getEventLoop().execute(new Runnable(){
+            public void run(){
+                DataShare share = new DataShare(from, origin, id, client,
+                        fileName, fileSize, isAFileShare,
+                        contentHash.isEmpty() ? null : contentHash);
+                synchronized (relayedShares){
+                    relayedShares.put(origin + ' ' + id, share);
+                }
+                if (share.begin())
+                    return;
+                synchronized (relayedShares){
+                    relayedShares.remove(origin + ' ' + id);
+                }
+                sendTo(SHARE_NOTICE, origin, from, "The server of " + to +
+                       " is too busy to accept your data share, try again later...");
+                sendTo(SHARE_END, origin, id);
+            }
+        });
+    }
+
+    /**
+     * Ends the data shares relayed to and from nodes which have failed.
+     * @param failed The failed nodes.
+     */
+    private void endDataShares(Set<String> failed){
+        List<DataShareRelay> ended = new ArrayList<DataShareRelay>();
+        synchronized (this.relays){
+            for (DataShareRelay relay : this.relays.values()){
+                if (failed.contains(relay.getNode()))
+                    ended.add(relay);
+            }
+        }
+        for (DataShareRelay relay : ended)
+            relay.failed();
+        List<DataShare> cancelled = new ArrayList<DataShare>();
+        synchronized (this.relayedShares){
+            for (DataShare share : this.relayedShares.values()){
+                if (failed.contains(share.getSendingNode()))
+                    cancelled.add(share);
+            }
+        }
+        for (DataShare share : cancelled)
+            share.cancel();
+    }
+
+    /**
+     * Records a message as seen.
+     * @param origin The node the message was sent from.
+     * @param sequence The message's sequence number at its origin, including
+     * the origin's incarnation.
+     * @return True if the message hasn't been seen before, false otherwise.
+     */
+    private boolean markSeen(String origin, String sequence){
+        synchronized (this.seen){
+            return (this.seen.put(origin + ' ' + sequence, Boolean.TRUE) == null);
+        }
+    }
+
+    /**
+     * Returns the next sequence number of a message sent from this node, the
+     * message is marked as seen so that it isn't delivered here again.
+     * @return The sequence number prefixed by this run's incarnation e.g.
+     * "1792195200000:42".
+     */
+    private String nextSequence(){
+        synchronized (this.seen){
+            String sequence = this.incarnation + ":" + this.nextSequence++;
+            this.seen.put(this.nodeName + ' ' + sequence, Boolean.TRUE);
+            return sequence;
+        }
+    }
+
+    /**
+     * Rebuilds the index of the node of each user of the other nodes.  A
+     * username on more than one node belongs to the node with the earliest
+     * login (see isEarlier()), called holding this instance.
+     * @return The usernames of this node's users which belong to another
+     * node, which must be disconnected.
+     */
+    private List<String> indexUsers(){
+        this.userNodes.clear();
+        Map<String, NodeState> owners = new HashMap<String, NodeState>();
+        for (NodeState state : this.nodes.values()){
+            for (String uname : state.roster.keySet()){
+                NodeState owner = owners.get(uname);
+                if (owner == null || Federation.isEarlier(state, owner, uname))
+                    owners.put(uname, state);
+            }
+        }
+        List<String> taken = new ArrayList<String>();
+        for (Map.Entry<String, NodeState> owner : owners.entrySet()){
+            String uname = owner.getKey();
+            boolean isLocal = this.self.roster.containsKey(uname);
+            if (isLocal && Federation.isEarlier(this.self, owner.getValue(), uname))
+                continue;
+            this.userNodes.put(uname, owner.getValue().node);
+            if (isLocal)
+                taken.add(uname);
+        }
+        return taken;
+    }
+
+    /**
+     * Re-indexes the node of one username after it has changed on a roster,
+     * see indexUsers(), called holding this instance.
+     * @param uname The username.
+     * @return True if this node's user of the username belongs to another
+     * node and must be disconnected.
+     */
+    private boolean indexUser(String uname){
+        NodeState owner = null;
+        for (NodeState state : this.nodes.values()){
+            if (state.roster.containsKey(uname) &&
+                (owner == null || Federation.isEarlier(state, owner, uname)))
+                owner = state;
+        }
+        boolean isLocal = this.self.roster.containsKey(uname);
+        if (owner == null || (isLocal &&
+                              Federation.isEarlier(this.self, owner, uname))){
+            this.userNodes.remove(uname);
+            return false;
+        }
+        this.userNodes.put(uname, owner.node);
+        return isLocal;
+    }
+
+    /**
+     * Returns whether a node's user logged in before another node's user
+     * with the same username, the lowest node name breaking a tie.  Every
+     * node gives the same answer for the same rosters.
+     * @param state The node's roster.
+     * @param other The other node's roster.
+     * @param uname The username.
+     * @return True if the node's user logged in first.
+     */
+    private static boolean isEarlier(NodeState state, NodeState other,
+                                     String uname){
+        Long login = state.logins.get(uname);
+        Long otherLogin = other.logins.get(uname);
+        long time = (login != null) ? login : 0;
+        long otherTime = (otherLogin != null) ? otherLogin : 0;
+        if (time != otherTime)
+            return (time < otherTime);
+        return (state.node.compareTo(other.node) < 0);
+    }
+
+    /**
+     * Disconnects this node's users whose username belongs to a user of
+     * another node (see indexUsers()).
+     * @param taken The usernames.
+     */
+    private void disconnectTakenUsers(List<String> taken){
+        for (String uname : taken){
+            ClientConnection client = Main.sessions.getClient(uname);
+            String node = this.getNode(uname);
+            if (client != null && node != null){
+                Log.logFederation(String.format("user %s disconnected, the "
+                        + "username was taken first on node %s", uname, node));
+                client.disconnectTakenUsername(node);
+            }
+        }
+    }
+
+    /**
+     * Encodes the digest of the version and heartbeat of every known roster,
+     * called holding this instance.
+     * @return The encoded digest.
+     */
+    private byte[] encodeDigest(){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(DIGEST);
+            out.writeInt(this.nodes.size() + 1);
+            Federation.writeString(out, this.nodeName);
+            out.writeLong(this.self.version);
+            out.writeLong(this.self.heartbeat);
+            for (NodeState state : this.nodes.values()){
+                Federation.writeString(out, state.node);
+                out.writeLong(state.version);
+                out.writeLong(state.heartbeat);
+            }
+        }
+        catch (IOException ex){
+            //Logger.getLogger(Federation.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a copy of the roster of a node in chunks of about
+     * ROSTER_CHUNK_SIZE bytes, each a STATE message with its chunk number and
+     * whether it is the last chunk.  Called without holding this instance.
+     * @param state The copy of the node's roster.
+     * @return The encoded chunks, at least one.
+     */
+    private static List<byte[]> encodeState(RosterCopy state){
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        ByteArrayOutputStream users = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(users);
+        int numUsers = 0;
+        try {
+            for (Map.Entry<String, String> user : state.roster.entrySet()){
+                Long login = state.logins.get(user.getKey());
+                Federation.writeString(out, user.getKey());
+                Federation.writeString(out, user.getValue());
+                out.writeLong((login != null) ? login : 0);
+                numUsers++;
+                if (users.size() >= ROSTER_CHUNK_SIZE){
+                    chunks.add(Federation.encodeStateChunk(state, chunks.size(),
+                                        false, numUsers, users.toByteArray()));
+                    users.reset();
+                    numUsers = 0;
+                }
+            }
+            chunks.add(Federation.encodeStateChunk(state, chunks.size(), true,
+                                                   numUsers, users.toByteArray()));
+        }
+        catch (IOException ex){
+            //Logger.getLogger(Federation.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return chunks;
+    }
+
+    private static byte[] encodeStateChunk(RosterCopy state, int chunk,
+                                           boolean isLastChunk, int numUsers,
+                                           byte[] users) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(users.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(STATE);
+        Federation.writeString(out, state.node);
+        out.writeLong(state.version);
+        out.writeLong(state.heartbeat);
+        out.writeInt(chunk);
+        out.writeBoolean(isLastChunk);
+        out.writeInt(numUsers);
+        out.write(users);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a peer message made up of strings and byte arrays.
+     * @param kind The kind of message e.g. BROADCAST.
+     * @param fields The fields of the message.
+     * @return The encoded message.
+     */
+    private static byte[] encode(int kind, Object... fields){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(kind);
+            for (Object field : fields){
+                if (field instanceof byte[]){
+                    out.writeInt(((byte[]) field).length);
+                    out.write((byte[]) field);
+                }
+                else
+                    Federation.writeString(out, (String) field);
+            }
+        }
+        catch (IOException ex){
+            //Logger.getLogger(Federation.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String text)
+                                                       throws IOException {
+        byte[] bytes = text.getBytes(Protocol.CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(Federation.readBytes(in), Protocol.CHARSET);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Protocol.MAX_PAYLOAD_SIZE)
+            throw new IOException("Invalid field length");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,141 @@
+
+package yarnserver;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import yarnprotocol.Protocol;
+
+/**
+ * A consistent hash ring used to decide which server (node) of the federation
+ * owns a key e.g. a username or a channel name (see Federation).  Each node
+ * is placed on the ring at a number of points (virtual nodes) given by
+ * hashing its name, and a key is owned by the node at the first point at or
+ * after the key's hash, wrapping around.  Every node builds the same ring
+ * from the same node names, so the nodes agree on the owner of each key
+ * without asking each other.
+ *
+ * Adding a node only moves the keys falling just before its points to it and
+ * removing a node only moves its own keys, to the nodes after its points, so
+ * about 1/N of the keys move when there are N nodes.  The virtual nodes
+ * spread each node's share of the keys around the ring, the more points the
+ * more even the shares as a node's share varies by about 1/sqrt(points):
+ * with 128 points the busiest node owned a third more keys than the least
+ * busy one, with 4096 (the default) under 5% more (see
+ * HashRingBalanceCheck).  This class isn't thread safe, the federation
+ * guards its ring.
+ * @author Michael Telford
+ */
+public class HashRing {
+
+    private final int                   virtualNodes;
+    private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+    private final Set<String>           nodes  = new TreeSet<String>();
+
+    /**
+     * Constructor which takes the number of points of each node.
+     * @param virtualNodes The number of points on the ring of each node.
+     */
+    public HashRing(int virtualNodes){
+        this.virtualNodes = Math.max(virtualNodes, 1);
+    }
+
+    /**
+     * Adds a node to the ring.
+     * @param node The node name.
+     * @return True if the node was added, false if it was already on the ring.
+     */
+    public boolean add(String node){
+        if (!this.nodes.add(node))
+            return false;
+        for (int i = 0; i < this.virtualNodes; i++)
+            this.points.put(HashRing.hash(node + "#" + i), node);
+        return true;
+    }
+
+    /**
+     * Removes a node from the ring.
+     * @param node The node name.
+     * @return True if the node was removed, false if it wasn't on the ring.
+     */
+    public boolean remove(String node){
+        if (!this.nodes.remove(node))
+            return false;
+        for (int i = 0; i < this.virtualNodes; i++){
+            Long point = HashRing.hash(node + "#" + i);
+            if (node.equals(this.points.get(point)))
+                this.points.remove(point);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the node which owns a key.
+     * @param key The key e.g. a username.
+     * @return The node name or null if the ring is empty.
+     */
+    public String getNode(String key){
+        if (this.points.isEmpty())
+            return null;
+        Map.Entry<Long, String> point = this.points.ceilingEntry(HashRing.hash(key));
+        if (point == null)
+            point = this.points.firstEntry();
+        return point.getValue();
+    }
+
+    /**
+     * Returns the number of nodes on the ring.
+     * @return The number of nodes.
+     */
+    public int getNumNodes(){
+        return this.nodes.size();
+    }
+
+    /**
+     * Returns the share of the keys owned by a node, which is the share of
+     * the ring between its points and the points before them.
+     * @param node The node name.
+     * @return The share between 0 and 1.
+     */
+    public double getShare(String node){
+        if (!this.nodes.contains(node))
+            return 0;
+        if (this.nodes.size() == 1)
+            return 1;
+        double owned = 0;
+        Long previous = this.points.lastKey();
+        for (Map.Entry<Long, String> point : this.points.entrySet()){
+            // The distance wraps around the unsigned 64 bit ring.
+            if (node.equals(point.getValue()))
+                owned += HashRing.toUnsigned(point.getKey() - previous);
+            previous = point.getKey();
+        }
+        return owned / Math.pow(2, 64);
+    }
+
+    private static double toUnsigned(long value){
+        return (value >= 0) ? value : value + Math.pow(2, 64);
+    }
+
+    /**
+     * Hashes a key onto the ring, the first eight bytes of its MD5 digest.
+     * @param key The key.
+     * @return The key's point on the ring.
+     */
+    private static long hash(String key){
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                                              key.getBytes(Protocol.CHARSET));
+            long hash = 0;
+            for (int i = 0; i < 8; i++)
+                hash = (hash << 8) | (digest[i] & 0xff);
+            return hash;
+        }
+        catch (NoSuchAlgorithmException ex){
+            return key.hashCode();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+
+package yarnserver;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size histogram of latencies used to report percentiles (e.g. the
+ * p99 time a message spends in an output queue) without keeping every
+ * sample.  Latencies are recorded in micro seconds into buckets which double
+ * in width every eight buckets, so each bucket is accurate to within 12.5%
+ * of its value whatever the scale and recording a sample takes constant time.
+ *
+ * This class is not thread safe, it is only used by its owning event loop
+ * thread.
+ * @author Michael Telford
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;   // Per power of two.
+    private static final int MAX_EXPONENT = 40; // About 12 days in micro seconds.
+
+    private final long[]     counts = new long[(MAX_EXPONENT - 1) * SUB_BUCKETS];
+    private long             numSamples = 0;
+    private long             max        = 0;
+
+    /**
+     * Records a latency.
+     * @param nanos The latency in nano seconds.
+     */
+    public void record(long nanos){
+        long micros = Math.max(0, nanos / 1000);
+        this.counts[LatencyHistogram.getIndex(micros)]++;
+        this.numSamples++;
+        if (micros > this.max)
+            this.max = micros;
+    }
+
+    /**
+     * Returns the number of latencies recorded.
+     * @return The number of samples.
+     */
+    public long getNumSamples(){
+        return this.numSamples;
+    }
+
+    /**
+     * Returns the greatest latency recorded.
+     * @return The maximum latency in micro seconds.
+     */
+    public long getMax(){
+        return this.max;
+    }
+
+    /**
+     * Returns the latency which the given percentage of the recorded
+     * latencies don't exceed, e.g. 99 for the p99 latency.  The upper bound
+     * of the bucket the percentile falls in is returned.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The latency in micro seconds or zero if none were recorded.
+     */
+    public long getPercentile(double percentile){
+        if (this.numSamples == 0)
+            return 0;
+        long rank = (long) Math.ceil((percentile / 100.0) * this.numSamples);
+        long count = 0;
+        for (int i = 0; i < this.counts.length; i++){
+            count += this.counts[i];
+            if (count >= rank && count > 0)
+                return Math.min(LatencyHistogram.getUpperBound(i), this.max);
+        }
+        return this.max;
+    }
+
+    /**
+     * Clears the recorded latencies e.g. at the start of a new reporting
+     * period.
+     */
+    public void reset(){
+        Arrays.fill(this.counts, 0);
+        this.numSamples = 0;
+        this.max = 0;
+    }
+
+    /**
+     * Returns the index of the bucket a latency belongs to.
+     * @param micros The latency in micro seconds.
+     * @return The bucket index.
+     */
+    private static int getIndex(long micros){
+        if (micros < LatencyHistogram.SUB_BUCKETS)
+            return (int) micros;
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros),
+                                LatencyHistogram.MAX_EXPONENT);
+        int subBucket = (int) ((micros >> (exponent - 3)) & 7);
+        return (exponent - 2) * LatencyHistogram.SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the greatest latency which belongs to a bucket.
+     * @param index The bucket index.
+     * @return The latency in micro seconds.
+     */
+    private static long getUpperBound(int index){
+        if (index < LatencyHistogram.SUB_BUCKETS)
+            return index;
+        int exponent = (index / LatencyHistogram.SUB_BUCKETS) + 2;
+        long subBucket = index % LatencyHistogram.SUB_BUCKETS;
+        return ((LatencyHistogram.SUB_BUCKETS + subBucket + 1) << (exponent - 3)) - 1;
+    }
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.Date;
+import yarnprotocol.ProtocolUtilities;
 
 /**
  * Log class for the logging of text to a file in the application directory.  
@@ -116,6 +117,249 @@ public abstract class Log {
                 + " client(s) currently connected)");
     }
     
+    /**
+     * Log text detailing a client which has crossed the slow client threshold
+     * of its output queue.
+     * @param client The connected socket.
+     * @param uname The client username.
+     * @param queueSize The number of messages in the client's output queue.
+     * @param queuedBytes The number of bytes in the client's output queue.
+     */
+    public static void logSlowClient(Socket client,
+                                     String uname,
+                                     int    queueSize,
+                                     long   queuedBytes){
+        if (!isLogInit)
+            return;
+        String address = client.getInetAddress().getHostAddress();
+        String port = String.valueOf(client.getPort());
+        logLineOfText(String.format(
+                "slow client @%s [%s:%s] (queue depth %d, %d bytes : %s)",
+                uname, address, port, queueSize, queuedBytes,
+                Configuration.getSlowClientPolicyName()));
+    }
+
+    /**
+     * Log text detailing the output queue counters of a disconnected client.
+     * @param client The connected socket.
+     * @param uname The client username.
+     * @param peakSize The greatest number of messages in the output queue.
+     * @param peakBytes The greatest number of bytes in the output queue.
+     * @param numSlowPeriods The number of times the client became slow.
+     * @param numSkipped The number of messages dropped or coalesced.
+     */
+    public static void logClientQueueStatistics(Socket client,
+                                                String uname,
+                                                int    peakSize,
+                                                long   peakBytes,
+                                                int    numSlowPeriods,
+                                                int    numSkipped){
+        if (!isLogInit)
+            return;
+        String address = client.getInetAddress().getHostAddress();
+        String port = String.valueOf(client.getPort());
+        logLineOfText(String.format(
+                "client queue @%s [%s:%s] (peak depth %d, peak %d bytes, "
+                + "%d slow period(s), %d message(s) skipped)",
+                uname, address, port, peakSize, peakBytes, numSlowPeriods,
+                numSkipped));
+    }
+    
+    /**
+     * Log text detailing the compression statistics of a disconnected client
+     * which negotiated compression.
+     * @param client The connected socket.
+     * @param uname The client username.
+     * @param statistics The compression statistics (see FrameCompressor).
+     */
+    public static void logClientCompressionStatistics(Socket client,
+                                                      String uname,
+                                                      String statistics){
+        if (!isLogInit)
+            return;
+        String address = client.getInetAddress().getHostAddress();
+        String port = String.valueOf(client.getPort());
+        logLineOfText(String.format("client compression @%s [%s:%s] (%s)",
+                                    uname, address, port, statistics));
+    }
+    
+    /**
+     * Log text detailing the writes of queued messages made by an event loop
+     * during the last statistics interval.
+     * @param eventLoop The event loop thread name.
+     * @param numMessages The number of messages written.
+     * @param numWrites The number of socket writes (system calls) used.
+     * @param p50 The median time a message was queued for, in micro seconds.
+     * @param p99 The p99 time a message was queued for, in micro seconds.
+     * @param max The longest time a message was queued for, in micro seconds.
+     */
+    public static void logWriteStatistics(String eventLoop,
+                                          long   numMessages,
+                                          long   numWrites,
+                                          long   p50,
+                                          long   p99,
+                                          long   max){
+        if (!isLogInit)
+            return;
+        logLineOfText(String.format(
+                "writes %s (%d message(s) in %d write(s), %.2f writes per "
+                + "message, queued p50 %d us, p99 %d us, max %d us, coalesce "
+                + "window %d us)", eventLoop, numMessages, numWrites,
+                (double) numWrites / numMessages, p50, p99, max,
+                Configuration.coalesceWindow));
+    }
+    
+    /**
+     * Log text detailing the TLS handshakes performed during the last
+     * statistics interval.  Resumed handshakes reuse a cached session (or a
+     * session ticket) and should be much faster than full handshakes.
+     * @param numFull The number of full handshakes.
+     * @param fullP50 The median full handshake time, in micro seconds.
+     * @param fullP99 The p99 full handshake time, in micro seconds.
+     * @param numResumed The number of resumed handshakes.
+     * @param resumedP50 The median resumed handshake time, in micro seconds.
+     * @param resumedP99 The p99 resumed handshake time, in micro seconds.
+     * @param numFailed The number of failed or timed out handshakes.
+     * @param numRefused The number of connections closed because the
+     * handshake queue was full.
+     * @param numCached The number of sessions in the session cache.
+     */
+    public static void logHandshakeStatistics(long numFull,
+                                              long fullP50,
+                                              long fullP99,
+                                              long numResumed,
+                                              long resumedP50,
+                                              long resumedP99,
+                                              long numFailed,
+                                              long numRefused,
+                                              int  numCached){
+        if (!isLogInit)
+            return;
+        long numHandshakes = numFull + numResumed;
+        double resumedRate = 0;
+        if (numHandshakes > 0)
+            resumedRate = (numResumed * 100.0) / numHandshakes;
+        logLineOfText(String.format(
+                "handshakes (%d full, p50 %d us, p99 %d us, %d resumed, p50 %d "
+                + "us, p99 %d us, resumed rate %.1f%%, %d failed, %d refused, "
+                + "%d session(s) cached)", numFull, fullP50, fullP99,
+                numResumed, resumedP50, resumedP99, resumedRate, numFailed,
+                numRefused, numCached));
+    }
+    
+    /**
+     * Log text detailing the messages and data received during the last
+     * statistics interval and how many were held back by the client and
+     * source address rate limits (see RateLimiter).
+     * @param numMessages The number of messages (text and data share
+     * commands) received.
+     * @param numBytes The number of bytes received.
+     * @param clientDropped The number of messages dropped by client limits.
+     * @param addressDropped The number of messages dropped by source address
+     * limits.
+     * @param clientThrottled The number of reads paused by client limits.
+     * @param addressThrottled The number of reads paused by source address
+     * limits.
+     * @param clientRefused The number of data shares refused by client
+     * limits.
+     * @param addressRefused The number of data shares refused by source
+     * address limits.
+     * @param numAddresses The number of source addresses connected.
+     */
+    public static void logRateLimitStatistics(long numMessages,
+                                              long numBytes,
+                                              long clientDropped,
+                                              long addressDropped,
+                                              long clientThrottled,
+                                              long addressThrottled,
+                                              long clientRefused,
+                                              long addressRefused,
+                                              int  numAddresses){
+        if (!isLogInit)
+            return;
+        logLineOfText(String.format(
+                "rate limits (%d message(s), %d dropped (%d client, %d ip), %d "
+                + "bytes received, %d read(s) throttled (%d client, %d ip), %d data "
+                + "share(s) refused (%d client, %d ip), %d ip address(es) "
+                + "connected)", numMessages, clientDropped + addressDropped,
+                clientDropped, addressDropped, numBytes,
+                clientThrottled + addressThrottled, clientThrottled,
+                addressThrottled, clientRefused + addressRefused,
+                clientRefused, addressRefused, numAddresses));
+    }
+    
+    /**
+     * Log text detailing the messages appended to the message log and the 
+     * flushes of the log to disk during the last statistics interval.
+     * @param numAppended The number of messages appended.
+     * @param bytesAppended The number of bytes appended.
+     * @param avgAppendMicros The average time taken by an append in micro 
+     * seconds.
+     * @param maxAppendMicros The longest time taken by an append in micro 
+     * seconds.
+     * @param numSyncs The number of flushes to disk.
+     * @param avgSyncMillis The average time taken by a flush in milliseconds.
+     * @param maxSyncMillis The longest time taken by a flush in milliseconds.
+     * @param numSegments The number of segments kept.
+     * @param numBytes The number of bytes of messages kept.
+     */
+    public static void logMessageLogStatistics(long   numAppended,
+                                               long   bytesAppended,
+                                               double avgAppendMicros,
+                                               double maxAppendMicros,
+                                               long   numSyncs,
+                                               double avgSyncMillis,
+                                               double maxSyncMillis,
+                                               int    numSegments,
+                                               long   numBytes){
+        if (!isLogInit)
+            return;
+        logLineOfText(String.format(
+                "message log (%d message(s) appended, %d bytes, append avg %.1f "
+                + "us max %.1f us, %d sync(s) avg %.2f ms max %.2f ms, %d "
+                + "segment(s) %d bytes kept)", numAppended, bytesAppended,
+                avgAppendMicros, maxAppendMicros, numSyncs, avgSyncMillis,
+                maxSyncMillis, numSegments, numBytes));
+    }
+    
+    /**
+     * Log text detailing the PMs queued for a user who wasn't connected 
+     * being delivered or expiring.
+     * @param uname The username of the user.
+     * @param event The number of PMs delivered or expired.
+     */
+    public static void logOfflineMessages(String uname, String event){
+        if (!isLogInit)
+            return;
+        logLineOfText(String.format("offline PMs [@%s] (%s)", uname, event));
+    }
+    
+    /**
+     * Log text detailing a change to the federation e.g. a link to another 
+     * server opening or a server failing.
+     * @param event The change.
+     */
+    public static void logFederation(String event){
+        if (!isLogInit)
+            return;
+        logLineOfText(String.format("federation [%s] (%s)", 
+                                    Configuration.getNodeName(), event));
+    }
+    
+    /**
+     * Log text detailing an admission decision made because the server is
+     * full, along with the admission statistics.
+     * @param client The connected socket.
+     * @param event The admission decision and statistics.
+     */
+    public static void logAdmission(Socket client, String event){
+        if (!isLogInit)
+            return;
+        String address = client.getInetAddress().getHostAddress();
+        String port = String.valueOf(client.getPort());
+        logLineOfText("admission [" + address + ":" + port + "] (" + event + ")");
+    }
+    
     /**
      * Log text detailing a failed password attempt.  
      * @param client The connected socket.  
@@ -144,7 +388,7 @@ public abstract class Log {
     public static void logAcceptedDataShare(String  sender, 
                                             String  receiver, 
                                             String  filename,
-                                            int     fileSize,
+                                            long    fileSize,
                                             boolean isAFileShare){
         if (!isLogInit)
             return;
@@ -168,7 +412,7 @@ public abstract class Log {
     public static void logRejectedDataShare(String  sender, 
                                             String  receiver, 
                                             String  filename,
-                                            int     fileSize,
+                                            long    fileSize,
                                             boolean isAFileShare){
         if (!isLogInit)
             return;
@@ -192,7 +436,7 @@ public abstract class Log {
     public static void logFailedDataShare(String  sender, 
                                           String  receiver, 
                                           String  filename,
-                                          int     fileSize,
+                                          long    fileSize,
                                           boolean isAFileShare){
         if (!isLogInit)
             return;
@@ -209,6 +453,49 @@ public abstract class Log {
                                dataType, sender, receiver, filename, fileSize, message));
     }
     
+    /**
+     * Log text detailing the measured throughput of a data share transfer.
+     * @param sender The senders username.
+     * @param receiver The receivers username or null if the data was sent
+     * from the sender to the server.
+     * @param filename The file name of the share.
+     * @param numBytes The amount of file bytes transmitted.
+     * @param timeTaken The time taken to transmit the data in milliseconds.
+     */
+    public static void logDataShareThroughput(String sender,
+                                              String receiver,
+                                              String filename,
+                                              long   numBytes,
+                                              long   timeTaken){
+        if (!isLogInit)
+            return;
+        String leg = "sender to server";
+        if (receiver != null)
+            leg = "server to receiver";
+        logLineOfText(String.format(
+                "data share transfer [@%s -> @%s] (%s (%d bytes in %d ms, %s) : %s)",
+                sender, receiver, filename, numBytes, timeTaken,
+                ProtocolUtilities.formatThroughput(numBytes, timeTaken), leg));
+    }
+
+    /**
+     * Log text detailing a data share spool event (a refusal or an eviction),
+     * along with the spool statistics.
+     * @param sender The senders username.
+     * @param filename The file name of the share.
+     * @param fileSize The size of the share in bytes.
+     * @param event The spool event and statistics.
+     */
+    public static void logDataShareSpool(String sender,
+                                         String filename,
+                                         long   fileSize,
+                                         String event){
+        if (!isLogInit)
+            return;
+        logLineOfText(String.format("data share spool [@%s] (%s (%d bytes) : %s)",
+                                    sender, filename, fileSize, event));
+    }
+
     /**
      * Generic method which writes a line of text to the log file.
      * This method is called by all the log methods in this class.  
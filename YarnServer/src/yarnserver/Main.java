@@ -1,31 +1,75 @@
 
 package yarnserver;
 
-import java.net.Authenticator;
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.PasswordAuthentication;
-import java.net.Proxy;
-import java.net.Socket;
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * Main class for the TCP Server CLI application.  Listens on a given port and
- * spawns a new ClientConnection object for each connecting client.  That
- * instance is then started on its own thread which is used for sending and
- * receiving textual data and for the checking of its connection status.
+ * creates a new ClientConnection object for each connecting client.  That
+ * instance is then registered with one of a small fixed number of event loop
+ * threads which is used for sending and receiving data and for the checking
+ * of its connection status.
  * @author Micky Telford
  */
 public class Main {
     
     /**
-     * The client connection array is used to store client connections once 
+     * The session registry is used to store client connections once 
      * accepted.  This variable is public and statically accessible from this 
      * class.  Other classes access this variable when interacting with client 
      * connections.  
      */
-    public static ClientConnection[] connections = null;
+    public static SessionRegistry sessions = null;
+    
+    /**
+     * The channel registry holds the named channels and their members so 
+     * that a channel message is only sent to the channel's members.  
+     */
+    public static final ChannelRegistry channels = new ChannelRegistry();
+    
+    /**
+     * The admission controller decides whether each accepted connection is 
+     * admitted, queued or rejected once the connection limit is reached.  
+     */
+    public static AdmissionController admission = null;
+    
+    /**
+     * The share spool stores the data of the data shares in progress on disk.  
+     */
+    public static ShareSpool spool = null;
+    
+    /**
+     * The rate limiter stops clients flooding the server with messages, data 
+     * and data shares.  
+     */
+    public static RateLimiter rateLimiter = null;
+    
+    /**
+     * The replay buffer holds the recent chat messages which are replayed to 
+     * each client once it has logged in.  
+     */
+    public static ReplayBuffer replay = null;
+    
+    /**
+     * The message log keeps the chat and PM history on disk, null if the 
+     * history isn't kept.  
+     */
+    public static MessageLog messageLog = null;
+    /**
+     * The offline queue holds the PMs sent to users who aren't connected 
+     * until they next log in, null if such PMs aren't queued.  
+     */
+    public static OfflineQueue offlineQueue = null;
+    
+    /**
+     * The federation links this server to the other servers of a federated 
+     * yarn, null if this server isn't federated.  
+     */
+    public static Federation federation = null;
 
     /**
      * Main method which is responsible for listening for and accepting incoming 
@@ -57,45 +101,62 @@ public class Main {
             Log.initLog();
             Log.logServerStart();
             
-            Main.connections = new ClientConnection[Configuration.connectionLimit];
-            ProxyServerSocket server = null;
-            SSLServerSocket sslServerSocket = null;
-            
-            // If NOT using secure comms.
-            if (!Configuration.useSecureComms){
-                
-                // Init proxy for use with accepted sockets.
-                Proxy proxy;
-                if (Configuration.useProxy){
-                    InetSocketAddress proxySockAddr = new InetSocketAddress(
-                        Configuration.proxyAddr, Configuration.proxyPort);
-                    proxy = new Proxy(Proxy.Type.SOCKS, proxySockAddr);
+            Main.sessions = new SessionRegistry(Configuration.connectionLimit);
+            Main.admission = new AdmissionController(Main.sessions);
+            Main.spool = new ShareSpool(new File(Configuration.spoolDirectory), 
+                                        Configuration.spoolSizeLimit);
+            Main.rateLimiter = new RateLimiter();
+            Main.replay = new ReplayBuffer(Configuration.replayBufferSize, 
+                        Configuration.replayMessageLimit, 
+                        Configuration.getReplayTimeLimitInMilliSeconds());
+            if (Configuration.useMessageLog){
+                try {
+                    Main.messageLog = new MessageLog(
+                            new File(Configuration.messageLogDirectory), 
+                            Configuration.messageLogSegmentSize, 
+                            Configuration.messageLogSizeLimit, 
+                            Configuration.getMessageLogRetentionInMilliSeconds(), 
+                            Configuration.messageLogSyncInterval);
+                    Main.messageLog.start();
                 }
-                else
-                    proxy = Proxy.NO_PROXY;
-
-                // Set up the proxy to use authentication if necessary.
-                if (Configuration.useProxy && Configuration.useProxyAuthentication()){
-                    Authenticator.setDefault(new Authenticator(){
-                      @Override
-                      protected PasswordAuthentication getPasswordAuthentication(){
-                          return new PasswordAuthentication(
-                              Configuration.proxyUname,
-                              Configuration.proxyPword.toCharArray()
-                          );
-                      }
-                    });
+                catch (IOException ex){
+                    System.out.println("The message log could not be opened, "
+                            + "the message history won't be kept : " 
+                            + ex.getMessage());
                 }
-
-                // Init variables for connection loop.
-                server = new ProxyServerSocket(
-                                            Configuration.serverListeningPort,
-                                            Configuration.connectionLimit,
-                                            proxy);
             }
+            if (Configuration.useOfflineMessages){
+                Main.offlineQueue = new OfflineQueue(
+                        new File(Configuration.offlineMessageDirectory), 
+                        Configuration.offlineMessageLimit, 
+                        Configuration.offlineMessageUserSizeLimit, 
+                        Configuration.offlineMessageSenderSizeLimit, 
+                        Configuration.offlineMessageSizeLimit, 
+                        Configuration.getOfflineMessageTTLInMilliSeconds(), 
+                        Configuration.offlineMessageSyncInterval);
+                Main.offlineQueue.start();
+            }
+            ServerSocketChannel server = null;
+            SecureContext secureContext = null;
             
-            // Else if using secure comms.
-            else {
+            // Start the event loops which service the client connections.
+            EventLoop[] eventLoops = new EventLoop[Configuration.eventLoopThreads];
+            for (int i = 0; i < eventLoops.length; i++){
+                eventLoops[i] = new EventLoop(i);
+                eventLoops[i].start();
+            }
+            int nextEventLoop = 0;
+            
+            // Init variables for connection loop.  The server socket channel
+            // is left in blocking mode so that accept() blocks.
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(
+                                        Configuration.serverListeningPort),
+                                        Configuration.connectionLimit);
+            
+            // If using secure comms.
+            if (Configuration.useSecureComms){
                 
                 // Initialise proxy configuration.
                 if (Configuration.useProxy){
@@ -107,16 +168,35 @@ public class Main {
                     }
                 }
 
-                // Initialise SSL configuration.
-                System.setProperty("javax.net.ssl.keyStore", Configuration.keyStore);
-                System.setProperty("javax.net.ssl.keyStorePassword", Configuration.keyStorePassword);
-                System.setProperty("sun.security.ssl.allowUnsafeRenegotiation", "true");
-
-                SSLServerSocketFactory sslServerSocketFactory =
-                        (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-                sslServerSocket =
-                        (SSLServerSocket) sslServerSocketFactory.createServerSocket(
-                        Configuration.serverListeningPort, Configuration.connectionLimit);
+                // Initialise SSL configuration, the SSL context is built 
+                // from the key store and owns the session cache.
+                secureContext = new SecureContext();
+            }
+            
+            // Join the federation, the links to the other servers are secured
+            // with the same SSL context as the clients' connections.
+            if (Configuration.federationPort > 0){
+                if (Configuration.federationPassword.isEmpty())
+                    System.out.println("The federation password isn't set, "
+                            + "this server won't be federated");
+                else {
+                    try {
+                        Main.federation = new Federation(
+                                Configuration.getNodeName(), 
+                                Configuration.federationPort, 
+                                Configuration.getFederationPeerAddresses(), 
+                                Configuration.federationPassword, 
+                                Configuration.gossipInterval, 
+                                Configuration.virtualNodes, 
+                                secureContext);
+                        Main.federation.start();
+                    }
+                    catch (IOException ex){
+                        System.out.println("The federation port could not be "
+                                + "listened on, this server won't be federated : " 
+                                + ex.getMessage());
+                    }
+                }
             }
 
             System.out.println("SERVER IS RUNNING...");
@@ -124,35 +204,25 @@ public class Main {
             // Enters continuous client connection loop.
             while (true){
                 try {
-                    // Find a null instance in array.
-                    for (int i = 0; i < Main.connections.length; i++){
-                        if (Main.connections[i] == null){
-                            
-                            // Accept connection on request.
-                            Socket socket = null;
-                            SSLSocket sslSocket = null;
-                            
-                            // If NOT using secure comms.
-                            if (!Configuration.useSecureComms){
-                                socket = server.accept(); // Blocks.
-                                Main.connections[i] = new ClientConnection(socket);
-                            }
-                            
-                            // Else if using secure comms.
-                            else {
-                                sslSocket = (SSLSocket) sslServerSocket.accept(); // Blocks.
-                                Main.connections[i] = new ClientConnection(sslSocket);
-                            }
-                            
-                            // Init and start connection on its own thread.
-                            Main.connections[i].setName("Client Connection Thread " + i);
-                            Main.connections[i].setDaemon(true);
-                            Main.connections[i].start();
-                            
-                            // Re-enters client connection loop.
-                            break;
-                        }
-                    } // Re-enters loop for next client connection.
+                    // Accept connection on request, the admission controller
+                    // decides what happens when the server is full.
+                    SocketChannel channel = server.accept(); // Blocks.
+                    ClientConnection client;
+                    
+                    // If NOT using secure comms.
+                    if (!Configuration.useSecureComms)
+                        client = new ClientConnection(channel);
+                    
+                    // Else if using secure comms, the handshake is performed
+                    // by the event loop.
+                    else
+                        client = new ClientConnection(channel, secureContext);
+                    
+                    // Admit the connection to the next event loop.
+                    Main.admission.admit(client, eventLoops[nextEventLoop]);
+                    nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                    
+                    // Re-enters loop for next client connection.
                 }
                 catch (Exception ex){
                     // All exceptions within loop result in a line being printed
@@ -0,0 +1,610 @@
+
+package yarnserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import yarnprotocol.Protocol;
+
+/**
+ * The persistent, append only log of the chat messages and PMs sent through
+ * the server, which clients page back through with the -history command.
+ *
+ * The log is split into segment files of a fixed size, each memory mapped so
+ * that appending a message is a copy into memory under a short lock rather
+ * than a write system call on the event loop.  A message is stored as a
+ * record: a four byte length (written last, so a record is only seen once it
+ * is complete), the eight byte time, the kind (CHAT, PM or CHANNEL), the
+ * sender, the PM recipients or channel name and the text.  A zero length
+ * marks the end of the records.  When a segment is full the next one is
+ * started.
+ *
+ * Each segment has a sparse index, also memory mapped, holding the time and
+ * position of a record every INDEX_INTERVAL bytes.  Reading a page of history
+ * back from a position scans at most an index interval of records at a time
+ * rather than whole segments, and on start up only the records after the
+ * last index entry are scanned to find the end of the log.  A page is read
+ * without the lock from the ends of the segments when it started, records
+ * below them never change, so reading doesn't hold up appends.  At most
+ * PAGE_SCAN_LIMIT bytes are scanned per page, a user whose messages are
+ * sparse pages on through the rest of the log.
+ *
+ * The log is flushed to disk by this class's thread every sync interval (see
+ * Configuration.messageLogSyncInterval) if anything has been appended, so
+ * one flush commits every message appended in the meantime (group commit)
+ * and the event loops never wait for the disk.  The oldest segments are
+ * deleted once the log is over its size limit or their messages are older
+ * than the retention period.  The append and flush times are logged with
+ * the number of messages appended once per statistics interval so that the
+ * cost of the log can be checked against live chat.
+ *
+ * This class is used by all of the event loops and so is thread safe.
+ * @author Michael Telford
+ */
+public class MessageLog extends Thread {
+
+    // Record kinds.
+    public  static final int    CHAT                = 0;
+    public  static final int    PM                  = 1;
+    public  static final int    CHANNEL             = 2;
+
+    public  static final int    PAGE_SIZE           = 20;       // in messages.
+
+    private static final int    RECORD_HEADER_SIZE  = 17;       // in bytes.
+    private static final int    INDEX_ENTRY_SIZE    = 12;       // in bytes.
+    private static final int    INDEX_INTERVAL      = 4096;     // in bytes.
+    private static final int    PAGE_SCAN_LIMIT     = 1048576;  // in bytes.
+    private static final long   STATISTICS_INTERVAL = 60000;    // in milliseconds.
+    private static final String SEGMENT_EXTENSION   = ".log";
+    private static final String INDEX_EXTENSION     = ".idx";
+
+    /**
+     * A page of the history read back from the log.
+     */
+    public static class Page {
+        private final List<String> lines;
+        private final long         cursor;
+
+        Page(List<String> lines, long cursor){
+            this.lines  = lines;
+            this.cursor = cursor;
+        }
+
+        /**
+         * Returns the messages of this page, oldest first.
+         * @return The formatted messages.
+         */
+        public List<String> getLines(){
+            return this.lines;
+        }
+
+        /**
+         * Returns the position to read the next (older) page back from.
+         * @return The position or -1 if there are no older messages.
+         */
+        public long getCursor(){
+            return this.cursor;
+        }
+    }
+
+    /**
+     * A segment file of the log and its index file, both memory mapped.
+     * Guarded by the message log.
+     */
+    private static class Segment {
+        private final long             sequence;
+        private final File             file;
+        private final File             indexFile;
+        private final MappedByteBuffer data;
+        private final MappedByteBuffer index;
+        private int                    end             = 0;
+        private int                    numIndexEntries = 0;
+        private long                   lastTime        = 0;
+
+        /**
+         * Constructor which opens (or creates) a segment and finds the end
+         * of its records.
+         * @param directory The log directory.
+         * @param sequence The segment's sequence number.
+         * @param size The size of a new segment in bytes.
+         * @throws IOException If the segment can't be opened.
+         */
+        Segment(File directory, long sequence, int size) throws IOException {
+            this.sequence  = sequence;
+            String name    = String.format("%020d", sequence);
+            this.file      = new File(directory, name + SEGMENT_EXTENSION);
+            this.indexFile = new File(directory, name + INDEX_EXTENSION);
+            this.data      = Segment.map(this.file, size);
+            this.index     = Segment.map(this.indexFile, (size / INDEX_INTERVAL + 2)
+                                                         * INDEX_ENTRY_SIZE);
+
+            int maxIndexEntries = this.index.capacity() / INDEX_ENTRY_SIZE;
+            while (this.numIndexEntries < maxIndexEntries &&
+                   this.getIndexTime(this.numIndexEntries) != 0)
+                this.numIndexEntries++;
+            if (this.numIndexEntries > 0)
+                this.end = this.getIndexPosition(this.numIndexEntries - 1);
+            int length;
+            while ((length = this.getRecordLength(this.end)) > 0){
+                this.lastTime = this.data.getLong(this.end + 4);
+                this.end += 4 + length;
+            }
+        }
+
+        /**
+         * Memory maps a file, creating it with the given size if it's new.
+         * @param file The file to map.
+         * @param size The size of a new file in bytes.
+         * @return The mapped file.
+         * @throws IOException If the file can't be mapped.
+         */
+        private static MappedByteBuffer map(File file, int size)
+                                                        throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() == 0)
+                    raf.setLength(size);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                            raf.length());
+            }
+            finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Returns the length of the record at a position (excluding its
+         * length field).
+         * @param position The position of the record.
+         * @return The record length, zero at the end of the records.
+         */
+        int getRecordLength(int position){
+            if (position + 4 > this.data.capacity())
+                return 0;
+            int length = this.data.getInt(position);
+            if (length < RECORD_HEADER_SIZE - 4 ||
+                length > this.data.capacity() - position - 4)
+                return 0;
+            return length;
+        }
+
+        long getIndexTime(int entry){
+            return this.index.getLong(entry * INDEX_ENTRY_SIZE);
+        }
+
+        int getIndexPosition(int entry){
+            return this.index.getInt(entry * INDEX_ENTRY_SIZE + 8);
+        }
+
+        /**
+         * Adds an index entry, the time is written last so that a zero time
+         * marks the end of the entries.
+         * @param time The time of the record.
+         * @param position The position of the record.
+         */
+        void addIndexEntry(long time, int position){
+            int offset = this.numIndexEntries * INDEX_ENTRY_SIZE;
+            if (offset + INDEX_ENTRY_SIZE > this.index.capacity())
+                return;
+            this.index.putInt(offset + 8, position);
+            this.index.putLong(offset, time);
+            this.numIndexEntries++;
+        }
+
+        /**
+         * Returns the last index entry before a position.
+         * @param position The position.
+         * @param numEntries The number of index entries to search.
+         * @return The index entry or -1 if there is none.
+         */
+        int findIndexEntry(int position, int numEntries){
+            int low = 0;
+            int high = numEntries - 1;
+            int found = -1;
+            while (low <= high){
+                int mid = (low + high) >>> 1;
+                if (this.getIndexPosition(mid) < position){
+                    found = mid;
+                    low = mid + 1;
+                }
+                else
+                    high = mid - 1;
+            }
+            return found;
+        }
+
+        /**
+         * Deletes the segment's files.  A file which can't be deleted while
+         * it is mapped (e.g. on Windows) is deleted when the server exits.
+         */
+        void delete(){
+            if (!this.file.delete())
+                this.file.deleteOnExit();
+            if (!this.indexFile.delete())
+                this.indexFile.deleteOnExit();
+        }
+    }
+
+    private final File          directory;
+    private final int           segmentSize;
+    private final long          sizeLimit;
+    private final long          retention;
+    private final long          syncInterval;
+    private final List<Segment> segments        = new ArrayList<Segment>();  // Oldest first.
+    private final List<Segment> unsynced        = new ArrayList<Segment>();  // Rolled segments.
+    private boolean             isDirty         = false;
+
+    // Statistics, guarded by this instance and reset each statistics interval.
+    private long                numAppended     = 0;
+    private long                bytesAppended   = 0;
+    private long                appendNanos     = 0;
+    private long                maxAppendNanos  = 0;
+    private long                numSyncs        = 0;
+    private long                syncNanos       = 0;
+    private long                maxSyncNanos    = 0;
+
+    /**
+     * Constructor which opens the log, carrying on from the segments left by
+     * the previous run of the server.  The thread which flushes the log must
+     * then be started.
+     * @param directory The directory of the segment files.
+     * @param segmentSize The size of each segment in bytes.
+     * @param sizeLimit The maximum total size of the messages kept in bytes,
+     * zero for no maximum.
+     * @param retention The maximum age of the messages kept in milliseconds,
+     * zero for no maximum.
+     * @param syncInterval The time between flushes in milliseconds.
+     * @throws IOException If the log can't be opened.
+     */
+    public MessageLog(File directory, int segmentSize, long sizeLimit,
+                      long retention, long syncInterval) throws IOException {
+        super("Message Log Sync Thread");
+        this.setDaemon(true);
+        this.directory    = directory;
+        this.segmentSize  = segmentSize;
+        this.sizeLimit    = sizeLimit;
+        this.retention    = retention;
+        this.syncInterval = Math.max(syncInterval, 1);
+
+        this.directory.mkdirs();
+        List<Long> sequences = new ArrayList<Long>();
+        File[] files = this.directory.listFiles();
+        if (files != null){
+            for (File file : files){
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_EXTENSION))
+                    continue;
+                try {
+                    sequences.add(Long.parseLong(name.substring(0,
+                            name.length() - SEGMENT_EXTENSION.length())));
+                }
+                catch (NumberFormatException ex){
+                    //Logger.getLogger(MessageLog.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        Collections.sort(sequences);
+        for (long sequence : sequences)
+            this.segments.add(new Segment(this.directory, sequence, segmentSize));
+        if (this.segments.isEmpty())
+            this.segments.add(new Segment(this.directory, 1, segmentSize));
+    }
+
+    /**
+     * Appends a message to the log.  The message is on disk once the next
+     * flush has completed.  A message too large for a segment isn't logged.
+     * @param kind The kind of message, CHAT, PM or CHANNEL.
+     * @param from The username of the sender.
+     * @param to The usernames of the PM recipients separated by spaces, the
+     * channel name for a channel message or an empty string for a chat
+     * message.
+     * @param text The message text.
+     */
+    public void append(int kind, String from, String to, String text){
+        long startTime = System.nanoTime();
+        long now = System.currentTimeMillis();
+        byte[] fromBytes = from.getBytes(Protocol.CHARSET);
+        byte[] toBytes = to.getBytes(Protocol.CHARSET);
+        byte[] textBytes = text.getBytes(Protocol.CHARSET);
+        int length = RECORD_HEADER_SIZE + fromBytes.length + toBytes.length +
+                     textBytes.length;
+        if (fromBytes.length > 0xFFFF || toBytes.length > 0xFFFF ||
+            length + 4 > this.segmentSize)
+            return;
+
+        synchronized (this){
+            Segment segment = this.segments.get(this.segments.size() - 1);
+            if (segment.end + length + 4 > segment.data.capacity()){
+                segment = this.roll(now);
+                if (segment == null)
+                    return;
+            }
+            int position = segment.end;
+            if (segment.numIndexEntries == 0 || position - segment.getIndexPosition(
+                        segment.numIndexEntries - 1) >= INDEX_INTERVAL)
+                segment.addIndexEntry(now, position);
+
+            MappedByteBuffer data = segment.data;
+            data.putLong(position + 4, now);
+            data.put(position + 12, (byte) kind);
+            data.putShort(position + 13, (short) fromBytes.length);
+            data.position(position + 15);
+            data.put(fromBytes);
+            data.putShort((short) toBytes.length);
+            data.put(toBytes);
+            data.put(textBytes);
+            data.putInt(position, length - 4);
+            segment.end = position + length;
+            segment.lastTime = now;
+            this.isDirty = true;
+
+            long timeTaken = System.nanoTime() - startTime;
+            this.numAppended++;
+            this.bytesAppended += length;
+            this.appendNanos += timeTaken;
+            this.maxAppendNanos = Math.max(this.maxAppendNanos, timeTaken);
+        }
+    }
+
+    /**
+     * Starts the next segment once the current one is full.  The full
+     * segment is flushed by the next sync.  Must be called while holding
+     * this instance's lock.
+     * @param now The current time in milliseconds.
+     * @return The new segment or null if it couldn't be created.
+     */
+    private Segment roll(long now){
+        Segment current = this.segments.get(this.segments.size() - 1);
+        Segment next;
+        try {
+            next = new Segment(this.directory, current.sequence + 1,
+                               this.segmentSize);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(MessageLog.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        this.unsynced.add(current);
+        this.segments.add(next);
+        this.applyRetention(now);
+        return next;
+    }
+
+    /**
+     * Deletes the oldest segments while the log is over its size limit or
+     * the oldest segment's messages are all older than the retention period.
+     * The current segment is never deleted.  Must be called while holding
+     * this instance's lock.
+     * @param now The current time in milliseconds.
+     */
+    private void applyRetention(long now){
+        long size = 0;
+        for (Segment segment : this.segments)
+            size += segment.end;
+        while (this.segments.size() > 1){
+            Segment oldest = this.segments.get(0);
+            boolean isTooLarge = (this.sizeLimit > 0 && size > this.sizeLimit);
+            boolean isExpired = (this.retention > 0 &&
+                                 now - oldest.lastTime > this.retention);
+            if (!isTooLarge && !isExpired)
+                break;
+            this.segments.remove(0);
+            this.unsynced.remove(oldest);
+            oldest.delete();
+            size -= oldest.end;
+        }
+    }
+
+    /**
+     * Reads a page of the history back from a position, skipping the PMs
+     * the user didn't send or receive and the messages of channels the user
+     * isn't in.  Only the index intervals covering the page are scanned, up
+     * to PAGE_SCAN_LIMIT bytes, and the lock is only held to find the ends
+     * of the segments.
+     * @param username The username of the user reading the history.
+     * @param channels The channels the user is in.
+     * @param before The position to read back from, the cursor of the
+     * previous page or Long.MAX_VALUE for the latest messages.
+     * @param maxMessages The maximum number of messages to read.
+     * @return The page of messages, which may have fewer messages than the
+     * maximum (even none) and a cursor if the scan limit was reached.
+     */
+    public Page readPage(String username, Set<String> channels,
+                         long before, int maxMessages){
+        Segment[] segments;
+        int[] ends;
+        int[] numIndexEntries;
+        synchronized (this){
+            segments = this.segments.toArray(new Segment[this.segments.size()]);
+            ends = new int[segments.length];
+            numIndexEntries = new int[segments.length];
+            for (int i = 0; i < segments.length; i++){
+                ends[i] = segments[i].end;
+                numIndexEntries[i] = segments[i].numIndexEntries;
+            }
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("dd/MM HH:mm");
+        LinkedList<String> lines = new LinkedList<String>();
+        long cursor = -1;
+        long beforeSequence = before >>> 32;
+        int numScanned = 0;
+        boolean isScanLimited = false;
+        for (int i = segments.length - 1;
+             i >= 0 && lines.size() < maxMessages && !isScanLimited; i--){
+            Segment segment = segments[i];
+            if (segment.sequence > beforeSequence)
+                continue;
+            int limit = (segment.sequence == beforeSequence) ?
+                        (int) Math.min(before & 0xFFFFFFFFL, ends[i]) : ends[i];
+            int entry = segment.findIndexEntry(limit, numIndexEntries[i]);
+            ByteBuffer data = segment.data.duplicate(); // Its own position.
+
+            // Read the records of each index interval back from the limit.
+            while (limit > 0 && lines.size() < maxMessages){
+                if (numScanned >= PAGE_SCAN_LIMIT){
+                    cursor = (segment.sequence << 32) | limit;
+                    isScanLimited = true;
+                    break;
+                }
+                int start = (entry >= 0) ? segment.getIndexPosition(entry) : 0;
+                List<String> found = new ArrayList<String>();
+                List<Integer> positions = new ArrayList<Integer>();
+                int position = start;
+                int length;
+                numScanned += limit - start;
+                while (position < limit &&
+                       (length = segment.getRecordLength(position)) > 0){
+                    String line = this.readRecord(data, position, username,
+                                                  channels, format);
+                    if (line != null){
+                        found.add(line);
+                        positions.add(position);
+                    }
+                    position += 4 + length;
+                }
+                for (int j = found.size() - 1;
+                     j >= 0 && lines.size() < maxMessages; j--){
+                    lines.addFirst(found.get(j));
+                    cursor = (segment.sequence << 32) | positions.get(j);
+                }
+                limit = start;
+                entry--;
+            }
+        }
+        if (lines.size() < maxMessages && !isScanLimited)
+            cursor = -1;
+        return new Page(lines, cursor);
+    }
+
+    /**
+     * Reads a record and formats it for the user if they may see it.
+     * @param data The records of the segment, a buffer of the reader's own.
+     * @param position The position of the record.
+     * @param username The username of the user reading the history.
+     * @param channels The channels the user is in.
+     * @param format The format of the message time.
+     * @return The formatted message or null if it is another user's PM or
+     * from a channel the user isn't in.
+     */
+    private String readRecord(ByteBuffer data, int position, String username,
+                              Set<String> channels, SimpleDateFormat format){
+        long time = data.getLong(position + 4);
+        int kind = data.get(position + 12);
+        byte[] fromBytes = new byte[data.getShort(position + 13) & 0xFFFF];
+        data.position(position + 15);
+        data.get(fromBytes);
+        byte[] toBytes = new byte[data.getShort() & 0xFFFF];
+        data.get(toBytes);
+        byte[] textBytes = new byte[position + 4 + data.getInt(position)
+                                    - data.position()];
+        data.get(textBytes);
+
+        String from = new String(fromBytes, Protocol.CHARSET);
+        if (kind == MessageLog.CHANNEL){
+            String to = new String(toBytes, Protocol.CHARSET);
+            if (!channels.contains(to))
+                return null;
+            return String.format("[%s] %s %s : %s", format.format(new Date(time)),
+                    to, from, new String(textBytes, Protocol.CHARSET));
+        }
+        if (kind == MessageLog.PM && !from.equals(username)){
+            String to = " " + new String(toBytes, Protocol.CHARSET) + " ";
+            if (!to.contains(" " + username + " "))
+                return null;
+        }
+        return String.format("[%s] %s : %s", format.format(new Date(time)),
+                             from, new String(textBytes, Protocol.CHARSET));
+    }
+
+    /**
+     * Flushes the log to disk every sync interval, so that each flush
+     * commits all of the messages appended since the last one, and logs the
+     * statistics once per statistics interval.
+     */
+    @Override
+    public void run(){
+        long nextStatisticsTime = System.currentTimeMillis() +
+                                  MessageLog.STATISTICS_INTERVAL;
+        while (true){
+            try {
+                Thread.sleep(this.syncInterval);
+            }
+            catch (InterruptedException ex){
+                return;
+            }
+            this.sync();
+            long now = System.currentTimeMillis();
+            synchronized (this){
+                this.applyRetention(now);
+            }
+            if (now >= nextStatisticsTime){
+                this.logStatistics();
+                nextStatisticsTime = now + MessageLog.STATISTICS_INTERVAL;
+            }
+        }
+    }
+
+    /**
+     * Flushes the current segment (and any full segments not yet flushed)
+     * to disk if anything has been appended since the last flush.  The lock
+     * isn't held while flushing so appends carry on meanwhile.  Called by
+     * this class's thread, and by MessageLogBenchmark to time each flush.
+     */
+    void sync(){
+        List<Segment> toSync;
+        synchronized (this){
+            if (!this.isDirty && this.unsynced.isEmpty())
+                return;
+            this.isDirty = false;
+            toSync = new ArrayList<Segment>(this.unsynced);
+            toSync.add(this.segments.get(this.segments.size() - 1));
+            this.unsynced.clear();
+        }
+        long startTime = System.nanoTime();
+        for (Segment segment : toSync){
+            segment.data.force();
+            segment.index.force();
+        }
+        long timeTaken = System.nanoTime() - startTime;
+        synchronized (this){
+            this.numSyncs++;
+            this.syncNanos += timeTaken;
+            this.maxSyncNanos = Math.max(this.maxSyncNanos, timeTaken);
+        }
+    }
+
+    /**
+     * Logs and resets the statistics if any messages have been appended
+     * since they were last logged.
+     */
+    private synchronized void logStatistics(){
+        if (this.numAppended == 0)
+            return;
+        long size = 0;
+        for (Segment segment : this.segments)
+            size += segment.end;
+        Log.logMessageLogStatistics(this.numAppended, this.bytesAppended,
+                this.appendNanos / 1000.0 / this.numAppended,
+                this.maxAppendNanos / 1000.0, this.numSyncs,
+                (this.numSyncs > 0) ? this.syncNanos / 1000000.0 / this.numSyncs : 0,
+                this.maxSyncNanos / 1000000.0, this.segments.size(), size);
+        this.numAppended    = 0;
+        this.bytesAppended  = 0;
+        this.appendNanos    = 0;
+        this.maxAppendNanos = 0;
+        this.numSyncs       = 0;
+        this.syncNanos      = 0;
+        this.maxSyncNanos   = 0;
+    }
+}
@@ -0,0 +1,930 @@
+
+package yarnserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the PMs sent to users who aren't connected until they next log in,
+ * when they are delivered to them in one batch.  Each user with queued PMs
+ * has a mailbox file in the queue directory to which their PMs are appended,
+ * so the queued PMs survive a restart of the server.  A PM is stored as a
+ * record: a four byte length followed by the eight byte time, the sender and
+ * the text.  Only the number, size and age of each user's PMs, and the records
+ * not yet flushed to their mailbox file, are kept in memory.
+ *
+ * PMs are only queued for the usernames which have logged in before, to
+ * this server or (if federated) to any server of the federation, which are
+ * kept in the known users file of the queue directory.  A client therefore
+ * can't fill the queue by sending PMs to made up usernames.
+ *
+ * The queue is bounded in four ways.  Each user may have at most the user
+ * message limit of PMs and user size limit of bytes queued, each sender at
+ * most the sender size limit of bytes queued for all users, and the queue as
+ * a whole at most its size limit of bytes (see
+ * Configuration.offlineMessageLimit etc.).  A PM which doesn't fit is refused
+ * and the sender told.  PMs older than the TTL (see
+ * Configuration.offlineMessageTTL) aren't delivered, the mailboxes whose PMs
+ * have all expired are deleted by this class's thread once per expiry
+ * interval and a mailbox with some expired PMs is compacted when a PM is next
+ * queued in it.
+ *
+ * A queued PM is only added to its mailbox in memory, which stays the source
+ * of truth until this class's thread appends the records queued since the
+ * last flush to the mailbox files and flushes them to disk every sync
+ * interval (see Configuration.offlineMessageSyncInterval), so that the event
+ * loops never wait on the disk to queue a PM.  The PMs queued in the last
+ * sync interval are lost if the server crashes.  The mailbox files are
+ * guarded by a file lock, taken while holding the queue, so that the queue
+ * isn't held while flushing; reading a mailbox file waits for the flush in
+ * progress.  This class is used by all of the event loops and so is thread
+ * safe.
+ * @author Michael Telford
+ */
+public class OfflineQueue extends Thread {
+
+    // The results of queuing a PM.
+    public  static final int     QUEUED          = 0;
+    public  static final int     ONLINE          = 1;
+    public  static final int     FULL            = 2;
+    public  static final int     SENDER_FULL     = 3;
+    public  static final int     UNKNOWN         = 4;
+
+    private static final long    EXPIRY_INTERVAL = 60000;    // in milliseconds.
+    private static final int     RECORD_OVERHEAD = 18;       // in bytes.
+    private static final String  MAILBOX_EXTENSION = ".pm";
+    private static final String  KNOWN_USERS_FILE  = "known-users.txt";
+    private static final Charset UTF8            = Charset.forName("UTF-8");
+
+    /**
+     * The queued PMs of a user, the PMs themselves are in the mailbox file
+     * apart from the unflushed records.  The first numFlushed of those have
+     * been flushed by the sync thread and are trimmed by its next flush.
+     */
+    private static class Mailbox {
+        private int                numMessages = 0;
+        private long               numBytes    = 0;
+        private long               oldestTime  = Long.MAX_VALUE;
+        private long               newestTime  = 0;
+        private final List<byte[]> unflushed   = new ArrayList<byte[]>();
+        private int                numFlushed  = 0; // Guarded by the file lock.
+        private final Map<String, Long> senderBytes = new HashMap<String, Long>();
+
+        void add(long time, int size, String from){
+            this.numMessages++;
+            this.numBytes  += size;
+            this.oldestTime = Math.min(this.oldestTime, time);
+            this.newestTime = Math.max(this.newestTime, time);
+            Long bytes = this.senderBytes.get(from);
+            this.senderBytes.put(from, (bytes == null) ? size : bytes + size);
+        }
+    }
+
+    /**
+     * A PM read back from a mailbox file.
+     */
+    private static class Message {
+        private final long   time;
+        private final String from;
+        private final String text;
+        private final int    size;
+
+        Message(long time, String from, String text, int size){
+            this.time = time;
+            this.from = from;
+            this.text = text;
+            this.size = size;
+        }
+    }
+
+    private final File                 directory;
+    private final int                  userMessageLimit;
+    private final long                 userSizeLimit;
+    private final long                 senderSizeLimit;
+    private final long                 sizeLimit;
+    private final long                 ttl;
+    private final long                 syncInterval;
+    private final Map<String, Mailbox> mailboxes    = new HashMap<String, Mailbox>();
+    private final Map<String, Mailbox> unflushed    = new HashMap<String, Mailbox>();
+    private final Map<String, Long>    senderBytes  = new HashMap<String, Long>();
+    private final Set<String>          knownUsers   = new HashSet<String>();
+    private final List<String>         unflushedKnownUsers = new ArrayList<String>();
+    private final ReentrantLock        fileLock     = new ReentrantLock();
+    private long                       numBytes     = 0;
+    private long                       lastExpiryTime = System.currentTimeMillis();
+
+    /**
+     * Constructor which creates the queue directory and reads the known users
+     * and mailboxes left by the previous run of the server, deleting the
+     * mailboxes whose PMs have all expired.  The thread which flushes the
+     * mailboxes must then be started.
+     * @param directory The directory of the mailbox files.
+     * @param userMessageLimit The maximum number of PMs queued per user.
+     * @param userSizeLimit The maximum size of the PMs queued per user in
+     * bytes.
+     * @param senderSizeLimit The maximum size of the PMs queued per sender in
+     * bytes.
+     * @param sizeLimit The maximum total size of the PMs queued in bytes.
+     * @param ttl The maximum age of the PMs delivered in milliseconds, zero
+     * for no maximum.
+     * @param syncInterval The time between flushes in milliseconds.
+     */
+    public OfflineQueue(File directory, int userMessageLimit, long userSizeLimit,
+                        long senderSizeLimit, long sizeLimit, long ttl,
+                        long syncInterval){
+        super("Offline Queue Sync Thread");
+        this.setDaemon(true);
+        this.directory        = directory;
+        this.userMessageLimit = userMessageLimit;
+        this.userSizeLimit    = userSizeLimit;
+        this.senderSizeLimit  = senderSizeLimit;
+        this.sizeLimit        = sizeLimit;
+        this.ttl              = (ttl > 0) ? ttl : Long.MAX_VALUE;
+        this.syncInterval     = Math.max(syncInterval, 1);
+
+        this.directory.mkdirs();
+        this.readKnownUsers();
+        File[] files = this.directory.listFiles();
+        if (files == null)
+            return;
+        long now = System.currentTimeMillis();
+        for (File file : files){
+            String name = file.getName();
+            if (!name.endsWith(MAILBOX_EXTENSION))
+                continue;
+            String uname = OfflineQueue.decodeUsername(name.substring(0,
+                                  name.length() - MAILBOX_EXTENSION.length()));
+            if (uname == null)
+                continue;
+            Mailbox mailbox = new Mailbox();
+            List<Message> messages = this.read(file);
+            for (Message message : messages){
+                if (!this.isExpired(message.time, now))
+                    mailbox.add(message.time, message.size, message.from);
+            }
+            if (mailbox.numMessages == 0){
+                file.delete();
+                continue;
+            }
+            if (mailbox.numMessages < messages.size())
+                this.write(uname, messages, now);
+            this.addMailbox(uname, mailbox);
+            this.knownUsers.add(uname);
+        }
+    }
+
+    /**
+     * Queues a PM for a user who isn't connected.  Whether the user is
+     * connected is checked again while holding the queue so that a PM can't
+     * be queued just after the user has logged in and taken their PMs.
+     * @param uname The username of the recipient.
+     * @param from The username of the sender.
+     * @param text The PM text.
+     * @return QUEUED if the PM was queued, ONLINE if the user is now
+     * connected and so the PM should be sent to them instead, UNKNOWN if the
+     * username has never logged in, FULL if the PM doesn't fit in the user's
+     * mailbox or the queue or SENDER_FULL if the sender has too many PMs
+     * queued.
+     */
+    public synchronized int offer(String uname, String from, String text){
+        if (Main.sessions.getClient(uname) != null)
+            return OfflineQueue.ONLINE;
+        if (!this.knownUsers.contains(uname))
+            return OfflineQueue.UNKNOWN;
+        long now = System.currentTimeMillis();
+        return this.append(uname, from, OfflineQueue.encode(now, from, text),
+                           now, now);
+    }
+
+    /**
+     * Returns whether a username has logged in before and so may be sent
+     * PMs while it isn't connected.
+     * @param uname The username.
+     * @return True if the username is known, false otherwise.
+     */
+    public synchronized boolean isKnownUser(String uname){
+        return this.knownUsers.contains(uname);
+    }
+
+    /**
+     * Records usernames which have logged in, to this server or another
+     * server of the federation, so that PMs can be queued for them.  New
+     * usernames are written to the known users file by the next flush.
+     * @param unames The usernames.
+     */
+    public synchronized void addKnownUsers(Collection<String> unames){
+        for (String uname : unames){
+            if (this.knownUsers.add(uname))
+                this.unflushedKnownUsers.add(uname);
+        }
+    }
+
+    /**
+     * Queues the PMs of another server's mailbox for a user, e.g. when the
+     * user's mailbox moves to this server (see Federation).  The PMs are
+     * queued as they were sent, those which have expired or don't fit are
+     * dropped.  The other server only queues PMs for known users so the user
+     * is known here too.
+     * @param uname The username of the recipient.
+     * @param records The mailbox records of the PMs (see takeRecords()).
+     * @return The number of PMs queued.
+     */
+    public synchronized int offerRecords(String uname, byte[] records){
+        long now = System.currentTimeMillis();
+        this.addKnownUsers(Collections.singleton(uname));
+        List<Message> messages = OfflineQueue.decode(records);
+        int numQueued = 0;
+        for (Message message : messages){
+            if (this.isExpired(message.time, now))
+                continue;
+            byte[] record = OfflineQueue.encode(message.time, message.from,
+                                                message.text);
+            if (this.append(uname, message.from, record, message.time, now)
+                                                    == OfflineQueue.QUEUED)
+                numQueued++;
+        }
+        if (numQueued < messages.size())
+            Log.logOfflineMessages(uname, String.format("%d moved PM(s) "
+                    + "expired or refused", messages.size() - numQueued));
+        return numQueued;
+    }
+
+    /**
+     * Appends a PM record to a user's mailbox if it fits, the record is
+     * written to the mailbox file by the next flush.
+     * @param uname The username of the recipient.
+     * @param from The username of the sender.
+     * @param record The PM record.
+     * @param time The time the PM was sent in milliseconds.
+     * @param now The current time in milliseconds.
+     * @return QUEUED, FULL or SENDER_FULL (see offer()).
+     */
+    private int append(String uname, String from, byte[] record, long time,
+                       long now){
+        // Make room by dropping the expired PMs of the user's mailbox.
+        Mailbox mailbox = this.mailboxes.get(uname);
+        if (mailbox != null && this.isExpired(mailbox.oldestTime, now))
+            mailbox = this.compact(uname, now);
+        if (mailbox == null)
+            mailbox = new Mailbox();
+        if (mailbox.numMessages >= this.userMessageLimit ||
+            mailbox.numBytes + record.length > this.userSizeLimit ||
+            this.numBytes + record.length > this.sizeLimit)
+            return OfflineQueue.FULL;
+        Long fromBytes = this.senderBytes.get(from);
+        if (fromBytes != null &&
+            fromBytes + record.length > this.senderSizeLimit)
+            return OfflineQueue.SENDER_FULL;
+
+        mailbox.add(time, record.length, from);
+        mailbox.unflushed.add(record);
+        this.mailboxes.put(uname, mailbox);
+        this.unflushed.put(uname, mailbox);
+        this.numBytes += record.length;
+        this.senderBytes.put(from, (fromBytes == null) ? record.length :
+                                   fromBytes + record.length);
+        return OfflineQueue.QUEUED;
+    }
+
+    /**
+     * Adds a mailbox to the queue's totals.
+     * @param uname The username of the user.
+     * @param mailbox The mailbox.
+     */
+    private void addMailbox(String uname, Mailbox mailbox){
+        this.mailboxes.put(uname, mailbox);
+        this.numBytes += mailbox.numBytes;
+        for (Map.Entry<String, Long> entry : mailbox.senderBytes.entrySet()){
+            Long bytes = this.senderBytes.get(entry.getKey());
+            this.senderBytes.put(entry.getKey(), (bytes == null) ?
+                    entry.getValue() : bytes + entry.getValue());
+        }
+    }
+
+    /**
+     * Removes a mailbox from the queue and its totals, its file isn't
+     * deleted.
+     * @param uname The username of the user.
+     * @return The mailbox or null if the user has none.
+     */
+    private Mailbox removeMailbox(String uname){
+        Mailbox mailbox = this.mailboxes.remove(uname);
+        if (mailbox == null)
+            return null;
+        this.numBytes -= mailbox.numBytes;
+        for (Map.Entry<String, Long> entry : mailbox.senderBytes.entrySet()){
+            long bytes = this.senderBytes.get(entry.getKey()) - entry.getValue();
+            if (bytes > 0)
+                this.senderBytes.put(entry.getKey(), bytes);
+            else
+                this.senderBytes.remove(entry.getKey());
+        }
+        return mailbox;
+    }
+
+    /**
+     * Takes the unexpired PMs queued for a user as mailbox records, emptying
+     * their mailbox, so that they can be sent to another server (see
+     * Federation).
+     * @param uname The username of the user.
+     * @param sizeLimit The largest mailbox taken in bytes.
+     * @return The mailbox records, oldest first, or null if none are queued
+     * or the mailbox is larger than the size limit.
+     */
+    public synchronized byte[] takeRecords(String uname, long sizeLimit){
+        Mailbox mailbox = this.mailboxes.get(uname);
+        if (mailbox == null || mailbox.numBytes > sizeLimit)
+            return null;
+        this.removeMailbox(uname);
+        List<Message> messages = this.readMailbox(uname, mailbox);
+        this.delete(uname);
+
+        long now = System.currentTimeMillis();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Message message : messages){
+            if (this.isExpired(message.time, now))
+                continue;
+            byte[] record = OfflineQueue.encode(message.time, message.from,
+                                                message.text);
+            records.write(record, 0, record.length);
+        }
+        return (records.size() > 0) ? records.toByteArray() : null;
+    }
+
+    /**
+     * Returns the usernames of the users with queued PMs.
+     * @return The usernames.
+     */
+    public synchronized List<String> getUsernames(){
+        return new ArrayList<String>(this.mailboxes.keySet());
+    }
+
+    /**
+     * Takes the PMs queued for a user who has just logged in, emptying their
+     * mailbox.  The username must already have been claimed by the user's
+     * connection (see SessionRegistry.claimUsername()), the username is now
+     * known.
+     * @param uname The username of the user.
+     * @return The unexpired PMs formatted for the user, oldest first, or null
+     * if none are queued.
+     */
+    public synchronized List<String> take(String uname){
+        this.addKnownUsers(Collections.singleton(uname));
+        Mailbox mailbox = this.removeMailbox(uname);
+        if (mailbox == null)
+            return null;
+        List<Message> messages = this.readMailbox(uname, mailbox);
+        this.delete(uname);
+
+        long now = System.currentTimeMillis();
+        SimpleDateFormat format = new SimpleDateFormat("dd/MM HH:mm");
+        List<String> lines = new ArrayList<String>(messages.size());
+        for (Message message : messages){
+            if (!this.isExpired(message.time, now))
+                lines.add(OfflineQueue.format(format, message));
+        }
+        if (lines.size() < messages.size())
+            Log.logOfflineMessages(uname, String.format("%d PM(s) expired",
+                                   messages.size() - lines.size()));
+        if (lines.isEmpty())
+            return null;
+        Log.logOfflineMessages(uname, String.format("%d PM(s) delivered",
+                               lines.size()));
+        return lines;
+    }
+
+    /**
+     * Deletes the mailboxes whose PMs have all expired if the expiry interval
+     * has passed since they were last checked.  Called by this class's
+     * thread, the mailboxes are removed while holding the queue and their
+     * files deleted after releasing it.  This is safe because only this
+     * thread appends to the mailbox files, so the PMs of a mailbox queued in
+     * between are still in memory and go to a new file.
+     * @param now The current time in milliseconds.
+     */
+    private void expireIfDue(long now){
+        if (now - this.lastExpiryTime < OfflineQueue.EXPIRY_INTERVAL)
+            return;
+        this.lastExpiryTime = now;
+        List<String> expired = new ArrayList<String>();
+        synchronized (this){
+            List<String> unames = new ArrayList<String>(this.mailboxes.keySet());
+            for (String uname : unames){
+                Mailbox mailbox = this.mailboxes.get(uname);
+                if (!this.isExpired(mailbox.newestTime, now))
+                    continue;
+                this.removeMailbox(uname);
+                this.unflushed.remove(uname);
+                expired.add(uname);
+                Log.logOfflineMessages(uname, String.format(
+                                       "%d PM(s) expired", mailbox.numMessages));
+            }
+        }
+        if (expired.isEmpty())
+            return;
+        this.fileLock.lock();
+        try {
+            for (String uname : expired)
+                this.getFile(uname).delete();
+        }
+        finally {
+            this.fileLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the mailboxes and known users every sync interval, so that each
+     * flush commits all of the PMs queued since the last one, and deletes the
+     * expired mailboxes.
+     */
+    @Override
+    public void run(){
+        while (true){
+            try {
+                Thread.sleep(this.syncInterval);
+            }
+            catch (InterruptedException ex){
+                return;
+            }
+            this.flush();
+            this.flushKnownUsers();
+            this.expireIfDue(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Appends the records queued since the last flush to their mailbox files
+     * and flushes them to disk.  The records flushed by the last flush are
+     * trimmed from their mailboxes first.  The queue isn't held while
+     * writing, the file lock is, so the records of a mailbox which fail to
+     * be written are kept and written by the next flush.
+     */
+    private void flush(){
+        List<String> unames = new ArrayList<String>();
+        List<Mailbox> toFlush = new ArrayList<Mailbox>();
+        List<List<byte[]>> records = new ArrayList<List<byte[]>>();
+        synchronized (this){
+            if (this.unflushed.isEmpty())
+                return;
+            this.fileLock.lock();
+            Iterator<Map.Entry<String, Mailbox>> it =
+                                        this.unflushed.entrySet().iterator();
+            while (it.hasNext()){
+                Map.Entry<String, Mailbox> entry = it.next();
+                Mailbox mailbox = entry.getValue();
+                mailbox.unflushed.subList(0, mailbox.numFlushed).clear();
+                mailbox.numFlushed = 0;
+                if (mailbox.unflushed.isEmpty()){
+                    it.remove();
+                    continue;
+                }
+                unames.add(entry.getKey());
+                toFlush.add(mailbox);
+                records.add(new ArrayList<byte[]>(mailbox.unflushed));
+            }
+        }
+        try {
+            for (int i = 0; i < toFlush.size(); i++){
+                if (this.appendRecords(this.getFile(unames.get(i)),
+                                       records.get(i)))
+                    toFlush.get(i).numFlushed = records.get(i).size();
+            }
+        }
+        finally {
+            this.fileLock.unlock();
+        }
+    }
+
+    /**
+     * Appends the usernames which have become known since the last flush to
+     * the known users file, one hex encoded username per line.  Those which
+     * fail to be written are written by the next flush.
+     */
+    private void flushKnownUsers(){
+        List<String> unames;
+        synchronized (this){
+            if (this.unflushedKnownUsers.isEmpty())
+                return;
+            unames = new ArrayList<String>(this.unflushedKnownUsers);
+            this.unflushedKnownUsers.clear();
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String uname : unames)
+            lines.append(OfflineQueue.encodeUsername(uname)).append('\n');
+        File file = new File(this.directory, KNOWN_USERS_FILE);
+        long length = file.length();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, true);
+            out.write(lines.toString().getBytes(UTF8));
+            out.getChannel().force(false);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+            OfflineQueue.close(out);
+            out = null;
+            this.truncate(file, length);
+            synchronized (this){
+                this.unflushedKnownUsers.addAll(0, unames);
+            }
+        }
+        finally {
+            OfflineQueue.close(out);
+        }
+    }
+
+    /**
+     * Reads the known users file left by the previous run of the server.  A
+     * line left incomplete by a crash is ignored.
+     */
+    private void readKnownUsers(){
+        File file = new File(this.directory, KNOWN_USERS_FILE);
+        if (!file.exists())
+            return;
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(
+                                    new FileInputStream(file), UTF8));
+            String line;
+            while ((line = in.readLine()) != null){
+                String uname = OfflineQueue.decodeUsername(line.trim());
+                if (uname != null)
+                    this.knownUsers.add(uname);
+            }
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally {
+            OfflineQueue.close(in);
+        }
+    }
+
+    /**
+     * Appends records to a mailbox file and flushes it to disk, cutting the
+     * file back to its old length if they can't be written.
+     * @param file The mailbox file.
+     * @param records The records.
+     * @return True if the records were written, false if not.
+     */
+    private boolean appendRecords(File file, List<byte[]> records){
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] record : records)
+            data.write(record, 0, record.length);
+        long length = file.length();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, true);
+            data.writeTo(out);
+            out.getChannel().force(false);
+            return true;
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+            OfflineQueue.close(out);
+            out = null;
+            this.truncate(file, length);
+            return false;
+        }
+        finally {
+            OfflineQueue.close(out);
+        }
+    }
+
+    /**
+     * Reads the PMs of a user's mailbox, those in its file followed by those
+     * not yet flushed, once the flush in progress (if any) is done.  The
+     * queue must be held.
+     * @param uname The username of the user.
+     * @param mailbox The user's mailbox.
+     * @return The PMs, oldest first.
+     */
+    private List<Message> readMailbox(String uname, Mailbox mailbox){
+        this.fileLock.lock();
+        try {
+            List<Message> messages = this.read(this.getFile(uname));
+            List<byte[]> records = mailbox.unflushed.subList(
+                                mailbox.numFlushed, mailbox.unflushed.size());
+            for (byte[] record : records)
+                messages.addAll(OfflineQueue.decode(record));
+            return messages;
+        }
+        finally {
+            this.fileLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a user's mailbox file and drops its unflushed records, once
+     * the flush in progress (if any) is done.  The queue must be held.
+     * @param uname The username of the user.
+     */
+    private void delete(String uname){
+        this.unflushed.remove(uname);
+        this.fileLock.lock();
+        try {
+            this.getFile(uname).delete();
+        }
+        finally {
+            this.fileLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites a user's mailbox without its expired PMs, deleting it if they
+     * have all expired.
+     * @param uname The username of the user.
+     * @param now The current time in milliseconds.
+     * @return The compacted mailbox or null if it was deleted.
+     */
+    private Mailbox compact(String uname, long now){
+        Mailbox old = this.removeMailbox(uname);
+        Mailbox mailbox;
+        this.fileLock.lock();
+        try {
+            List<Message> messages = this.readMailbox(uname, old);
+            this.unflushed.remove(uname);
+            mailbox = this.write(uname, messages, now);
+        }
+        finally {
+            this.fileLock.unlock();
+        }
+        int numKept = 0;
+        if (mailbox != null){
+            this.addMailbox(uname, mailbox);
+            numKept = mailbox.numMessages;
+        }
+        if (old.numMessages > numKept)
+            Log.logOfflineMessages(uname, String.format("%d PM(s) expired",
+                                   old.numMessages - numKept));
+        return mailbox;
+    }
+
+    /**
+     * Writes the unexpired PMs of a user's mailbox to a new mailbox file
+     * which then replaces the old one, or deletes the mailbox file if there
+     * are none.
+     * @param uname The username of the user.
+     * @param messages The PMs of the mailbox.
+     * @param now The current time in milliseconds.
+     * @return The new mailbox or null if the mailbox file was deleted.
+     */
+    private Mailbox write(String uname, List<Message> messages, long now){
+        File file = this.getFile(uname);
+        Mailbox mailbox = new Mailbox();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (Message message : messages){
+            if (this.isExpired(message.time, now))
+                continue;
+            byte[] record = OfflineQueue.encode(message.time, message.from,
+                                                message.text);
+            data.write(record, 0, record.length);
+            mailbox.add(message.time, record.length, message.from);
+        }
+        if (mailbox.numMessages == 0){
+            file.delete();
+            return null;
+        }
+
+        File temp = new File(this.directory, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            data.writeTo(out);
+            out.getChannel().force(false);
+            out.close();
+            out = null;
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Mailbox not replaced : " + file);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+            temp.delete();
+        }
+        finally {
+            OfflineQueue.close(out);
+        }
+        return mailbox;
+    }
+
+    /**
+     * Reads the PMs of a mailbox file.  A record left incomplete by a crash is
+     * cut off so that later PMs are appended after the last complete record.
+     * @param file The mailbox file.
+     * @return The PMs, oldest first.
+     */
+    private List<Message> read(File file){
+        List<Message> messages = new ArrayList<Message>();
+        DataInputStream in = null;
+        long length = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                                     new FileInputStream(file)));
+            Message message;
+            while ((message = OfflineQueue.readRecord(in)) != null){
+                messages.add(message);
+                length += message.size;
+            }
+        }
+        catch (EOFException ex){
+            this.truncate(file, length);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally {
+            OfflineQueue.close(in);
+        }
+        return messages;
+    }
+
+    /**
+     * Decodes the PMs of mailbox records sent by another server.
+     * @param records The mailbox records.
+     * @return The PMs, oldest first.
+     */
+    private static List<Message> decode(byte[] records){
+        List<Message> messages = new ArrayList<Message>();
+        DataInputStream in = new DataInputStream(
+                             new ByteArrayInputStream(records));
+        try {
+            Message message;
+            while ((message = OfflineQueue.readRecord(in)) != null)
+                messages.add(message);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return messages;
+    }
+
+    /**
+     * Reads the next record of a mailbox.
+     * @param in The mailbox records.
+     * @return The PM or null at the end of the records.
+     * @throws EOFException If the last record is incomplete.
+     * @throws IOException If the records can't be read.
+     */
+    private static Message readRecord(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0)
+            return null;
+        int size = (first << 24) | (in.readUnsignedByte() << 16) |
+                   in.readUnsignedShort();
+        long time = in.readLong();
+        byte[] from = new byte[in.readUnsignedShort()];
+        in.readFully(from);
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        return new Message(time, new String(from, UTF8),
+                           new String(text, UTF8), size + 4);
+    }
+
+    /**
+     * Formats the PMs of mailbox records for their recipient.
+     * @param records The mailbox records (see takeRecords()).
+     * @return The PMs formatted for the user, oldest first.
+     */
+    public static List<String> format(byte[] records){
+        SimpleDateFormat format = new SimpleDateFormat("dd/MM HH:mm");
+        List<String> lines = new ArrayList<String>();
+        for (Message message : OfflineQueue.decode(records))
+            lines.add(OfflineQueue.format(format, message));
+        return lines;
+    }
+
+    private static String format(SimpleDateFormat format, Message message){
+        return String.format("[%s] %s : %s", format.format(new Date(
+                             message.time)), message.from, message.text);
+    }
+
+    /**
+     * Cuts a mailbox file off after its last complete record.
+     * @param file The mailbox file.
+     * @param length The length of the complete records in bytes.
+     */
+    private void truncate(File file, long length){
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally {
+            OfflineQueue.close(raf);
+        }
+    }
+
+    private boolean isExpired(long time, long now){
+        return (now - time > this.ttl);
+    }
+
+    /**
+     * Returns the mailbox file of a user.  The username is hex encoded in the
+     * file name so that any username makes a legal file name.
+     * @param uname The username of the user.
+     * @return The mailbox file.
+     */
+    private File getFile(String uname){
+        return new File(this.directory, OfflineQueue.encodeUsername(uname)
+                                        + MAILBOX_EXTENSION);
+    }
+
+    /**
+     * Hex encodes a username for a file name or the known users file.
+     * @param uname The username.
+     * @return The hex encoded username.
+     */
+    private static String encodeUsername(String uname){
+        StringBuilder name = new StringBuilder();
+        for (byte b : uname.getBytes(UTF8))
+            name.append(String.format("%02x", b & 0xff));
+        return name.toString();
+    }
+
+    /**
+     * Returns the username hex encoded in a mailbox file name or a line of
+     * the known users file.
+     * @param name The file name without its extension or the line.
+     * @return The username or null if the name isn't hex encoded.
+     */
+    private static String decodeUsername(String name){
+        if (name.isEmpty() || name.length() % 2 != 0)
+            return null;
+        byte[] bytes = new byte[name.length() / 2];
+        try {
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) Integer.parseInt(name.substring(i * 2, i * 2 + 2), 16);
+        }
+        catch (NumberFormatException ex){
+            return null;
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Encodes a PM as a record of a mailbox file, or of the mailbox records
+     * sent to another server.
+     * @param time The time the PM was sent in milliseconds.
+     * @param from The username of the sender.
+     * @param text The PM text.
+     * @return The record.
+     */
+    public static byte[] encode(long time, String from, String text){
+        byte[] fromBytes = from.getBytes(UTF8);
+        byte[] textBytes = text.getBytes(UTF8);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(
+                RECORD_OVERHEAD + fromBytes.length + textBytes.length);
+        DataOutputStream out = new DataOutputStream(record);
+        try {
+            out.writeInt(RECORD_OVERHEAD - 4 + fromBytes.length + textBytes.length);
+            out.writeLong(time);
+            out.writeShort(fromBytes.length);
+            out.write(fromBytes);
+            out.writeInt(textBytes.length);
+            out.write(textBytes);
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return record.toByteArray();
+    }
+
+    private static void close(Closeable closeable){
+        try {
+            if (closeable != null)
+                closeable.close();
+        }
+        catch (IOException ex){
+            //Logger.getLogger(OfflineQueue.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+
+package yarnserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The bounded outbound queue of a single client connection.  Each connected
+ * client owns one of these which is drained by its event loop as the client's
+ * socket accepts data.  A client which reads slower than data is sent to it
+ * therefore only fills its own queue, once the queue reaches the configured
+ * size (in bytes) or its oldest message reaches the configured age the
+ * client is treated as a slow client and the configured slow client policy
+ * is applied (see Configuration.slowClientPolicy).
+ *
+ * Only messages marked as droppable (e.g. chat broadcasts) are dropped or
+ * coalesced, protocol frames such as data share requests are always queued.
+ * The queue also keeps counters describing its depth which are logged for
+ * slow clients.
+ *
+ * Several queued messages are written to the socket at once (a gathering
+ * write, see peek(ByteBuffer[])) so a burst of messages costs one system
+ * call rather than one each.  The messages being written are in flight and
+ * are never coalesced.
+ *
+ * This class is not thread safe, callers synchronize on the instance.
+ * @author Michael Telford
+ */
+public class OutputQueue {
+
+    private final ArrayDeque<Entry> entries        = new ArrayDeque<Entry>();
+    private long                    queuedBytes    = 0;
+    private int                     peakSize       = 0;
+    private long                    peakBytes      = 0;
+    private int                     numSkipped     = 0;
+    private int                     totalSkipped   = 0;
+    private boolean                 isSlow         = false;
+    private int                     numSlowPeriods = 0;
+    private int                     numInFlight    = 0;
+
+    /**
+     * A queued message and the details needed to apply the slow client policy.
+     */
+    private static class Entry {
+        final ByteBuffer buffer;
+        final long       queuedTime;
+        final long       queuedNanos;  // Used to measure the queue latency.
+        final boolean    isDroppable;
+
+        Entry(ByteBuffer buffer, long queuedTime, boolean isDroppable){
+            this.buffer      = buffer;
+            this.queuedTime  = queuedTime;
+            this.queuedNanos = System.nanoTime();
+            this.isDroppable = isDroppable;
+        }
+    }
+
+    /**
+     * Adds encoded frame data to the end of the queue.
+     * @param data The encoded frame data.
+     * @param isDroppable True if the data can be dropped or coalesced when the
+     * client is slow, false otherwise.
+     */
+    public void add(byte[] data, boolean isDroppable){
+        this.entries.add(new Entry(ByteBuffer.wrap(data),
+                                   System.currentTimeMillis(), isDroppable));
+        this.queuedBytes += data.length;
+        if (this.entries.size() > this.peakSize)
+            this.peakSize = this.entries.size();
+        if (this.queuedBytes > this.peakBytes)
+            this.peakBytes = this.queuedBytes;
+    }
+
+    /**
+     * Fills the given array with the data at the front of the queue without
+     * removing it, so that it can be written with a single gathering write.
+     * The data is in flight until removed.
+     * @param buffers The array to fill.
+     * @return The number of buffers filled, zero if the queue is empty.
+     */
+    public int peek(ByteBuffer[] buffers){
+        int numBuffers = 0;
+        Iterator<Entry> it = this.entries.iterator();
+        while (numBuffers < buffers.length && it.hasNext())
+            buffers[numBuffers++] = it.next().buffer;
+        this.numInFlight = numBuffers;
+        return numBuffers;
+    }
+
+    /**
+     * Removes the (fully written) data at the front of the queue.
+     * @return The System.nanoTime() the data was queued at.
+     */
+    public long remove(){
+        Entry entry = this.entries.poll();
+        if (entry == null)
+            return System.nanoTime();
+        this.queuedBytes -= entry.buffer.limit();
+        if (this.numInFlight > 0)
+            this.numInFlight--;
+        return entry.queuedNanos;
+    }
+
+    /**
+     * Returns whether the queue has crossed either of the slow client
+     * thresholds i.e. the queue size or the age of the oldest message.
+     * @param now The current time in milliseconds.
+     * @return True if the client should be treated as a slow client.
+     */
+    public boolean isOverLimit(long now){
+        if (this.queuedBytes >= Configuration.slowClientQueueLimit)
+            return true;
+        Entry entry = this.entries.peek();
+        return (entry != null && (now - entry.queuedTime) >=
+                          Configuration.getSlowClientQueueAgeInMilliSeconds());
+    }
+
+    /**
+     * Records that a message wasn't queued because the client is slow.
+     */
+    public void skip(){
+        this.numSkipped++;
+        this.totalSkipped++;
+    }
+
+    /**
+     * Removes the queued droppable messages which haven't started to be
+     * written so that newer messages replace them.  The messages at the front
+     * of the queue which are in flight are kept, as is the message at the
+     * very front as it may have been partly written.
+     * @return The number of messages removed.
+     */
+    public int coalesce(){
+        int removed = 0;
+        Iterator<Entry> it = this.entries.iterator();
+        for (int i = 0; i < Math.max(1, this.numInFlight) && it.hasNext(); i++)
+            it.next();
+        while (it.hasNext()){
+            Entry entry = it.next();
+            if (entry.isDroppable){
+                it.remove();
+                this.queuedBytes -= entry.buffer.limit();
+                this.numSkipped++;
+                this.totalSkipped++;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the number of messages skipped since this method was last
+     * called and resets the count.  This is used to tell the client how many
+     * messages it has missed once it has caught up.
+     * @return The number of skipped messages.
+     */
+    public int takeNumSkipped(){
+        int skipped = this.numSkipped;
+        this.numSkipped = 0;
+        return skipped;
+    }
+
+    /**
+     * Returns whether the client is currently treated as a slow client.
+     * @return True if the client is slow, false otherwise.
+     */
+    public boolean isSlow(){
+        return this.isSlow;
+    }
+
+    /**
+     * Sets whether the client is currently treated as a slow client.
+     * @param isSlow True if the client is slow, false otherwise.
+     */
+    public void setSlow(boolean isSlow){
+        if (isSlow && !this.isSlow)
+            this.numSlowPeriods++;
+        this.isSlow = isSlow;
+    }
+
+    /**
+     * Returns the number of times the client has become a slow client.
+     * @return The number of slow periods.
+     */
+    public int getNumSlowPeriods(){
+        return this.numSlowPeriods;
+    }
+
+    /**
+     * Returns the number of messages in the queue.
+     * @return The queue depth.
+     */
+    public int size(){
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the number of bytes in the queue.
+     * @return The number of queued bytes.
+     */
+    public long getQueuedBytes(){
+        return this.queuedBytes;
+    }
+
+    /**
+     * Returns the greatest number of messages held by the queue.
+     * @return The peak queue depth.
+     */
+    public int getPeakSize(){
+        return this.peakSize;
+    }
+
+    /**
+     * Returns the greatest number of bytes held by the queue.
+     * @return The peak number of queued bytes.
+     */
+    public long getPeakBytes(){
+        return this.peakBytes;
+    }
+
+    /**
+     * Returns the total number of messages dropped or coalesced.
+     * @return The total number of skipped messages.
+     */
+    public int getTotalSkipped(){
+        return this.totalSkipped;
+    }
+}
@@ -0,0 +1,189 @@
+
+package yarnserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import yarnprotocol.Frame;
+import yarnprotocol.FrameReader;
+import yarnprotocol.FrameWriter;
+import yarnprotocol.Protocol;
+
+/**
+ * A link between this server and another server of the federation (see
+ * Federation).  Each link is a socket carrying PEER frames, secured with SSL
+ * when the server uses secure comms (see SecureContext).  The link starts
+ * with a handshake in which each end proves it knows the federation password
+ * without sending it (see Federation.handshake()), within HANDSHAKE_TIMEOUT.
+ * Once both ends are proven the link carries gossip and routed messages
+ * until either end closes it.
+ *
+ * This thread reads the frames sent by the other server and passes them to
+ * the federation.  Once the handshake is done frames are sent by a second,
+ * writer thread from a bounded queue so that sending never blocks the event
+ * loops, nothing is queued before then.  A link whose queue
+ * fills up (the other server has stopped reading) is closed, the federation
+ * reconnects configured peers and catches up through gossip.
+ * @author Michael Telford
+ */
+public class PeerLink extends Thread {
+
+    private static final int    BUFFER_SIZE = 65536;    // in bytes.
+    private static final int    QUEUE_LIMIT = 10000;    // in frames.
+    private static final int    HANDSHAKE_TIMEOUT = 5000;   // in milliseconds.
+
+    private final Federation                 federation;
+    private final Socket                     socket;
+    private final InetSocketAddress          address;   // Null if accepted.
+    private final LinkedBlockingQueue<Frame> queue      =
+                                  new LinkedBlockingQueue<Frame>(QUEUE_LIMIT);
+    private final Thread                     writerThread;
+    private FrameWriter                      writer     = null;
+    private volatile String                  node       = null;
+    private volatile boolean                 isClosed   = false;
+
+    /**
+     * Constructor which takes the connected socket of the link, the link's
+     * threads must then be started with start().
+     * @param federation The federation the link belongs to.
+     * @param socket The connected socket.
+     * @param address The configured peer address this server connected to,
+     * or null if the link was accepted from the other server.
+     */
+    public PeerLink(Federation federation, Socket socket,
+                    InetSocketAddress address){
+        super("Peer Link Thread");
+        this.setDaemon(true);
+        this.federation = federation;
+        this.socket     = socket;
+        this.address    = address;
+        this.writerThread = new Thread(new Runnable(){
+            public void run(){
+                writeFrames();
+            }
+        }, "Peer Link Writer Thread");
+        this.writerThread.setDaemon(true);
+    }
+
+    /**
+     * Returns the node name of the other server.
+     * @return The node name or null until the handshake is done.
+     */
+    public String getNode(){
+        return this.node;
+    }
+
+    /**
+     * Returns the configured peer address this server connected to.
+     * @return The address or null if the link was accepted.
+     */
+    public InetSocketAddress getAddress(){
+        return this.address;
+    }
+
+    /**
+     * Returns whether the link has been closed.
+     * @return True if closed, false otherwise.
+     */
+    public boolean isClosed(){
+        return this.isClosed;
+    }
+
+    /**
+     * Queues a peer message to be sent to the other server.  The message is
+     * discarded if the handshake isn't done yet and the link is closed if its
+     * queue is full.
+     * @param payload The encoded peer message.
+     * @return True if the message was queued, false if it was discarded.
+     */
+    public boolean send(byte[] payload){
+        if (this.isClosed || this.node == null)
+            return false;
+        if (this.queue.offer(new Frame(Protocol.PEER, payload)))
+            return true;
+        this.close();
+        return false;
+    }
+
+    /**
+     * Runs the handshake with the other server, the server which connected
+     * proving itself first, then starts the writer thread and passes each
+     * peer message received to the federation until the link is closed.  A
+     * handshake which fails or doesn't finish within HANDSHAKE_TIMEOUT
+     * closes the link.
+     */
+    @Override
+    public void run(){
+        try {
+            this.socket.setTcpNoDelay(true);
+            this.socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            FrameReader reader = new FrameReader(this.socket.getInputStream(),
+                                                 BUFFER_SIZE);
+            this.writer = new FrameWriter(this.socket.getOutputStream(),
+                                          BUFFER_SIZE);
+            String helloNode = this.federation.handshake(reader, this.writer,
+                                                         this.address != null);
+            if (helloNode == null)
+                return;
+            this.socket.setSoTimeout(0);
+            this.node = helloNode;
+            this.writerThread.start();
+            this.federation.linkOpened(this);
+
+            Frame frame;
+            while (!this.isClosed){
+                frame = reader.read();
+                if (frame.getType() == Protocol.PEER)
+                    this.federation.receive(this, frame.getPayload());
+            }
+        }
+        catch (Exception ex){
+            //Logger.getLogger(PeerLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Writes the queued frames to the other server, run by the writer thread
+     * once the handshake is done.
+     */
+    private void writeFrames(){
+        try {
+            while (!this.isClosed)
+                this.writer.write(this.queue.take());
+        }
+        catch (InterruptedException ex){
+            // The link has been closed.
+        }
+        catch (IOException ex){
+            //Logger.getLogger(PeerLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Closes the link and tells the federation, further messages sent on the
+     * link are discarded.
+     */
+    public void close(){
+        synchronized (this.queue){
+            if (this.isClosed)
+                return;
+            this.isClosed = true;
+        }
+        try {
+            this.socket.close();
+        }
+        catch (IOException ex){
+            //Logger.getLogger(PeerLink.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        this.writerThread.interrupt();
+        this.queue.clear();
+        this.federation.linkClosed(this);
+    }
+}
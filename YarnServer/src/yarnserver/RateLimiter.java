@@ -0,0 +1,256 @@
+
+package yarnserver;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Used to stop a client, or several clients from the same source IP address,
+ * flooding the server.  Each client connection has its own limits and shares
+ * the limits of its source address with every other connection from that
+ * address.  There are three limits (see Configuration.clientMessageRate etc.):
+ *
+ * Messages - The text and data share commands a client sends are limited to
+ * a rate with a burst allowance (see TokenBucket).  Messages over the limit
+ * are dropped and the client is told.
+ *
+ * Bytes - The data read from a client is limited to a rate with a burst of
+ * one second's worth.  A client which goes over the limit isn't read from
+ * until it is back under it, so the client is slowed down rather than having
+ * its data dropped.
+ *
+ * Data shares - The number of data shares a client may have in progress at
+ * once, a data share over the limit is cancelled.
+ *
+ * A limit of zero means unlimited.  Checking a limit is lock free and never
+ * allocates.  The number of messages dropped, reads throttled and data shares
+ * refused by each kind of limit are counted and logged with the traffic seen
+ * at most once per statistics interval so that the limits can be tuned.  This
+ * class is used by all of the event loops and so is thread safe.
+ * @author Michael Telford
+ */
+public class RateLimiter {
+
+    private static final long STATISTICS_INTERVAL = 60000;  // in milliseconds.
+
+    /**
+     * The limits of a client connection or of a source address.  The limits
+     * of a source address are shared by all of its connections.
+     */
+    public static class Limits {
+        private final TokenBucket   messages;       // Null if unlimited.
+        private final TokenBucket   bytes;          // Null if unlimited.
+        private final int           shareLimit;
+        private final AtomicInteger numShares      = new AtomicInteger();
+        private final AtomicInteger numConnections = new AtomicInteger(1);
+
+        Limits(int messageRate, int messageBurst, long byteRate, int shareLimit){
+            this.messages   = (messageRate > 0) ? new TokenBucket(messageRate,
+                              Math.max(messageBurst, 1)) : null;
+            this.bytes      = (byteRate > 0) ? new TokenBucket(byteRate, byteRate)
+                              : null;
+            this.shareLimit = shareLimit;
+        }
+
+        boolean tryMessage(long now){
+            return (this.messages == null || this.messages.tryAcquire(1, now));
+        }
+
+        void releaseMessage(){
+            if (this.messages != null)
+                this.messages.release(1);
+        }
+
+        long receiveBytes(int numBytes, long now){
+            if (this.bytes == null)
+                return 0;
+            return this.bytes.acquire(numBytes, now);
+        }
+
+        boolean tryAcquireShare(){
+            while (true){
+                int num = this.numShares.get();
+                if (this.shareLimit > 0 && num >= this.shareLimit)
+                    return false;
+                if (this.numShares.compareAndSet(num, num + 1))
+                    return true;
+            }
+        }
+
+        void releaseShare(){
+            this.numShares.decrementAndGet();
+        }
+    }
+
+    private final ConcurrentHashMap<InetAddress, Limits> limitsByAddress =
+                                  new ConcurrentHashMap<InetAddress, Limits>();
+
+    // Statistics, reset each statistics interval.
+    private final AtomicLong numMessages                = new AtomicLong();
+    private final AtomicLong numBytes                   = new AtomicLong();
+    private final AtomicLong numClientMessagesDropped   = new AtomicLong();
+    private final AtomicLong numAddressMessagesDropped  = new AtomicLong();
+    private final AtomicLong numClientReadsThrottled    = new AtomicLong();
+    private final AtomicLong numAddressReadsThrottled   = new AtomicLong();
+    private final AtomicLong numClientSharesRefused     = new AtomicLong();
+    private final AtomicLong numAddressSharesRefused    = new AtomicLong();
+    private final AtomicLong lastStatisticsTime         =
+                                  new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Creates the limits of a new client connection.
+     * @return The client's limits.
+     */
+    public Limits newClientLimits(){
+        return new Limits(Configuration.clientMessageRate,
+                          Configuration.clientMessageBurst,
+                          Configuration.clientByteRate,
+                          Configuration.clientShareLimit);
+    }
+
+    /**
+     * Returns the limits of a source address for a new connection from that
+     * address, the limits are created if it has no other connections.  Each
+     * call must be matched by a call to releaseAddressLimits().
+     * @param address The source address of the connection.
+     * @return The source address's limits.
+     */
+    public Limits acquireAddressLimits(InetAddress address){
+        while (true){
+            Limits limits = this.limitsByAddress.get(address);
+            if (limits == null){
+                limits = new Limits(Configuration.ipMessageRate,
+                                    Configuration.ipMessageBurst,
+                                    Configuration.ipByteRate,
+                                    Configuration.ipShareLimit);
+                if (this.limitsByAddress.putIfAbsent(address, limits) == null)
+                    return limits;
+                continue;
+            }
+
+            // Limits whose last connection has gone are being removed.
+            int num = limits.numConnections.get();
+            if (num > 0 && limits.numConnections.compareAndSet(num, num + 1))
+                return limits;
+            if (num == 0)
+                this.limitsByAddress.remove(address, limits);
+        }
+    }
+
+    /**
+     * Releases the limits of a source address when a connection from that
+     * address ends.  The limits are removed once the address has no
+     * connections.
+     * @param address The source address of the connection.
+     * @param limits The limits returned by acquireAddressLimits().
+     */
+    public void releaseAddressLimits(InetAddress address, Limits limits){
+        if (limits.numConnections.decrementAndGet() == 0)
+            this.limitsByAddress.remove(address, limits);
+    }
+
+    /**
+     * Returns whether a client may send another message.  The message takes
+     * a token from both the client's and its source address's limits, or
+     * from neither if it is dropped.
+     * @param client The client's limits.
+     * @param address The client's source address limits.
+     * @return True if the message is allowed, false if it is to be dropped.
+     */
+    public boolean isMessageAllowed(Limits client, Limits address){
+        long now = System.nanoTime();
+        this.numMessages.incrementAndGet();
+        if (!client.tryMessage(now)){
+            this.numClientMessagesDropped.incrementAndGet();
+            return false;
+        }
+        if (!address.tryMessage(now)){
+            client.releaseMessage();
+            this.numAddressMessagesDropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the data read from a client and returns how long the client
+     * mustn't be read from to keep it within its limits.
+     * @param client The client's limits.
+     * @param address The client's source address limits.
+     * @param numBytes The number of bytes read.
+     * @return The time to stop reading for in nano seconds, zero if the
+     * client can be read from again straight away.
+     */
+    public long receiveBytes(Limits client, Limits address, int numBytes){
+        long now = System.nanoTime();
+        this.numBytes.addAndGet(numBytes);
+        long clientDelay = client.receiveBytes(numBytes, now);
+        long addressDelay = address.receiveBytes(numBytes, now);
+        if (clientDelay >= addressDelay && clientDelay > 0)
+            this.numClientReadsThrottled.incrementAndGet();
+        else if (addressDelay > 0)
+            this.numAddressReadsThrottled.incrementAndGet();
+        return Math.max(clientDelay, addressDelay);
+    }
+
+    /**
+     * Takes a data share slot from both a client's and its source address's
+     * limits.  Each slot taken must be released by releaseShare().
+     * @param client The client's limits.
+     * @param address The client's source address limits.
+     * @return True if the data share is allowed, false if the client already
+     * has too many in progress.
+     */
+    public boolean tryAcquireShare(Limits client, Limits address){
+        if (!client.tryAcquireShare()){
+            this.numClientSharesRefused.incrementAndGet();
+            return false;
+        }
+        if (!address.tryAcquireShare()){
+            client.releaseShare();
+            this.numAddressSharesRefused.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases a data share slot once the data share has finished.
+     * @param client The client's limits.
+     * @param address The client's source address limits.
+     */
+    public void releaseShare(Limits client, Limits address){
+        client.releaseShare();
+        address.releaseShare();
+    }
+
+    /**
+     * Logs and resets the statistics if the statistics interval has passed
+     * since they were last logged and any messages or data have been
+     * received.  Called periodically by each event loop, only one of which
+     * logs the statistics.
+     * @param now The current time in milliseconds.
+     */
+    public void logStatisticsIfDue(long now){
+        long last = this.lastStatisticsTime.get();
+        if (now - last < RateLimiter.STATISTICS_INTERVAL ||
+            !this.lastStatisticsTime.compareAndSet(last, now))
+            return;
+        long messages = this.numMessages.getAndSet(0);
+        long bytes = this.numBytes.getAndSet(0);
+        long clientDropped = this.numClientMessagesDropped.getAndSet(0);
+        long addressDropped = this.numAddressMessagesDropped.getAndSet(0);
+        long clientThrottled = this.numClientReadsThrottled.getAndSet(0);
+        long addressThrottled = this.numAddressReadsThrottled.getAndSet(0);
+        long clientRefused = this.numClientSharesRefused.getAndSet(0);
+        long addressRefused = this.numAddressSharesRefused.getAndSet(0);
+        if (messages == 0 && bytes == 0)
+            return;
+        Log.logRateLimitStatistics(messages, bytes, clientDropped,
+                                   addressDropped, clientThrottled,
+                                   addressThrottled, clientRefused,
+                                   addressRefused, this.limitsByAddress.size());
+    }
+}
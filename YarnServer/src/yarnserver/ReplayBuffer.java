@@ -0,0 +1,130 @@
+
+package yarnserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the most recent chat messages broadcast to all clients so that a
+ * client which has just logged in can be shown what was said before it
+ * joined.  The buffer keeps at most its message limit of messages, at most
+ * its capacity of bytes and only messages younger than its time limit, the
+ * oldest messages being discarded to make room.
+ *
+ * The messages are kept as the encoded (uncompressed) text frames that were
+ * broadcast, so replaying them needs no encoding, in a ring of direct (off
+ * heap) memory of a fixed capacity.  The position, length and time of each
+ * message are kept in fixed arrays, so appending a message copies its frame
+ * into the ring and allocates nothing.  This class is used by all of the
+ * event loops and so is thread safe.
+ * @author Michael Telford
+ */
+public class ReplayBuffer {
+
+    private final ByteBuffer data;          // The ring of encoded frames.
+    private final long       timeLimit;     // in milliseconds.
+
+    // The messages, a ring of slots from the oldest message at first.
+    private final long[]     times;
+    private final int[]      offsets;
+    private final int[]      lengths;
+    private int              first          = 0;
+    private int              numMessages    = 0;
+    private int              numBytes       = 0;
+    private int              writeOffset    = 0;
+
+    /**
+     * Constructor which allocates the buffer.  A buffer with no capacity or
+     * message limit keeps nothing.
+     * @param capacity The maximum number of bytes of messages kept.
+     * @param messageLimit The maximum number of messages kept.
+     * @param timeLimit The maximum age of the messages kept in milliseconds,
+     * zero for no maximum.
+     */
+    public ReplayBuffer(int capacity, int messageLimit, long timeLimit){
+        if (capacity <= 0 || messageLimit <= 0){
+            capacity     = 0;
+            messageLimit = 0;
+        }
+        this.data      = ByteBuffer.allocateDirect(capacity);
+        this.timeLimit = (timeLimit > 0) ? timeLimit : Long.MAX_VALUE;
+        this.times     = new long[messageLimit];
+        this.offsets   = new int[messageLimit];
+        this.lengths   = new int[messageLimit];
+    }
+
+    /**
+     * Adds a broadcast message, discarding the oldest messages as needed to
+     * stay within the limits.  A message larger than the whole buffer isn't
+     * kept.
+     * @param frame The encoded (uncompressed) text frame of the message.
+     */
+    public synchronized void append(byte[] frame){
+        int capacity = this.data.capacity();
+        int length = frame.length;
+        if (length > capacity || this.times.length == 0)
+            return;
+        long now = System.currentTimeMillis();
+        this.discardExpired(now);
+        while (this.numMessages == this.times.length ||
+               capacity - this.numBytes < length)
+            this.discardOldest();
+
+        int slot = (this.first + this.numMessages) % this.times.length;
+        this.times[slot]   = now;
+        this.offsets[slot] = this.writeOffset;
+        this.lengths[slot] = length;
+
+        // Copy the frame into the ring, wrapping round at the end.
+        int part = Math.min(length, capacity - this.writeOffset);
+        this.data.position(this.writeOffset);
+        this.data.put(frame, 0, part);
+        if (part < length){
+            this.data.position(0);
+            this.data.put(frame, part, length - part);
+        }
+        this.writeOffset = (this.writeOffset + length) % capacity;
+        this.numBytes += length;
+        this.numMessages++;
+    }
+
+    /**
+     * Returns the messages currently kept, oldest first, as encoded frames
+     * ready to be sent to a client in one write.
+     * @return The encoded frames or null if no messages are kept.
+     */
+    public synchronized byte[] getRecentFrames(){
+        this.discardExpired(System.currentTimeMillis());
+        if (this.numMessages == 0)
+            return null;
+        int capacity = this.data.capacity();
+        int offset = this.offsets[this.first];
+        byte[] frames = new byte[this.numBytes];
+        int part = Math.min(this.numBytes, capacity - offset);
+        this.data.position(offset);
+        this.data.get(frames, 0, part);
+        if (part < this.numBytes){
+            this.data.position(0);
+            this.data.get(frames, part, this.numBytes - part);
+        }
+        return frames;
+    }
+
+    /**
+     * Discards the messages older than the time limit.
+     * @param now The current time in milliseconds.
+     */
+    private void discardExpired(long now){
+        while (this.numMessages > 0 &&
+               now - this.times[this.first] > this.timeLimit)
+            this.discardOldest();
+    }
+
+    /**
+     * Discards the oldest message.
+     */
+    private void discardOldest(){
+        this.numBytes -= this.lengths[this.first];
+        this.first = (this.first + 1) % this.times.length;
+        this.numMessages--;
+    }
+}
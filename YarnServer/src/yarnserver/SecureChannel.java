@@ -0,0 +1,434 @@
+
+package yarnserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non blocking secure channel, an SSLEngine layered over a socket channel
+ * so that secure connections are serviced by the event loops in exactly the
+ * same way as non secure ones.  Reads return decrypted data and writes take
+ * plain data, so the frame decoder, output queue (including its gathering
+ * writes) and data share transfers work unchanged on top of this channel.
+ *
+ * The handshake is driven by the reads and writes themselves: until it has
+ * completed reads return no data and writes accept none.  The handshake's
+ * delegated tasks (the expensive key exchange computations) are run on the
+ * secure context's bounded pool of handshake threads so that the event loop
+ * never blocks, the task callback is run once they have finished so that the
+ * owning connection can carry on with the handshake.  Encrypted data is kept
+ * in direct buffers taken from the secure context's buffer pool, a buffer is
+ * only held while it contains data (e.g. a partly received record or
+ * encrypted data the socket hasn't accepted yet).
+ *
+ * This class is only used by the owning event loop thread, apart from the
+ * task callback which is run on a handshake thread.
+ * @author Michael Telford
+ */
+public class SecureChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer[] NO_DATA = { ByteBuffer.allocate(0) };
+
+    private final SocketChannel    channel;
+    private final SSLEngine        engine;
+    private final SecureContext    context;
+    private final BufferPool       pool;
+    private final long             startTime  = System.currentTimeMillis();
+    private final long             startNanos = System.nanoTime();
+    private ByteBuffer             netIn      = null;  // Encrypted data read.
+    private ByteBuffer             netOut     = null;  // Encrypted data to write.
+    private Runnable               taskCallback = null;
+    private volatile boolean       isTaskRunning = false;
+    private boolean                isHandshakeComplete = false;
+    private boolean                isRefused  = false;
+    private boolean                isInboundDone = false;
+
+    /**
+     * Constructor which takes a connected socket channel and the server mode
+     * SSL engine used to secure it.  The handshake begins straight away.
+     * @param channel The connected socket channel in non blocking mode.
+     * @param engine The SSL engine.
+     * @param context The secure context which created the engine.
+     * @throws SSLException If the handshake can't be started.
+     */
+    public SecureChannel(SocketChannel channel, SSLEngine engine,
+                         SecureContext context) throws SSLException {
+        this.channel = channel;
+        this.engine  = engine;
+        this.context = context;
+        this.pool    = context.getBufferPool();
+        this.engine.beginHandshake();
+    }
+
+    /**
+     * Sets the callback run once the handshake's delegated tasks have
+     * finished.  The callback is run on a handshake thread and should hand
+     * the connection back to its event loop.
+     * @param callback The task callback.
+     */
+    public void setTaskCallback(Runnable callback){
+        this.taskCallback = callback;
+    }
+
+    /**
+     * Returns whether the handshake has completed.
+     * @return True if the handshake has completed, false otherwise.
+     */
+    public boolean isHandshakeComplete(){
+        return this.isHandshakeComplete;
+    }
+
+    /**
+     * Returns whether the time the handshake has been allowed has passed
+     * without it completing.
+     * @param now The current time in milliseconds.
+     * @return True if the handshake has timed out, false otherwise.
+     */
+    public boolean isHandshakeTimedOut(long now){
+        return (!this.isHandshakeComplete && now - this.startTime >=
+                Configuration.getSSLHandshakeTimeoutInMilliSeconds());
+    }
+
+    /**
+     * Returns the time the handshake must complete by.
+     * @return The handshake deadline in milliseconds.
+     */
+    public long getHandshakeDeadline(){
+        return this.startTime + Configuration.getSSLHandshakeTimeoutInMilliSeconds();
+    }
+
+    /**
+     * Returns whether there is encrypted data which the socket hasn't
+     * accepted yet, in which case the caller should wait for the socket to
+     * become writable and then write again.
+     * @return True if a write is pending, false otherwise.
+     */
+    public boolean isWritePending(){
+        return (this.netOut != null);
+    }
+
+    /**
+     * Returns whether received data is buffered which the last read didn't
+     * have room to return.  The caller should read again rather than wait for
+     * the socket to become readable.
+     * @return True if data is buffered, false otherwise.
+     */
+    public boolean hasBufferedInput(){
+        return (this.netIn != null);
+    }
+
+    /**
+     * Reads and decrypts as much data as the socket has and the buffer can
+     * hold, advancing the handshake first if it hasn't completed.  The buffer
+     * must be at least the SSL application buffer size.
+     * @param dst The buffer to read into.
+     * @return The number of bytes read, possibly zero, or -1 if the client
+     * has closed the connection.
+     * @throws IOException If a read error occurs or the data is invalid.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        try {
+            while (!this.isTaskRunning && !this.isInboundDone){
+                SSLEngineResult.HandshakeStatus status =
+                                              this.engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK){
+                    this.runDelegatedTasks();
+                    break;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP){
+                    this.wrap(SecureChannel.NO_DATA, 0, 1);
+                    if (this.engine.getHandshakeStatus() ==
+                                     SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                        break;
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                    this.checkHandshakeComplete();
+
+                // Decrypt the records received so far, then read more.
+                if (this.netIn != null && this.netIn.position() > 0){
+                    this.netIn.flip();
+                    SSLEngineResult result;
+                    try {
+                        result = this.engine.unwrap(this.netIn, dst);
+                    }
+                    finally {
+                        this.netIn.compact();
+                    }
+                    SSLEngineResult.Status resultStatus = result.getStatus();
+                    if (resultStatus == SSLEngineResult.Status.CLOSED){
+                        this.isInboundDone = true;
+                        break;
+                    }
+                    if (resultStatus == SSLEngineResult.Status.BUFFER_OVERFLOW){
+                        if (dst.position() == start)
+                            throw new IOException("Read buffer too small");
+                        break;
+                    }
+                    if (resultStatus == SSLEngineResult.Status.OK &&
+                        (result.bytesConsumed() > 0 || result.bytesProduced() > 0))
+                        continue;
+                }
+                if (this.netIn == null)
+                    this.netIn = this.pool.acquire();
+                if (!this.netIn.hasRemaining())
+                    throw new IOException("Record too large");
+                int numRead = this.channel.read(this.netIn);
+                if (numRead < 0){
+                    this.isInboundDone = true;
+                    break;
+                }
+                if (numRead == 0)
+                    break;
+            }
+        }
+        finally {
+            this.releaseEmptyBuffers();
+        }
+        int numRead = dst.position() - start;
+        if (numRead == 0 && this.isInboundDone)
+            return -1;
+        return numRead;
+    }
+
+    /**
+     * Encrypts and writes data, see write(ByteBuffer[], int, int).
+     * @param src The data to write.
+     * @return The number of bytes taken from the buffer.
+     * @throws IOException If a write error occurs.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        return (int) this.write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    /**
+     * Encrypts and writes data, see write(ByteBuffer[], int, int).
+     * @param srcs The data to write.
+     * @return The number of bytes taken from the buffers.
+     * @throws IOException If a write error occurs.
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return this.write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts as much of the given data as the socket will currently accept
+     * and writes it, advancing the handshake first if it hasn't completed.
+     * The data of several buffers is encrypted into each record, so a queue
+     * of small messages is sent in as few records (and writes) as possible.
+     * Data which has been encrypted but not yet accepted by the socket is
+     * kept and written first by the next write, see isWritePending().
+     * @param srcs The buffers containing the data to write.
+     * @param offset The index of the first buffer.
+     * @param length The number of buffers.
+     * @return The number of bytes taken from the buffers.
+     * @throws IOException If a write error occurs or the connection has been
+     * closed.
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length)
+                                                          throws IOException {
+        try {
+            return this.wrap(srcs, offset, length);
+        }
+        finally {
+            this.releaseEmptyBuffers();
+        }
+    }
+
+    /**
+     * Encrypts and writes data until it has all been written, the socket
+     * won't accept any more or the handshake needs data from the client.
+     * Handshake data is written as needed.
+     * @param srcs The buffers containing the data to write.
+     * @param offset The index of the first buffer.
+     * @param length The number of buffers.
+     * @return The number of bytes taken from the buffers.
+     * @throws IOException If a write error occurs or the connection has been
+     * closed.
+     */
+    private long wrap(ByteBuffer[] srcs, int offset, int length)
+                                                          throws IOException {
+        long numWritten = 0;
+        while (!this.isTaskRunning && this.flushOutput()){
+            SSLEngineResult.HandshakeStatus status =
+                                              this.engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK){
+                this.runDelegatedTasks();
+                break;
+            }
+            boolean isHandshakeData =
+                    (status == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+            if (!isHandshakeData){
+                if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                    break;  // Waiting for the client.
+                this.checkHandshakeComplete();
+                if (this.engine.isOutboundDone() ||
+                    !SecureChannel.hasRemaining(srcs, offset, length))
+                    break;
+            }
+
+            if (this.netOut == null)
+                this.netOut = this.pool.acquire();
+            SSLEngineResult result;
+            if (isHandshakeData)
+                result = this.engine.wrap(SecureChannel.NO_DATA, this.netOut);
+            else
+                result = this.engine.wrap(srcs, offset, length, this.netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED &&
+                this.netOut.position() == 0)
+                throw new EOFException("Connection closed");
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW &&
+                this.netOut.position() == 0)
+                throw new IOException("Write buffer too small");
+            if (!isHandshakeData)
+                numWritten += result.bytesConsumed();
+        }
+        return numWritten;
+    }
+
+    /**
+     * Writes the encrypted data waiting to be written.
+     * @return True if it has all been written, false otherwise.
+     * @throws IOException If a write error occurs.
+     */
+    private boolean flushOutput() throws IOException {
+        if (this.netOut == null)
+            return true;
+        this.netOut.flip();
+        try {
+            while (this.netOut.hasRemaining()){
+                if (this.channel.write(this.netOut) == 0)
+                    return false;
+            }
+            return true;
+        }
+        finally {
+            this.netOut.compact();
+        }
+    }
+
+    /**
+     * Runs the handshake's delegated tasks on a handshake thread.  Reads and
+     * writes do nothing until the tasks have finished and the task callback
+     * has been run.
+     * @throws IOException If the handshake threads are all busy and their
+     * queue is full (or were when the tasks were first run).
+     */
+    private void runDelegatedTasks() throws IOException {
+        if (this.isRefused)
+            throw new IOException("Handshake queue full");
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Runnable task;
+        while ((task = this.engine.getDelegatedTask()) != null)
+            tasks.add(task);
+        this.isTaskRunning = true;
+        try {
+            this.context.execute(new Runnable(){
+                public void run(){
+                    for (Runnable task : tasks)
+                        task.run();
+                    isTaskRunning = false;
+                    if (taskCallback != null)
+                        taskCallback.run();
+                }
+            });
+        }
+        catch (RejectedExecutionException ex){
+            this.isTaskRunning = false;
+            this.isRefused = true;
+            throw new IOException("Handshake queue full");
+        }
+    }
+
+    /**
+     * Records the handshake once it has completed.
+     */
+    private void checkHandshakeComplete(){
+        if (this.isHandshakeComplete)
+            return;
+        this.isHandshakeComplete = true;
+        this.context.recordHandshake(this.engine.getSession(), this.startTime,
+                                     System.nanoTime() - this.startNanos);
+    }
+
+    /**
+     * Returns the encrypted data buffers to the pool once they are empty.
+     */
+    private void releaseEmptyBuffers(){
+        if (this.netIn != null && this.netIn.position() == 0){
+            this.pool.release(this.netIn);
+            this.netIn = null;
+        }
+        if (this.netOut != null && this.netOut.position() == 0){
+            this.pool.release(this.netOut);
+            this.netOut = null;
+        }
+    }
+
+    /**
+     * Returns whether any of the given buffers has data remaining.
+     * @param srcs The buffers.
+     * @param offset The index of the first buffer.
+     * @param length The number of buffers.
+     * @return True if there is data remaining, false otherwise.
+     */
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset,
+                                        int length){
+        for (int i = offset; i < offset + length; i++){
+            if (srcs[i].hasRemaining())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the socket channel is open.
+     * @return True if the channel is open, false otherwise.
+     */
+    public boolean isOpen(){
+        return this.channel.isOpen();
+    }
+
+    /**
+     * Closes the connection.  Once the handshake has completed a close
+     * notification is sent if the socket will accept it straight away, the
+     * connection is closed regardless.  A handshake which hadn't completed
+     * (and wasn't refused) is recorded as failed.
+     * @throws IOException If the socket channel can't be closed.
+     */
+    public void close() throws IOException {
+        try {
+            if (this.isHandshakeComplete && !this.isTaskRunning){
+                this.engine.closeOutbound();
+                this.wrap(SecureChannel.NO_DATA, 0, 1);
+            }
+            else if (!this.isHandshakeComplete && !this.isRefused){
+                this.isHandshakeComplete = true;  // Not to be recorded again.
+                this.context.recordFailedHandshake();
+            }
+        }
+        catch (IOException ex){
+            //Logger.getLogger(SecureChannel.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally {
+            if (this.netIn != null)
+                this.pool.release(this.netIn);
+            if (this.netOut != null)
+                this.pool.release(this.netOut);
+            this.netIn  = null;
+            this.netOut = null;
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+
+package yarnserver;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The server's SSL context, built explicitly from the configured key store
+ * rather than from global system properties.  The server session cache is
+ * sized and timed out from the configuration (see Configuration.sslSession*)
+ * and session tickets are enabled where the JDK supports them, so a client
+ * which reconnects (e.g. after a network drop) resumes its session with an
+ * abbreviated handshake instead of a full public key exchange.  The enabled
+ * cipher suites are the configured list (see Configuration.sslCipherSuites),
+ * by default the AES-GCM suites in order of preference, and the server's
+ * order is used where the JDK supports it.
+ *
+ * Each accepted connection is secured by its own SSL engine (see
+ * SecureChannel) and serviced by an event loop like any other connection.
+ * The expensive parts of a handshake (its delegated tasks) are run by a small
+ * fixed pool of handshake threads rather than the event loops, so a burst of
+ * handshakes can't hold up the established connections.  The pool has a
+ * bounded queue; once it is full further handshakes are refused and their
+ * connections closed, which stops a reconnect storm from queuing unbounded
+ * handshake work.  A handshake which takes longer than the handshake timeout
+ * fails.  The encrypted data of all the secure connections is kept in direct
+ * buffers from a shared buffer pool.
+ *
+ * Full and resumed handshake times are recorded separately and logged with
+ * the session cache statistics at most once per statistics interval.  This
+ * class is used by the accepting thread, the event loops and the handshake
+ * threads and so is thread safe.
+ * @author Michael Telford
+ */
+public class SecureContext {
+
+    /**
+     * The cipher suites enabled if none are configured, AES-GCM first.  Suites
+     * the JDK doesn't support are ignored.
+     */
+    public  static final String[] PREFERRED_CIPHER_SUITES = {
+        "TLS_AES_128_GCM_SHA256",
+        "TLS_AES_256_GCM_SHA384",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_DHE_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_RSA_WITH_AES_256_GCM_SHA384"
+    };
+
+    private static final long STATISTICS_INTERVAL = 60000;  // in milliseconds.
+
+    private final SSLContext         context;
+    private final SSLParameters      parameters;
+    private final ThreadPoolExecutor handshakeThreads;
+    private final BufferPool         bufferPool;
+
+    // Handshake statistics, guarded by this instance.
+    private final LatencyHistogram   fullHandshakes    = new LatencyHistogram();
+    private final LatencyHistogram   resumedHandshakes = new LatencyHistogram();
+    private long                     numFailed         = 0;
+    private long                     numRefused        = 0;
+    private long                     lastStatisticsTime = System.currentTimeMillis();
+
+    /**
+     * Constructor which builds the SSL context from the configured key store,
+     * sizes the buffer pool to the SSL record size and starts the handshake
+     * threads.
+     * @throws Exception If the key store can't be loaded or the SSL context
+     * can't be initialised.
+     */
+    public SecureContext() throws Exception {
+
+        // Session tickets must be enabled before the context is created, an
+        // explicit setting on the command line is left alone.
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null)
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+
+        char[] password = Configuration.keyStorePassword.toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        FileInputStream input = new FileInputStream(Configuration.keyStore);
+        try {
+            keyStore.load(input, password);
+        }
+        finally {
+            input.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                                        KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+
+        // The key store is also trusted so that the servers of a federation
+        // sharing it (or each other's certificates) can link securely.
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                                    TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+
+        this.context = SSLContext.getInstance("TLS");
+        this.context.init(keyManagers.getKeyManagers(),
+                          trustManagers.getTrustManagers(), null);
+        SSLSessionContext sessions = this.context.getServerSessionContext();
+        sessions.setSessionCacheSize(Configuration.sslSessionCacheSize);
+        sessions.setSessionTimeout(Configuration.sslSessionTimeout);
+        this.parameters = this.context.getDefaultSSLParameters();
+        this.parameters.setCipherSuites(this.getCipherSuites());
+        SecureContext.useCipherSuitesOrder(this.parameters);
+        this.bufferPool = new BufferPool(this.context.createSSLEngine()
+                          .getSession().getPacketBufferSize(),
+                          Configuration.connectionLimit);
+
+        this.handshakeThreads = new ThreadPoolExecutor(
+                Configuration.sslHandshakeThreads, Configuration.sslHandshakeThreads,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                Configuration.sslHandshakeQueueLimit), new ThreadFactory(){
+                    private int numThreads = 0;
+                    public synchronized Thread newThread(Runnable task){
+                        Thread thread = new Thread(task, "Handshake Thread "
+                                                   + this.numThreads++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns the pool of direct buffers used for encrypted data.
+     * @return The buffer pool.
+     */
+    public BufferPool getBufferPool(){
+        return this.bufferPool;
+    }
+
+    /**
+     * Creates a secure channel for an accepted connection.  The channel's
+     * SSL engine is in server mode with the enabled cipher suites.
+     * @param channel The accepted socket channel in non blocking mode.
+     * @return The secure channel.
+     * @throws Exception If the handshake can't be started.
+     */
+    public SecureChannel createChannel(SocketChannel channel) throws Exception {
+        SSLEngine engine = this.context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(this.parameters);
+        return new SecureChannel(channel, engine, this);
+    }
+
+    /**
+     * Creates an unbound server socket for the secure links from the other
+     * servers of the federation (see PeerLink), which must present a
+     * certificate trusted by the key store.
+     * @return The server socket.
+     * @throws IOException If the server socket can't be created.
+     */
+    public ServerSocket createPeerServerSocket() throws IOException {
+        SSLServerSocket server = (SSLServerSocket)
+                this.context.getServerSocketFactory().createServerSocket();
+        server.setSSLParameters(this.parameters);
+        server.setNeedClientAuth(true);
+        return server;
+    }
+
+    /**
+     * Secures a link connected to another server of the federation, the
+     * handshake takes place when the link is first read or written.  The
+     * other server must present a certificate trusted by the key store.
+     * @param socket The connected socket.
+     * @param address The address of the other server.
+     * @return The secure socket.
+     * @throws IOException If the socket can't be secured.
+     */
+    public Socket createPeerSocket(Socket socket, InetSocketAddress address)
+                                                        throws IOException {
+        SSLSocket secure = (SSLSocket) this.context.getSocketFactory()
+                .createSocket(socket, address.getHostString(),
+                              address.getPort(), true);
+        secure.setUseClientMode(true);
+        secure.setSSLParameters(this.parameters);
+        return secure;
+    }
+
+    /**
+     * Runs a handshake's delegated tasks on a handshake thread.  The
+     * connection is refused if the handshake threads are all busy and their
+     * queue is full.
+     * @param tasks The delegated tasks.
+     * @throws RejectedExecutionException If the handshake queue is full.
+     */
+    public void execute(Runnable tasks){
+        try {
+            this.handshakeThreads.execute(tasks);
+        }
+        catch (RejectedExecutionException ex){
+            synchronized (this){
+                this.numRefused++;
+            }
+            this.logStatisticsIfDue();
+            throw ex;
+        }
+    }
+
+    /**
+     * Records a completed handshake as a full or resumed handshake.  A
+     * session created before the handshake started was resumed from the
+     * cache or a session ticket.
+     * @param session The negotiated session.
+     * @param startTime The time the handshake started in milliseconds.
+     * @param nanos How long the handshake took in nano seconds.
+     */
+    public void recordHandshake(SSLSession session, long startTime, long nanos){
+        synchronized (this){
+            if (session.getCreationTime() < startTime)
+                this.resumedHandshakes.record(nanos);
+            else
+                this.fullHandshakes.record(nanos);
+        }
+        this.logStatisticsIfDue();
+    }
+
+    /**
+     * Records a handshake which failed, timed out or was abandoned by the
+     * client.
+     */
+    public void recordFailedHandshake(){
+        synchronized (this){
+            this.numFailed++;
+        }
+        this.logStatisticsIfDue();
+    }
+
+    /**
+     * Logs and resets the handshake statistics if the statistics interval has
+     * passed since they were last logged.
+     */
+    private void logStatisticsIfDue(){
+        long now = System.currentTimeMillis();
+        synchronized (this){
+            if (now - this.lastStatisticsTime < SecureContext.STATISTICS_INTERVAL)
+                return;
+            this.lastStatisticsTime = now;
+            SSLSessionContext sessions = this.context.getServerSessionContext();
+            int numCached = 0;
+            for (Enumeration<byte[]> ids = sessions.getIds();
+                 ids.hasMoreElements(); ids.nextElement())
+                numCached++;
+            Log.logHandshakeStatistics(
+                    this.fullHandshakes.getNumSamples(),
+                    this.fullHandshakes.getPercentile(50),
+                    this.fullHandshakes.getPercentile(99),
+                    this.resumedHandshakes.getNumSamples(),
+                    this.resumedHandshakes.getPercentile(50),
+                    this.resumedHandshakes.getPercentile(99),
+                    this.numFailed, this.numRefused, numCached);
+            this.fullHandshakes.reset();
+            this.resumedHandshakes.reset();
+            this.numFailed = 0;
+            this.numRefused = 0;
+        }
+    }
+
+    /**
+     * Returns the cipher suites to enable, the configured (or preferred)
+     * suites which the JDK supports in the order given.  The JDK's default
+     * suites are used if none of them are supported.
+     * @return The cipher suites.
+     */
+    private String[] getCipherSuites(){
+        String[] wanted = SecureContext.PREFERRED_CIPHER_SUITES;
+        if (!Configuration.sslCipherSuites.isEmpty())
+            wanted = Configuration.sslCipherSuites.split("\\s*,\\s*");
+        List<String> supported = Arrays.asList(
+                this.context.getServerSocketFactory().getSupportedCipherSuites());
+        List<String> suites = new ArrayList<String>();
+        for (String suite : wanted){
+            if (supported.contains(suite) && !suites.contains(suite))
+                suites.add(suite);
+        }
+        if (suites.isEmpty())
+            return this.context.getServerSocketFactory().getDefaultCipherSuites();
+        return suites.toArray(new String[suites.size()]);
+    }
+
+    /**
+     * Makes the server choose the cipher suite by its own order of preference
+     * rather than the client's.  The setting was added in Java 8 so it is set
+     * reflectively and ignored on older JDKs.
+     * @param parameters The SSL engines' parameters.
+     */
+    private static void useCipherSuitesOrder(SSLParameters parameters){
+        try {
+            Method method = SSLParameters.class.getMethod(
+                            "setUseCipherSuitesOrder", boolean.class);
+            method.invoke(parameters, Boolean.TRUE);
+        }
+        catch (Exception ex){
+            //Logger.getLogger(SecureContext.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
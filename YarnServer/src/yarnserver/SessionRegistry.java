@@ -0,0 +1,130 @@
+
+package yarnserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Used to keep track of the client connections of the server.  Every accepted
+ * connection is added to the registry and each client which has logged in is
+ * also indexed by its username.  Username lookups and the connected client
+ * count therefore take constant time regardless of the connection limit.
+ *
+ * The registry is used by the accepting thread and by all of the event loops
+ * at the same time and so is thread safe.  Usernames are claimed atomically
+ * meaning two clients logging in at the same time can't both be given the
+ * same username.  Iterating the registry (e.g. to broadcast a message) is
+ * always safe while clients connect and disconnect, although connections
+ * added or removed during the iteration may or may not be seen.
+ * @author Michael Telford
+ */
+public class SessionRegistry {
+
+    private final int                                         connectionLimit;
+    private final Set<ClientConnection>                       connections;
+    private final ConcurrentHashMap<String, ClientConnection> clientsByUsername;
+    private final AtomicInteger                               numConnections;
+    private final AtomicInteger                               numConnectedClients;
+
+    /**
+     * Constructor which takes the maximum number of connections.
+     * @param connectionLimit The maximum number of connections, logged in or
+     * not, the server accepts at once.
+     */
+    public SessionRegistry(int connectionLimit){
+        this.connectionLimit     = connectionLimit;
+        this.connections         = Collections.newSetFromMap(
+                     new ConcurrentHashMap<ClientConnection, Boolean>(connectionLimit));
+        this.clientsByUsername   =
+                     new ConcurrentHashMap<String, ClientConnection>(connectionLimit);
+        this.numConnections      = new AtomicInteger(0);
+        this.numConnectedClients = new AtomicInteger(0);
+    }
+
+    /**
+     * Returns whether the connection limit has been reached.  This is only
+     * used by the accepting thread which is the only thread adding
+     * connections.
+     * @return True if no more connections can be accepted, false otherwise.
+     */
+    public boolean isFull(){
+        return (this.numConnections.get() >= this.connectionLimit);
+    }
+
+    /**
+     * Adds a newly accepted connection to the registry.
+     * @param client The accepted client connection.
+     */
+    public void add(ClientConnection client){
+        if (this.connections.add(client))
+            this.numConnections.incrementAndGet();
+    }
+
+    /**
+     * Removes a connection from the registry and frees its username.
+     * @param client The disconnected client connection.
+     * @return True if the connection was removed, false if it had already
+     * been removed.
+     */
+    public boolean remove(ClientConnection client){
+        if (!this.connections.remove(client))
+            return false;
+        this.numConnections.decrementAndGet();
+        String uname = client.getUsername();
+        if (uname != null && this.clientsByUsername.remove(uname, client))
+            this.numConnectedClients.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Atomically claims a username for a client which is logging in.
+     * @param client The client logging in.
+     * @param uname The desired username.
+     * @return True if the username was claimed, false if it is already taken.
+     */
+    public boolean claimUsername(ClientConnection client, String uname){
+        if (this.clientsByUsername.putIfAbsent(uname, client) != null)
+            return false;
+        this.numConnectedClients.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the connected client with the given username.
+     * @param uname The username of the client.
+     * @return The client or null if no client has the username.
+     */
+    public ClientConnection getClient(String uname){
+        return this.clientsByUsername.get(uname);
+    }
+
+    /**
+     * Returns the number of connected clients.  Connected is defined as
+     * having established a connection with the server and entered a legal and
+     * unique username.
+     * @return The number of connected clients.
+     */
+    public int getNumConnectedClients(){
+        return this.numConnectedClients.get();
+    }
+
+    /**
+     * Returns the connected clients (those with a username) for iteration.
+     * @return A live view of the connected clients.
+     */
+    public Collection<ClientConnection> getConnectedClients(){
+        return this.clientsByUsername.values();
+    }
+
+    /**
+     * Returns all of the connections, including those which haven't logged
+     * in yet, for iteration.
+     * @return A live view of all the connections.
+     */
+    public Collection<ClientConnection> getAllConnections(){
+        return this.connections;
+    }
+}
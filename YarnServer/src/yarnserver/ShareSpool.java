@@ -0,0 +1,343 @@
+
+package yarnserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The on disk store of the data shares in progress.  Each data share is
+ * spooled to its own file (see SpoolFile) which the receiving clients read
+ * from at their own pace, so server memory use doesn't depend on the size or
+ * number of data shares.
+ *
+ * The spool is also a content addressed cache.  A spool file whose data
+ * matches the content hash offered by its sending client is kept once its
+ * data shares have finished, and a later data share offering the same hash
+ * and size reuses the file instead of uploading it again.  Likewise a file
+ * whose upload was interrupted (e.g. the sending client disconnected) is
+ * kept and a later data share of the same content resumes the upload from
+ * the last verified chunk.  A hash alone doesn't prove a client has the
+ * content, so a file is only reused once the sending client has proved it
+ * has the data by hashing a random range of it with a random nonce (see
+ * PossessionProof), a range within the part spooled so far when resuming.
+ * A client which only knows the hash can't share a file it has never had or
+ * add to (or poison) another client's upload, it uploads the file afresh.
+ * A file whose data turns out not to match its hash is deleted.  Cache
+ * hits, misses, resumed uploads and the bytes saved are logged with each
+ * reuse.
+ *
+ * The spool is bounded in two ways.  The total size of the spool files is
+ * limited (see Configuration.spoolSizeLimit), when a new data share doesn't
+ * fit the least recently used cached (and resumable) files are evicted to
+ * make space, then the fully spooled files in use which have been inactive
+ * the longest.  The data share is refused if there still isn't enough space.
+ * Data shares whose spool file hasn't been written to or read from for the
+ * spool TTL (see Configuration.spoolTTL) are expired by their idle check.
+ * Evicting a spool file expires its data shares, the file itself is deleted
+ * once the clients involved have stopped using it.
+ *
+ * This class is used by all of the event loops and so is thread safe.
+ * @author Michael Telford
+ */
+public class ShareSpool {
+
+    private final File              directory;
+    private final long              sizeLimit;
+    private final List<SpoolFile>   spoolFiles    = new ArrayList<SpoolFile>();
+    private long                    reservedBytes = 0;
+
+    // Spool statistics, guarded by this instance.
+    private long                    numSpooled    = 0;
+    private long                    numEvicted    = 0;
+    private long                    numExpired    = 0;
+    private long                    numRefused    = 0;
+    private long                    numCacheHits  = 0;
+    private long                    numCacheMisses = 0;
+    private long                    numResumed    = 0;
+    private long                    numUnproven   = 0;
+    private long                    bytesSaved    = 0;
+
+    /**
+     * Constructor which creates the spool directory and deletes any spool
+     * files left behind by a previous run of the server.
+     * @param directory The directory the spool files are created in.
+     * @param sizeLimit The maximum total size of the spool files in bytes.
+     */
+    public ShareSpool(File directory, long sizeLimit){
+        this.directory = directory;
+        this.sizeLimit = sizeLimit;
+        this.directory.mkdirs();
+        File[] files = this.directory.listFiles();
+        if (files != null){
+            for (File file : files){
+                if (file.getName().endsWith(".spool"))
+                    file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the cached spool file of a new data share's content so that it
+     * can be reused instead of uploaded, once the sending client has proved
+     * it has the content (see confirm()).  Only spool files verified against
+     * the content hash are reused.  If the content isn't cached but an
+     * earlier upload of it was interrupted the partly spooled file is
+     * returned instead so that the upload can be resumed.
+     * @param share The new data share.
+     * @param contentHash The content hash offered by the sending client or
+     * null if none was offered.
+     * @return The spool file, now in use by the data share, or null if the
+     * content isn't cached.
+     */
+    public synchronized SpoolFile lookup(DataShare share, String contentHash){
+        if (contentHash == null)
+            return null;
+        SpoolFile spool = this.getVerified(contentHash, share.getFileSize());
+        if (spool == null)
+            spool = this.getResumable(contentHash, share.getFileSize());
+        if (spool == null){
+            this.numCacheMisses++;
+            return null;
+        }
+        spool.getDataShares().add(share);
+        spool.touch();
+        return spool;
+    }
+
+    /**
+     * Reuses the spool file returned by lookup() once the sending client has
+     * answered the proof of possession.  If the proof failed the file is
+     * released and the data share must create its own spool file, the
+     * failure counts as a cache miss.
+     * @param share The new data share.
+     * @param spool The spool file returned by lookup().
+     * @param isProven True if the sending client proved it has the content.
+     * @return The spool file or null if the proof failed.
+     */
+    public synchronized SpoolFile confirm(DataShare share, SpoolFile spool,
+                                          boolean isProven){
+        if (!isProven){
+            this.numCacheMisses++;
+            this.numUnproven++;
+            Log.logDataShareSpool(share.getSendingUsername(), share.getFileName(),
+                                  spool.getSize(), "proof of possession failed, "
+                                  + "not reused : " + this.getStatistics());
+            this.release(spool, share);
+            return null;
+        }
+
+        spool.touch();
+        if (spool.isComplete()){
+            this.numCacheHits++;
+            this.bytesSaved += spool.getSize();
+            Log.logDataShareSpool(share.getSendingUsername(), share.getFileName(),
+                                  spool.getSize(), "cache hit, upload skipped : "
+                                  + this.getStatistics());
+        }
+        else {
+            this.numCacheMisses++;
+            this.numResumed++;
+            this.bytesSaved += spool.getLength();
+            Log.logDataShareSpool(share.getSendingUsername(), share.getFileName(),
+                                  spool.getSize(), String.format(
+                                  "upload resumed at %d bytes : %s",
+                                  spool.getLength(), this.getStatistics()));
+        }
+        return spool;
+    }
+
+    /**
+     * Creates the spool file of a new data share.  Space is made by evicting
+     * cached and then fully spooled files if necessary.
+     * @param share The new data share.
+     * @param contentHash The content hash offered by the sending client or
+     * null if none was offered.
+     * @return The spool file or null if there isn't space for the data share.
+     * @throws IOException If the spool file can't be created.
+     */
+    public synchronized SpoolFile create(DataShare share, String contentHash)
+                                                          throws IOException {
+        long size = share.getFileSize();
+        while (this.reservedBytes + size > this.sizeLimit){
+            SpoolFile victim = this.getLeastRecentlyActive();
+            if (victim == null || size > this.sizeLimit){
+                this.numRefused++;
+                Log.logDataShareSpool(share.getSendingUsername(),
+                                      share.getFileName(), size,
+                                      "refused, spool full : " + this.getStatistics());
+                return null;
+            }
+            this.evict(victim, "evicted to make space");
+        }
+
+        File file = File.createTempFile("share", ".spool", this.directory);
+        SpoolFile spool = new SpoolFile(share, file, contentHash);
+        this.spoolFiles.add(spool);
+        this.reservedBytes += size;
+        this.numSpooled++;
+        return spool;
+    }
+
+    /**
+     * Expires a data share if its spool file hasn't been written to or read
+     * from for the spool TTL.  The spool file itself stays cached if it has
+     * been verified.
+     * @param share The data share.
+     * @param spool The data share's spool file.
+     * @param now The current time in milliseconds.
+     * @return True if the data share was expired (or its spool file already
+     * evicted), false if it is still active.
+     */
+    public synchronized boolean expireIfIdle(DataShare share, SpoolFile spool,
+                                             long now){
+        if (spool.isEvicted())
+            return true;
+        long idleTime = now - spool.getLastActiveTime();
+        if (idleTime < Configuration.getSpoolTTLInMilliSeconds())
+            return false;
+        this.numExpired++;
+        Log.logDataShareSpool(share.getSendingUsername(), share.getFileName(),
+                              spool.getSize(), String.format(
+                              "expired, idle for %d seconds : %s",
+                              idleTime / 1000, this.getStatistics()));
+        share.expire();
+        return true;
+    }
+
+    /**
+     * Releases a data share's spool file once the data share has finished.
+     * Once no data share is using the file it is kept in the cache if it has
+     * been verified (and isn't a duplicate) or kept to be resumed if its
+     * upload was interrupted, otherwise it is deleted and its space freed.
+     * Must only be called once the clients involved have stopped using the
+     * file.
+     * @param spool The spool file.
+     * @param share The finished data share.
+     */
+    public synchronized void release(SpoolFile spool, DataShare share){
+        spool.getDataShares().remove(share);
+        if (!spool.getDataShares().isEmpty())
+            return;
+
+        if (!spool.isEvicted() && spool.isVerified() &&
+            this.getVerified(spool.getContentHash(), spool.getSize()) == spool){
+            Log.logDataShareSpool(spool.getSendingUsername(), spool.getFileName(),
+                                  spool.getSize(), "cached : " + this.getStatistics());
+            return;
+        }
+        if (!spool.isEvicted() && spool.isResumable() &&
+            this.getResumable(spool.getContentHash(), spool.getSize()) == spool){
+            Log.logDataShareSpool(spool.getSendingUsername(), spool.getFileName(),
+                                  spool.getSize(), String.format(
+                                  "kept to resume at %d bytes : %s",
+                                  spool.getLength(), this.getStatistics()));
+            return;
+        }
+        if (this.spoolFiles.remove(spool))
+            this.reservedBytes -= spool.getSize();
+        spool.delete();
+    }
+
+    /**
+     * Evicts a spool file, its space is freed straight away and its data
+     * shares expired.  A cached file which isn't in use is deleted.
+     * @param spool The spool file.
+     * @param reason The reason for the eviction, used in the server log.
+     */
+    private void evict(SpoolFile spool, String reason){
+        this.spoolFiles.remove(spool);
+        this.reservedBytes -= spool.getSize();
+        spool.setEvicted();
+        this.numEvicted++;
+        Log.logDataShareSpool(spool.getSendingUsername(), spool.getFileName(),
+                              spool.getSize(), reason + " : " + this.getStatistics());
+        if (spool.getDataShares().isEmpty())
+            spool.delete();
+        for (DataShare share : new ArrayList<DataShare>(spool.getDataShares()))
+            share.expire();
+    }
+
+    /**
+     * Returns the first verified spool file with the given content.
+     * @param contentHash The content hash.
+     * @param size The content size in bytes.
+     * @return The spool file or null if there is no such file.
+     */
+    private SpoolFile getVerified(String contentHash, long size){
+        for (SpoolFile spool : this.spoolFiles){
+            if (spool.isVerified() && spool.getSize() == size &&
+                spool.getContentHash().equals(contentHash))
+                return spool;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first partly spooled file with the given content which
+     * isn't in use and so can be resumed.
+     * @param contentHash The content hash.
+     * @param size The content size in bytes.
+     * @return The spool file or null if there is no such file.
+     */
+    private SpoolFile getResumable(String contentHash, long size){
+        for (SpoolFile spool : this.spoolFiles){
+            if (spool.isResumable() && spool.getSize() == size &&
+                spool.getDataShares().isEmpty() &&
+                spool.getContentHash().equals(contentHash))
+                return spool;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the spool file to evict to make space.  Cached and resumable
+     * files which aren't in use are evicted first, least recently used first,
+     * then the fully spooled files in use which have been inactive the
+     * longest.  Files still being spooled are never evicted to make space.
+     * @return The spool file to evict or null if there is no such file.
+     */
+    private SpoolFile getLeastRecentlyActive(){
+        SpoolFile victim = null;
+        for (SpoolFile spool : this.spoolFiles){
+            if (!spool.isComplete() && !spool.getDataShares().isEmpty())
+                continue;
+            if (victim == null)
+                victim = spool;
+            else {
+                boolean isCached       = spool.getDataShares().isEmpty();
+                boolean isVictimCached = victim.getDataShares().isEmpty();
+                if ((isCached && !isVictimCached) || (isCached == isVictimCached &&
+                    spool.getLastActiveTime() < victim.getLastActiveTime()))
+                    victim = spool;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Returns the spool and cache statistics as text for the server log.
+     * @return The spool statistics.
+     */
+    private String getStatistics(){
+        int numCached = 0;
+        for (SpoolFile spool : this.spoolFiles){
+            if (spool.getDataShares().isEmpty())
+                numCached++;
+        }
+        long numLookups = this.numCacheHits + this.numCacheMisses;
+        double hitRate = 0;
+        if (numLookups > 0)
+            hitRate = (this.numCacheHits * 100.0) / numLookups;
+        return String.format("spooled %d, evicted %d, expired %d, refused %d, "
+                + "cache hits %d, cache misses %d (hit rate %.1f%%), resumed %d "
+                + "(%d bytes saved), unproven %d, currently spooled %d, cached "
+                + "%d (%d bytes reserved)",
+                this.numSpooled, this.numEvicted, this.numExpired,
+                this.numRefused, this.numCacheHits, this.numCacheMisses,
+                hitRate, this.numResumed, this.bytesSaved, this.numUnproven,
+                this.spoolFiles.size() - numCached, numCached,
+                this.reservedBytes);
+    }
+}
@@ -0,0 +1,311 @@
+
+package yarnserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import yarnprotocol.ContentHash;
+import yarnprotocol.DataShareChunk;
+import yarnprotocol.Protocol;
+
+/**
+ * The spool file of a single data share.  The data received from the sending
+ * client is appended to the file as it arrives and each receiving client
+ * reads it back from its own position at its own pace, so the data is never
+ * held in memory however large the file or however long the receiving
+ * clients take to accept.  Non secure receiving clients are sent the data
+ * straight from the file to their socket (see transferTo()).
+ *
+ * The file is appended to by the sending client's event loop and read by the
+ * receiving clients' event loops at the same time.  Only data below the
+ * current length is ever read, so readers never see partly written data.
+ * Only whole chunks (see DataShareChunk) which pass their checksum are
+ * appended, so the spooled data is always verified up to its length and the
+ * checksum of each chunk is kept to send on to the receiving clients.
+ *
+ * If the sending client offered a content hash the spooled data is hashed as
+ * it is appended.  A complete spool file whose data matches its hash is
+ * verified and can be used by later data shares of the same content instead
+ * of an upload (see ShareSpool), so a spool file can belong to several data
+ * shares at once.  If the data doesn't match its hash the last chunk isn't
+ * appended, so the receiving clients never get the whole file, and the spool
+ * file fails and is deleted rather than kept to be resumed.
+ *
+ * Chunks which turned out not to compress when sent to a receiving client
+ * which negotiated compression are marked so that other receiving clients
+ * are sent them straight from the file instead (see FrameCompressor).
+ * @author Michael Telford
+ */
+public class SpoolFile {
+
+    private final String        sendingUsername;
+    private final String        fileName;
+    private final File          file;
+    private final FileChannel   channel;
+    private final long          size;
+    private final String        contentHash;
+    private final MessageDigest digest;
+    private final int[]         checksums;
+    private final boolean[]     isIncompressible;  // Only a hint, unguarded.
+    private volatile long       length         = 0;
+    private volatile long       lastActiveTime = System.currentTimeMillis();
+    private volatile boolean    isVerified     = false;
+    private volatile boolean    isFailed       = false;
+
+    // Guarded by the ShareSpool.
+    private final List<DataShare> shares       = new ArrayList<DataShare>();
+    private boolean             isEvicted      = false;
+
+    /**
+     * Constructor which creates the spool file.
+     * @param share The data share being spooled.
+     * @param file The file to spool the data share to.
+     * @param contentHash The content hash offered by the sending client or
+     * null if none was offered.
+     * @throws IOException If the file can't be created.
+     */
+    public SpoolFile(DataShare share, File file, String contentHash)
+                                                        throws IOException {
+        this.sendingUsername = share.getSendingUsername();
+        this.fileName        = share.getFileName();
+        this.file            = file;
+        this.size            = share.getFileSize();
+        this.contentHash     = contentHash;
+        this.digest          = (contentHash == null) ? null : ContentHash.newDigest();
+        this.checksums       = new int[(int) ((this.size + Protocol.CHUNK_SIZE - 1)
+                                              / Protocol.CHUNK_SIZE)];
+        this.isIncompressible = new boolean[this.checksums.length];
+        this.channel         = new RandomAccessFile(file, "rw").getChannel();
+        this.shares.add(share);
+    }
+
+    /**
+     * Returns the username of the client which sent the spooled data.
+     * @return The sending client's username.
+     */
+    public String getSendingUsername(){
+        return this.sendingUsername;
+    }
+
+    /**
+     * Returns the name of the file which was spooled.
+     * @return The file name.
+     */
+    public String getFileName(){
+        return this.fileName;
+    }
+
+    /**
+     * Returns the content hash offered by the sending client.
+     * @return The content hash or null if none was offered.
+     */
+    public String getContentHash(){
+        return this.contentHash;
+    }
+
+    /**
+     * Returns whether the spool file is complete and its data matches its
+     * content hash.  Only verified spool files are reused.
+     * @return True if verified, false otherwise.
+     */
+    public boolean isVerified(){
+        return this.isVerified;
+    }
+
+    /**
+     * Returns the data shares using the spool file, see ShareSpool.
+     * @return The data shares, empty if the spool file is only cached.
+     */
+    List<DataShare> getDataShares(){
+        return this.shares;
+    }
+
+    /**
+     * Returns the size of the data share.
+     * @return The size in bytes.
+     */
+    public long getSize(){
+        return this.size;
+    }
+
+    /**
+     * Returns the number of bytes spooled so far.
+     * @return The spooled length in bytes.
+     */
+    public long getLength(){
+        return this.length;
+    }
+
+    /**
+     * Returns whether the whole data share has been spooled.
+     * @return True if the spool file is complete, false otherwise.
+     */
+    public boolean isComplete(){
+        return (this.length == this.size);
+    }
+
+    /**
+     * Returns the time the spool file was last written to or read from.
+     * @return The last active time in milliseconds.
+     */
+    public long getLastActiveTime(){
+        return this.lastActiveTime;
+    }
+
+    /**
+     * Returns whether the spool file has been evicted, see ShareSpool.
+     * @return True if evicted, false otherwise.
+     */
+    boolean isEvicted(){
+        return this.isEvicted;
+    }
+
+    /**
+     * Marks the spool file as evicted, see ShareSpool.
+     */
+    void setEvicted(){
+        this.isEvicted = true;
+    }
+
+    /**
+     * Marks the spool file as active e.g. because a data share has reused it.
+     */
+    void touch(){
+        this.lastActiveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Appends a chunk received from the sending client.  The chunk must be
+     * the next chunk of the file and pass its checksum, and the last chunk
+     * must complete data matching the content hash if one was offered.  Must
+     * only be called by the sending client's event loop.
+     * @param chunk The received chunk.
+     * @throws IOException If the chunk is invalid, the data doesn't match its
+     * content hash or a write error occurs.
+     */
+    public void append(DataShareChunk chunk) throws IOException {
+        long position = this.length;
+        int numBytes = chunk.getLength();
+        if (chunk.getOffset() != position || position == this.size ||
+            numBytes != DataShareChunk.getChunkLength(position, this.size))
+            throw new IOException("Unexpected data share chunk at offset " +
+                                  chunk.getOffset());
+        if (!chunk.isValid())
+            throw new IOException("Data share chunk checksum error at offset " +
+                                  chunk.getOffset());
+
+        ByteBuffer buffer = ByteBuffer.wrap(chunk.getPayload(),
+                                DataShareChunk.HEADER_SIZE, numBytes);
+        while (buffer.hasRemaining())
+            position += this.channel.write(buffer, position);
+        this.checksums[(int) (chunk.getOffset() / Protocol.CHUNK_SIZE)] =
+                                                           chunk.getChecksum();
+        this.lastActiveTime = System.currentTimeMillis();
+
+        // Only verify the data once the whole file has been spooled, before
+        // the last chunk is made readable.
+        if (this.digest != null){
+            this.digest.update(chunk.getPayload(), DataShareChunk.HEADER_SIZE,
+                               numBytes);
+            if (position == this.size){
+                this.isVerified = this.contentHash.equals(
+                                  ContentHash.toHex(this.digest.digest()));
+                if (!this.isVerified){
+                    this.isFailed = true;
+                    throw new IOException("Data share content hash mismatch");
+                }
+            }
+        }
+        this.length = position;
+    }
+
+    /**
+     * Returns the checksum of the spooled chunk at the given offset.
+     * @param position The offset of the chunk, a multiple of the chunk size.
+     * @return The CRC32 checksum of the chunk.
+     */
+    public int getChecksum(long position){
+        return this.checksums[(int) (position / Protocol.CHUNK_SIZE)];
+    }
+
+    /**
+     * Returns whether the spooled chunk at the given offset is worth trying
+     * to compress, i.e. it hasn't already failed to compress.
+     * @param position The offset of the chunk, a multiple of the chunk size.
+     * @return True if the chunk may compress, false otherwise.
+     */
+    public boolean isCompressible(long position){
+        return !this.isIncompressible[(int) (position / Protocol.CHUNK_SIZE)];
+    }
+
+    /**
+     * Marks the spooled chunk at the given offset as not compressing.
+     * @param position The offset of the chunk, a multiple of the chunk size.
+     */
+    public void setIncompressible(long position){
+        this.isIncompressible[(int) (position / Protocol.CHUNK_SIZE)] = true;
+    }
+
+    /**
+     * Returns whether the upload of the spool file can be resumed by a later
+     * data share offering the same content hash whose sending client proves
+     * it has the data spooled so far, see ShareSpool.
+     * @return True if partly spooled with a content hash which hasn't failed,
+     * false otherwise.
+     */
+    public boolean isResumable(){
+        return (this.contentHash != null && this.length > 0 &&
+                !this.isComplete() && !this.isFailed);
+    }
+
+    /**
+     * Sends spooled data straight from the file to a socket channel without
+     * copying it through the heap.
+     * @param position The position of the data in the file.
+     * @param count The maximum number of bytes to send.
+     * @param target The socket channel.
+     * @return The number of bytes sent, possibly zero if the socket is full.
+     * @throws IOException If a read or write error occurs.
+     */
+    public long transferTo(long position, long count, WritableByteChannel target)
+                                                           throws IOException {
+        this.lastActiveTime = System.currentTimeMillis();
+        return this.channel.transferTo(position, count, target);
+    }
+
+    /**
+     * Reads spooled data into a buffer.  Used for chunks which are compressed
+     * and so can't be sent straight from the file.
+     * @param position The position of the data in the file.
+     * @param buffer The buffer to fill.
+     * @throws IOException If a read error occurs.
+     */
+    public void read(long position, ByteBuffer buffer) throws IOException {
+        this.lastActiveTime = System.currentTimeMillis();
+        while (buffer.hasRemaining()){
+            int numBytes = this.channel.read(buffer, position);
+            if (numBytes < 0)
+                throw new IOException("Unexpected end of spool file");
+            position += numBytes;
+        }
+    }
+
+    /**
+     * Closes and deletes the spool file.
+     */
+    public void delete(){
+        try {
+            this.channel.close();
+        }
+        catch (IOException ex){
+            //Logger.getLogger(SpoolFile.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        this.file.delete();
+    }
+}
@@ -0,0 +1,170 @@
+
+package yarnserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel used by each event loop to run the timeouts of its
+ * client connections (connection requests, login, data share and slow client
+ * timeouts).  The wheel is an array of buckets, each representing one tick of
+ * time.  A timeout is placed in the bucket of the tick it expires in, so
+ * scheduling and cancelling a timeout take constant time and each tick only
+ * examines the timeouts in one bucket rather than every connection.  Timeouts
+ * further away than one turn of the wheel stay in their bucket until the
+ * wheel has turned enough times.
+ *
+ * Timeouts are only accurate to one tick which is plenty for the timeouts of
+ * this server (all are in seconds).  This class is not thread safe, it is only
+ * used by its owning event loop thread.
+ * @author Michael Telford
+ */
+public class TimingWheel {
+
+    public  static final int    TICK_DURATION = 100;  // in milli seconds.
+    private static final int    NUM_BUCKETS   = 512;  // A power of two.
+
+    private final Timeout[]     buckets       = new Timeout[NUM_BUCKETS];
+    private long                currentTick;
+    private int                 size          = 0;
+
+    /**
+     * A task which can be scheduled on a timing wheel.  Each client
+     * connection owns one timeout which is rescheduled for its next deadline,
+     * so no objects are created when a deadline changes.  A timeout is linked
+     * into its bucket so that it can be removed in constant time.
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private long           deadline = 0;
+        private long           tick     = 0;
+        private int            bucket   = -1;
+        private Timeout        prev     = null;
+        private Timeout        next     = null;
+
+        /**
+         * Constructor which takes the task to run when the timeout expires.
+         * @param task The task to run.
+         */
+        public Timeout(Runnable task){
+            this.task = task;
+        }
+
+        /**
+         * Returns whether or not this timeout is scheduled.
+         * @return True if scheduled, false otherwise.
+         */
+        public boolean isScheduled(){
+            return (this.bucket >= 0);
+        }
+
+        /**
+         * Returns the time this timeout is scheduled to expire.
+         * @return The deadline in milliseconds.
+         */
+        public long getDeadline(){
+            return this.deadline;
+        }
+    }
+
+    /**
+     * Constructor which sets the wheel's current tick from the current time.
+     * @param now The current time in milliseconds.
+     */
+    public TimingWheel(long now){
+        this.currentTick = now / TimingWheel.TICK_DURATION;
+    }
+
+    /**
+     * Schedules (or reschedules) a timeout to expire at the given time.  A
+     * deadline which has already passed expires on the next tick.
+     * @param timeout The timeout to schedule.
+     * @param deadline The time the timeout expires in milliseconds.
+     */
+    public void schedule(Timeout timeout, long deadline){
+        this.cancel(timeout);
+        long tick = (deadline + TimingWheel.TICK_DURATION - 1) /
+                                                    TimingWheel.TICK_DURATION;
+        if (tick <= this.currentTick)
+            tick = this.currentTick + 1;
+        timeout.deadline = deadline;
+        timeout.tick     = tick;
+        timeout.bucket   = (int) (tick & (TimingWheel.NUM_BUCKETS - 1));
+        timeout.prev     = null;
+        timeout.next     = this.buckets[timeout.bucket];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        this.buckets[timeout.bucket] = timeout;
+        this.size++;
+    }
+
+    /**
+     * Cancels a timeout.  Nothing happens if the timeout isn't scheduled.
+     * @param timeout The timeout to cancel.
+     */
+    public void cancel(Timeout timeout){
+        if (timeout.bucket < 0)
+            return;
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            this.buckets[timeout.bucket] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev   = null;
+        timeout.next   = null;
+        timeout.bucket = -1;
+        this.size--;
+    }
+
+    /**
+     * Returns whether or not any timeouts are scheduled.
+     * @return True if no timeouts are scheduled, false otherwise.
+     */
+    public boolean isEmpty(){
+        return (this.size == 0);
+    }
+
+    /**
+     * Turns the wheel up to the current time and runs every timeout which has
+     * expired.  Expired timeouts are removed from the wheel before their task
+     * runs so that a task can reschedule its own timeout.  Exceptions thrown
+     * by a task are caught so that the remaining timeouts still run.
+     * @param now The current time in milliseconds.
+     */
+    public void advance(long now){
+        long targetTick = now / TimingWheel.TICK_DURATION;
+        if (targetTick <= this.currentTick)
+            return;
+
+        // Each bucket only needs visiting once however many ticks have passed.
+        long numTicks = Math.min(targetTick - this.currentTick,
+                                 TimingWheel.NUM_BUCKETS);
+        List<Timeout> expired = null;
+        for (long i = 1; i <= numTicks; i++){
+            int bucket = (int) ((this.currentTick + i) & (TimingWheel.NUM_BUCKETS - 1));
+            for (Timeout timeout = this.buckets[bucket]; timeout != null;
+                                                    timeout = timeout.next){
+                if (timeout.tick <= targetTick){
+                    if (expired == null)
+                        expired = new ArrayList<Timeout>();
+                    expired.add(timeout);
+                }
+            }
+        }
+        this.currentTick = targetTick;
+        if (expired == null)
+            return;
+
+        for (Timeout timeout : expired)
+            this.cancel(timeout);
+        for (Timeout timeout : expired){
+            try {
+                timeout.task.run();
+            }
+            catch (Exception ex){
+                //Logger.getLogger(TimingWheel.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
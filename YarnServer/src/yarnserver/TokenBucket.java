@@ -0,0 +1,85 @@
+
+package yarnserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket which limits the rate of something (messages, bytes etc.)
+ * while allowing short bursts.  The bucket holds up to its burst size of
+ * tokens and is refilled at its rate, each message or byte takes a token.
+ *
+ * Rather than a token count and the time it was last refilled the bucket
+ * keeps the single time at which it will next be full (the generic cell
+ * rate algorithm), taking tokens moves that time on.  Taking tokens is
+ * therefore a single compare and set, so a bucket can be shared by all of
+ * the event loops (e.g. the bucket of a source IP address) without a lock
+ * and checking the bucket never allocates.
+ * @author Michael Telford
+ */
+public class TokenBucket {
+
+    private final double     nanosPerToken;
+    private final long       burstNanos;    // The time taken to refill a burst.
+    private final AtomicLong fullTime;      // in nano seconds.
+
+    /**
+     * Constructor which takes the rate and burst size, the bucket starts
+     * full.
+     * @param rate The number of tokens added per second, greater than zero.
+     * @param burst The maximum number of tokens the bucket holds.
+     */
+    public TokenBucket(double rate, long burst){
+        this.nanosPerToken = 1000000000.0 / rate;
+        this.burstNanos    = (long) (burst * this.nanosPerToken);
+        this.fullTime      = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes the given number of tokens if the bucket has them.
+     * @param tokens The number of tokens to take.
+     * @param now The current System.nanoTime().
+     * @return True if the tokens were taken, false if the bucket doesn't
+     * have enough tokens in which case none are taken.
+     */
+    public boolean tryAcquire(long tokens, long now){
+        long cost = (long) (tokens * this.nanosPerToken);
+        while (true){
+            long full = this.fullTime.get();
+            long next = Math.max(full - now, 0) + cost;
+            if (next > this.burstNanos)
+                return false;
+            if (this.fullTime.compareAndSet(full, now + next))
+                return true;
+        }
+    }
+
+    /**
+     * Returns tokens taken by tryAcquire() which weren't used, e.g. because
+     * another bucket refused the message.
+     * @param tokens The number of tokens to return.
+     */
+    public void release(long tokens){
+        long cost = (long) (tokens * this.nanosPerToken);
+        this.fullTime.addAndGet(-cost);
+    }
+
+    /**
+     * Takes the given number of tokens whether or not the bucket has them,
+     * e.g. for bytes which have already been read.  A bucket which is
+     * overdrawn has no tokens until it has been refilled by the amount
+     * overdrawn.
+     * @param tokens The number of tokens to take.
+     * @param now The current System.nanoTime().
+     * @return The time until the bucket has tokens again in nano seconds, zero
+     * if it still has tokens.
+     */
+    public long acquire(long tokens, long now){
+        long cost = (long) (tokens * this.nanosPerToken);
+        while (true){
+            long full = this.fullTime.get();
+            long next = Math.max(full - now, 0) + cost;
+            if (this.fullTime.compareAndSet(full, now + next))
+                return Math.max(next - this.burstNanos, 0);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 
 package yarnserver;
 
+import yarnprotocol.ContentHash;
+import yarnprotocol.Protocol;
+
 /**
  * Utilities class for static methods generally used by ClientConnection.
  * This class contains utilitarian methods which are useful code snippets 
@@ -129,9 +132,9 @@ public abstract class Utilities {
         // Determine if a file or voice transfer is taking place.
         String dataType;
         if (isAFileShare)
-            dataType = DataShare.FILE_SHARE_SEND_CMD;
+            dataType = Protocol.FILE_SHARE_SEND_CMD;
         else
-            dataType = DataShare.VOICE_SHARE_SEND_CMD;
+            dataType = Protocol.VOICE_SHARE_SEND_CMD;
         
         // Get the filepath.
         int firstIndex = text.indexOf("\"");
@@ -175,6 +178,24 @@ public abstract class Utilities {
         return new String[] {filename, fileLength, String.valueOf(cmdLength)};
     }
     
+    /**
+     * This method retrieves the content hash offered by the sending client
+     * from the end of the protocol command.  The hash is optional, clients
+     * which don't offer one always upload the data share.
+     * @param text The text based protocol command.
+     * @return The content hash or null if no valid hash was offered.
+     */
+    public static String getContentHashFromText(String text){
+        int index = text.lastIndexOf(Protocol.CONTENT_HASH_CMD);
+        if (index < 0 || index < text.lastIndexOf("?\"") || !text.endsWith("\""))
+            return null;
+        String hash = text.substring(index + Protocol.CONTENT_HASH_CMD.length(),
+                                     text.length() - 1);
+        if (!ContentHash.isValid(hash))
+            return null;
+        return hash;
+    }
+    
     /**
      * Determine if the data share is a voice or a file transfer.  This is 
      * required to adequately inform the receiving client(s) about what kind of 
@@ -195,9 +216,9 @@ public abstract class Utilities {
         }
         
         // Determine protocol.
-        if (cmd.trim().charAt(0) == DataShare.FILE_SHARE_SEND_CMD.trim().charAt(0))
+        if (cmd.trim().charAt(0) == Protocol.FILE_SHARE_SEND_CMD.trim().charAt(0))
             return true;
-        else if (cmd.trim().charAt(0) == DataShare.VOICE_SHARE_SEND_CMD.trim().charAt(0))
+        else if (cmd.trim().charAt(0) == Protocol.VOICE_SHARE_SEND_CMD.trim().charAt(0))
             return false;
         else
             throw new Exception("Command protocol error, can't determine the data type");
@@ -212,7 +233,7 @@ public abstract class Utilities {
      * commands. 
      */
     public static void initIllegalUnames(){
-        Configuration.illegalUsernames     = new String[24];
+        Configuration.illegalUsernames     = new String[18];
         Configuration.illegalUsernames[0]  = "-1";
         Configuration.illegalUsernames[1]  = "-c";
         Configuration.illegalUsernames[2]  = "-n";
@@ -222,21 +243,15 @@ public abstract class Utilities {
         Configuration.illegalUsernames[6]  = Configuration.welcomeMessage;
         Configuration.illegalUsernames[7]  = "@";
         Configuration.illegalUsernames[8]  = " ";
-        Configuration.illegalUsernames[9]  = DataShare.DATA_SHARE_ACCEPT_CMD;
-        Configuration.illegalUsernames[10] = DataShare.DATA_SHARE_DECLINE_CMD;
-        Configuration.illegalUsernames[11] = DataShare.FILE_SHARE_IMMINENT_DATA_CMD;
-        Configuration.illegalUsernames[12] = DataShare.VOICE_SHARE_IMMINENT_DATA_CMD;
-        Configuration.illegalUsernames[13] = DataShare.DATA_SHARE_RECEIVE_CMD;
-        Configuration.illegalUsernames[14] = DataShare.FILE_SHARE_SEND_CMD;
-        Configuration.illegalUsernames[15] = DataShare.CONNECTION_REQUEST;
-        Configuration.illegalUsernames[16] = DataShare.VOICE_SHARE_SEND_CMD;
-        Configuration.illegalUsernames[17] = "-connections";
-        Configuration.illegalUsernames[18] = "-names";
-        Configuration.illegalUsernames[19] = "-search";
-        Configuration.illegalUsernames[20] = "-help";
-        Configuration.illegalUsernames[21] = "";
-        Configuration.illegalUsernames[22] = "-p";
-        Configuration.illegalUsernames[23] = "-presence";
+        Configuration.illegalUsernames[9]  = Protocol.FILE_SHARE_SEND_CMD;
+        Configuration.illegalUsernames[10] = Protocol.VOICE_SHARE_SEND_CMD;
+        Configuration.illegalUsernames[11] = "-connections";
+        Configuration.illegalUsernames[12] = "-names";
+        Configuration.illegalUsernames[13] = "-search";
+        Configuration.illegalUsernames[14] = "-help";
+        Configuration.illegalUsernames[15] = "";
+        Configuration.illegalUsernames[16] = "-p";
+        Configuration.illegalUsernames[17] = "-presence";
     }
     
     /**
@@ -279,6 +294,7 @@ public abstract class Utilities {
      * is excluded from the search.  If no matching client is found based on 
      * the given username then null is returned. This method is called in many 
      * places and is common functionality when working with client connections. 
+     * The lookup uses the session registry's username index. 
      * @param thisClient Excludes the given client from the search if provided. 
      * Otherwise null can be provided to search through all connected clients. 
      * @param uname The username to match against chosen client usernames. The 
@@ -297,28 +313,10 @@ public abstract class Utilities {
         // included in the search, otherwise it is excluded.
         if (uname == null || uname.isEmpty())
             return null;
-        if (thisClient != null){
-            for (int i = 0; i < Main.connections.length; i++){
-                ClientConnection client = Main.connections[i];
-                if (client != null 
-                 && client.getUsername() != null
-                 && client.getUsername().equals(uname) 
-                 && client != thisClient){
-                    return client;
-                }
-            }
-        }
-        else {
-            for (int i = 0; i < Main.connections.length; i++){
-                ClientConnection client = Main.connections[i];
-                if (client != null 
-                 && client.getUsername() != null
-                 && client.getUsername().equals(uname)){
-                    return client;
-                }
-            }
-        }
-        return null;
+        ClientConnection client = Main.sessions.getClient(uname);
+        if (client != null && client == thisClient)
+            return null;
+        return client;
     }
     
     /**
@@ -352,18 +350,15 @@ public abstract class Utilities {
     
     /**
      * This method is responsible for validating the provided username.  To be 
-     * legal a username must not match any of the illegal usernames and must be 
-     * unique (not already chosen by another user). 
-     * @param thisClient The calling client connection instance which is 
-     * provided so that all other clients and usernames are retrieved and 
-     * validated against. This method is called when a client connects to a 
-     * server and provides a desired username. 
+     * legal a username must not match any of the illegal usernames.  This 
+     * method is called when a client connects to a server and provides a 
+     * desired username.  Whether the username is unique (not already chosen 
+     * by another user) is decided when the username is claimed from the 
+     * session registry. 
      * @param uname The desired client username which is to be validated.
-     * @return True if the desired username is not illegal and is not already 
-     * taken by another user. 
+     * @return True if the desired username is not illegal. 
      */
-    public static boolean isUsernameOk(ClientConnection thisClient,
-                                       String uname){
+    public static boolean isUsernameOk(String uname){
         // Check that the uname isn't empty.
         if (uname == null || uname.isEmpty())
             return false;
@@ -375,18 +370,28 @@ public abstract class Utilities {
         // Should never be the case, just precautionary.
         if (uname.trim().isEmpty())
             return false;
-        
-        // Check that uname is not already taken by another user.
-        String otherUsername;
-        for (int i = 0; i < Main.connections.length; i++){
-            ClientConnection client = Main.connections[i];
-            if (client != null && client != thisClient){
-                otherUsername = client.getUsername();
-                if (otherUsername == null)
-                    continue;
-                else if (otherUsername.equals(uname))
-                    return false;
-            }
+        return true;
+    }
+    
+    /**
+     * This method is responsible for validating a channel name given to the 
+     * -join command.  To be legal a channel name must start with the channel 
+     * prefix (#) followed by at least one character, have no spaces and be no 
+     * longer than a username. 
+     * @param name The channel name which is to be validated e.g. #friends
+     * @return True if the channel name is legal. 
+     */
+    public static boolean isChannelNameOk(String name){
+        if (name == null || name.length() <= Protocol.CHANNEL_PREFIX.length())
+            return false;
+        if (!name.startsWith(Protocol.CHANNEL_PREFIX))
+            return false;
+        if (name.length() > Configuration.usernameAndPasswordCharLimit + 
+                            Protocol.CHANNEL_PREFIX.length())
+            return false;
+        for (int i = 0; i < name.length(); i++){
+            if (Character.isWhitespace(name.charAt(i)))
+                return false;
         }
         return true;
     }
@@ -398,34 +403,26 @@ public abstract class Utilities {
      * @return The number of currently connected clients.
      */
     public static int getNumAllConnectedClients(){
-        int connected = 0;
-        for (int i = 0; i < Main.connections.length; i++){
-            ClientConnection client = Main.connections[i];
-            if (client != null && client.getUsername() != null){
-                connected++;
-            }
-        }
-        return connected;
+        return Main.sessions.getNumConnectedClients();
     }
 
     /**
      * This method returns the number of other connected clients.  Connected is 
      * defined as having established a connection with the server and entered 
      * a legal and unique username. The result of this method is the same as 
-     * 'int count = (getNumAllConnectedClients() - 1);'.
+     * 'int count = (getNumAllConnectedClients() - 1);' plus the users connected 
+     * to the other servers of the federation, if any.
      * @return The number of other currently connected clients.  This count 
      * excludes the calling client connection. 
      */
     public static int getNumOtherConnectedClients(ClientConnection thisClient){
-        int connected = 0;
-        for (int i = 0; i < Main.connections.length; i++){
-            ClientConnection client = Main.connections[i];
-            if (client != null 
-             && client != thisClient 
-             && client.getUsername() != null){
-                connected++;
-            }
-        }
+        int connected = Main.sessions.getNumConnectedClients();
+        if (thisClient != null && thisClient.getUsername() != null)
+            connected--;
+        if (connected < 0)
+            connected = 0;
+        if (Main.federation != null)
+            connected += Main.federation.getNumRemoteUsers();
         return connected;
     }
     
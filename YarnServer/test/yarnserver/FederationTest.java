@@ -0,0 +1,468 @@
+
+package yarnserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import yarnprotocol.ContentHash;
+import yarnprotocol.DataShareChunk;
+import yarnprotocol.Frame;
+import yarnprotocol.FrameReader;
+import yarnprotocol.FrameWriter;
+import yarnprotocol.Login;
+import yarnprotocol.LoginResult;
+import yarnprotocol.Protocol;
+
+/**
+ * Tests a federation of three servers on localhost end to end.  Each server
+ * is started in its own JVM and folder with a copy of the given config file
+ * changed to use its own ports and node name, the second server peering the
+ * first and the third peering the second, so messages between the first and
+ * third are passed on by the second.  Run from the server folder with the
+ * server and protocol classes on the class path e.g.
+ *
+ * java -cp build/classes:build/test/classes:../YarnProtocol/dist/YarnProtocol.jar
+ *      yarnserver.FederationTest [config file] [first client port]
+ *
+ * A client logs into each server (alice, bob and carol) and the test checks
+ * that the rosters meet, a status change and a logout reach the other
+ * servers, a username can't log in on two servers, chat reaches every
+ * server, a channel message reaches only the channel's members, a PM reaches
+ * only its recipient and a data share is relayed from the first server to
+ * the third intact.  The servers' folders are deleted afterwards unless a
+ * check fails.  The exit status is 1 if any check fails.
+ * @author Michael Telford
+ */
+public class FederationTest {
+
+    private static final int    NUM_NODES       = 3;
+    private static final String PASSWORD        = "federation-test";
+    private static final long   GOSSIP_INTERVAL = 300;     // in milliseconds.
+    private static final long   START_TIMEOUT   = 30000;   // in milliseconds.
+    private static final long   TIMEOUT         = 10000;   // in milliseconds.
+    private static final long   QUIET_TIME      = 1000;    // in milliseconds.
+
+    private static int failures = 0;
+
+    /**
+     * Runs the test.
+     * @param args The optional config file to copy (default
+     * yarn.server.config.xml) and the client port of the first server
+     * (default 29901), the servers use the client ports from it and the
+     * federation ports ten above them.
+     * @throws Exception If a server can't be set up or started.
+     */
+    public static void main(String[] args) throws Exception {
+        File config   = new File((args.length > 0) ? args[0] :
+                                                     "yarn.server.config.xml");
+        int firstPort = (args.length > 1) ? Integer.parseInt(args[1]) : 29901;
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                                  "yarn-federation-test-" + System.nanoTime());
+
+        Process[] servers = new Process[NUM_NODES];
+        TestClient[] clients = new TestClient[NUM_NODES];
+        try {
+            for (int i = 0; i < NUM_NODES; i++){
+                File folder = new File(directory, "n" + (i + 1));
+                folder.mkdirs();
+                FederationTest.writeConfig(config, new File(folder,
+                        "yarn.server.config.xml"), i, firstPort);
+                servers[i] = FederationTest.startServer(folder);
+            }
+            for (int i = 0; i < NUM_NODES; i++)
+                FederationTest.awaitServer(firstPort + i);
+            System.out.println(String.format("%d servers started in %s",
+                                             NUM_NODES, directory));
+            String[] names = {"alice", "bob", "carol"};
+            for (int i = 0; i < NUM_NODES; i++)
+                clients[i] = TestClient.login(names[i], firstPort + i);
+            FederationTest.run(clients[0], clients[1], clients[2], firstPort);
+        }
+        finally {
+            for (TestClient client : clients){
+                if (client != null)
+                    client.close();
+            }
+            for (Process server : servers){
+                if (server != null){
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+            if (failures == 0)
+                FederationTest.delete(directory);
+        }
+
+        System.out.println((failures == 0) ? "PASSED" : failures + " FAILED"
+                           + " (the servers' logs are in " + directory + ")");
+        System.exit((failures == 0) ? 0 : 1);
+    }
+
+    /**
+     * Runs the checks, alice is on the first server, bob on the second and
+     * carol on the third.
+     */
+    private static void run(TestClient alice, TestClient bob, TestClient carol,
+                            int firstPort) throws Exception {
+        FederationTest.check("roster sync", FederationTest.awaitRoster(carol,
+                "alice [online] (on n1)", "bob [online] (on n2)"));
+
+        TestClient duplicate = TestClient.connect(firstPort + 2);
+        LoginResult result = duplicate.login("alice");
+        duplicate.close();
+        FederationTest.check("duplicate username refused",
+                             result != null && !result.isAccepted());
+
+        alice.sendText("-p busy");
+        FederationTest.check("status change", FederationTest.awaitRoster(carol,
+                "alice [busy] (on n1)"));
+
+        bob.sendText("hello from n2");
+        FederationTest.check("chat", alice.awaitText("bob : hello from n2") &&
+                             carol.awaitText("bob : hello from n2"));
+
+        alice.sendText("-join #test");
+        carol.sendText("-join #test");
+        FederationTest.check("channel joined", alice.awaitText("#test") &&
+                             carol.awaitText("#test"));
+        // The channel's owner learns of a remote member asynchronously.
+        Thread.sleep(GOSSIP_INTERVAL * 2);
+        alice.sendText("#test hello channel");
+        FederationTest.check("channel message", carol.awaitText(
+                "#test alice : hello channel") && !bob.receivesText(
+                "hello channel"));
+
+        carol.sendText("@alice psst from n3");
+        FederationTest.check("PM", alice.awaitText("carol : @alice psst from n3")
+                             && !bob.receivesText("psst from n3"));
+
+        FederationTest.check("relayed data share",
+                             FederationTest.shareData(alice, carol));
+
+        alice.close();
+        FederationTest.check("logout", FederationTest.awaitRosterWithout(carol,
+                "alice"));
+    }
+
+    /**
+     * Shares a file of random data from one client to another, the sender
+     * sending every chunk once it is told to and the receiver accepting it
+     * and checking the data.
+     * @return True if the data arrived intact and the sender was told so.
+     */
+    private static boolean shareData(TestClient sender, TestClient receiver)
+                                                         throws Exception {
+        byte[] data = new byte[Protocol.CHUNK_SIZE * 3 + 123];
+        new SecureRandom().nextBytes(data);
+        String hash = ContentHash.toHex(ContentHash.newDigest().digest(data));
+        sender.send(new Frame(Protocol.DATA_SHARE_SEND, "@" + receiver.username
+                + Protocol.FILE_SHARE_SEND_CMD + "/tmp/federation-test.bin\"?\""
+                + data.length + "\"" + Protocol.CONTENT_HASH_CMD + hash + "\""));
+
+        Frame ready = sender.awaitFrame(Protocol.DATA_SHARE_READY);
+        if (ready == null)
+            return FederationTest.fail("the sender wasn't sent DATA_SHARE_READY");
+        long offset = DataShareChunk.decodeOffset(ready.getPayload());
+        while (offset < data.length){
+            int length = DataShareChunk.getChunkLength(offset, data.length);
+            byte[] chunk = new byte[DataShareChunk.HEADER_SIZE + length];
+            System.arraycopy(data, (int) offset, chunk,
+                             DataShareChunk.HEADER_SIZE, length);
+            DataShareChunk.encodeHeader(offset, DataShareChunk.checksum(data,
+                                        (int) offset, length), chunk, 0);
+            sender.send(new Frame(Protocol.DATA_SHARE_CHUNK, chunk));
+            offset += length;
+        }
+
+        if (receiver.awaitFrame(Protocol.DATA_SHARE_REQUEST) == null)
+            return FederationTest.fail("the receiver wasn't offered the data share");
+        receiver.send(new Frame(Protocol.DATA_SHARE_ACCEPT));
+        if (receiver.awaitFrame(Protocol.DATA_SHARE_START) == null)
+            return FederationTest.fail("the data share didn't start");
+        receiver.send(new Frame(Protocol.DATA_SHARE_RESUME,
+                                DataShareChunk.encodeOffset(0)));
+        byte[] received = new byte[data.length];
+        long numReceived = 0;
+        while (numReceived < data.length){
+            Frame frame = receiver.awaitFrame(Protocol.DATA_SHARE_CHUNK);
+            if (frame == null)
+                return FederationTest.fail(String.format("only %d of %d "
+                        + "bytes were received", numReceived, data.length));
+            DataShareChunk chunk = DataShareChunk.decode(frame.getPayload());
+            if (!chunk.isValid() || chunk.getOffset() != numReceived)
+                return FederationTest.fail("a chunk was corrupt or out of order");
+            System.arraycopy(chunk.getPayload(), DataShareChunk.HEADER_SIZE,
+                    received, (int) numReceived, chunk.getLength());
+            numReceived += chunk.getLength();
+        }
+        receiver.send(new Frame(Protocol.DATA_SHARE_RECEIVED));
+        if (!Arrays.equals(data, received))
+            return FederationTest.fail("the data received differs");
+        return sender.awaitText("successfully sent");
+    }
+
+    /**
+     * Polls a client's -n until it shows every given roster entry.
+     */
+    private static boolean awaitRoster(TestClient client, String... entries)
+                                                  throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline){
+            String roster = client.requestRoster();
+            boolean isFound = (roster != null);
+            for (String entry : entries)
+                isFound = isFound && roster.contains(entry);
+            if (isFound)
+                return true;
+            Thread.sleep(GOSSIP_INTERVAL);
+        }
+        return false;
+    }
+
+    /**
+     * Polls a client's -n until it no longer shows a username.
+     */
+    private static boolean awaitRosterWithout(TestClient client, String uname)
+                                                      throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline){
+            String roster = client.requestRoster();
+            if (roster != null && !roster.contains(uname + " ["))
+                return true;
+            Thread.sleep(GOSSIP_INTERVAL);
+        }
+        return false;
+    }
+
+    /**
+     * Copies the config file, setting a server's ports, node name, peer and
+     * the federation password.
+     */
+    private static void writeConfig(File from, File to, int index, int firstPort)
+                                                          throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                                             .parse(from);
+        int clientPort = firstPort + index;
+        FederationTest.set(doc, "server_listening_port", String.valueOf(clientPort));
+        FederationTest.set(doc, "server_password", "");
+        FederationTest.set(doc, "federation_port", String.valueOf(clientPort + 10));
+        FederationTest.set(doc, "node_name", "n" + (index + 1));
+        FederationTest.set(doc, "federation_peers", (index == 0) ? "" :
+                           "localhost:" + (clientPort + 9));
+        FederationTest.set(doc, "federation_password", PASSWORD);
+        FederationTest.set(doc, "gossip_interval", String.valueOf(GOSSIP_INTERVAL));
+        FederationTest.set(doc, "use_ssl", "false");
+        FederationTest.set(doc, "use_proxy", "false");
+        TransformerFactory.newInstance().newTransformer().transform(
+                new DOMSource(doc), new StreamResult(to));
+    }
+
+    private static void set(Document doc, String element, String value){
+        doc.getElementsByTagName(element).item(0).setTextContent(value);
+    }
+
+    /**
+     * Starts a server in its own JVM with the same class path, its output
+     * going to a file in its folder.
+     */
+    private static Process startServer(File folder) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(new File(System.getProperty(
+                "java.home"), "bin" + File.separator + "java").getPath(), "-cp",
+                System.getProperty("java.class.path"), "yarnserver.Main");
+        builder.directory(folder);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(folder, "out.txt"));
+        return builder.start();
+    }
+
+    /**
+     * Waits until a server accepts connections on its client port.
+     */
+    private static void awaitServer(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true){
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("localhost", port), 1000);
+                return;
+            }
+            catch (IOException ex){
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("The server on port " + port
+                                          + " didn't start", ex);
+                Thread.sleep(200);
+            }
+            finally {
+                socket.close();
+            }
+        }
+    }
+
+    private static void check(String name, boolean isPassed){
+        System.out.println(String.format("%-28s %s", name,
+                                         isPassed ? "ok" : "FAILED"));
+        if (!isPassed)
+            failures++;
+    }
+
+    private static boolean fail(String reason){
+        System.out.println("    " + reason);
+        return false;
+    }
+
+    private static void delete(File file){
+        File[] files = file.listFiles();
+        if (files != null){
+            for (File child : files)
+                FederationTest.delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * A client connected to one of the servers, speaking the protocol
+     * directly.  The frames received are read by a thread into a queue so
+     * that the checks can wait for them with a timeout.
+     */
+    private static class TestClient {
+
+        private final Socket               socket;
+        private final FrameWriter          writer;
+        private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+        private String                     username;
+
+        private TestClient(Socket socket) throws IOException {
+            this.socket = socket;
+            this.writer = new FrameWriter(socket.getOutputStream(), 8192);
+            final FrameReader reader = new FrameReader(socket.getInputStream(),
+                                                       8192);
+            Thread thread = new Thread(new Runnable(){
+                public void run(){
+                    try {
+                        while (true)
+                            TestClient.this.frames.add(reader.read());
+                    }
+                    catch (IOException ex){
+                        // The client was closed.
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        static TestClient connect(int port) throws IOException {
+            return new TestClient(new Socket("localhost", port));
+        }
+
+        static TestClient login(String uname, int port) throws Exception {
+            TestClient client = TestClient.connect(port);
+            LoginResult result = client.login(uname);
+            if (result == null || !result.isAccepted())
+                throw new IOException(uname + " couldn't log in on port " + port);
+            return client;
+        }
+
+        /**
+         * Logs in without compression.
+         * @return The login result or null if none arrived.
+         */
+        LoginResult login(String uname) throws Exception {
+            this.username = uname;
+            this.send(new Frame(Protocol.LOGIN, new Login(0, "", uname).encode()));
+            Frame frame = this.awaitFrame(Protocol.LOGIN_RESULT);
+            return (frame != null) ? LoginResult.decode(frame.getPayload()) : null;
+        }
+
+        void send(Frame frame) throws IOException {
+            this.writer.write(frame);
+        }
+
+        void sendText(String text) throws IOException {
+            this.send(new Frame(Protocol.TEXT, text));
+        }
+
+        /**
+         * Waits for a frame of a type, dropping the frames before it.
+         * @return The frame or null if none arrived within TIMEOUT.
+         */
+        Frame awaitFrame(int type) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            long wait;
+            while ((wait = deadline - System.currentTimeMillis()) > 0){
+                Frame frame = this.frames.poll(wait, TimeUnit.MILLISECONDS);
+                if (frame != null && frame.getType() == type)
+                    return frame;
+            }
+            return null;
+        }
+
+        /**
+         * Waits for a text frame containing some text, dropping the frames
+         * before it.
+         */
+        boolean awaitText(String text) throws InterruptedException {
+            return this.receiveText(text, TIMEOUT);
+        }
+
+        /**
+         * Returns whether a text frame containing some text arrives within
+         * QUIET_TIME, dropping the frames received meanwhile.
+         */
+        boolean receivesText(String text) throws InterruptedException {
+            return this.receiveText(text, QUIET_TIME);
+        }
+
+        private boolean receiveText(String text, long timeout)
+                                       throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            long wait;
+            while ((wait = deadline - System.currentTimeMillis()) > 0){
+                Frame frame = this.frames.poll(wait, TimeUnit.MILLISECONDS);
+                if (frame != null && frame.getType() == Protocol.TEXT &&
+                    frame.getText().contains(text))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Sends -n and returns the reply, the roster or that no other
+         * clients are connected.
+         * @return The reply or null if there was none.
+         */
+        String requestRoster() throws Exception {
+            this.sendText("-n");
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            long wait;
+            while ((wait = deadline - System.currentTimeMillis()) > 0){
+                Frame frame = this.frames.poll(wait, TimeUnit.MILLISECONDS);
+                if (frame != null && frame.getType() == Protocol.TEXT &&
+                    (frame.getText().contains(this.username + " (you)") ||
+                     frame.getText().startsWith("No other clients")))
+                    return frame.getText();
+            }
+            return null;
+        }
+
+        void close(){
+            try {
+                this.socket.close();
+            }
+            catch (IOException ex){
+                //Logger.getLogger(FederationTest.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+
+package yarnserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks that a HashRing spreads the keys evenly between its nodes as nodes
+ * join and leave the federation, and that a ring change only moves the keys
+ * it has to.  Run with the server and protocol classes on the class path e.g.
+ *
+ * java -cp build/classes:build/test/classes:../YarnProtocol/dist/YarnProtocol.jar
+ *      yarnserver.HashRingBalanceCheck [virtual nodes] [keys]
+ *
+ * Nodes are added one at a time up to MAX_NODES and then removed again.
+ * After each change the busiest node mustn't own more than MAX_LOAD_RATIO
+ * times the keys of the least busy one, a joining node must only take keys
+ * (about 1/N of them) and a leaving node must only give up its own keys.
+ * The exit status is 1 if any check fails.
+ * @author Michael Telford
+ */
+public class HashRingBalanceCheck {
+
+    private static final int    MAX_NODES      = 6;
+    private static final double MAX_LOAD_RATIO = 1.10;
+
+    private static int failures = 0;
+
+    /**
+     * Runs the check.
+     * @param args The optional number of virtual nodes (default the server's
+     * default) and number of keys (default 100000).
+     */
+    public static void main(String[] args){
+        int virtualNodes = (args.length > 0) ? Integer.parseInt(args[0]) :
+                                               Configuration.virtualNodes;
+        int numKeys      = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+
+        String[] keys = new String[numKeys];
+        for (int i = 0; i < numKeys; i++)
+            keys[i] = "user" + i;
+        String[] nodes = new String[MAX_NODES];
+        for (int i = 0; i < MAX_NODES; i++)
+            nodes[i] = "yarn" + (i + 1) + ".example.com:" + (1991 + i);
+
+        System.out.println(String.format("%d virtual nodes, %d keys",
+                                         virtualNodes, numKeys));
+        HashRing ring = new HashRing(virtualNodes);
+        String[] owners = HashRingBalanceCheck.getOwners(ring, keys);
+        for (int i = 0; i < MAX_NODES; i++){
+            ring.add(nodes[i]);
+            owners = HashRingBalanceCheck.check(ring, keys, owners, "add "
+                                                + nodes[i], nodes[i], true);
+        }
+        // Remove every other node, then the rest but one.
+        for (int i = 1; i < MAX_NODES; i += 2){
+            ring.remove(nodes[i]);
+            owners = HashRingBalanceCheck.check(ring, keys, owners, "remove "
+                                                + nodes[i], nodes[i], false);
+        }
+        for (int i = MAX_NODES - 2; i > 0; i -= 2){
+            ring.remove(nodes[i]);
+            owners = HashRingBalanceCheck.check(ring, keys, owners, "remove "
+                                                + nodes[i], nodes[i], false);
+        }
+
+        System.out.println((failures == 0) ? "PASSED" : failures + " FAILED");
+        System.exit((failures == 0) ? 0 : 1);
+    }
+
+    private static String[] getOwners(HashRing ring, String[] keys){
+        String[] owners = new String[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            owners[i] = ring.getNode(keys[i]);
+        return owners;
+    }
+
+    /**
+     * Checks the ring after a node was added or removed.
+     * @return The owner of each key after the change.
+     */
+    private static String[] check(HashRing ring, String[] keys,
+                                  String[] oldOwners, String change,
+                                  String node, boolean isAdded){
+        String[] owners = HashRingBalanceCheck.getOwners(ring, keys);
+        Map<String, Integer> loads = new HashMap<String, Integer>();
+        int numMoved = 0, numWrongMoves = 0;
+        for (int i = 0; i < keys.length; i++){
+            Integer load = loads.get(owners[i]);
+            loads.put(owners[i], (load == null) ? 1 : load + 1);
+            if (oldOwners[i] == null || owners[i].equals(oldOwners[i]))
+                continue;
+            numMoved++;
+            // Only the joining node takes keys, only the leaving node's move.
+            if (isAdded ? !owners[i].equals(node) : !oldOwners[i].equals(node))
+                numWrongMoves++;
+        }
+
+        int max = 0, min = Integer.MAX_VALUE;
+        for (int load : loads.values()){
+            max = Math.max(max, load);
+            min = Math.min(min, load);
+        }
+        int numNodes = ring.getNumNodes();
+        if (loads.size() < numNodes)
+            min = 0;
+        double ratio = (min == 0) ? Double.POSITIVE_INFINITY : (double) max / min;
+        double moved = (double) numMoved / keys.length;
+        System.out.println(String.format("%-36s %d node(s), keys per node "
+                + "%d-%d (max/min %.3f), %.1f%% moved", change, numNodes, min,
+                max, ratio, moved * 100));
+
+        if (ratio > MAX_LOAD_RATIO)
+            HashRingBalanceCheck.fail(String.format("max/min load %.3f is "
+                    + "over %.2f", ratio, MAX_LOAD_RATIO));
+        if (numWrongMoves > 0)
+            HashRingBalanceCheck.fail(numWrongMoves + " key(s) moved between "
+                                      + "nodes which didn't change");
+        // A change of one node moves about 1/N of the keys (N before a
+        // removal, N after an addition).
+        int numShared = isAdded ? numNodes : numNodes + 1;
+        if (numShared > 1 && moved > MAX_LOAD_RATIO / numShared)
+            HashRingBalanceCheck.fail(String.format("%.1f%% of the keys moved, "
+                    + "over %.1f%%", moved * 100, MAX_LOAD_RATIO / numShared * 100));
+        return owners;
+    }
+
+    private static void fail(String reason){
+        System.out.println("    FAILED: " + reason);
+        failures++;
+    }
+}
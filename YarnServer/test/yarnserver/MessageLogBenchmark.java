@@ -0,0 +1,168 @@
+
+package yarnserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Benchmarks the message log (see MessageLog) so that its append throughput
+ * and flush (fsync) latency can be reproduced on any machine.  Run with the
+ * server and protocol classes on the class path e.g.
+ *
+ * java -cp build/classes:build/test/classes:../YarnProtocol/dist/YarnProtocol.jar
+ *      yarnserver.MessageLogBenchmark [messages] [text bytes] [threads]
+ *      [sync interval ms] [directory]
+ *
+ * Three runs are made against a new log in a temporary directory, which is
+ * deleted afterwards:
+ *
+ * Append - one thread appends every message, timing each append (a copy into
+ * the mapped segment under the log's lock).
+ *
+ * Group commit - the given number of threads (like the event loops) append
+ * every message between them while a flusher thread flushes the log every
+ * sync interval like the log's own thread, timing each flush.
+ *
+ * Commit per message - one message is appended and flushed at a time, timing
+ * each flush, i.e. the fsync latency a message would wait for without group
+ * commit.
+ * @author Michael Telford
+ */
+public class MessageLogBenchmark {
+
+    private static final int COMMIT_PER_MESSAGE_RUNS = 200;
+
+    /**
+     * Runs the benchmark.
+     * @param args The optional number of messages (default 200000), text
+     * size in bytes (default 60), number of appending threads (default 4),
+     * sync interval in milliseconds (default 100) and log directory.
+     * @throws Exception If the log can't be opened or a thread is interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        int numMessages  = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int textSize     = (args.length > 1) ? Integer.parseInt(args[1]) : 60;
+        int numThreads   = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        int syncInterval = (args.length > 3) ? Integer.parseInt(args[3]) : 100;
+        File directory   = (args.length > 4) ? new File(args[4]) :
+                new File(System.getProperty("java.io.tmpdir"),
+                         "yarn-message-log-benchmark-" + System.nanoTime());
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < textSize; i++)
+            text.append((char) ('a' + (i % 26)));
+        System.out.println(String.format("%d messages of %d bytes, %d "
+                + "thread(s), %d ms sync interval, in %s", numMessages,
+                textSize, numThreads, syncInterval, directory));
+        try {
+            MessageLogBenchmark.benchmarkAppend(new File(directory, "append"),
+                                                numMessages, text.toString());
+            MessageLogBenchmark.benchmarkGroupCommit(new File(directory,
+                    "group"), numMessages, text.toString(), numThreads,
+                    syncInterval);
+            MessageLogBenchmark.benchmarkCommitPerMessage(new File(directory,
+                    "single"), text.toString());
+        }
+        finally {
+            MessageLogBenchmark.delete(directory);
+        }
+    }
+
+    private static MessageLog open(File directory) throws IOException {
+        return new MessageLog(directory, Configuration.messageLogSegmentSize,
+                              0, 0, Long.MAX_VALUE);
+    }
+
+    private static void benchmarkAppend(File directory, int numMessages,
+                                        String text) throws IOException {
+        MessageLog log = MessageLogBenchmark.open(directory);
+        LatencyHistogram appends = new LatencyHistogram();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numMessages; i++){
+            long appendTime = System.nanoTime();
+            log.append(MessageLog.CHAT, "bench", "", text);
+            appends.record(System.nanoTime() - appendTime);
+        }
+        long timeTaken = System.nanoTime() - startTime;
+        log.sync();
+        System.out.println(String.format("append : %.0f messages/s, %.2f us "
+                + "average, p50 %d us, p99 %d us, max %d us", numMessages /
+                (timeTaken / 1e9), timeTaken / 1000.0 / numMessages,
+                appends.getPercentile(50), appends.getPercentile(99),
+                appends.getMax()));
+    }
+
+    private static void benchmarkGroupCommit(File directory, int numMessages,
+            final String text, int numThreads, final int syncInterval)
+            throws IOException, InterruptedException {
+        final MessageLog log = MessageLogBenchmark.open(directory);
+        final LatencyHistogram syncs = new LatencyHistogram();
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+        Thread flusher = new Thread(new Runnable(){
+            public void run(){
+                while (!isDone.get()){
+                    try {
+                        Thread.sleep(syncInterval);
+                    }
+                    catch (InterruptedException ex){
+                        return;
+                    }
+                    long syncTime = System.nanoTime();
+                    log.sync();
+                    syncs.record(System.nanoTime() - syncTime);
+                }
+            }
+        });
+        flusher.start();
+
+        final int perThread = numMessages / numThreads;
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        long startTime = System.nanoTime();
+        for (int t = 0; t < numThreads; t++){
+            new Thread(new Runnable(){
+                public void run(){
+                    for (int i = 0; i < perThread; i++)
+                        log.append(MessageLog.CHAT, "bench", "", text);
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        long timeTaken = System.nanoTime() - startTime;
+        isDone.set(true);
+        flusher.join();
+        System.out.println(String.format("group commit : %.0f messages/s with "
+                + "%d thread(s), %d flush(es) p50 %.2f ms, p99 %.2f ms, max "
+                + "%.2f ms", perThread * numThreads / (timeTaken / 1e9),
+                numThreads, syncs.getNumSamples(),
+                syncs.getPercentile(50) / 1000.0,
+                syncs.getPercentile(99) / 1000.0, syncs.getMax() / 1000.0));
+    }
+
+    private static void benchmarkCommitPerMessage(File directory, String text)
+                                                        throws IOException {
+        MessageLog log = MessageLogBenchmark.open(directory);
+        LatencyHistogram syncs = new LatencyHistogram();
+        for (int i = 0; i < COMMIT_PER_MESSAGE_RUNS; i++){
+            log.append(MessageLog.CHAT, "bench", "", text);
+            long syncTime = System.nanoTime();
+            log.sync();
+            syncs.record(System.nanoTime() - syncTime);
+        }
+        System.out.println(String.format("commit per message : %d flush(es) "
+                + "p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                syncs.getNumSamples(), syncs.getPercentile(50) / 1000.0,
+                syncs.getPercentile(99) / 1000.0, syncs.getMax() / 1000.0));
+    }
+
+    private static void delete(File file){
+        File[] files = file.listFiles();
+        if (files != null){
+            for (File child : files)
+                MessageLogBenchmark.delete(child);
+        }
+        file.delete();
+    }
+}